@@ -19,6 +19,7 @@ import com.grand.ids.UserId;
 import com.grand.ids.jdbc.IDSMode;
 
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.CopyOnWriteArraySet;
@@ -45,4 +46,15 @@ public abstract class AbstractAuditModule implements AuditModule {
             listener.onEvent(userId, sqlQuery, date, eventType, mode, properties);
         }
     }
+
+    /**
+     * Записать события по одному; модули, хранилище которых поддерживает
+     * пакетную запись, переопределяют метод.
+     */
+    public void logEvents(List<AuditRecord> records) {
+        for (AuditRecord record : records) {
+            logEvent(record.getUserId(), record.getSqlQuery(), record.getDate(), record.getEventType(),
+                    record.getMode(), record.getProperties());
+        }
+    }
 }
@@ -19,6 +19,7 @@ import com.grand.ids.UserId;
 import com.grand.ids.jdbc.IDSMode;
 
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -40,6 +41,14 @@ public interface AuditModule {
      */
     void logEvent(UserId userId, String sqlQuery, Date date, EventType eventType, IDSMode mode, Map<String, String> properties);
 
+    /**
+     * Записать в журнал аудита информацию об обработке нескольких
+     * SQL-запросов за одно обращение к хранилищу журнала.
+     *
+     * @param records записи журнала аудита
+     */
+    void logEvents(List<AuditRecord> records);
+
     /**
      * Установить подписку на события в системе аудита.
      *
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2009-2016 Andrey Grigorov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.grand.ids.audit;
+
+import com.grand.ids.UserId;
+import com.grand.ids.jdbc.IDSMode;
+
+import java.util.Date;
+import java.util.Map;
+
+/**
+ * Запись журнала аудита. Используется для пакетной записи событий (см.
+ * {@link AuditModule#logEvents(java.util.List)}).
+ *
+ * @author Andrey Grigorov
+ */
+public class AuditRecord {
+
+    private final UserId userId;
+    private final String sqlQuery;
+    private final Date date;
+    private final EventType eventType;
+    private final IDSMode mode;
+    private final Map<String, String> properties;
+
+    public AuditRecord(UserId userId, String sqlQuery, Date date, EventType eventType, IDSMode mode,
+                       Map<String, String> properties) {
+        this.userId = userId;
+        this.sqlQuery = sqlQuery;
+        this.date = date;
+        this.eventType = eventType;
+        this.mode = mode;
+        this.properties = properties;
+    }
+
+    public UserId getUserId() {
+        return userId;
+    }
+
+    public String getSqlQuery() {
+        return sqlQuery;
+    }
+
+    public Date getDate() {
+        return date;
+    }
+
+    public EventType getEventType() {
+        return eventType;
+    }
+
+    public IDSMode getMode() {
+        return mode;
+    }
+
+    public Map<String, String> getProperties() {
+        return properties;
+    }
+}
@@ -17,6 +17,7 @@ package com.grand.ids.audit.db;
 
 import com.grand.ids.UserId;
 import com.grand.ids.audit.AbstractAuditModule;
+import com.grand.ids.audit.AuditRecord;
 import com.grand.ids.audit.EventType;
 import com.grand.ids.audit.db.domain.Event;
 import com.grand.ids.jdbc.IDSMode;
@@ -26,6 +27,7 @@ import org.hibernate.SessionFactory;
 import org.hibernate.Transaction;
 
 import java.util.Date;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -50,14 +52,7 @@ public class HibernateAuditModule extends AbstractAuditModule {
         Transaction tx = null;
         try {
             tx = session.beginTransaction();
-            Event event = new Event();
-            event.setUserId(userId.getUserId());
-            event.setSqlQuery(sqlQuery);
-            event.setEventDate(date);
-            event.setEventType(eventType);
-            event.setMode(mode);
-            event.setProperties(properties);
-            session.save(event);
+            session.save(createEvent(userId, sqlQuery, date, eventType, mode, properties));
             tx.commit();
         } catch (Exception ex) {
             LOG.error("При сохранении информации о событии в журнал аудита произошла ошибка", ex);
@@ -68,4 +63,43 @@ public class HibernateAuditModule extends AbstractAuditModule {
             session.close();
         }
     }
+
+    /**
+     * Записать события в одной транзакции.
+     */
+    @Override
+    public void logEvents(List<AuditRecord> records) {
+        if (records.isEmpty()) {
+            return;
+        }
+        Session session = sessionFactory.openSession();
+        Transaction tx = null;
+        try {
+            tx = session.beginTransaction();
+            for (AuditRecord record : records) {
+                session.save(createEvent(record.getUserId(), record.getSqlQuery(), record.getDate(),
+                        record.getEventType(), record.getMode(), record.getProperties()));
+            }
+            tx.commit();
+        } catch (Exception ex) {
+            LOG.error("При сохранении информации о событиях в журнал аудита произошла ошибка", ex);
+            if (tx != null) {
+                tx.rollback();
+            }
+        } finally {
+            session.close();
+        }
+    }
+
+    private static Event createEvent(UserId userId, String sqlQuery, Date date, EventType eventType, IDSMode mode,
+                                     Map<String, String> properties) {
+        Event event = new Event();
+        event.setUserId(userId.getUserId());
+        event.setSqlQuery(sqlQuery);
+        event.setEventDate(date);
+        event.setEventType(eventType);
+        event.setMode(mode);
+        event.setProperties(properties);
+        return event;
+    }
 }
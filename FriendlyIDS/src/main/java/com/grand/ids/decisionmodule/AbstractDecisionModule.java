@@ -15,8 +15,11 @@
  */
 package com.grand.ids.decisionmodule;
 
+import com.grand.ids.UserId;
 import com.grand.ids.audit.AuditModule;
+import com.grand.ids.audit.AuditRecord;
 import com.grand.ids.audit.EventType;
+import com.grand.ids.jdbc.CapturingResultSet;
 import com.grand.ids.jdbc.IDSMode;
 import com.grand.ids.jdbc.knowledgemodule.KnowledgeModule;
 import com.grand.ids.jdbc.knowledgemodule.KnowledgeModule.UpdateResult;
@@ -30,13 +33,22 @@ import edu.jhuapl.idmef.IDMEF_Node;
 import edu.jhuapl.idmef.IDMEF_Process;
 import java.net.InetAddress;
 import java.net.UnknownHostException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import org.apache.log4j.Logger;
 
 /**
@@ -50,7 +62,35 @@ public abstract class AbstractDecisionModule implements DecisionModule {
     private final Set<IDMEFListener> listeners = new CopyOnWriteArraySet<IDMEFListener>();
     private KnowledgeModule knowledgeModule;
     private AuditModule auditModule;
-    private IDSMode mode;
+    private volatile IDSMode mode;
+    private AsyncAnalysisPipeline pipeline;
+    private int asyncQueueCapacity = 1024;
+    private int asyncWorkerCount = 1;
+    private volatile boolean prefetchEnabled = false;
+    private int prefetchQueueCapacity = 64;
+    private ThreadPoolExecutor prefetchExecutor;
+    private volatile SamplingPolicy samplingPolicy;
+    private volatile CircuitBreaker circuitBreaker;
+    /**
+     * Количество запросов, не проанализированных из-за перегрузки
+     */
+    private final AtomicLong shedEventCount = new AtomicLong();
+    /**
+     * Время, отводимое на анализ запроса в потоке приложения; 0 - анализ
+     * всегда выполняется в потоке приложения
+     */
+    private volatile long inlineAnalysisBudgetMillis = 0;
+    /**
+     * Наблюдаемое время анализа одной условной единицы трудоёмкости (см.
+     * {@link KnowledgeModule#estimateAnalysisCost}) в наносекундах
+     */
+    private volatile double nanosPerCostUnit = 50;
+    /**
+     * Минимальная трудоёмкость анализа, учитываемая при уточнении
+     * {@link #nanosPerCostUnit}; время анализа небольших результатов
+     * определяется в основном постоянными затратами
+     */
+    private final static long MIN_CALIBRATION_COST = 1000;
 
     public AbstractDecisionModule(KnowledgeModule knowledgeModule, AuditModule auditModule, IDSMode mode) {
         this.knowledgeModule = knowledgeModule;
@@ -60,65 +100,657 @@ public abstract class AbstractDecisionModule implements DecisionModule {
 
     public AnalysisResult analyze(Event event) {
 
-        if (mode == IDSMode.INTRUSION_DETECTING_WITHOUT_LEARNING
-                || mode == IDSMode.INTRUSION_DETECTING_WITH_LEARNING) {
-            Verdict verdict = analyzeEvent(event);
-            EventType eventType;
-            if (verdict.getVerdict() == Verdict.VerdictType.NORMAL) {
-                // результат признан нормальным
-                eventType = EventType.NORMAL;
-                if (mode == IDSMode.INTRUSION_DETECTING_WITH_LEARNING) {
-                    // выполняем обновление базы знаний
-                    try {
-                        knowledgeModule.updateKnowledge(event.getResultSet(), event.getUserId(), event.getSqlQuery());
-                    } catch (Exception ex) {
-                        LOG.error("Ошибка при обновлении базы знаний", ex);
-                    }
-                }
-            } else if (verdict.getVerdict() == Verdict.VerdictType.ANOMALITY) {
-                eventType = EventType.ANOMALY;
-            } else if (verdict.getVerdict() == Verdict.VerdictType.ERROR) {
-                eventType = EventType.ERROR;
+        IDSMode currentMode = getMode(event);
+        if (currentMode == IDSMode.NO_OBSERVATION) {
+            auditModule.logEvent(event.getUserId(), event.getSqlQuery(), event.getDate(), EventType.NO_OBSERVATION, currentMode, Collections.EMPTY_MAP);
+            return new AnalysisResult(false);
+        }
+
+        IDSMode requestedMode = currentMode;
+        currentMode = admit(event, currentMode, null);
+        if (currentMode == null || !isSampled(event, currentMode, null)) {
+            return new AnalysisResult(false);
+        }
+
+        // результат выполнения запроса считывается в память один раз, все
+        // последующие этапы анализа работают с собственным курсором
+        event = captureEvent(event, currentMode, null);
+        if (event == null) {
+            return new AnalysisResult(false);
+        }
+
+        if (currentMode == IDSMode.INTRUSION_DETECTING_WITHOUT_LEARNING
+                || currentMode == IDSMode.INTRUSION_DETECTING_WITH_LEARNING) {
+            detectWithinBudget(event, currentMode, null);
+            return new AnalysisResult(false);
+        } else if (currentMode.isAsynchronous()) {
+            // результат возвращается незавершённым и будет заполнен рабочим
+            // потоком конвейера
+            AnalysisResult analysisResult = new AnalysisResult();
+            submitToPipeline(event, currentMode, analysisResult);
+            return analysisResult;
+        } else if (currentMode == IDSMode.LEARNING) {
+            if (requestedMode.isAsynchronous()) {
+                // в асинхронных режимах поток приложения не должен ждать и
+                // обучения, назначенного автоматическим выключателем; при
+                // заполненной очереди событие отбрасывается
+                submitToPipeline(event, currentMode, new AnalysisResult());
             } else {
-                eventType = EventType.NO_DECISION;
+                learn(event, currentMode, null);
+            }
+        }
+        return new AnalysisResult(false);
+    }
+
+    /**
+     * Выполнить обнаружение аномалий в потоке приложения, если ожидаемое
+     * время анализа укладывается в отведённое время (см.
+     * {@link #setInlineAnalysisBudgetMillis(long)}). Иначе событие передаётся
+     * рабочему потоку конвейера, а вердикт позднее записывается в журнал
+     * аудита и передаётся слушателям IDMEF. Если очередь конвейера заполнена
+     * или подготовить перенос анализа не удалось (см.
+     * {@link #prepareAnalysis(Event)}), анализ выполняется в потоке
+     * приложения.
+     *
+     * @param event        событие безопасности
+     * @param mode         режим работы (синхронного обнаружения аномалий)
+     * @param auditRecords записи журнала аудита, накапливаемые для пакетной
+     *                     записи; null - записывать событие сразу
+     */
+    private void detectWithinBudget(Event event, IDSMode mode, List<AuditRecord> auditRecords) {
+        long budgetMillis = inlineAnalysisBudgetMillis;
+        if (budgetMillis <= 0) {
+            detect(event, mode, auditRecords, false);
+            return;
+        }
+        long cost;
+        try {
+            cost = knowledgeModule.estimateAnalysisCost(event.getResultSet(), event.getUserId(), event.getSqlTemplate());
+        } catch (Exception ex) {
+            LOG.debug("Не удалось оценить трудоёмкость анализа. Запрос: " + event.getSqlQuery(), ex);
+            cost = 0;
+        }
+        if (cost * nanosPerCostUnit > budgetMillis * 1000000.0) {
+            // если подготовить перенос анализа не удалось, запрос
+            // анализируется в потоке приложения
+            if (prepareAnalysis(event) && getPipeline().submit(event, mode, new AnalysisResult())) {
+                return;
             }
+        }
+        long startTime = System.nanoTime();
+        detect(event, mode, auditRecords, false);
+        if (cost >= MIN_CALIBRATION_COST) {
+            // скользящее среднее; одновременные обновления из разных потоков
+            // могут потерять отдельное наблюдение, что для оценки допустимо
+            nanosPerCostUnit = 0.8 * nanosPerCostUnit + 0.2 * (System.nanoTime() - startTime) / cost;
+        }
+    }
+
+    /**
+     * Определить режим обработки запроса с учётом состояния автоматического
+     * выключателя (см. {@link #setCircuitBreaker(CircuitBreaker)}). Запрос,
+     * который не будет проанализирован, записывается в журнал аудита с
+     * указанием причины. Обучение, назначенное выключателем в асинхронных
+     * режимах, также выполняется рабочим потоком конвейера.
+     *
+     * @param event        событие безопасности
+     * @param mode         текущий режим работы
+     * @param auditRecords записи журнала аудита, накапливаемые для пакетной
+     *                     записи; null - записывать событие сразу
+     * @return режим, в котором следует обработать запрос, или null, если
+     * запрос не анализируется
+     */
+    private IDSMode admit(Event event, IDSMode mode, List<AuditRecord> auditRecords) {
+        CircuitBreaker breaker = circuitBreaker;
+        if (breaker == null) {
+            return mode;
+        }
+        CircuitBreaker.Admission admission = breaker.admit();
+        if (admission == CircuitBreaker.Admission.LEARN) {
+            return IDSMode.LEARNING;
+        } else if (admission == CircuitBreaker.Admission.SHED) {
+            shedEventCount.incrementAndGet();
+            Map<String, String> properties = new HashMap<String, String>();
+            properties.put("description", "LOAD_SHED");
+            properties.put("reason", "CIRCUIT_OPEN");
+            properties.put("circuitState", breaker.getState().name());
+            logEvent(auditRecords, event, EventType.NO_DECISION, mode, properties);
+            return null;
+        }
+        return mode;
+    }
 
-            auditModule.logEvent(event.getUserId(), event.getSqlQuery(), event.getDate(), eventType, mode, verdict.getProperties());
+    /**
+     * Сообщить автоматическому выключателю результат анализа.
+     *
+     * @param success   true - анализ завершился без ошибки
+     * @param startTime время начала анализа (см. {@link System#nanoTime()})
+     */
+    private void recordAnalysis(boolean success, long startTime) {
+        CircuitBreaker breaker = circuitBreaker;
+        if (breaker != null) {
+            breaker.record(success, System.nanoTime() - startTime);
+        }
+    }
 
-            if (eventType == EventType.ANOMALY) {
-                notifyListeners(event, verdict);
+    /**
+     * Проанализировать события, накопленные за время транзакции. Знания,
+     * необходимые для анализа, загружаются один раз для каждой пары
+     * "пользователь - шаблон запроса" (см.
+     * {@link KnowledgeModule#prefetchKnowledge}), а записи журнала аудита
+     * передаются модулю аудита одним пакетом. Каждое событие обрабатывается
+     * в своём режиме (см. {@link Event#getMode()}); в режимах асинхронного
+     * анализа события передаются конвейеру по одному.
+     */
+    public List<AnalysisResult> analyzeAll(List<Event> events) {
+        List<AnalysisResult> results = new ArrayList<AnalysisResult>(events.size());
+        List<AuditRecord> auditRecords = new ArrayList<AuditRecord>(events.size());
+        List<Event> detectedEvents = new ArrayList<Event>(events.size());
+        List<IDSMode> detectedModes = new ArrayList<IDSMode>(events.size());
+        List<Event> learnedEvents = new ArrayList<Event>();
+        for (Event event : events) {
+            IDSMode eventMode = getMode(event);
+            if (eventMode != null && eventMode.isAsynchronous()) {
+                results.add(analyze(event));
+                continue;
+            }
+            results.add(new AnalysisResult(false));
+            if (eventMode == IDSMode.NO_OBSERVATION) {
+                logEvent(auditRecords, event, EventType.NO_OBSERVATION, eventMode, Collections.<String, String>emptyMap());
+                continue;
+            }
+            IDSMode admittedMode = admit(event, eventMode, auditRecords);
+            if (admittedMode == null || !isSampled(event, admittedMode, auditRecords)) {
+                continue;
+            }
+            Event capturedEvent = captureEvent(event, admittedMode, auditRecords);
+            if (capturedEvent == null) {
+                continue;
+            }
+            if (admittedMode == IDSMode.LEARNING) {
+                learnedEvents.add(capturedEvent);
+            } else {
+                detectedEvents.add(capturedEvent);
+                detectedModes.add(admittedMode);
             }
+        }
+        for (Event event : learnedEvents) {
+            learn(event, IDSMode.LEARNING, auditRecords);
+        }
+        prefetchKnowledge(detectedEvents);
+        for (int i = 0; i < detectedEvents.size(); i++) {
+            detectWithinBudget(detectedEvents.get(i), detectedModes.get(i), auditRecords);
+        }
+        auditModule.logEvents(auditRecords);
+        return results;
+    }
 
-            return new AnalysisResult(false);
-        } else if (mode == IDSMode.LEARNING) {
+    public boolean prepareAnalysis(Event event) {
+        try {
+            knowledgeModule.prepareAnalysis(event.getAnalysisContext());
+            return true;
+        } catch (Exception ex) {
+            LOG.debug("Не удалось подготовить перенос анализа результата запроса. Запрос: " + event.getSqlQuery(), ex);
+            event.resetAnalysisContext();
+            return false;
+        }
+    }
+
+    /**
+     * Определить, нужно ли анализировать запрос, согласно политике
+     * выборочного анализа (см. {@link #setSamplingPolicy(SamplingPolicy)}).
+     * Выборочно анализируются только запросы в режимах обнаружения аномалий;
+     * пропущенный запрос записывается в журнал аудита вместе с действовавшей
+     * долей анализируемых запросов.
+     *
+     * @param auditRecords записи журнала аудита, накапливаемые для пакетной
+     *                     записи; null - записывать событие сразу
+     * @return true - запрос следует проанализировать
+     */
+    private boolean isSampled(Event event, IDSMode mode, List<AuditRecord> auditRecords) {
+        SamplingPolicy policy = samplingPolicy;
+        if (policy == null || mode == IDSMode.LEARNING || mode == IDSMode.NO_OBSERVATION) {
+            return true;
+        }
+        SamplingPolicy.Decision decision = policy.decide(event.getUserId(), event.getSqlTemplate());
+        if (decision.isSampled()) {
+            return true;
+        }
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put("description", "SAMPLED_OUT");
+        properties.put("samplingRate", SamplingPolicy.formatRate(decision.getRate()));
+        logEvent(auditRecords, event, EventType.NO_DECISION, mode, properties);
+        return false;
+    }
+
+    /**
+     * Загрузить знания для всех различных пар "пользователь - шаблон
+     * запроса" пакета событий.
+     */
+    private void prefetchKnowledge(List<Event> events) {
+        Map<String, Event> distinctEvents = new LinkedHashMap<String, Event>();
+        for (Event event : events) {
+            if (event.getUserId() != null) {
+                distinctEvents.put(event.getUserId().getUserId() + "\u0000" + event.getSqlTemplate(), event);
+            }
+        }
+        for (Event event : distinctEvents.values()) {
             try {
-                UpdateResult updateResult = knowledgeModule.updateKnowledge(event.getResultSet(), event.getUserId(), event.getSqlQuery());
-                auditModule.logEvent(event.getUserId(), event.getSqlQuery(), event.getDate(), EventType.TRAINING_QUERY, mode, updateResult.getProperties());
+                knowledgeModule.prefetchKnowledge(event.getUserId(), event.getSqlTemplate());
             } catch (Exception ex) {
-                LOG.error("Ошибка при обновлении базы знаний", ex);
-                Map<String, String> properties = new HashMap<String, String>();
-                properties.put("description", "Ошибка при обновлении базы знаний");
-                auditModule.logEvent(event.getUserId(), event.getSqlQuery(), event.getDate(), EventType.ERROR, mode, properties);
+                LOG.debug("Ошибка при предварительной загрузке знаний. Запрос: " + event.getSqlQuery(), ex);
             }
+        }
+    }
 
-            return new AnalysisResult(false);
-        } else if (mode == IDSMode.NO_OBSERVATION) {
-            auditModule.logEvent(event.getUserId(), event.getSqlQuery(), event.getDate(), EventType.NO_OBSERVATION, mode, Collections.EMPTY_MAP);
+    /**
+     * Обновить базу знаний по результату выполнения запроса (режим обучения).
+     *
+     * @param event        событие безопасности
+     * @param mode         режим работы
+     * @param auditRecords записи журнала аудита, накапливаемые для пакетной
+     *                     записи; null - записывать событие сразу
+     */
+    private void learn(Event event, IDSMode mode, List<AuditRecord> auditRecords) {
+        long startTime = System.nanoTime();
+        try {
+            UpdateResult updateResult = knowledgeModule.updateKnowledge(event.getAnalysisContext());
+            recordAnalysis(true, startTime);
+            logEvent(auditRecords, event, EventType.TRAINING_QUERY, mode, updateResult.getProperties());
+        } catch (Exception ex) {
+            recordAnalysis(false, startTime);
+            LOG.error("Ошибка при обновлении базы знаний", ex);
+            Map<String, String> properties = new HashMap<String, String>();
+            properties.put("description", "Ошибка при обновлении базы знаний");
+            logEvent(auditRecords, event, EventType.ERROR, mode, properties);
+        }
+    }
+
+    /**
+     * Записать событие в журнал аудита или добавить его в пакет записей.
+     *
+     * @param auditRecords записи журнала аудита, накапливаемые для пакетной
+     *                     записи; null - записывать событие сразу
+     */
+    private void logEvent(List<AuditRecord> auditRecords, Event event, EventType eventType, IDSMode mode,
+                          Map<String, String> properties) {
+        if (auditRecords != null) {
+            auditRecords.add(new AuditRecord(event.getUserId(), event.getSqlQuery(), event.getDate(), eventType, mode, properties));
+        } else {
+            auditModule.logEvent(event.getUserId(), event.getSqlQuery(), event.getDate(), eventType, mode, properties);
+        }
+    }
+
+    /**
+     * Начать загрузку знаний, необходимых для анализа результата запроса.
+     * Загрузка выполняется отдельным потоком только в режимах обнаружения
+     * аномалий (режим источника данных, если он задан, имеет приоритет перед
+     * режимом модуля) и только если она включена (см.
+     * {@link #setPrefetchEnabled(boolean)}); если очередь загрузки заполнена,
+     * уведомление отбрасывается.
+     */
+    public void prefetch(final String sqlQuery, final UserId userId, final IDSMode dataSourceMode) {
+        IDSMode queryMode = dataSourceMode != null ? dataSourceMode : mode;
+        if (!prefetchEnabled || sqlQuery == null || userId == null
+                || queryMode == IDSMode.NO_OBSERVATION || queryMode == IDSMode.LEARNING) {
+            return;
+        }
+        getPrefetchExecutor().execute(new Runnable() {
+
+            public void run() {
+                try {
+                    knowledgeModule.prefetchKnowledge(userId, sqlQuery);
+                } catch (Exception ex) {
+                    // анализ результата загрузит знания сам
+                    LOG.debug("Ошибка при предварительной загрузке знаний. Запрос: " + sqlQuery, ex);
+                }
+            }
+        });
+    }
+
+    private synchronized ThreadPoolExecutor getPrefetchExecutor() {
+        if (prefetchExecutor == null) {
+            prefetchExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new ArrayBlockingQueue<Runnable>(prefetchQueueCapacity),
+                    new ThreadFactory() {
+
+                        private final AtomicInteger counter = new AtomicInteger();
+
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable, "ids-prefetch-" + counter.getAndIncrement());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    },
+                    new ThreadPoolExecutor.DiscardOldestPolicy());
+        }
+        return prefetchExecutor;
+    }
+
+    /**
+     * Выполнить обнаружение аномалий в результате выполнения запроса.
+     *
+     * @param event        событие безопасности
+     * @param mode         режим работы, в котором было получено событие
+     * @param auditRecords записи журнала аудита, накапливаемые для пакетной
+     *                     записи; null - записывать событие сразу
+     * @param deferred     анализ был перенесён из потока приложения в
+     *                     рабочий поток конвейера
+     * @return тип события, определённый в результате анализа
+     */
+    private EventType detect(Event event, IDSMode mode, List<AuditRecord> auditRecords, boolean deferred) {
+        long startTime = System.nanoTime();
+        Verdict verdict = analyzeEvent(event);
+        EventType eventType;
+        if (verdict.getVerdict() == Verdict.VerdictType.NORMAL) {
+            // результат признан нормальным
+            eventType = EventType.NORMAL;
+            if (mode.isLearningOnDetection()) {
+                // выполняем обновление базы знаний; данные, полученные при
+                // анализе, повторно не считываются
+                try {
+                    knowledgeModule.updateKnowledge(event.getAnalysisContext());
+                } catch (Exception ex) {
+                    LOG.error("Ошибка при обновлении базы знаний", ex);
+                }
+            }
+        } else if (verdict.getVerdict() == Verdict.VerdictType.ANOMALITY) {
+            eventType = EventType.ANOMALY;
+        } else if (verdict.getVerdict() == Verdict.VerdictType.ERROR) {
+            eventType = EventType.ERROR;
+        } else {
+            eventType = EventType.NO_DECISION;
+        }
+
+        recordAnalysis(eventType != EventType.ERROR, startTime);
+        if (deferred) {
+            verdict.putProperty("analysis", "DEFERRED");
+        }
+
+        SamplingPolicy policy = samplingPolicy;
+        if (policy != null) {
+            verdict.putProperty("samplingRate", SamplingPolicy.formatRate(policy.getRate(event.getUserId(), event.getSqlTemplate())));
+            policy.recordVerdict(event.getUserId(), event.getSqlTemplate(), eventType);
+        }
+        logEvent(auditRecords, event, eventType, mode, verdict.getProperties());
+
+        if (eventType == EventType.ANOMALY) {
+            notifyListeners(event, verdict);
+        }
+        return eventType;
+    }
+
+    /**
+     * Передать событие на асинхронную обработку. Анализ выполняется рабочими
+     * потоками конвейера над уже считанным в память результатом выполнения
+     * запроса, поэтому приложение может продолжать работу с курсором.
+     *
+     * @param event          событие безопасности
+     * @param mode           режим работы, в котором было получено событие
+     * @param analysisResult незавершённый результат анализа события
+     */
+    private void submitToPipeline(Event event, IDSMode mode, AnalysisResult analysisResult) {
+        if (!prepareForPipeline(event, mode, null)) {
+            analysisResult.complete(false);
+        } else if (!getPipeline().submit(event, mode, analysisResult)) {
+            // запрос, который не удалось проанализировать, не блокируется
+            analysisResult.complete(false);
+            logQueueOverflow(event, mode);
+        }
+    }
+
+    /**
+     * Выполнить в потоке приложения обращения к соединению, через которое
+     * выполнен запрос (см. {@link KnowledgeModule#prepareAnalysis}), до
+     * передачи события рабочему потоку конвейера: к моменту анализа
+     * приложение может использовать соединение в своём потоке, закрыть его
+     * или вернуть в пул. Если подготовить анализ не удалось, решение о
+     * запросе не принимается.
+     *
+     * @param auditRecords записи журнала аудита, накапливаемые для пакетной
+     *                     записи; null - записывать событие сразу
+     * @return true - событие можно передать конвейеру
+     */
+    private boolean prepareForPipeline(Event event, IDSMode mode, List<AuditRecord> auditRecords) {
+        try {
+            knowledgeModule.prepareAnalysis(event.getAnalysisContext());
+            return true;
+        } catch (Exception ex) {
+            LOG.warn("Не удалось подготовить асинхронный анализ результата запроса. Запрос: " + event.getSqlQuery(), ex);
+            Map<String, String> properties = new HashMap<String, String>();
+            properties.put("description", "REFETCH_UNAVAILABLE");
+            logEvent(auditRecords, event, EventType.NO_DECISION, mode, properties);
+            return false;
+        }
+    }
+
+    private void logQueueOverflow(Event event, IDSMode mode) {
+        shedEventCount.incrementAndGet();
+        LOG.warn("Очередь асинхронного анализа заполнена, событие не будет проанализировано. Запрос: " + event.getSqlQuery());
+        Map<String, String> properties = new HashMap<String, String>();
+        properties.put("description", "ANALYSIS_QUEUE_OVERFLOW");
+        auditModule.logEvent(event.getUserId(), event.getSqlQuery(), event.getDate(), EventType.NO_DECISION, mode, properties);
+    }
+
+    /**
+     * Создать копию события, результат выполнения запроса в которой считан в
+     * память и не зависит от дальнейшей работы приложения с курсором. Если
+     * результат ещё не был считан в память, то после копирования курсор
+     * исходного результата возвращается в начальное положение. Событие,
+     * анализ которого уже подготовлен (см. {@link #prepareAnalysis(Event)}),
+     * используется как есть, чтобы не потерять результаты подготовки.
+     *
+     * @param event        событие безопасности
+     * @param mode         режим работы
+     * @param auditRecords записи журнала аудита, накапливаемые для пакетной
+     *                     записи; null - записывать событие сразу
+     * @return копия события или null, если результат выполнения запроса не
+     * удалось считать (ошибка записывается в журнал аудита)
+     */
+    private Event captureEvent(Event event, IDSMode mode, List<AuditRecord> auditRecords) {
+        try {
+            ResultSet resultSet = event.getResultSet();
+            if (resultSet instanceof CapturingResultSet && event.isAnalysisPrepared()) {
+                return event;
+            }
+            CapturingResultSet capturedResultSet = CapturingResultSet.capture(resultSet);
+            if (!(resultSet instanceof CapturingResultSet)) {
+                resultSet.beforeFirst();
+            }
+            return new Event(event, capturedResultSet);
+        } catch (SQLException ex) {
+            LOG.error("Не удалось считать результат выполнения запроса. Запрос: " + event.getSqlQuery(), ex);
+            Map<String, String> properties = new HashMap<String, String>();
+            properties.put("description", "Не удалось считать результат выполнения запроса. " + ex.getMessage());
+            logEvent(auditRecords, event, EventType.ERROR, mode, properties);
+            return null;
+        }
+    }
+
+    private synchronized AsyncAnalysisPipeline getPipeline() {
+        if (pipeline == null) {
+            pipeline = new AsyncAnalysisPipeline(asyncQueueCapacity, asyncWorkerCount,
+                    new AsyncAnalysisPipeline.Handler() {
+
+                        public void handle(Event event, IDSMode mode, AnalysisResult analysisResult) {
+                            try {
+                                if (mode == IDSMode.LEARNING) {
+                                    // обучение вместо обнаружения, назначенное
+                                    // автоматическим выключателем
+                                    learn(event, mode, null);
+                                    analysisResult.complete(false);
+                                    return;
+                                }
+                                // в режимах синхронного обнаружения конвейер
+                                // получает события, анализ которых не уложился
+                                // бы в отведённое время
+                                boolean deferred = !mode.isAsynchronous();
+                                EventType eventType = detect(event, mode, null, deferred);
+                                analysisResult.complete(mode.isOptimisticBlocking()
+                                        && eventType == EventType.ANOMALY);
+                            } finally {
+                                try {
+                                    event.getResultSet().close();
+                                } catch (SQLException ex) {
+                                }
+                            }
+                        }
+                    });
+        }
+        return pipeline;
+    }
+
+    /**
+     * Установить максимальное количество событий, ожидающих асинхронной
+     * обработки. Должно быть вызвано до первого использования режимов
+     * асинхронного анализа (см. {@link IDSMode#isAsynchronous()})
+     * или переноса анализа из потока приложения (см.
+     * {@link #setInlineAnalysisBudgetMillis(long)}).
+     *
+     * @param asyncQueueCapacity размер очереди
+     */
+    public void setAsyncQueueCapacity(int asyncQueueCapacity) {
+        this.asyncQueueCapacity = asyncQueueCapacity;
+    }
+
+    /**
+     * Установить количество рабочих потоков, выполняющих асинхронный анализ.
+     * Модули знаний не рассчитаны на одновременное обращение из нескольких
+     * потоков, поэтому по умолчанию используется один рабочий поток.
+     * Должно быть вызвано до первого использования режимов
+     * асинхронного анализа (см. {@link IDSMode#isAsynchronous()})
+     * или переноса анализа из потока приложения (см.
+     * {@link #setInlineAnalysisBudgetMillis(long)}).
+     *
+     * @param asyncWorkerCount количество рабочих потоков
+     */
+    public void setAsyncWorkerCount(int asyncWorkerCount) {
+        this.asyncWorkerCount = asyncWorkerCount;
+    }
+
+    /**
+     * Включить или отключить предварительную загрузку знаний на время
+     * выполнения запроса в базе данных (см. {@link #prefetch(String, UserId, IDSMode)}).
+     * По умолчанию отключена.
+     *
+     * @param prefetchEnabled true - загружать знания заранее
+     */
+    public void setPrefetchEnabled(boolean prefetchEnabled) {
+        this.prefetchEnabled = prefetchEnabled;
+    }
+
+    public boolean isPrefetchEnabled() {
+        return prefetchEnabled;
+    }
+
+    /**
+     * Установить политику выборочного анализа запросов. Если политика не
+     * установлена (по умолчанию), анализируются все запросы.
+     *
+     * @param samplingPolicy политика выборочного анализа или null
+     */
+    public void setSamplingPolicy(SamplingPolicy samplingPolicy) {
+        this.samplingPolicy = samplingPolicy;
+    }
+
+    public SamplingPolicy getSamplingPolicy() {
+        return samplingPolicy;
+    }
+
+    /**
+     * Установить время, отводимое на анализ запроса в потоке приложения в
+     * режимах синхронного обнаружения аномалий. Время анализа
+     * прогнозируется по оценке его трудоёмкости (количество записей,
+     * распознанные таблицы, обращения к знаниям), уточняемой по фактической
+     * длительности анализов; запросы с большей ожидаемой длительностью
+     * анализируются рабочим потоком конвейера.
+     *
+     * @param inlineAnalysisBudgetMillis время в миллисекундах; 0 - все
+     *                                   запросы анализируются в потоке
+     *                                   приложения (по умолчанию)
+     */
+    public void setInlineAnalysisBudgetMillis(long inlineAnalysisBudgetMillis) {
+        this.inlineAnalysisBudgetMillis = inlineAnalysisBudgetMillis;
+    }
+
+    public long getInlineAnalysisBudgetMillis() {
+        return inlineAnalysisBudgetMillis;
+    }
+
+    /**
+     * Установить автоматический выключатель, переводящий модуль в
+     * деградированный режим при замедлении или ошибках анализа. Если
+     * выключатель не установлен (по умолчанию), анализ выполняется всегда.
+     *
+     * @param circuitBreaker автоматический выключатель или null
+     */
+    public void setCircuitBreaker(CircuitBreaker circuitBreaker) {
+        this.circuitBreaker = circuitBreaker;
+    }
+
+    public CircuitBreaker getCircuitBreaker() {
+        return circuitBreaker;
+    }
+
+    /**
+     * Получить количество запросов, не проанализированных из-за перегрузки:
+     * разомкнутого автоматического выключателя или переполнения очереди
+     * асинхронного анализа.
+     *
+     * @return количество запросов
+     */
+    public long getShedEventCount() {
+        return shedEventCount.get();
+    }
+
+    /**
+     * Установить максимальное количество запросов, ожидающих предварительной
+     * загрузки знаний; при переполнении отбрасываются самые старые. Должно
+     * быть вызвано до включения предварительной загрузки.
+     *
+     * @param prefetchQueueCapacity размер очереди
+     */
+    public void setPrefetchQueueCapacity(int prefetchQueueCapacity) {
+        this.prefetchQueueCapacity = prefetchQueueCapacity;
+    }
+
+    /**
+     * Остановить асинхронную обработку событий. События, уже находящиеся в
+     * очереди, будут обработаны; ожидающая предварительная загрузка знаний
+     * отменяется.
+     */
+    public synchronized void shutdown() {
+        if (pipeline != null) {
+            pipeline.shutdown();
+            pipeline = null;
+        }
+        if (prefetchExecutor != null) {
+            prefetchExecutor.shutdownNow();
+            prefetchExecutor = null;
         }
-        return new AnalysisResult(false);
     }
 
     private Verdict analyzeEvent(Event event) {
         List<Verdict> verdicts = new ArrayList<Verdict>();
         try {
-            List<Graph> relationGraphs = knowledgeModule.getRelationGraphs(event.getResultSet(), event.getUserId(), event.getSqlQuery());
+            List<Graph> relationGraphs = knowledgeModule.getRelationGraphs(event.getAnalysisContext());
+            if (relationGraphs == null) {
+                // таблицы не распознаны или полные записи недоступны
+                return new Verdict(Verdict.VerdictType.NO_DECISION).putProperty("description", "Невозможно построить граф отношений: таблицы не распознаны или полные записи недоступны.");
+            }
             if (relationGraphs.isEmpty()) {
                 LOG.warn("Невозможно построить граф отношений для записей, выбранных в результате выполнения запроса. Запрос: " + event.getSqlQuery());
                 return new Verdict(Verdict.VerdictType.ERROR).putProperty("description", "Невозможно построить граф отношений для записей, выбранных в результате выполнения запроса.");
             }
 
             for (Graph relationGraph : relationGraphs) {
-                verdicts.add(analyzeGraph(relationGraph));
+                Verdict verdict = analyzeGraph(relationGraph);
+                if (relationGraph.getSamplingRatio() < 1.0) {
+                    // граф построен по выборке записей результата запроса
+                    verdict.putProperty("rowSamplingRatio", SamplingPolicy.formatRate(relationGraph.getSamplingRatio()))
+                            .putProperty("sourceNodeNumber", String.valueOf(relationGraph.getSourceNodeNumber()));
+                }
+                verdicts.add(verdict);
             }
 
             for (Verdict verdict : verdicts) {
@@ -138,6 +770,19 @@ public abstract class AbstractDecisionModule implements DecisionModule {
         this.mode = mode;
     }
 
+    public IDSMode getMode() {
+        return mode;
+    }
+
+    /**
+     * Получить режим, в котором анализируется событие: режим источника
+     * данных, если он задан, иначе режим модуля принятия решений.
+     */
+    private IDSMode getMode(Event event) {
+        IDSMode eventMode = event.getMode();
+        return eventMode != null ? eventMode : mode;
+    }
+
     public AuditModule getAuditModule() {
         return auditModule;
     }
@@ -15,26 +15,97 @@
  */
 package com.grand.ids.decisionmodule;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 /**
  * Результат выполненного анализа результата выполнения
- * SQL-запроса.
+ * SQL-запроса. При асинхронном анализе объект создаётся до завершения
+ * анализа и заполняется позже (см. {@link #complete(boolean)}).
  *
  * @author Andrey Grigorov
  */
 public class AnalysisResult {
 
+    /**
+     * Слушатель, уведомляемый о том, что асинхронный анализ завершился
+     * решением заблокировать запрос.
+     */
+    public interface Listener {
+
+        void onBlockAction(AnalysisResult analysisResult);
+    }
+
     /**
      * Флаг, показывающий необходимо или нет блокировать
      * возвращение инициатору запроса результатата выполнения
      * SQL-запроса.
      */
-    private boolean blockAction;
+    private volatile boolean blockAction;
+    /**
+     * Флаг, показывающий завершён ли анализ
+     */
+    private volatile boolean completed;
+    private final List<Listener> listeners = new ArrayList<Listener>();
 
     public AnalysisResult(boolean blockAction) {
         this.blockAction = blockAction;
+        this.completed = true;
+    }
+
+    /**
+     * Создать результат анализа, который ещё не завершён. До вызова
+     * {@link #complete(boolean)} блокировать запрос не требуется.
+     */
+    public AnalysisResult() {
     }
 
     public boolean needBlockAction() {
         return blockAction;
     }
+
+    public boolean isCompleted() {
+        return completed;
+    }
+
+    /**
+     * Завершить анализ. Если принято решение о блокировании запроса, то
+     * уведомляются зарегистрированные слушатели.
+     *
+     * @param blockAction true - запрос необходимо заблокировать
+     */
+    public void complete(boolean blockAction) {
+        List<Listener> notified;
+        synchronized (this) {
+            if (completed) {
+                throw new IllegalStateException("Analysis result is already completed.");
+            }
+            this.blockAction = blockAction;
+            this.completed = true;
+            notified = blockAction ? new ArrayList<Listener>(listeners) : Collections.<Listener>emptyList();
+            listeners.clear();
+        }
+        for (Listener listener : notified) {
+            listener.onBlockAction(this);
+        }
+    }
+
+    /**
+     * Зарегистрировать слушателя. Если анализ уже завершён решением о
+     * блокировании запроса, то слушатель уведомляется сразу.
+     *
+     * @param listener слушатель
+     */
+    public void addListener(Listener listener) {
+        synchronized (this) {
+            if (!completed) {
+                listeners.add(listener);
+                return;
+            }
+        }
+        if (blockAction) {
+            listener.onBlockAction(this);
+        }
+    }
 }
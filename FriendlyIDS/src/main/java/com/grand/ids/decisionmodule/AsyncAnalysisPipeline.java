@@ -0,0 +1,169 @@
+/*
+ * Copyright 2009-2016 Andrey Grigorov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.grand.ids.decisionmodule;
+
+import com.grand.ids.jdbc.IDSMode;
+import org.apache.log4j.Logger;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Конвейер асинхронной обработки событий безопасности. События помещаются
+ * в ограниченную кольцевую очередь, из которой их забирают рабочие потоки.
+ * Если очередь заполнена, событие в неё не помещается, а решение о том,
+ * что делать с таким событием, принимает вызывающая сторона.
+ *
+ * @author Andrey Grigorov
+ */
+public class AsyncAnalysisPipeline {
+
+    /**
+     * Обработчик событий, извлекаемых рабочими потоками из очереди.
+     */
+    public interface Handler {
+
+        /**
+         * Обработать событие.
+         *
+         * @param event          событие безопасности
+         * @param mode           режим работы, в котором было получено событие
+         * @param analysisResult результат анализа, который необходимо
+         *                       завершить после обработки события
+         */
+        void handle(Event event, IDSMode mode, AnalysisResult analysisResult);
+    }
+
+    /**
+     * Событие, ожидающее обработки, вместе с сопутствующими сведениями.
+     */
+    private static class Task {
+
+        private final Event event;
+        private final IDSMode mode;
+        private final AnalysisResult analysisResult;
+
+        private Task(Event event, IDSMode mode, AnalysisResult analysisResult) {
+            this.event = event;
+            this.mode = mode;
+            this.analysisResult = analysisResult;
+        }
+    }
+
+    private final static Logger LOG = Logger.getLogger(AsyncAnalysisPipeline.class);
+    private final static long POLL_TIMEOUT_MILLIS = 100;
+    private final BlockingQueue<Task> queue;
+    private final Thread[] workers;
+    private final Handler handler;
+    private volatile boolean running = true;
+
+    /**
+     * Создать и запустить конвейер.
+     *
+     * @param capacity    максимальное количество событий, ожидающих обработки
+     * @param workerCount количество рабочих потоков
+     * @param handler     обработчик событий
+     */
+    public AsyncAnalysisPipeline(int capacity, int workerCount, Handler handler) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Queue capacity should be positive.");
+        }
+        if (workerCount <= 0) {
+            throw new IllegalArgumentException("Worker count should be positive.");
+        }
+        if (handler == null) {
+            throw new NullPointerException("Handler object should be not null.");
+        }
+        this.queue = new ArrayBlockingQueue<Task>(capacity);
+        this.handler = handler;
+        this.workers = new Thread[workerCount];
+        for (int i = 0; i < workerCount; i++) {
+            workers[i] = new Thread(new Runnable() {
+
+                public void run() {
+                    processEvents();
+                }
+            }, "ids-analysis-" + i);
+            workers[i].setDaemon(true);
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Есть ли в очереди свободное место.
+     *
+     * @return true - в очереди есть место хотя бы для одного события
+     */
+    public boolean hasFreeSlot() {
+        return queue.remainingCapacity() > 0;
+    }
+
+    /**
+     * Поместить событие в очередь на обработку. Метод никогда не блокирует
+     * вызывающий поток.
+     *
+     * @param event          событие безопасности
+     * @param mode           режим работы, в котором было получено событие
+     * @param analysisResult незавершённый результат анализа события
+     * @return true - событие помещено в очередь; false - очередь заполнена
+     * или конвейер остановлен
+     */
+    public boolean submit(Event event, IDSMode mode, AnalysisResult analysisResult) {
+        return running && queue.offer(new Task(event, mode, analysisResult));
+    }
+
+    /**
+     * Получить количество событий, ожидающих обработки.
+     *
+     * @return количество событий в очереди
+     */
+    public int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * Остановить конвейер. Приём новых событий прекращается, события,
+     * уже находящиеся в очереди, будут обработаны.
+     */
+    public void shutdown() {
+        running = false;
+    }
+
+    private void processEvents() {
+        while (running || !queue.isEmpty()) {
+            Task task;
+            try {
+                task = queue.poll(POLL_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+            if (task == null) {
+                continue;
+            }
+            try {
+                handler.handle(task.event, task.mode, task.analysisResult);
+            } catch (Throwable ex) {
+                LOG.error("Ошибка при асинхронной обработке события. Запрос: " + task.event.getSqlQuery(), ex);
+            } finally {
+                if (!task.analysisResult.isCompleted()) {
+                    task.analysisResult.complete(false);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,364 @@
+/*
+ * Copyright 2009-2016 Andrey Grigorov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.grand.ids.decisionmodule;
+
+/**
+ * Автоматический выключатель анализа. Отслеживает длительность и
+ * результаты анализа запросов в скользящем окне; если доля ошибочных или
+ * слишком долгих анализов превышает порог, выключатель размыкается и
+ * модуль принятия решений переходит в деградированный режим (см.
+ * {@link Degradation}), чтобы замедление базы знаний не замедляло
+ * приложение. По истечении заданного времени выключатель пропускает
+ * несколько пробных анализов и замыкается, если все они завершились
+ * успешно в пределах бюджета.
+ *
+ * @author Andrey Grigorov
+ */
+public class CircuitBreaker {
+
+    /**
+     * Состояние выключателя.
+     */
+    public enum State {
+
+        /**
+         * Анализ выполняется в обычном режиме
+         */
+        CLOSED,
+        /**
+         * Анализ выполняется в деградированном режиме
+         */
+        OPEN,
+        /**
+         * Выполняются пробные анализы
+         */
+        HALF_OPEN
+    }
+
+    /**
+     * Поведение модуля принятия решений при разомкнутом выключателе.
+     */
+    public enum Degradation {
+
+        /**
+         * Запросы не анализируются
+         */
+        NO_OBSERVATION,
+        /**
+         * Анализируется только заданная доля запросов (см.
+         * {@link #setDegradedSamplingRate(double)})
+         */
+        SAMPLED,
+        /**
+         * Запросы используются только для обучения без построения графов;
+         * подходит, если замедляется именно анализ, а не обновление базы
+         * знаний. Знания при этом пополняются без проверки запросов.
+         */
+        LEARNING
+    }
+
+    /**
+     * Решение о том, как обработать очередной запрос.
+     */
+    public enum Admission {
+
+        /**
+         * Проанализировать запрос
+         */
+        ANALYZE,
+        /**
+         * Использовать запрос только для обучения
+         */
+        LEARN,
+        /**
+         * Не анализировать запрос
+         */
+        SHED
+    }
+
+    private final Object lock = new Object();
+
+    private volatile long latencyBudgetMillis = 500;
+    private volatile double failureRateThreshold = 0.5;
+    private volatile int minimumCalls = 20;
+    private volatile long openDurationMillis = 30000;
+    private volatile int probeCount = 5;
+    private volatile Degradation degradation = Degradation.NO_OBSERVATION;
+    private volatile double degradedSamplingRate = 0.1;
+
+    /**
+     * Результаты последних анализов: true - анализ завершился ошибкой или
+     * превысил бюджет времени
+     */
+    private boolean[] window = new boolean[100];
+    private int windowIndex;
+    private int windowCount;
+    private int windowFailures;
+    private volatile State state = State.CLOSED;
+    private long stateTime;
+    private int probesStarted;
+    private int probesSucceeded;
+    private long degradedCounter;
+
+    /**
+     * Принять решение о том, как обработать очередной запрос.
+     *
+     * @return решение
+     */
+    public Admission admit() {
+        if (state == State.CLOSED) {
+            return Admission.ANALYZE;
+        }
+        synchronized (lock) {
+            long now = System.currentTimeMillis();
+            if (state == State.OPEN && now - stateTime >= openDurationMillis) {
+                changeState(State.HALF_OPEN, now);
+            } else if (state == State.HALF_OPEN && now - stateTime >= openDurationMillis) {
+                // результаты пробных анализов не получены (например, события
+                // не попали в очередь); пробы начинаются заново
+                changeState(State.HALF_OPEN, now);
+            }
+            if (state == State.CLOSED) {
+                return Admission.ANALYZE;
+            }
+            if (state == State.HALF_OPEN && probesStarted < probeCount) {
+                probesStarted++;
+                return Admission.ANALYZE;
+            }
+            return degrade();
+        }
+    }
+
+    /**
+     * Учесть результат анализа запроса.
+     *
+     * @param success      true - анализ завершился без ошибки
+     * @param elapsedNanos длительность анализа в наносекундах
+     */
+    public void record(boolean success, long elapsedNanos) {
+        boolean failure = !success || elapsedNanos > latencyBudgetMillis * 1000000L;
+        synchronized (lock) {
+            long now = System.currentTimeMillis();
+            if (state == State.HALF_OPEN) {
+                if (failure) {
+                    changeState(State.OPEN, now);
+                } else if (++probesSucceeded >= probeCount) {
+                    changeState(State.CLOSED, now);
+                }
+            } else if (state == State.CLOSED) {
+                if (windowCount == window.length) {
+                    if (window[windowIndex]) {
+                        windowFailures--;
+                    }
+                } else {
+                    windowCount++;
+                }
+                window[windowIndex] = failure;
+                if (failure) {
+                    windowFailures++;
+                }
+                windowIndex = (windowIndex + 1) % window.length;
+                if (windowCount >= minimumCalls && windowFailures >= failureRateThreshold * windowCount) {
+                    changeState(State.OPEN, now);
+                }
+            }
+        }
+    }
+
+    /**
+     * Разомкнуть выключатель вручную.
+     */
+    public void trip() {
+        synchronized (lock) {
+            changeState(State.OPEN, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Замкнуть выключатель вручную и забыть накопленную статистику.
+     */
+    public void reset() {
+        synchronized (lock) {
+            changeState(State.CLOSED, System.currentTimeMillis());
+        }
+    }
+
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * Установить бюджет времени анализа одного запроса; более долгий анализ
+     * учитывается как неудачный.
+     *
+     * @param latencyBudgetMillis бюджет в миллисекундах
+     */
+    public void setLatencyBudgetMillis(long latencyBudgetMillis) {
+        this.latencyBudgetMillis = latencyBudgetMillis;
+    }
+
+    public long getLatencyBudgetMillis() {
+        return latencyBudgetMillis;
+    }
+
+    /**
+     * Установить долю неудачных анализов в окне, при которой выключатель
+     * размыкается.
+     *
+     * @param failureRateThreshold доля от 0 (не включая) до 1
+     */
+    public void setFailureRateThreshold(double failureRateThreshold) {
+        if (failureRateThreshold <= 0.0 || failureRateThreshold > 1.0) {
+            throw new IllegalArgumentException("Failure rate threshold should be in (0, 1].");
+        }
+        this.failureRateThreshold = failureRateThreshold;
+    }
+
+    public double getFailureRateThreshold() {
+        return failureRateThreshold;
+    }
+
+    /**
+     * Установить размер скользящего окна анализов. Накопленная статистика
+     * при этом сбрасывается.
+     *
+     * @param windowSize количество анализов в окне
+     */
+    public void setWindowSize(int windowSize) {
+        if (windowSize <= 0) {
+            throw new IllegalArgumentException("Window size should be positive.");
+        }
+        synchronized (lock) {
+            window = new boolean[windowSize];
+            clearWindow();
+        }
+    }
+
+    public int getWindowSize() {
+        synchronized (lock) {
+            return window.length;
+        }
+    }
+
+    /**
+     * Установить минимальное количество анализов в окне, начиная с которого
+     * выключатель может разомкнуться.
+     *
+     * @param minimumCalls количество анализов
+     */
+    public void setMinimumCalls(int minimumCalls) {
+        this.minimumCalls = minimumCalls;
+    }
+
+    public int getMinimumCalls() {
+        return minimumCalls;
+    }
+
+    /**
+     * Установить время, в течение которого выключатель остаётся разомкнутым
+     * до начала пробных анализов.
+     *
+     * @param openDurationMillis время в миллисекундах
+     */
+    public void setOpenDurationMillis(long openDurationMillis) {
+        this.openDurationMillis = openDurationMillis;
+    }
+
+    public long getOpenDurationMillis() {
+        return openDurationMillis;
+    }
+
+    /**
+     * Установить количество успешных пробных анализов, необходимых для
+     * замыкания выключателя.
+     *
+     * @param probeCount количество анализов
+     */
+    public void setProbeCount(int probeCount) {
+        if (probeCount <= 0) {
+            throw new IllegalArgumentException("Probe count should be positive.");
+        }
+        this.probeCount = probeCount;
+    }
+
+    public int getProbeCount() {
+        return probeCount;
+    }
+
+    public void setDegradation(Degradation degradation) {
+        if (degradation == null) {
+            throw new NullPointerException("Degradation should be not null.");
+        }
+        this.degradation = degradation;
+    }
+
+    public Degradation getDegradation() {
+        return degradation;
+    }
+
+    /**
+     * Установить долю запросов, анализируемых при разомкнутом выключателе в
+     * режиме {@link Degradation#SAMPLED}.
+     *
+     * @param degradedSamplingRate доля от 0 до 1
+     */
+    public void setDegradedSamplingRate(double degradedSamplingRate) {
+        if (degradedSamplingRate < 0.0 || degradedSamplingRate > 1.0) {
+            throw new IllegalArgumentException("Sampling rate should be in [0, 1].");
+        }
+        this.degradedSamplingRate = degradedSamplingRate;
+    }
+
+    public double getDegradedSamplingRate() {
+        return degradedSamplingRate;
+    }
+
+    private Admission degrade() {
+        switch (degradation) {
+            case LEARNING:
+                return Admission.LEARN;
+            case SAMPLED:
+                double rate = degradedSamplingRate;
+                if (rate <= 0.0) {
+                    return Admission.SHED;
+                }
+                // каждый round(1 / rate)-й запрос анализируется
+                long period = Math.max(1, Math.round(1.0 / rate));
+                return degradedCounter++ % period == 0 ? Admission.ANALYZE : Admission.SHED;
+            default:
+                return Admission.SHED;
+        }
+    }
+
+    private void changeState(State newState, long now) {
+        state = newState;
+        stateTime = now;
+        probesStarted = 0;
+        probesSucceeded = 0;
+        if (newState == State.CLOSED) {
+            clearWindow();
+        }
+    }
+
+    private void clearWindow() {
+        windowIndex = 0;
+        windowCount = 0;
+        windowFailures = 0;
+        for (int i = 0; i < window.length; i++) {
+            window[i] = false;
+        }
+    }
+}
@@ -15,9 +15,12 @@
  */
 package com.grand.ids.decisionmodule;
 
+import com.grand.ids.UserId;
 import com.grand.ids.audit.AuditModule;
 import com.grand.ids.jdbc.IDSMode;
 
+import java.util.List;
+
 /**
  * Интерфейс модуля принятия решений.
  *
@@ -33,6 +36,45 @@ public interface DecisionModule {
      */
     AnalysisResult analyze(final Event event);
 
+    /**
+     * Анализ нескольких событий безопасности за один вызов, например,
+     * событий, накопленных за время транзакции. Знания и записи журнала
+     * аудита, общие для событий, обрабатываются один раз.
+     *
+     * @param events события безопасности
+     * @return решения, принятые в результате анализа (в порядке событий)
+     */
+    List<AnalysisResult> analyzeAll(final List<Event> events);
+
+    /**
+     * Подготовить событие к анализу, который будет выполнен позже (например,
+     * при завершении транзакции): выполнить обращения к соединению, через
+     * которое выполнен запрос (см.
+     * {@link com.grand.ids.jdbc.knowledgemodule.KnowledgeModule#prepareAnalysis}),
+     * пока приложение не изменило данные и не вернуло соединение в пул.
+     *
+     * @param event событие безопасности с уже считанным результатом
+     *              выполнения запроса
+     * @return true - анализ подготовлен; false - подготовить анализ не
+     * удалось, событие следует анализировать сразу
+     */
+    boolean prepareAnalysis(final Event event);
+
+    /**
+     * Уведомление о начале выполнения запроса. Позволяет заранее, пока
+     * запрос выполняется в базе данных, загрузить знания, которые
+     * потребуются для анализа его результата. Метод не блокирует
+     * вызывающий поток.
+     *
+     * @param sqlQuery текст запроса (для запросов с параметрами - без
+     *                 подстановки значений параметров)
+     * @param userId   идентификатор пользователя, выполняющего запрос
+     * @param mode     режим работы, заданный для источника данных, через
+     *                 который выполняется запрос; null - режим модуля
+     *                 принятия решений
+     */
+    void prefetch(final String sqlQuery, final UserId userId, final IDSMode mode);
+
     /**
      * Установить режим работы модуля принятия решений.
      *
@@ -40,6 +82,15 @@ public interface DecisionModule {
      */
     void setMode(IDSMode mode);
 
+    /**
+     * Получить режим работы модуля принятия решений. Режим применяется к
+     * событиям, для которых источник данных не задал собственный режим (см.
+     * {@link Event#getMode()}).
+     *
+     * @return режим работы
+     */
+    IDSMode getMode();
+
     /**
      * Установить модуль аудита, который должен использовать данный модуль
      * принятия решений.
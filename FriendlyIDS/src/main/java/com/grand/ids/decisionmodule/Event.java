@@ -16,6 +16,10 @@
 package com.grand.ids.decisionmodule;
 
 import com.grand.ids.UserId;
+import com.grand.ids.jdbc.IDSMode;
+import com.grand.ids.jdbc.knowledgemodule.AnalysisContext;
+import com.grand.ids.utils.sql.ParameterValues;
+import com.grand.ids.utils.sql.PreparedSql;
 
 import java.sql.ResultSet;
 import java.util.Date;
@@ -23,31 +27,104 @@ import java.util.Date;
 /**
  * Описание события системы безопасности, которое передаётся системе
  * принятия решения от сенсорной подсистемы.
+ * <p>
+ * Для запросов с параметрами текст запроса со значениями параметров
+ * строится только при первом обращении к {@link #getSqlQuery()}, например,
+ * при записи события в журнал аудита. Для распознавания таблиц достаточно
+ * текста запроса без значений параметров ({@link #getSqlTemplate()}).
  *
  * @author Andrey Grigorov
  */
 public class Event {
 
     private String sqlQuery;
+    private PreparedSql preparedSql;
+    private ParameterValues parameterValues;
     private UserId userId;
     private ResultSet resultSet;
     private Date date;
+    /**
+     * Режим работы системы, заданный для источника данных, через который
+     * выполнен запрос; null - режим модуля принятия решений
+     */
+    private IDSMode mode;
+    /**
+     * Общие данные обнаружения аномалий и обучения; создаются при первом
+     * обращении
+     */
+    private AnalysisContext analysisContext;
 
     public Event(String sqlQuery, UserId userId, ResultSet resultSet) {
+        this(sqlQuery, userId, resultSet, new Date());
+    }
+
+    public Event(String sqlQuery, UserId userId, ResultSet resultSet, Date date) {
         this.sqlQuery = sqlQuery;
         this.userId = userId;
         this.resultSet = resultSet;
-        this.date = new Date();
+        this.date = date;
+    }
+
+    /**
+     * Создать событие для запроса с параметрами.
+     *
+     * @param preparedSql     разобранный текст запроса
+     * @param parameterValues значения параметров; не должны изменяться после
+     *                        создания события
+     * @param userId          идентификатор пользователя
+     * @param resultSet       результат выполнения запроса
+     * @param date            время выполнения запроса
+     */
+    public Event(PreparedSql preparedSql, ParameterValues parameterValues, UserId userId,
+                 ResultSet resultSet, Date date) {
+        this.preparedSql = preparedSql;
+        this.parameterValues = parameterValues;
+        this.userId = userId;
+        this.resultSet = resultSet;
+        this.date = date;
+    }
+
+    /**
+     * Создать копию события с другим результатом выполнения запроса.
+     *
+     * @param event     исходное событие
+     * @param resultSet результат выполнения запроса
+     */
+    public Event(Event event, ResultSet resultSet) {
+        this.sqlQuery = event.sqlQuery;
+        this.preparedSql = event.preparedSql;
+        this.parameterValues = event.parameterValues;
+        this.userId = event.userId;
+        this.resultSet = resultSet;
+        this.date = event.date;
+        this.mode = event.mode;
     }
 
     public ResultSet getResultSet() {
         return resultSet;
     }
 
+    /**
+     * Получить текст запроса со значениями параметров.
+     *
+     * @return текст выполненного запроса
+     */
     public String getSqlQuery() {
+        if (sqlQuery == null && preparedSql != null) {
+            sqlQuery = preparedSql.render(parameterValues);
+        }
         return sqlQuery;
     }
 
+    /**
+     * Получить текст запроса без подстановки значений параметров.
+     *
+     * @return текст запроса в том виде, в котором он был подготовлен
+     */
+    public String getSqlTemplate() {
+        return preparedSql != null ? preparedSql.getSql() : sqlQuery;
+    }
+
     public UserId getUserId() {
         return userId;
     }
@@ -55,4 +132,42 @@ public class Event {
     public Date getDate() {
         return date;
     }
+
+    public IDSMode getMode() {
+        return mode;
+    }
+
+    public void setMode(IDSMode mode) {
+        this.mode = mode;
+    }
+
+    /**
+     * Получить контекст анализа результата выполнения запроса. Копия
+     * события с другим результатом имеет собственный контекст.
+     *
+     * @return контекст анализа, общий для всех обращений к событию
+     */
+    public AnalysisContext getAnalysisContext() {
+        if (analysisContext == null) {
+            analysisContext = new AnalysisContext(resultSet, userId, getSqlTemplate());
+        }
+        return analysisContext;
+    }
+
+    /**
+     * Проверить, подготовлен ли анализ события к продолжению в другом потоке
+     * или позже (см. {@link AnalysisContext#detach()}).
+     */
+    boolean isAnalysisPrepared() {
+        return analysisContext != null && analysisContext.isDetached();
+    }
+
+    /**
+     * Отказаться от контекста анализа, например, если подготовить анализ не
+     * удалось: следующее обращение создаст новый контекст, которому
+     * доступно соединение приложения.
+     */
+    void resetAnalysisContext() {
+        analysisContext = null;
+    }
 }
@@ -0,0 +1,292 @@
+/*
+ * Copyright 2009-2016 Andrey Grigorov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.grand.ids.decisionmodule;
+
+import com.grand.ids.UserId;
+import com.grand.ids.audit.EventType;
+import com.grand.ids.utils.sql.SqlTemplateCache;
+
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Политика выборочного анализа запросов. Для каждой пары "пользователь -
+ * шаблон запроса" определяется доля анализируемых запросов:
+ * <ul>
+ * <li>запросы новых пользователей, а также пользователей, запросы которых
+ * недавно признавались аномальными, анализируются всегда;</li>
+ * <li>запросы по шаблону анализируются всегда, пока для пары не накоплено
+ * заданное количество подряд идущих нормальных вердиктов;</li>
+ * <li>далее доля убывает обратно пропорционально длине серии нормальных
+ * вердиктов, но не опускается ниже минимальной.</li>
+ * </ul>
+ * Решение о выборе запроса детерминировано: оно зависит от пары и
+ * порядкового номера запроса этой пары, поэтому выбранные запросы
+ * распределены равномерно, а повторение одного и того же запроса не
+ * позволяет предсказать, будет ли он проанализирован.
+ *
+ * @author Andrey Grigorov
+ */
+public class SamplingPolicy {
+
+    /**
+     * Решение о выборе запроса для анализа.
+     */
+    public static class Decision {
+
+        private final boolean sampled;
+        private final double rate;
+
+        private Decision(boolean sampled, double rate) {
+            this.sampled = sampled;
+            this.rate = rate;
+        }
+
+        /**
+         * @return true - запрос следует проанализировать
+         */
+        public boolean isSampled() {
+            return sampled;
+        }
+
+        /**
+         * @return доля анализируемых запросов, действовавшая при принятии
+         * решения
+         */
+        public double getRate() {
+            return rate;
+        }
+    }
+
+    /**
+     * Статистика вердиктов пары "пользователь - шаблон запроса" или
+     * пользователя в целом.
+     */
+    private final static class Statistics {
+
+        /**
+         * Порядковый номер следующего запроса
+         */
+        long sequence;
+        /**
+         * Количество подряд идущих нормальных вердиктов
+         */
+        long normalStreak;
+        /**
+         * Количество проанализированных запросов
+         */
+        long analyzed;
+        /**
+         * Время последнего аномального вердикта
+         */
+        long lastAnomalyTime;
+    }
+
+    private final static int MAX_STATISTICS = 100000;
+
+    private final ConcurrentMap<String, Statistics> pairs = new ConcurrentHashMap<String, Statistics>();
+    private final ConcurrentMap<String, Statistics> users = new ConcurrentHashMap<String, Statistics>();
+    private volatile int warmUpCount = 20;
+    private volatile double minRate = 0.05;
+    private volatile long anomalyCooldownMillis = 10 * 60 * 1000;
+
+    /**
+     * Принять решение о том, анализировать ли запрос.
+     *
+     * @param userId   идентификатор пользователя
+     * @param sqlQuery текст запроса (для запросов с параметрами - без
+     *                 подстановки значений параметров)
+     * @return решение
+     */
+    public Decision decide(UserId userId, String sqlQuery) {
+        if (userId == null || sqlQuery == null) {
+            return new Decision(true, 1.0);
+        }
+        String pairKey = getPairKey(userId, sqlQuery);
+        Statistics pair = getStatistics(pairs, pairKey);
+        Statistics user = getStatistics(users, userId.getUserId());
+        double rate;
+        long sequence;
+        synchronized (pair) {
+            rate = getRate(pair, user);
+            sequence = pair.sequence++;
+        }
+        boolean sampled = rate >= 1.0 || toUnitInterval(pairKey.hashCode() * 0x9E3779B97F4A7C15L + sequence) < rate;
+        return new Decision(sampled, rate);
+    }
+
+    /**
+     * Получить текущую долю анализируемых запросов пары "пользователь -
+     * шаблон запроса".
+     *
+     * @param userId   идентификатор пользователя
+     * @param sqlQuery текст запроса
+     * @return доля анализируемых запросов от 0 до 1
+     */
+    public double getRate(UserId userId, String sqlQuery) {
+        if (userId == null || sqlQuery == null) {
+            return 1.0;
+        }
+        Statistics pair = getStatistics(pairs, getPairKey(userId, sqlQuery));
+        Statistics user = getStatistics(users, userId.getUserId());
+        synchronized (pair) {
+            return getRate(pair, user);
+        }
+    }
+
+    /**
+     * Учесть вердикт, вынесенный по результату анализа запроса. Любой
+     * вердикт, кроме нормального, прерывает серию нормальных вердиктов пары;
+     * аномальный вердикт, кроме того, делает анализ всех запросов
+     * пользователя обязательным на заданное время.
+     *
+     * @param userId    идентификатор пользователя
+     * @param sqlQuery  текст запроса
+     * @param eventType тип события, определённый в результате анализа
+     */
+    public void recordVerdict(UserId userId, String sqlQuery, EventType eventType) {
+        if (userId == null || sqlQuery == null) {
+            return;
+        }
+        Statistics pair = getStatistics(pairs, getPairKey(userId, sqlQuery));
+        Statistics user = getStatistics(users, userId.getUserId());
+        synchronized (pair) {
+            pair.analyzed++;
+            pair.normalStreak = eventType == EventType.NORMAL ? pair.normalStreak + 1 : 0;
+        }
+        synchronized (user) {
+            user.analyzed++;
+            if (eventType == EventType.ANOMALY) {
+                user.lastAnomalyTime = System.currentTimeMillis();
+            }
+        }
+    }
+
+    /**
+     * Форматировать долю анализируемых запросов для журнала аудита.
+     */
+    public static String formatRate(double rate) {
+        return String.format(Locale.ROOT, "%.4f", rate);
+    }
+
+    /**
+     * Установить количество нормальных вердиктов, после которого запросы
+     * пары начинают анализироваться выборочно. Это же количество
+     * проанализированных запросов пользователя отделяет нового пользователя
+     * от известного.
+     *
+     * @param warmUpCount количество вердиктов
+     */
+    public void setWarmUpCount(int warmUpCount) {
+        if (warmUpCount <= 0) {
+            throw new IllegalArgumentException("Warm-up count should be positive.");
+        }
+        this.warmUpCount = warmUpCount;
+    }
+
+    public int getWarmUpCount() {
+        return warmUpCount;
+    }
+
+    /**
+     * Установить минимальную долю анализируемых запросов.
+     *
+     * @param minRate доля от 0 (не включая) до 1
+     */
+    public void setMinRate(double minRate) {
+        if (minRate <= 0.0 || minRate > 1.0) {
+            throw new IllegalArgumentException("Min rate should be in (0, 1].");
+        }
+        this.minRate = minRate;
+    }
+
+    public double getMinRate() {
+        return minRate;
+    }
+
+    /**
+     * Установить время после аномального вердикта, в течение которого все
+     * запросы пользователя анализируются.
+     *
+     * @param anomalyCooldownMillis время в миллисекундах
+     */
+    public void setAnomalyCooldownMillis(long anomalyCooldownMillis) {
+        this.anomalyCooldownMillis = anomalyCooldownMillis;
+    }
+
+    public long getAnomalyCooldownMillis() {
+        return anomalyCooldownMillis;
+    }
+
+    /**
+     * Забыть накопленную статистику; все запросы снова анализируются до
+     * накопления серий нормальных вердиктов.
+     */
+    public void reset() {
+        pairs.clear();
+        users.clear();
+    }
+
+    private double getRate(Statistics pair, Statistics user) {
+        long userAnalyzed;
+        long lastAnomalyTime;
+        synchronized (user) {
+            userAnalyzed = user.analyzed;
+            lastAnomalyTime = user.lastAnomalyTime;
+        }
+        int currentWarmUpCount = warmUpCount;
+        if (userAnalyzed < currentWarmUpCount || pair.normalStreak < currentWarmUpCount) {
+            return 1.0;
+        }
+        if (lastAnomalyTime != 0 && System.currentTimeMillis() - lastAnomalyTime < anomalyCooldownMillis) {
+            return 1.0;
+        }
+        return Math.max(minRate, (double) currentWarmUpCount / pair.normalStreak);
+    }
+
+    private static String getPairKey(UserId userId, String sqlQuery) {
+        return userId.getUserId() + '\u0000' + SqlTemplateCache.getSharedCache().get(sqlQuery).getFingerprint();
+    }
+
+    private static Statistics getStatistics(ConcurrentMap<String, Statistics> statistics, String key) {
+        Statistics current = statistics.get(key);
+        if (current == null) {
+            if (statistics.size() >= MAX_STATISTICS) {
+                // при сбросе статистики запросы снова анализируются полностью
+                statistics.clear();
+            }
+            Statistics newStatistics = new Statistics();
+            current = statistics.putIfAbsent(key, newStatistics);
+            if (current == null) {
+                current = newStatistics;
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Отобразить число в равномерно распределённое значение из [0, 1)
+     * (финализатор SplitMix64).
+     */
+    private static double toUnitInterval(long value) {
+        long z = value;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z = z ^ (z >>> 31);
+        return (z >>> 11) * 0x1.0p-53;
+    }
+}
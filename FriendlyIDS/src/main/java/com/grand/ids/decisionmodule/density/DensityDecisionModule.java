@@ -29,6 +29,11 @@ import com.grand.ids.model.Graph;
  */
 public class DensityDecisionModule extends AbstractDecisionModule {
 
+    /**
+     * Квантиль нормального распределения для 95% доверительного интервала
+     */
+    private final static double Z_95 = 1.96;
+
     private double acceptedDensity;
 
     public DensityDecisionModule(KnowledgeModule knowledgeModule, AuditModule auditModule, IDSMode mode, double acceptedDensity) {
@@ -44,16 +49,43 @@ public class DensityDecisionModule extends AbstractDecisionModule {
         } else {
             density = graph.getTotalWeight() / ((nodeNumber * (nodeNumber - 1) / 2.0 + nodeNumber));
         }
+        Verdict verdict;
         if (density >= acceptedDensity) {
-            return new Verdict(Verdict.VerdictType.NORMAL)
+            verdict = new Verdict(Verdict.VerdictType.NORMAL)
                     .putProperty("density", String.valueOf(density))
                     .putProperty("nodeNumber", String.valueOf(nodeNumber))
                     .putProperty("totalWeight", String.valueOf(graph.getTotalWeight()));
         } else {
-            return new Verdict(Verdict.VerdictType.ANOMALITY)
+            verdict = new Verdict(Verdict.VerdictType.ANOMALITY)
                     .putProperty("density", Double.valueOf(density).toString())
                     .putProperty("nodeNumber", String.valueOf(nodeNumber))
                     .putProperty("totalWeight", String.valueOf(graph.getTotalWeight()));
         }
+        if (nodeNumber > 0 && graph.getSamplingRatio() < 1.0) {
+            double error = getStandardError(density, nodeNumber, graph.getSourceNodeNumber());
+            verdict.putProperty("densityStdError", String.valueOf(error))
+                    .putProperty("densityConfidenceInterval",
+                            Math.max(0.0, density - Z_95 * error) + ".." + Math.min(1.0, density + Z_95 * error));
+        }
+        return verdict;
+    }
+
+    /**
+     * Стандартная ошибка оценки плотности по графу, построенному по выборке
+     * записей: доля рёбер среди пар выбранных записей рассматривается как
+     * оценка доли рёбер среди пар всех записей (с поправкой на конечность
+     * множества пар).
+     *
+     * @param density          плотность графа выборки
+     * @param nodeNumber       количество вершин графа выборки
+     * @param sourceNodeNumber количество записей в результате запроса
+     * @return стандартная ошибка
+     */
+    private static double getStandardError(double density, int nodeNumber, int sourceNodeNumber) {
+        double pairs = nodeNumber * (nodeNumber - 1) / 2.0 + nodeNumber;
+        double sourcePairs = sourceNodeNumber * (sourceNodeNumber - 1) / 2.0 + sourceNodeNumber;
+        double p = Math.min(1.0, Math.max(0.0, density));
+        double correction = sourcePairs > 1 ? (sourcePairs - pairs) / (sourcePairs - 1) : 0.0;
+        return Math.sqrt(p * (1 - p) / pairs * correction);
     }
 }
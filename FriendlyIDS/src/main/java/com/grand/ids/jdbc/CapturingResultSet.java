@@ -0,0 +1,1945 @@
+/*
+ * Copyright 2009-2016 Andrey Grigorov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.grand.ids.jdbc;
+
+import javax.sql.rowset.serial.SerialBlob;
+import javax.sql.rowset.serial.SerialClob;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.nio.charset.Charset;
+import java.sql.Array;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.Date;
+import java.sql.NClob;
+import java.sql.Ref;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.RowId;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.SQLWarning;
+import java.sql.SQLXML;
+import java.sql.Statement;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Результат выполнения запроса, однократно считанный из курсора драйвера в
+ * память. Данные хранятся по полям: значения целочисленных и вещественных
+ * полей - в массивах примитивных типов, значения остальных полей - в массивах
+ * объектов.
+ * <p>
+ * Один и тот же буфер используется и приложением, и модулями анализа, поэтому
+ * курсор драйвера может быть однонаправленным (TYPE_FORWARD_ONLY), а повторные
+ * проходы по результату (beforeFirst()) не приводят к обращениям к драйверу.
+ * Модули анализа обращаются к данным по номеру строки и номеру поля
+ * ({@link #getValue(int, int)}), не затрагивая положение курсора.
+ * <p>
+ * Для полей, строковое представление которых формирует драйвер (числа с
+ * плавающей точкой, DECIMAL, дата и время, двоичные данные), вместе со
+ * значением сохраняется и результат getString() драйвера, поэтому
+ * приложение получает те же строки, что и без IDS. Методы с параметром
+ * Calendar пересчитывают считанные значения даты и времени в часовой пояс
+ * календаря так же, как соответствующие методы драйвера.
+ * <p>
+ * Результат может быть считан только для анализа, когда приложению
+ * передаётся сам курсор драйвера (см. {@link DriverResultSetWrapper}). В этом
+ * случае для больших объектов (BLOB, CLOB, NCLOB) сохраняются ссылки
+ * драйвера, а не их содержимое, а поля LONGVARBINARY, значение которых
+ * драйвер может передать только один раз, не считываются.
+ *
+ * @author Andrey Grigorov
+ */
+public class CapturingResultSet implements ResultSet {
+
+    private final static int INITIAL_CAPACITY = 16;
+    private final static Charset ASCII = Charset.forName("US-ASCII");
+    /**
+     * Типы полей даты и времени с часовым поясом (Types.TIME_WITH_TIMEZONE и
+     * Types.TIMESTAMP_WITH_TIMEZONE, появившиеся в JDBC 4.2); их значения
+     * не пересчитываются в часовой пояс календаря
+     */
+    private final static int TIME_WITH_TIMEZONE = 2013;
+    private final static int TIMESTAMP_WITH_TIMEZONE = 2014;
+
+    /**
+     * Данные, разделяемые всеми курсорами, созданными над одним и тем же
+     * считанным результатом.
+     */
+    private static class Buffer {
+
+        /**
+         * Запрос, через который приложение получило результат
+         */
+        private final Statement statement;
+        /**
+         * Запрос драйвера, в результате выполнения которого получен курсор
+         */
+        private final Statement sourceStatement;
+        private final CapturedResultSetMetaData metaData;
+        private final ColumnBuffer[] columns;
+        private final Map<String, Integer> columnIndexes = new HashMap<String, Integer>();
+        private int rowCount;
+        private int capacity = INITIAL_CAPACITY;
+        /**
+         * Количество строк результата запроса, выборкой из которого являются
+         * строки буфера; -1 - буфер содержит все строки
+         */
+        private int sourceRowCount = -1;
+        /**
+         * Сохраняются ли для больших объектов ссылки драйвера вместо их
+         * содержимого
+         */
+        private final boolean largeObjectLocators;
+        /**
+         * Предупреждения, полученные от курсора драйвера
+         */
+        private SQLWarning warnings;
+        private int holdability = HOLD_CURSORS_OVER_COMMIT;
+
+        private Buffer(ResultSetMetaData sourceMetaData, Statement statement, Statement sourceStatement,
+                       boolean largeObjectLocators) throws SQLException {
+            this.statement = statement;
+            this.sourceStatement = sourceStatement;
+            this.largeObjectLocators = largeObjectLocators;
+            this.metaData = new CapturedResultSetMetaData(sourceMetaData);
+            int columnCount = metaData.getColumnCount();
+            this.columns = new ColumnBuffer[columnCount];
+            for (int i = 1; i <= columnCount; i++) {
+                columns[i - 1] = ColumnBuffer.create(metaData.getColumnType(i), metaData.getColumnClassName(i),
+                        capacity, largeObjectLocators);
+            }
+            // по спецификации JDBC при совпадении имён используется первое поле;
+            // метки полей имеют приоритет перед именами
+            for (int i = columnCount; i >= 1; i--) {
+                if (metaData.getColumnName(i) != null) {
+                    columnIndexes.put(metaData.getColumnName(i).toUpperCase(), i);
+                }
+            }
+            for (int i = columnCount; i >= 1; i--) {
+                if (metaData.getColumnLabel(i) != null) {
+                    columnIndexes.put(metaData.getColumnLabel(i).toUpperCase(), i);
+                }
+            }
+        }
+
+        private void appendRow(ResultSet resultSet) throws SQLException {
+            if (rowCount == capacity) {
+                capacity *= 2;
+                for (ColumnBuffer column : columns) {
+                    column.grow(capacity);
+                }
+            }
+            for (int i = 0; i < columns.length; i++) {
+                columns[i].read(resultSet, i + 1, rowCount);
+            }
+            rowCount++;
+        }
+
+        /**
+         * Считать текущую строку курсора драйвера в строку буфера.
+         *
+         * @param resultSet курсор драйвера, установленный на строку
+         * @param row       номер заменяемой строки; номер, равный количеству
+         *                  строк, - строка добавляется в конец
+         */
+        private void readRow(ResultSet resultSet, int row) throws SQLException {
+            if (row == rowCount) {
+                appendRow(resultSet);
+                return;
+            }
+            for (int i = 0; i < columns.length; i++) {
+                columns[i].clear(row);
+                columns[i].read(resultSet, i + 1, row);
+            }
+        }
+
+        /**
+         * Запомнить предупреждения и удержание курсора драйвера, которые
+         * становятся недоступны после его закрытия.
+         */
+        private void readDriverState(ResultSet resultSet) throws SQLException {
+            warnings = resultSet.getWarnings();
+            try {
+                holdability = resultSet.getHoldability();
+            } catch (SQLException ex) {
+                // драйвер поддерживает удержание курсора только на уровне
+                // запроса
+                if (sourceStatement != null) {
+                    holdability = sourceStatement.getResultSetHoldability();
+                }
+            }
+        }
+
+        /**
+         * Скопировать строку в другой буфер той же структуры.
+         *
+         * @param row       номер строки данного буфера
+         * @param target    буфер, в который копируется строка
+         * @param targetRow номер заменяемой строки целевого буфера; номер,
+         *                  равный количеству его строк, - строка добавляется
+         *                  в конец
+         */
+        private void copyRow(int row, Buffer target, int targetRow) {
+            if (targetRow == target.rowCount) {
+                if (target.rowCount == target.capacity) {
+                    target.capacity *= 2;
+                    for (ColumnBuffer column : target.columns) {
+                        column.grow(target.capacity);
+                    }
+                }
+                target.rowCount++;
+            }
+            for (int i = 0; i < columns.length; i++) {
+                columns[i].copy(row, target.columns[i], targetRow);
+            }
+        }
+
+        /**
+         * Удалить все строки, сохранив выделенную под них память.
+         */
+        private void clear() {
+            for (ColumnBuffer column : columns) {
+                for (int row = 0; row < rowCount; row++) {
+                    column.clear(row);
+                }
+            }
+            rowCount = 0;
+        }
+    }
+
+    private final Buffer buffer;
+    /**
+     * Номера строк буфера, доступных через данный курсор; null - доступны
+     * все строки
+     */
+    private final int[] rows;
+    /**
+     * Положение курсора: 0 - перед первой строкой, rowCount + 1 - после
+     * последней строки.
+     */
+    private int cursor = 0;
+    private boolean wasNull;
+    private boolean closed;
+    private int fetchDirection = FETCH_FORWARD;
+    private int fetchSize;
+
+    /**
+     * Считать все оставшиеся строки результата выполнения запроса. Курсор
+     * исходного результата не возвращается в начальное положение и не
+     * закрывается.
+     *
+     * @param resultSet результат выполнения запроса
+     * @throws SQLException
+     */
+    public CapturingResultSet(ResultSet resultSet) throws SQLException {
+        this(resultSet, resultSet.getStatement());
+    }
+
+    /**
+     * Считать все оставшиеся строки результата выполнения запроса, полученного
+     * приложением через обёртку запроса драйвера.
+     *
+     * @param resultSet результат выполнения запроса
+     * @param statement запрос, через который приложение получило результат;
+     *                  возвращается методом {@link #getStatement()}
+     * @throws SQLException
+     */
+    public CapturingResultSet(ResultSet resultSet, Statement statement) throws SQLException {
+        this(resultSet, statement, false);
+    }
+
+    /**
+     * Считать все оставшиеся строки результата выполнения запроса, полученного
+     * приложением через обёртку запроса драйвера.
+     *
+     * @param resultSet           результат выполнения запроса
+     * @param statement           запрос, через который приложение получило
+     *                            результат; возвращается методом
+     *                            {@link #getStatement()}
+     * @param largeObjectLocators true - результат считывается только для
+     *                            анализа, а курсор драйвера остаётся открытым:
+     *                            для больших объектов сохраняются ссылки
+     *                            драйвера, поля LONGVARBINARY не считываются
+     * @throws SQLException
+     */
+    public CapturingResultSet(ResultSet resultSet, Statement statement, boolean largeObjectLocators) throws SQLException {
+        this.buffer = new Buffer(resultSet.getMetaData(), statement, resultSet.getStatement(), largeObjectLocators);
+        this.rows = null;
+        buffer.readDriverState(resultSet);
+        while (resultSet.next()) {
+            buffer.appendRow(resultSet);
+        }
+    }
+
+    /**
+     * Создать пустой результат, строки в который добавляются по мере чтения
+     * курсора драйвера (см. {@link #appendRow(ResultSet)} и
+     * {@link #fetchNextRow()}).
+     *
+     * @param metaData        метаданные результата выполнения запроса
+     * @param statement       запрос, через который приложение получает
+     *                        результат
+     * @param sourceStatement запрос драйвера, в результате выполнения
+     *                        которого получен курсор
+     * @throws SQLException
+     */
+    protected CapturingResultSet(ResultSetMetaData metaData, Statement statement,
+                                 Statement sourceStatement) throws SQLException {
+        this(metaData, statement, sourceStatement, false);
+    }
+
+    /**
+     * Создать пустой результат, строки в который добавляются по мере чтения
+     * курсора драйвера.
+     *
+     * @param metaData            метаданные результата выполнения запроса
+     * @param statement           запрос, через который приложение получает
+     *                            результат
+     * @param sourceStatement     запрос драйвера, в результате выполнения
+     *                            которого получен курсор
+     * @param largeObjectLocators true - для больших объектов сохраняются
+     *                            ссылки драйвера, поля LONGVARBINARY не
+     *                            считываются
+     * @throws SQLException
+     */
+    protected CapturingResultSet(ResultSetMetaData metaData, Statement statement,
+                                 Statement sourceStatement, boolean largeObjectLocators) throws SQLException {
+        this.buffer = new Buffer(metaData, statement, sourceStatement, largeObjectLocators);
+        this.rows = null;
+    }
+
+    /**
+     * Создать новый курсор над данными, уже считанными другим объектом.
+     *
+     * @param resultSet считанный результат выполнения запроса
+     */
+    protected CapturingResultSet(CapturingResultSet resultSet) {
+        this(resultSet.buffer, resultSet.rows);
+    }
+
+    private CapturingResultSet(Buffer buffer, int[] rows) {
+        this.buffer = buffer;
+        this.rows = rows;
+    }
+
+    /**
+     * Получить считанный в память результат выполнения запроса. Если
+     * переданный объект уже является считанным результатом, то создаётся
+     * новый независимый курсор над теми же данными, в противном случае
+     * считываются все оставшиеся строки исходного курсора.
+     *
+     * @param resultSet результат выполнения запроса
+     * @return считанный результат выполнения запроса с курсором, установленным
+     * перед первой строкой
+     * @throws SQLException
+     */
+    public static CapturingResultSet capture(ResultSet resultSet) throws SQLException {
+        if (resultSet instanceof CapturingResultSet) {
+            return ((CapturingResultSet) resultSet).duplicate();
+        }
+        return new CapturingResultSet(resultSet);
+    }
+
+    /**
+     * Создать новый курсор над теми же данными. Положение курсора и признак
+     * закрытия у копии не зависят от исходного объекта.
+     *
+     * @return новый курсор, установленный перед первой строкой
+     */
+    public CapturingResultSet duplicate() {
+        return new CapturingResultSet(buffer, rows);
+    }
+
+    /**
+     * Создать новый курсор, которому доступны только указанные строки.
+     *
+     * @param selectedRows номера строк (начиная с 0), которые должны быть
+     *                     доступны через новый курсор
+     * @return новый курсор, установленный перед первой строкой
+     */
+    public CapturingResultSet select(BitSet selectedRows) {
+        int[] selection = new int[Math.min(selectedRows.cardinality(), rowCount())];
+        int count = 0;
+        for (int row = selectedRows.nextSetBit(0); row >= 0 && row < rowCount(); row = selectedRows.nextSetBit(row + 1)) {
+            selection[count++] = rows == null ? row : rows[row];
+        }
+        return new CapturingResultSet(buffer, Arrays.copyOf(selection, count));
+    }
+
+    /**
+     * Получить количество строк, доступных через данный курсор.
+     *
+     * @return количество строк
+     */
+    public int getRowCount() {
+        return rowCount();
+    }
+
+    /**
+     * Получить количество строк результата запроса, представленных данным
+     * курсором. Оно больше количества доступных строк, если курсор содержит
+     * только выборку строк результата (см. {@link ResultSetWrapper}).
+     *
+     * @return количество строк результата запроса
+     */
+    public int getSourceRowCount() {
+        return rows == null && buffer.sourceRowCount > buffer.rowCount ? buffer.sourceRowCount : rowCount();
+    }
+
+    /**
+     * Получить значение поля в указанной строке, не изменяя положение курсора.
+     * Метод доступен и после закрытия курсора.
+     *
+     * @param row         номер строки, начиная с 0
+     * @param columnIndex номер поля, начиная с 1
+     * @return значение поля
+     * @throws SQLException
+     */
+    public Object getValue(int row, int columnIndex) throws SQLException {
+        if (row < 0 || row >= rowCount()) {
+            throw new SQLException("Invalid row index: " + row);
+        }
+        return column(columnIndex).getObject(rows == null ? row : rows[row]);
+    }
+
+    /**
+     * Получить запрос драйвера, в результате выполнения которого получен
+     * курсор. Модули анализа обращаются к базе данных через соединение этого
+     * запроса, чтобы их собственные запросы не наблюдались IDS.
+     *
+     * @return запрос драйвера или null, если он неизвестен
+     */
+    public Statement getSourceStatement() {
+        return buffer.sourceStatement;
+    }
+
+    /**
+     * Получить строковое описание структуры результата: имена, метки, имена
+     * таблиц и типы всех полей. Описание вычисляется один раз для всех
+     * курсоров над одними и теми же данными и может использоваться как ключ
+     * кэша.
+     *
+     * @return описание структуры результата
+     */
+    public String getShape() {
+        return buffer.metaData.getShape();
+    }
+
+    /**
+     * Определить номер поля таблицы в результате выполнения запроса. В первую
+     * очередь ищется поле, у которого совпадают и имя таблицы, и имя поля; если
+     * такого нет, поиск выполняется только по имени поля.
+     *
+     * @param tableName  имя таблицы
+     * @param columnName имя поля
+     * @return номер поля, начиная с 1
+     * @throws SQLException поле не найдено
+     */
+    public int findColumn(String tableName, String columnName) throws SQLException {
+        CapturedResultSetMetaData metaData = buffer.metaData;
+        for (int i = 1, count = metaData.getColumnCount(); i <= count; i++) {
+            if (columnName.equalsIgnoreCase(metaData.getColumnName(i))
+                    && tableName.equalsIgnoreCase(metaData.getTableName(i))) {
+                return i;
+            }
+        }
+        return findColumn(columnName);
+    }
+
+    /**
+     * Добавить в конец результата все оставшиеся строки курсора драйвера,
+     * например, результат следующей части запроса, разбитого на части.
+     * Структура курсора должна совпадать со структурой результата. Курсор
+     * драйвера не закрывается.
+     *
+     * @param resultSet курсор драйвера
+     * @throws SQLException
+     */
+    public void appendRows(ResultSet resultSet) throws SQLException {
+        if (rows != null) {
+            throw new IllegalStateException("Rows can not be appended to a selection of captured rows");
+        }
+        while (resultSet.next()) {
+            buffer.appendRow(resultSet);
+        }
+    }
+
+    /**
+     * Добавить в конец буфера текущую строку курсора драйвера.
+     *
+     * @param resultSet курсор драйвера, установленный на строку
+     * @throws SQLException
+     */
+    protected void appendRow(ResultSet resultSet) throws SQLException {
+        buffer.appendRow(resultSet);
+    }
+
+    /**
+     * Считать текущую строку курсора драйвера в строку с указанным номером,
+     * заменив её значения.
+     *
+     * @param resultSet курсор драйвера, установленный на строку
+     * @param row       номер заменяемой строки, начиная с 0; номер, равный
+     *                  количеству строк, - строка добавляется в конец
+     * @throws SQLException
+     */
+    protected void readRow(ResultSet resultSet, int row) throws SQLException {
+        if (rows != null || row < 0 || row > buffer.rowCount) {
+            throw new IllegalArgumentException("Invalid row: " + row);
+        }
+        buffer.readRow(resultSet, row);
+    }
+
+    /**
+     * Запомнить предупреждения и удержание курсора драйвера
+     * (см. {@link #getWarnings()} и {@link #getHoldability()}).
+     *
+     * @param resultSet курсор драйвера
+     * @throws SQLException
+     */
+    protected void readDriverState(ResultSet resultSet) throws SQLException {
+        buffer.readDriverState(resultSet);
+    }
+
+    /**
+     * Создать пустой результат той же структуры, в который можно копировать
+     * строки данного результата (см. {@link #copyRow(int, CapturingResultSet, int)}).
+     *
+     * @return пустой результат
+     * @throws SQLException
+     */
+    protected CapturingResultSet createEmptyCopy() throws SQLException {
+        return new CapturingResultSet(new Buffer(buffer.metaData, buffer.statement, buffer.sourceStatement,
+                buffer.largeObjectLocators), null);
+    }
+
+    /**
+     * Скопировать строку в результат, созданный методом
+     * {@link #createEmptyCopy()}.
+     *
+     * @param row       номер строки данного результата, начиная с 0
+     * @param target    результат, в который копируется строка
+     * @param targetRow номер заменяемой строки целевого результата, начиная с
+     *                  0; номер, равный количеству его строк, - строка
+     *                  добавляется в конец
+     */
+    protected void copyRow(int row, CapturingResultSet target, int targetRow) {
+        if (target.rows != null || targetRow < 0 || targetRow > target.buffer.rowCount) {
+            throw new IllegalArgumentException("Invalid target row: " + targetRow);
+        }
+        buffer.copyRow(rows == null ? row : rows[row], target.buffer, targetRow);
+    }
+
+    /**
+     * Запомнить, что строки результата являются выборкой из результата
+     * запроса (см. {@link #getSourceRowCount()}).
+     *
+     * @param sourceRowCount количество строк результата запроса
+     */
+    protected void setSourceRowCount(int sourceRowCount) {
+        buffer.sourceRowCount = sourceRowCount;
+    }
+
+    /**
+     * Удалить из буфера все считанные строки и установить курсор перед
+     * первой строкой. Используется наследниками, которые хранят только
+     * текущую строку курсора драйвера.
+     */
+    protected void discardRows() {
+        if (rows != null) {
+            throw new IllegalStateException("Rows can not be discarded from a selection of captured rows");
+        }
+        buffer.clear();
+        cursor = 0;
+    }
+
+    /**
+     * Вызывается, когда курсору требуется строка, следующая за последней
+     * считанной. Наследники, читающие курсор драйвера постепенно, добавляют
+     * в этом методе очередную строку в буфер; по умолчанию все строки уже
+     * считаны.
+     *
+     * @throws SQLException
+     */
+    protected void fetchNextRow() throws SQLException {
+    }
+
+    private int rowCount() {
+        return rows == null ? buffer.rowCount : rows.length;
+    }
+
+    /**
+     * Получить номер строки буфера, на которую установлен курсор.
+     */
+    private int bufferRow() {
+        return rows == null ? cursor - 1 : rows[cursor - 1];
+    }
+
+    private ColumnBuffer column(int columnIndex) throws SQLException {
+        if (columnIndex < 1 || columnIndex > buffer.columns.length) {
+            throw new SQLException("Invalid column index: " + columnIndex);
+        }
+        return buffer.columns[columnIndex - 1];
+    }
+
+    private void checkOpen() throws SQLException {
+        if (closed) {
+            throw new SQLException("Result set is closed.");
+        }
+    }
+
+    /**
+     * Получить буфер поля в текущей строке и запомнить, было ли значение
+     * поля равно NULL.
+     */
+    private ColumnBuffer current(int columnIndex) throws SQLException {
+        checkOpen();
+        if (cursor < 1 || cursor > rowCount()) {
+            throw new SQLException("No current row.");
+        }
+        ColumnBuffer column = column(columnIndex);
+        wasNull = column.isNull(bufferRow());
+        return column;
+    }
+
+    private Object currentObject(int columnIndex) throws SQLException {
+        return current(columnIndex).getObject(bufferRow());
+    }
+
+    public boolean next() throws SQLException {
+        checkOpen();
+        if (cursor == rowCount()) {
+            fetchNextRow();
+        }
+        if (cursor <= rowCount()) {
+            cursor++;
+        }
+        return cursor <= rowCount();
+    }
+
+    public void close() throws SQLException {
+        closed = true;
+    }
+
+    public boolean wasNull() throws SQLException {
+        return wasNull;
+    }
+
+    public String getString(int columnIndex) throws SQLException {
+        return current(columnIndex).getString(bufferRow());
+    }
+
+    public boolean getBoolean(int columnIndex) throws SQLException {
+        Object value = currentObject(columnIndex);
+        if (value == null) {
+            return false;
+        } else if (value instanceof Boolean) {
+            return (Boolean) value;
+        } else if (value instanceof Number) {
+            return ((Number) value).intValue() != 0;
+        }
+        String string = value.toString().trim();
+        return "1".equals(string) || "true".equalsIgnoreCase(string)
+                || "y".equalsIgnoreCase(string) || "yes".equalsIgnoreCase(string);
+    }
+
+    public byte getByte(int columnIndex) throws SQLException {
+        return (byte) current(columnIndex).getLong(bufferRow());
+    }
+
+    public short getShort(int columnIndex) throws SQLException {
+        return (short) current(columnIndex).getLong(bufferRow());
+    }
+
+    public int getInt(int columnIndex) throws SQLException {
+        return (int) current(columnIndex).getLong(bufferRow());
+    }
+
+    public long getLong(int columnIndex) throws SQLException {
+        return current(columnIndex).getLong(bufferRow());
+    }
+
+    public float getFloat(int columnIndex) throws SQLException {
+        return (float) current(columnIndex).getDouble(bufferRow());
+    }
+
+    public double getDouble(int columnIndex) throws SQLException {
+        return current(columnIndex).getDouble(bufferRow());
+    }
+
+    @Deprecated
+    public BigDecimal getBigDecimal(int columnIndex, int scale) throws SQLException {
+        BigDecimal value = getBigDecimal(columnIndex);
+        return value == null ? null : value.setScale(scale, RoundingMode.HALF_UP);
+    }
+
+    public byte[] getBytes(int columnIndex) throws SQLException {
+        return toBytes(currentObject(columnIndex));
+    }
+
+    public Date getDate(int columnIndex) throws SQLException {
+        Object value = currentObject(columnIndex);
+        if (value == null || value instanceof Date) {
+            return (Date) value;
+        } else if (value instanceof java.util.Date) {
+            return new Date(((java.util.Date) value).getTime());
+        }
+        try {
+            return Date.valueOf(value.toString().trim());
+        } catch (IllegalArgumentException ex) {
+            throw new SQLException("Cannot convert value to DATE: " + value, ex);
+        }
+    }
+
+    public Time getTime(int columnIndex) throws SQLException {
+        Object value = currentObject(columnIndex);
+        if (value == null || value instanceof Time) {
+            return (Time) value;
+        } else if (value instanceof java.util.Date) {
+            return new Time(((java.util.Date) value).getTime());
+        }
+        try {
+            return Time.valueOf(value.toString().trim());
+        } catch (IllegalArgumentException ex) {
+            throw new SQLException("Cannot convert value to TIME: " + value, ex);
+        }
+    }
+
+    public Timestamp getTimestamp(int columnIndex) throws SQLException {
+        Object value = currentObject(columnIndex);
+        if (value == null || value instanceof Timestamp) {
+            return (Timestamp) value;
+        } else if (value instanceof java.util.Date) {
+            return new Timestamp(((java.util.Date) value).getTime());
+        }
+        try {
+            return Timestamp.valueOf(value.toString().trim());
+        } catch (IllegalArgumentException ex) {
+            throw new SQLException("Cannot convert value to TIMESTAMP: " + value, ex);
+        }
+    }
+
+    public InputStream getAsciiStream(int columnIndex) throws SQLException {
+        String value = getString(columnIndex);
+        return value == null ? null : new ByteArrayInputStream(value.getBytes(ASCII));
+    }
+
+    @Deprecated
+    public InputStream getUnicodeStream(int columnIndex) throws SQLException {
+        throw new SQLFeatureNotSupportedException("getUnicodeStream");
+    }
+
+    public InputStream getBinaryStream(int columnIndex) throws SQLException {
+        byte[] value = getBytes(columnIndex);
+        return value == null ? null : new ByteArrayInputStream(value);
+    }
+
+    public String getString(String columnLabel) throws SQLException {
+        return getString(findColumn(columnLabel));
+    }
+
+    public boolean getBoolean(String columnLabel) throws SQLException {
+        return getBoolean(findColumn(columnLabel));
+    }
+
+    public byte getByte(String columnLabel) throws SQLException {
+        return getByte(findColumn(columnLabel));
+    }
+
+    public short getShort(String columnLabel) throws SQLException {
+        return getShort(findColumn(columnLabel));
+    }
+
+    public int getInt(String columnLabel) throws SQLException {
+        return getInt(findColumn(columnLabel));
+    }
+
+    public long getLong(String columnLabel) throws SQLException {
+        return getLong(findColumn(columnLabel));
+    }
+
+    public float getFloat(String columnLabel) throws SQLException {
+        return getFloat(findColumn(columnLabel));
+    }
+
+    public double getDouble(String columnLabel) throws SQLException {
+        return getDouble(findColumn(columnLabel));
+    }
+
+    @Deprecated
+    public BigDecimal getBigDecimal(String columnLabel, int scale) throws SQLException {
+        return getBigDecimal(findColumn(columnLabel), scale);
+    }
+
+    public byte[] getBytes(String columnLabel) throws SQLException {
+        return getBytes(findColumn(columnLabel));
+    }
+
+    public Date getDate(String columnLabel) throws SQLException {
+        return getDate(findColumn(columnLabel));
+    }
+
+    public Time getTime(String columnLabel) throws SQLException {
+        return getTime(findColumn(columnLabel));
+    }
+
+    public Timestamp getTimestamp(String columnLabel) throws SQLException {
+        return getTimestamp(findColumn(columnLabel));
+    }
+
+    public InputStream getAsciiStream(String columnLabel) throws SQLException {
+        return getAsciiStream(findColumn(columnLabel));
+    }
+
+    @Deprecated
+    public InputStream getUnicodeStream(String columnLabel) throws SQLException {
+        return getUnicodeStream(findColumn(columnLabel));
+    }
+
+    public InputStream getBinaryStream(String columnLabel) throws SQLException {
+        return getBinaryStream(findColumn(columnLabel));
+    }
+
+    public SQLWarning getWarnings() throws SQLException {
+        checkOpen();
+        return buffer.warnings;
+    }
+
+    public void clearWarnings() throws SQLException {
+        checkOpen();
+        buffer.warnings = null;
+    }
+
+    public String getCursorName() throws SQLException {
+        throw new SQLFeatureNotSupportedException("getCursorName");
+    }
+
+    public ResultSetMetaData getMetaData() throws SQLException {
+        return buffer.metaData;
+    }
+
+    public Object getObject(int columnIndex) throws SQLException {
+        return currentObject(columnIndex);
+    }
+
+    public Object getObject(String columnLabel) throws SQLException {
+        return getObject(findColumn(columnLabel));
+    }
+
+    public int findColumn(String columnLabel) throws SQLException {
+        Integer index = columnLabel == null ? null : buffer.columnIndexes.get(columnLabel.toUpperCase());
+        if (index == null) {
+            throw new SQLException("Column not found: " + columnLabel);
+        }
+        return index;
+    }
+
+    public Reader getCharacterStream(int columnIndex) throws SQLException {
+        String value = getString(columnIndex);
+        return value == null ? null : new StringReader(value);
+    }
+
+    public Reader getCharacterStream(String columnLabel) throws SQLException {
+        return getCharacterStream(findColumn(columnLabel));
+    }
+
+    public BigDecimal getBigDecimal(int columnIndex) throws SQLException {
+        return toBigDecimal(currentObject(columnIndex));
+    }
+
+    public BigDecimal getBigDecimal(String columnLabel) throws SQLException {
+        return getBigDecimal(findColumn(columnLabel));
+    }
+
+    public boolean isBeforeFirst() throws SQLException {
+        checkOpen();
+        return rowCount() > 0 && cursor == 0;
+    }
+
+    public boolean isAfterLast() throws SQLException {
+        checkOpen();
+        return rowCount() > 0 && cursor > rowCount();
+    }
+
+    public boolean isFirst() throws SQLException {
+        checkOpen();
+        return rowCount() > 0 && cursor == 1;
+    }
+
+    public boolean isLast() throws SQLException {
+        checkOpen();
+        return rowCount() > 0 && cursor == rowCount();
+    }
+
+    public void beforeFirst() throws SQLException {
+        checkOpen();
+        cursor = 0;
+    }
+
+    public void afterLast() throws SQLException {
+        checkOpen();
+        cursor = rowCount() + 1;
+    }
+
+    public boolean first() throws SQLException {
+        return absolute(1);
+    }
+
+    public boolean last() throws SQLException {
+        return absolute(-1);
+    }
+
+    public int getRow() throws SQLException {
+        checkOpen();
+        return cursor >= 1 && cursor <= rowCount() ? cursor : 0;
+    }
+
+    public boolean absolute(int row) throws SQLException {
+        checkOpen();
+        if (row > 0) {
+            cursor = Math.min(row, rowCount() + 1);
+        } else if (row < 0) {
+            cursor = Math.max(rowCount() + 1 + row, 0);
+        } else {
+            cursor = 0;
+        }
+        return cursor >= 1 && cursor <= rowCount();
+    }
+
+    public boolean relative(int rows) throws SQLException {
+        checkOpen();
+        long target = (long) cursor + rows;
+        cursor = (int) Math.max(0, Math.min(target, rowCount() + 1));
+        return cursor >= 1 && cursor <= rowCount();
+    }
+
+    public boolean previous() throws SQLException {
+        checkOpen();
+        if (cursor > 0) {
+            cursor--;
+        }
+        return cursor >= 1;
+    }
+
+    public void setFetchDirection(int direction) throws SQLException {
+        fetchDirection = direction;
+    }
+
+    public int getFetchDirection() throws SQLException {
+        return fetchDirection;
+    }
+
+    public void setFetchSize(int rows) throws SQLException {
+        fetchSize = rows;
+    }
+
+    public int getFetchSize() throws SQLException {
+        return fetchSize;
+    }
+
+    public int getType() throws SQLException {
+        return TYPE_SCROLL_INSENSITIVE;
+    }
+
+    public int getConcurrency() throws SQLException {
+        return CONCUR_READ_ONLY;
+    }
+
+    public boolean rowUpdated() throws SQLException {
+        return false;
+    }
+
+    public boolean rowInserted() throws SQLException {
+        return false;
+    }
+
+    public boolean rowDeleted() throws SQLException {
+        return false;
+    }
+
+    public void updateNull(int columnIndex) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateBoolean(int columnIndex, boolean x) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateByte(int columnIndex, byte x) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateShort(int columnIndex, short x) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateInt(int columnIndex, int x) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateLong(int columnIndex, long x) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateFloat(int columnIndex, float x) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateDouble(int columnIndex, double x) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateBigDecimal(int columnIndex, BigDecimal x) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateString(int columnIndex, String x) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateBytes(int columnIndex, byte[] x) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateDate(int columnIndex, Date x) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateTime(int columnIndex, Time x) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateTimestamp(int columnIndex, Timestamp x) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateAsciiStream(int columnIndex, InputStream x, int length) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateBinaryStream(int columnIndex, InputStream x, int length) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateCharacterStream(int columnIndex, Reader x, int length) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateObject(int columnIndex, Object x, int scaleOrLength) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateObject(int columnIndex, Object x) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateNull(String columnLabel) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateBoolean(String columnLabel, boolean x) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateByte(String columnLabel, byte x) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateShort(String columnLabel, short x) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateInt(String columnLabel, int x) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateLong(String columnLabel, long x) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateFloat(String columnLabel, float x) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateDouble(String columnLabel, double x) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateBigDecimal(String columnLabel, BigDecimal x) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateString(String columnLabel, String x) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateBytes(String columnLabel, byte[] x) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateDate(String columnLabel, Date x) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateTime(String columnLabel, Time x) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateTimestamp(String columnLabel, Timestamp x) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateAsciiStream(String columnLabel, InputStream x, int length) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateBinaryStream(String columnLabel, InputStream x, int length) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateCharacterStream(String columnLabel, Reader reader, int length) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateObject(String columnLabel, Object x, int scaleOrLength) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateObject(String columnLabel, Object x) throws SQLException {
+        throw readOnly();
+    }
+
+    public void insertRow() throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateRow() throws SQLException {
+        throw readOnly();
+    }
+
+    public void deleteRow() throws SQLException {
+        throw readOnly();
+    }
+
+    public void refreshRow() throws SQLException {
+        throw new SQLFeatureNotSupportedException("refreshRow");
+    }
+
+    public void cancelRowUpdates() throws SQLException {
+        throw readOnly();
+    }
+
+    public void moveToInsertRow() throws SQLException {
+        throw readOnly();
+    }
+
+    public void moveToCurrentRow() throws SQLException {
+        checkOpen();
+    }
+
+    /**
+     * Возвращает запрос, через который приложение получило результат (для
+     * результатов, переданных приложению, - обёртку запроса).
+     */
+    public Statement getStatement() throws SQLException {
+        return buffer.statement;
+    }
+
+    public Object getObject(int columnIndex, Map<String, Class<?>> map) throws SQLException {
+        return getObject(columnIndex);
+    }
+
+    public Ref getRef(int columnIndex) throws SQLException {
+        return convert(currentObject(columnIndex), Ref.class);
+    }
+
+    public Blob getBlob(int columnIndex) throws SQLException {
+        Object value = currentObject(columnIndex);
+        if (value == null || value instanceof Blob) {
+            return (Blob) value;
+        }
+        return new SerialBlob(toBytes(value));
+    }
+
+    public Clob getClob(int columnIndex) throws SQLException {
+        Object value = currentObject(columnIndex);
+        if (value == null || value instanceof Clob) {
+            return (Clob) value;
+        }
+        return new SerialClob(value.toString().toCharArray());
+    }
+
+    public Array getArray(int columnIndex) throws SQLException {
+        return convert(currentObject(columnIndex), Array.class);
+    }
+
+    public Object getObject(String columnLabel, Map<String, Class<?>> map) throws SQLException {
+        return getObject(findColumn(columnLabel), map);
+    }
+
+    public Ref getRef(String columnLabel) throws SQLException {
+        return getRef(findColumn(columnLabel));
+    }
+
+    public Blob getBlob(String columnLabel) throws SQLException {
+        return getBlob(findColumn(columnLabel));
+    }
+
+    public Clob getClob(String columnLabel) throws SQLException {
+        return getClob(findColumn(columnLabel));
+    }
+
+    public Array getArray(String columnLabel) throws SQLException {
+        return getArray(findColumn(columnLabel));
+    }
+
+    public Date getDate(int columnIndex, Calendar cal) throws SQLException {
+        Date value = getDate(columnIndex);
+        if (value == null || !isLocalTime(columnIndex, cal)) {
+            return value;
+        }
+        return new Date(toCalendarTime(value, cal, true, false));
+    }
+
+    public Date getDate(String columnLabel, Calendar cal) throws SQLException {
+        return getDate(findColumn(columnLabel), cal);
+    }
+
+    public Time getTime(int columnIndex, Calendar cal) throws SQLException {
+        Time value = getTime(columnIndex);
+        if (value == null || !isLocalTime(columnIndex, cal)) {
+            return value;
+        }
+        return new Time(toCalendarTime(value, cal, false, true));
+    }
+
+    public Time getTime(String columnLabel, Calendar cal) throws SQLException {
+        return getTime(findColumn(columnLabel), cal);
+    }
+
+    public Timestamp getTimestamp(int columnIndex, Calendar cal) throws SQLException {
+        Timestamp value = getTimestamp(columnIndex);
+        if (value == null || !isLocalTime(columnIndex, cal)) {
+            return value;
+        }
+        Timestamp converted = new Timestamp(toCalendarTime(value, cal, true, true));
+        converted.setNanos(value.getNanos());
+        return converted;
+    }
+
+    public Timestamp getTimestamp(String columnLabel, Calendar cal) throws SQLException {
+        return getTimestamp(findColumn(columnLabel), cal);
+    }
+
+    /**
+     * Определить, нужно ли пересчитывать значение поля в часовой пояс
+     * календаря: значения полей с часовым поясом задают момент времени
+     * однозначно.
+     */
+    private boolean isLocalTime(int columnIndex, Calendar cal) throws SQLException {
+        if (cal == null) {
+            return false;
+        }
+        int type = buffer.metaData.getColumnType(columnIndex);
+        return type != TIME_WITH_TIMEZONE && type != TIMESTAMP_WITH_TIMEZONE;
+    }
+
+    /**
+     * Пересчитать значение, построенное драйвером в часовом поясе по
+     * умолчанию, в часовой пояс календаря: дата и время суток сохраняются,
+     * а момент времени определяется по календарю.
+     *
+     * @param value значение в часовом поясе по умолчанию
+     * @param cal   календарь с часовым поясом приложения
+     * @param date  сохранять дату (иначе - 1 января 1970 года)
+     * @param time  сохранять время суток (иначе - полночь)
+     * @return момент времени в миллисекундах
+     */
+    private static long toCalendarTime(java.util.Date value, Calendar cal, boolean date, boolean time) {
+        Calendar source = Calendar.getInstance();
+        source.setTime(value);
+        Calendar target = (Calendar) cal.clone();
+        target.clear();
+        if (date) {
+            target.set(Calendar.ERA, source.get(Calendar.ERA));
+            target.set(source.get(Calendar.YEAR), source.get(Calendar.MONTH), source.get(Calendar.DAY_OF_MONTH));
+        } else {
+            target.set(1970, Calendar.JANUARY, 1);
+        }
+        if (time) {
+            target.set(Calendar.HOUR_OF_DAY, source.get(Calendar.HOUR_OF_DAY));
+            target.set(Calendar.MINUTE, source.get(Calendar.MINUTE));
+            target.set(Calendar.SECOND, source.get(Calendar.SECOND));
+            target.set(Calendar.MILLISECOND, source.get(Calendar.MILLISECOND));
+        }
+        return target.getTimeInMillis();
+    }
+
+    public URL getURL(int columnIndex) throws SQLException {
+        Object value = currentObject(columnIndex);
+        if (value == null || value instanceof URL) {
+            return (URL) value;
+        }
+        try {
+            return new URL(value.toString());
+        } catch (MalformedURLException ex) {
+            throw new SQLException("Cannot convert value to URL: " + value, ex);
+        }
+    }
+
+    public URL getURL(String columnLabel) throws SQLException {
+        return getURL(findColumn(columnLabel));
+    }
+
+    public void updateRef(int columnIndex, Ref x) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateRef(String columnLabel, Ref x) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateBlob(int columnIndex, Blob x) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateBlob(String columnLabel, Blob x) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateClob(int columnIndex, Clob x) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateClob(String columnLabel, Clob x) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateArray(int columnIndex, Array x) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateArray(String columnLabel, Array x) throws SQLException {
+        throw readOnly();
+    }
+
+    public RowId getRowId(int columnIndex) throws SQLException {
+        return convert(currentObject(columnIndex), RowId.class);
+    }
+
+    public RowId getRowId(String columnLabel) throws SQLException {
+        return getRowId(findColumn(columnLabel));
+    }
+
+    public void updateRowId(int columnIndex, RowId x) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateRowId(String columnLabel, RowId x) throws SQLException {
+        throw readOnly();
+    }
+
+    public int getHoldability() throws SQLException {
+        return buffer.holdability;
+    }
+
+    public boolean isClosed() throws SQLException {
+        return closed;
+    }
+
+    public void updateNString(int columnIndex, String nString) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateNString(String columnLabel, String nString) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateNClob(int columnIndex, NClob nClob) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateNClob(String columnLabel, NClob nClob) throws SQLException {
+        throw readOnly();
+    }
+
+    public NClob getNClob(int columnIndex) throws SQLException {
+        return convert(currentObject(columnIndex), NClob.class);
+    }
+
+    public NClob getNClob(String columnLabel) throws SQLException {
+        return getNClob(findColumn(columnLabel));
+    }
+
+    public SQLXML getSQLXML(int columnIndex) throws SQLException {
+        return convert(currentObject(columnIndex), SQLXML.class);
+    }
+
+    public SQLXML getSQLXML(String columnLabel) throws SQLException {
+        return getSQLXML(findColumn(columnLabel));
+    }
+
+    public void updateSQLXML(int columnIndex, SQLXML xmlObject) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateSQLXML(String columnLabel, SQLXML xmlObject) throws SQLException {
+        throw readOnly();
+    }
+
+    public String getNString(int columnIndex) throws SQLException {
+        return getString(columnIndex);
+    }
+
+    public String getNString(String columnLabel) throws SQLException {
+        return getString(findColumn(columnLabel));
+    }
+
+    public Reader getNCharacterStream(int columnIndex) throws SQLException {
+        return getCharacterStream(columnIndex);
+    }
+
+    public Reader getNCharacterStream(String columnLabel) throws SQLException {
+        return getCharacterStream(findColumn(columnLabel));
+    }
+
+    public void updateNCharacterStream(int columnIndex, Reader x, long length) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateNCharacterStream(String columnLabel, Reader reader, long length) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateAsciiStream(int columnIndex, InputStream x, long length) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateBinaryStream(int columnIndex, InputStream x, long length) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateCharacterStream(int columnIndex, Reader x, long length) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateAsciiStream(String columnLabel, InputStream x, long length) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateBinaryStream(String columnLabel, InputStream x, long length) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateCharacterStream(String columnLabel, Reader reader, long length) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateBlob(int columnIndex, InputStream inputStream, long length) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateBlob(String columnLabel, InputStream inputStream, long length) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateClob(int columnIndex, Reader reader, long length) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateClob(String columnLabel, Reader reader, long length) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateNClob(int columnIndex, Reader reader, long length) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateNClob(String columnLabel, Reader reader, long length) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateNCharacterStream(int columnIndex, Reader x) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateNCharacterStream(String columnLabel, Reader reader) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateAsciiStream(int columnIndex, InputStream x) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateBinaryStream(int columnIndex, InputStream x) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateCharacterStream(int columnIndex, Reader x) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateAsciiStream(String columnLabel, InputStream x) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateBinaryStream(String columnLabel, InputStream x) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateCharacterStream(String columnLabel, Reader reader) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateBlob(int columnIndex, InputStream inputStream) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateBlob(String columnLabel, InputStream inputStream) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateClob(int columnIndex, Reader reader) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateClob(String columnLabel, Reader reader) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateNClob(int columnIndex, Reader reader) throws SQLException {
+        throw readOnly();
+    }
+
+    public void updateNClob(String columnLabel, Reader reader) throws SQLException {
+        throw readOnly();
+    }
+
+    public <T> T getObject(int columnIndex, Class<T> type) throws SQLException {
+        if (type == null) {
+            throw new SQLException("Type should be not null.");
+        }
+        Object value = currentObject(columnIndex);
+        if (value == null || type.isInstance(value)) {
+            return type.cast(value);
+        }
+        Object converted;
+        if (type == String.class) {
+            converted = getString(columnIndex);
+        } else if (type == Integer.class) {
+            converted = getInt(columnIndex);
+        } else if (type == Long.class) {
+            converted = getLong(columnIndex);
+        } else if (type == Short.class) {
+            converted = getShort(columnIndex);
+        } else if (type == Byte.class) {
+            converted = getByte(columnIndex);
+        } else if (type == Double.class) {
+            converted = getDouble(columnIndex);
+        } else if (type == Float.class) {
+            converted = getFloat(columnIndex);
+        } else if (type == Boolean.class) {
+            converted = getBoolean(columnIndex);
+        } else if (type == BigDecimal.class) {
+            converted = getBigDecimal(columnIndex);
+        } else if (type == Date.class) {
+            converted = getDate(columnIndex);
+        } else if (type == Time.class) {
+            converted = getTime(columnIndex);
+        } else if (type == Timestamp.class) {
+            converted = getTimestamp(columnIndex);
+        } else if (type == byte[].class) {
+            converted = getBytes(columnIndex);
+        } else if (type == Blob.class) {
+            converted = getBlob(columnIndex);
+        } else if (type == Clob.class) {
+            converted = getClob(columnIndex);
+        } else if (type == URL.class) {
+            converted = getURL(columnIndex);
+        } else {
+            throw new SQLException("Cannot convert value of type " + value.getClass().getName() + " to " + type.getName());
+        }
+        return type.cast(converted);
+    }
+
+    public <T> T getObject(String columnLabel, Class<T> type) throws SQLException {
+        return getObject(findColumn(columnLabel), type);
+    }
+
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        throw new SQLException("Not a wrapper for " + iface.getName());
+    }
+
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return iface.isInstance(this);
+    }
+
+    private static SQLException readOnly() {
+        return new SQLFeatureNotSupportedException("Captured result set is read only.");
+    }
+
+    private static <T> T convert(Object value, Class<T> type) throws SQLException {
+        if (value == null || type.isInstance(value)) {
+            return type.cast(value);
+        }
+        throw new SQLException("Cannot convert value of type " + value.getClass().getName() + " to " + type.getName());
+    }
+
+    private static byte[] toBytes(Object value) throws SQLException {
+        if (value == null || value instanceof byte[]) {
+            return (byte[]) value;
+        } else if (value instanceof Blob) {
+            Blob blob = (Blob) value;
+            return blob.getBytes(1, (int) blob.length());
+        } else if (value instanceof String) {
+            return ((String) value).getBytes();
+        }
+        throw new SQLException("Cannot convert value of type " + value.getClass().getName() + " to byte[]");
+    }
+
+    private static long toLong(Object value) throws SQLException {
+        if (value == null) {
+            return 0;
+        } else if (value instanceof Number) {
+            return ((Number) value).longValue();
+        } else if (value instanceof Boolean) {
+            return (Boolean) value ? 1 : 0;
+        }
+        try {
+            return new BigDecimal(value.toString().trim()).longValue();
+        } catch (NumberFormatException ex) {
+            throw new SQLException("Cannot convert value to number: " + value, ex);
+        }
+    }
+
+    private static double toDouble(Object value) throws SQLException {
+        if (value == null) {
+            return 0;
+        } else if (value instanceof Number) {
+            return ((Number) value).doubleValue();
+        } else if (value instanceof Boolean) {
+            return (Boolean) value ? 1 : 0;
+        }
+        try {
+            return Double.parseDouble(value.toString().trim());
+        } catch (NumberFormatException ex) {
+            throw new SQLException("Cannot convert value to number: " + value, ex);
+        }
+    }
+
+    private static BigDecimal toBigDecimal(Object value) throws SQLException {
+        if (value == null || value instanceof BigDecimal) {
+            return (BigDecimal) value;
+        } else if (value instanceof BigInteger) {
+            return new BigDecimal((BigInteger) value);
+        } else if (value instanceof Long || value instanceof Integer
+                || value instanceof Short || value instanceof Byte) {
+            return BigDecimal.valueOf(((Number) value).longValue());
+        }
+        try {
+            return new BigDecimal(value.toString().trim());
+        } catch (NumberFormatException ex) {
+            throw new SQLException("Cannot convert value to number: " + value, ex);
+        }
+    }
+
+    /**
+     * Буфер значений одного поля.
+     */
+    private abstract static class ColumnBuffer {
+
+        protected final BitSet nulls = new BitSet();
+        /**
+         * Строковые значения, полученные от драйвера; null - строковое
+         * значение получается из значения поля
+         */
+        protected String[] strings;
+
+        static ColumnBuffer create(int sqlType, String className, int capacity, boolean largeObjectLocators) {
+            if (Integer.class.getName().equals(className)
+                    || Long.class.getName().equals(className)
+                    || Short.class.getName().equals(className)
+                    || Byte.class.getName().equals(className)) {
+                return new LongColumnBuffer(className, capacity);
+            } else if (Double.class.getName().equals(className)
+                    || Float.class.getName().equals(className)) {
+                return new DoubleColumnBuffer(Float.class.getName().equals(className), capacity);
+            }
+            return new ObjectColumnBuffer(sqlType, capacity, largeObjectLocators);
+        }
+
+        boolean isNull(int row) {
+            return nulls.get(row);
+        }
+
+        abstract void read(ResultSet resultSet, int columnIndex, int row) throws SQLException;
+
+        void grow(int capacity) {
+            if (strings != null) {
+                strings = Arrays.copyOf(strings, capacity);
+            }
+        }
+
+        /**
+         * Скопировать значение в буфер того же типа.
+         */
+        void copy(int row, ColumnBuffer target, int targetRow) {
+            target.nulls.set(targetRow, nulls.get(row));
+            if (target.strings != null) {
+                target.strings[targetRow] = strings[row];
+            }
+        }
+
+        void clear(int row) {
+            nulls.clear(row);
+            if (strings != null) {
+                strings[row] = null;
+            }
+        }
+
+        abstract Object getObject(int row);
+
+        String getString(int row) {
+            if (strings != null && strings[row] != null) {
+                return strings[row];
+            }
+            Object value = getObject(row);
+            if (value == null) {
+                return null;
+            } else if (value instanceof byte[]) {
+                return new String((byte[]) value);
+            }
+            return value.toString();
+        }
+
+        long getLong(int row) throws SQLException {
+            return toLong(getObject(row));
+        }
+
+        double getDouble(int row) throws SQLException {
+            return toDouble(getObject(row));
+        }
+    }
+
+    private static class LongColumnBuffer extends ColumnBuffer {
+
+        private final Class<?> type;
+        private long[] values;
+
+        LongColumnBuffer(String className, int capacity) {
+            if (Integer.class.getName().equals(className)) {
+                this.type = Integer.class;
+            } else if (Short.class.getName().equals(className)) {
+                this.type = Short.class;
+            } else if (Byte.class.getName().equals(className)) {
+                this.type = Byte.class;
+            } else {
+                this.type = Long.class;
+            }
+            this.values = new long[capacity];
+        }
+
+        void read(ResultSet resultSet, int columnIndex, int row) throws SQLException {
+            values[row] = resultSet.getLong(columnIndex);
+            if (resultSet.wasNull()) {
+                nulls.set(row);
+            }
+        }
+
+        void grow(int capacity) {
+            super.grow(capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        void copy(int row, ColumnBuffer target, int targetRow) {
+            super.copy(row, target, targetRow);
+            ((LongColumnBuffer) target).values[targetRow] = values[row];
+        }
+
+        Object getObject(int row) {
+            if (nulls.get(row)) {
+                return null;
+            }
+            long value = values[row];
+            if (type == Integer.class) {
+                return (int) value;
+            } else if (type == Short.class) {
+                return (short) value;
+            } else if (type == Byte.class) {
+                return (byte) value;
+            }
+            return value;
+        }
+
+        long getLong(int row) {
+            return values[row];
+        }
+
+        double getDouble(int row) {
+            return values[row];
+        }
+    }
+
+    private static class DoubleColumnBuffer extends ColumnBuffer {
+
+        private final boolean single;
+        private double[] values;
+
+        DoubleColumnBuffer(boolean single, int capacity) {
+            this.single = single;
+            this.values = new double[capacity];
+            this.strings = new String[capacity];
+        }
+
+        void read(ResultSet resultSet, int columnIndex, int row) throws SQLException {
+            values[row] = resultSet.getDouble(columnIndex);
+            if (resultSet.wasNull()) {
+                nulls.set(row);
+            } else {
+                strings[row] = resultSet.getString(columnIndex);
+            }
+        }
+
+        void grow(int capacity) {
+            super.grow(capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        void copy(int row, ColumnBuffer target, int targetRow) {
+            super.copy(row, target, targetRow);
+            ((DoubleColumnBuffer) target).values[targetRow] = values[row];
+        }
+
+        Object getObject(int row) {
+            if (nulls.get(row)) {
+                return null;
+            }
+            return single ? (Object) (float) values[row] : (Object) values[row];
+        }
+
+        long getLong(int row) {
+            return (long) values[row];
+        }
+
+        double getDouble(int row) {
+            return values[row];
+        }
+    }
+
+    private static class ObjectColumnBuffer extends ColumnBuffer {
+
+        private final int sqlType;
+        private final boolean largeObjectLocators;
+        private Object[] values;
+
+        ObjectColumnBuffer(int sqlType, int capacity, boolean largeObjectLocators) {
+            this.sqlType = sqlType;
+            this.largeObjectLocators = largeObjectLocators;
+            this.values = new Object[capacity];
+            if (hasDriverString(sqlType)) {
+                this.strings = new String[capacity];
+            }
+        }
+
+        /**
+         * Определить, нужно ли сохранять строковое значение, полученное от
+         * драйвера. Для строковых полей оно совпадает со значением поля, а
+         * большие объекты и длинные поля драйвер может передать только один
+         * раз.
+         */
+        private static boolean hasDriverString(int sqlType) {
+            switch (sqlType) {
+                case Types.CHAR:
+                case Types.VARCHAR:
+                case Types.LONGVARCHAR:
+                case Types.NCHAR:
+                case Types.NVARCHAR:
+                case Types.LONGNVARCHAR:
+                case Types.CLOB:
+                case Types.NCLOB:
+                case Types.BLOB:
+                case Types.LONGVARBINARY:
+                    return false;
+                default:
+                    return true;
+            }
+        }
+
+        void read(ResultSet resultSet, int columnIndex, int row) throws SQLException {
+            Object value;
+            // большие объекты становятся недоступны после закрытия курсора,
+            // поэтому их содержимое считывается сразу, если курсор драйвера
+            // не остаётся открытым
+            switch (sqlType) {
+                case Types.BLOB:
+                    value = largeObjectLocators ? resultSet.getBlob(columnIndex) : resultSet.getBytes(columnIndex);
+                    break;
+                case Types.LONGVARBINARY:
+                    value = largeObjectLocators ? null : resultSet.getBytes(columnIndex);
+                    break;
+                case Types.CLOB:
+                case Types.NCLOB:
+                    value = largeObjectLocators ? resultSet.getClob(columnIndex) : resultSet.getString(columnIndex);
+                    break;
+                default:
+                    value = resultSet.getObject(columnIndex);
+            }
+            values[row] = value;
+            if (value == null) {
+                nulls.set(row);
+            } else if (strings != null && !(value instanceof String)) {
+                strings[row] = resultSet.getString(columnIndex);
+            }
+        }
+
+        void grow(int capacity) {
+            super.grow(capacity);
+            values = Arrays.copyOf(values, capacity);
+        }
+
+        void copy(int row, ColumnBuffer target, int targetRow) {
+            super.copy(row, target, targetRow);
+            ((ObjectColumnBuffer) target).values[targetRow] = values[row];
+        }
+
+        void clear(int row) {
+            super.clear(row);
+            values[row] = null;
+        }
+
+        Object getObject(int row) {
+            return values[row];
+        }
+    }
+}
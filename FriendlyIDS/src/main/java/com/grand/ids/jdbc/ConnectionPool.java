@@ -0,0 +1,457 @@
+/*
+ * Copyright 2009-2016 Andrey Grigorov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.grand.ids.jdbc;
+
+import org.apache.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Пул JDBC-соединений. Свободные соединения хранятся в стеке без
+ * блокировок; количество выданных соединений ограничено, при исчерпании пула
+ * запрос соединения ожидает его освобождения не дольше заданного времени.
+ * <p>
+ * При каждой выдаче соединение помещается в новую обёртку
+ * {@link ConnectionWrapper}, закрытие которой возвращает соединение в пул
+ * (см. {@link ConnectionWrapper#close()}). Закрытая обёртка больше не
+ * используется, поэтому обращение к ней после возврата соединения не
+ * затрагивает следующего получателя того же соединения.
+ * <p>
+ * Фоновая задача пула периодически закрывает соединения, простаивающие
+ * дольше заданного времени, и восстанавливает минимальное количество
+ * свободных соединений после того, как соединения были закрыты из-за
+ * ошибок, ограждения или проверки перед выдачей.
+ *
+ * @author Andrey Grigorov
+ */
+class ConnectionPool {
+
+    /**
+     * Фабрика новых соединений пула.
+     */
+    interface ConnectionFactory {
+
+        /**
+         * Установить новое соединение с базой данных.
+         */
+        Connection createConnection() throws SQLException;
+
+        /**
+         * Создать обёртку, выдаваемую приложению, для соединения пула.
+         */
+        ConnectionWrapper wrapConnection(Connection connection);
+    }
+
+    /**
+     * Соединение пула и его исходное состояние, восстанавливаемое при
+     * возврате соединения в пул.
+     */
+    final static class Entry {
+
+        private final Connection connection;
+        private final boolean readOnly;
+        private final int transactionIsolation;
+        private final String catalog;
+        private final int holdability;
+        /**
+         * Время возврата соединения в пул (см. {@link System#nanoTime()})
+         */
+        private volatile long idleSince;
+
+        private Entry(Connection connection) throws SQLException {
+            this.connection = connection;
+            this.readOnly = connection.isReadOnly();
+            this.transactionIsolation = connection.getTransactionIsolation();
+            this.catalog = connection.getCatalog();
+            this.holdability = connection.getHoldability();
+        }
+    }
+
+    /**
+     * Элемент стека свободных соединений.
+     */
+    private final static class Node {
+
+        final Entry entry;
+        final Node next;
+
+        Node(Entry entry, Node next) {
+            this.entry = entry;
+            this.next = next;
+        }
+    }
+
+    private final static Logger LOG = Logger.getLogger(ConnectionPool.class);
+    /**
+     * Наибольший интервал запуска фоновой задачи пула в миллисекундах
+     */
+    private final static long MAX_MAINTENANCE_INTERVAL_MILLIS = 30000;
+    /**
+     * Наименьший интервал запуска фоновой задачи пула в миллисекундах
+     */
+    private final static long MIN_MAINTENANCE_INTERVAL_MILLIS = 1000;
+
+    private final ConnectionFactory factory;
+    private final int minIdle;
+    private final int maxIdle;
+    private final long idleTimeoutMillis;
+    private final long maxWaitMillis;
+    private final boolean validateOnBorrow;
+    private final int validationTimeout;
+    private final AtomicReference<Node> idle = new AtomicReference<Node>();
+    private final AtomicInteger idleCount = new AtomicInteger();
+    /**
+     * Разрешения на выдачу соединений; их количество равно максимальному
+     * количеству одновременно выданных соединений
+     */
+    private final Semaphore permits;
+    private volatile boolean closed;
+    /**
+     * Исполнитель фоновой задачи пула; null - задача не запущена
+     */
+    private volatile ScheduledExecutorService maintenance;
+
+    /**
+     * Создать пул.
+     *
+     * @param factory           фабрика соединений
+     * @param minIdle           количество свободных соединений, которое
+     *                          поддерживается в пуле
+     * @param maxIdle           максимальное количество свободных соединений;
+     *                          лишние соединения закрываются при возврате в пул
+     * @param idleTimeoutMillis время в миллисекундах, после которого
+     *                          простаивающее соединение закрывается, если
+     *                          свободных соединений больше minIdle; 0 -
+     *                          соединения не закрываются
+     * @param maxActive         максимальное количество одновременно выданных
+     *                          соединений
+     * @param maxWaitMillis     максимальное время ожидания свободного
+     *                          соединения в миллисекундах; отрицательное
+     *                          значение - ожидать без ограничения
+     * @param validateOnBorrow  проверять ли соединение перед выдачей
+     * @param validationTimeout время проверки соединения в секундах
+     */
+    ConnectionPool(ConnectionFactory factory, int minIdle, int maxIdle, long idleTimeoutMillis, int maxActive,
+                   long maxWaitMillis, boolean validateOnBorrow, int validationTimeout) {
+        if (maxActive <= 0) {
+            throw new IllegalArgumentException("Max active connection count should be positive.");
+        }
+        if (minIdle < 0 || maxIdle < minIdle) {
+            throw new IllegalArgumentException("Idle connection bounds should satisfy 0 <= minIdle <= maxIdle.");
+        }
+        if (idleTimeoutMillis < 0) {
+            throw new IllegalArgumentException("Idle timeout should not be negative.");
+        }
+        this.factory = factory;
+        this.minIdle = minIdle;
+        this.maxIdle = maxIdle;
+        this.idleTimeoutMillis = idleTimeoutMillis;
+        this.maxWaitMillis = maxWaitMillis;
+        this.validateOnBorrow = validateOnBorrow;
+        this.validationTimeout = validationTimeout;
+        this.permits = new Semaphore(maxActive, true);
+    }
+
+    /**
+     * Создать начальный набор свободных соединений и запустить фоновую
+     * задачу пула.
+     *
+     * @throws SQLException ошибка при установке соединения
+     */
+    void fill() throws SQLException {
+        while (idleCount.get() < minIdle) {
+            push(createEntry());
+        }
+        if (minIdle > 0 || idleTimeoutMillis > 0) {
+            startMaintenance();
+        }
+    }
+
+    private void startMaintenance() {
+        long interval = idleTimeoutMillis > 0
+                ? Math.max(MIN_MAINTENANCE_INTERVAL_MILLIS, Math.min(idleTimeoutMillis / 2, MAX_MAINTENANCE_INTERVAL_MILLIS))
+                : MAX_MAINTENANCE_INTERVAL_MILLIS;
+        ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ids-connection-pool");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        executor.scheduleWithFixedDelay(new Runnable() {
+
+            public void run() {
+                maintain();
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+        maintenance = executor;
+        if (closed) {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Закрыть соединения, простаивающие дольше idleTimeoutMillis (кроме
+     * minIdle соединений, использованных последними), и создать недостающие
+     * до minIdle свободные соединения.
+     */
+    private void maintain() {
+        if (closed) {
+            return;
+        }
+        if (idleTimeoutMillis > 0) {
+            evictIdle();
+        }
+        while (!closed && idleCount.get() < minIdle) {
+            try {
+                push(createEntry());
+            } catch (SQLException ex) {
+                LOG.debug("Не удалось восстановить свободное соединение пула", ex);
+                break;
+            }
+        }
+        if (closed) {
+            drain();
+        }
+    }
+
+    private void evictIdle() {
+        // соединения извлекаются из стека целиком: в вершине стека - последние
+        // возвращённые; оставшиеся соединения возвращаются в прежнем порядке
+        List<Entry> entries = new ArrayList<Entry>();
+        Entry entry;
+        while ((entry = pop()) != null) {
+            entries.add(entry);
+        }
+        long now = System.nanoTime();
+        long timeout = TimeUnit.MILLISECONDS.toNanos(idleTimeoutMillis);
+        List<Entry> kept = new ArrayList<Entry>(entries.size());
+        List<Entry> expired = new ArrayList<Entry>();
+        for (Entry idleEntry : entries) {
+            if (kept.size() < minIdle || now - idleEntry.idleSince < timeout) {
+                kept.add(idleEntry);
+            } else {
+                expired.add(idleEntry);
+            }
+        }
+        for (int i = kept.size() - 1; i >= 0; i--) {
+            pushKeepingIdleTime(kept.get(i));
+        }
+        for (Entry expiredEntry : expired) {
+            destroy(expiredEntry);
+        }
+    }
+
+    /**
+     * Получить соединение из пула.
+     *
+     * @return новая обёртка соединения
+     * @throws SQLException пул закрыт, истекло время ожидания свободного
+     *                      соединения или не удалось установить новое соединение
+     */
+    ConnectionWrapper borrow() throws SQLException {
+        if (closed) {
+            throw new SQLException("Connection pool is closed");
+        }
+        acquirePermit();
+        try {
+            Entry entry;
+            while ((entry = pop()) != null) {
+                if (!validateOnBorrow || isValid(entry)) {
+                    return wrap(entry);
+                }
+                destroy(entry);
+            }
+            return wrap(createEntry());
+        } catch (SQLException ex) {
+            permits.release();
+            throw ex;
+        } catch (RuntimeException ex) {
+            permits.release();
+            throw ex;
+        }
+    }
+
+    /**
+     * Вернуть соединение в пул. Вызывается обёрткой соединения один раз, при
+     * её закрытии. Соединение закрывается, если в пуле уже достаточно
+     * свободных соединений, пул закрыт, соединение ограждено после
+     * аномального запроса или его состояние не удалось восстановить.
+     *
+     * @param entry  возвращаемое соединение
+     * @param fenced ограждено ли соединение
+     */
+    void release(Entry entry, boolean fenced) {
+        try {
+            if (closed || fenced || idleCount.get() >= maxIdle || !resetState(entry)) {
+                destroy(entry);
+            } else {
+                push(entry);
+                if (closed) {
+                    // пул закрыли одновременно с возвратом соединения
+                    drain();
+                }
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Закрыть пул и все свободные соединения. Выданные соединения
+     * закрываются при возврате.
+     */
+    void close() {
+        closed = true;
+        ScheduledExecutorService executor = maintenance;
+        if (executor != null) {
+            executor.shutdownNow();
+        }
+        drain();
+    }
+
+    int getIdleCount() {
+        return idleCount.get();
+    }
+
+    private void acquirePermit() throws SQLException {
+        try {
+            if (maxWaitMillis < 0) {
+                permits.acquire();
+            } else if (!permits.tryAcquire(maxWaitMillis, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("Timeout waiting for a pooled connection (" + maxWaitMillis + " ms)");
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a pooled connection", ex);
+        }
+    }
+
+    private Entry createEntry() throws SQLException {
+        Connection connection = factory.createConnection();
+        try {
+            return new Entry(connection);
+        } catch (SQLException ex) {
+            connection.close();
+            throw ex;
+        }
+    }
+
+    private ConnectionWrapper wrap(Entry entry) {
+        ConnectionWrapper connection = factory.wrapConnection(entry.connection);
+        connection.attach(this, entry);
+        return connection;
+    }
+
+    /**
+     * Восстановить исходное состояние соединения перед возвратом в пул:
+     * откатить незавершённую транзакцию, включить автоматическую фиксацию и
+     * вернуть режим только для чтения, уровень изоляции транзакций, каталог
+     * и удержание курсоров, заданные при установке соединения.
+     *
+     * @return true - соединение можно использовать повторно; false -
+     * соединение следует закрыть
+     */
+    private boolean resetState(Entry entry) {
+        Connection connection = entry.connection;
+        try {
+            if (connection.isClosed()) {
+                return false;
+            }
+            if (!connection.getAutoCommit()) {
+                connection.rollback();
+                connection.setAutoCommit(true);
+            }
+            if (connection.isReadOnly() != entry.readOnly) {
+                connection.setReadOnly(entry.readOnly);
+            }
+            if (connection.getTransactionIsolation() != entry.transactionIsolation) {
+                connection.setTransactionIsolation(entry.transactionIsolation);
+            }
+            if (entry.catalog != null && !entry.catalog.equals(connection.getCatalog())) {
+                connection.setCatalog(entry.catalog);
+            }
+            if (connection.getHoldability() != entry.holdability) {
+                connection.setHoldability(entry.holdability);
+            }
+            connection.clearWarnings();
+            return true;
+        } catch (SQLException ex) {
+            return false;
+        }
+    }
+
+    private boolean isValid(Entry entry) {
+        try {
+            return entry.connection.isValid(validationTimeout);
+        } catch (SQLException ex) {
+            return false;
+        }
+    }
+
+    private void drain() {
+        Entry entry;
+        while ((entry = pop()) != null) {
+            destroy(entry);
+        }
+    }
+
+    private void destroy(Entry entry) {
+        try {
+            entry.connection.close();
+        } catch (SQLException ex) {
+            LOG.debug("Ошибка при закрытии соединения пула", ex);
+        }
+    }
+
+    private void push(Entry entry) {
+        entry.idleSince = System.nanoTime();
+        pushKeepingIdleTime(entry);
+    }
+
+    private void pushKeepingIdleTime(Entry entry) {
+        Node head;
+        Node node;
+        do {
+            head = idle.get();
+            node = new Node(entry, head);
+        } while (!idle.compareAndSet(head, node));
+        idleCount.incrementAndGet();
+    }
+
+    private Entry pop() {
+        Node head;
+        do {
+            head = idle.get();
+            if (head == null) {
+                return null;
+            }
+        } while (!idle.compareAndSet(head, head.next));
+        idleCount.decrementAndGet();
+        return head.entry;
+    }
+}
@@ -15,7 +15,10 @@
  */
 package com.grand.ids.jdbc;
 
+import com.grand.ids.UserId;
+import com.grand.ids.decisionmodule.AnalysisResult;
 import com.grand.ids.decisionmodule.DecisionModule;
+import com.grand.ids.decisionmodule.Event;
 
 import java.sql.Array;
 import java.sql.Blob;
@@ -32,9 +35,15 @@ import java.sql.SQLXML;
 import java.sql.Savepoint;
 import java.sql.Statement;
 import java.sql.Struct;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 import java.util.Properties;
+import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * Обёртка для jdbc-соединения. Используется для включения
@@ -46,214 +55,522 @@ public class ConnectionWrapper implements java.sql.Connection {
     private Connection connection;
     private DecisionModule decisionModule;
     private ContextProvider contextProvider;
+    private SensorSettings sensorSettings;
+    private SchemaCatalog schemaCatalog;
+    private volatile boolean fenced;
+    /**
+     * Пул, в который возвращается соединение при закрытии; null, если
+     * соединение получено не из пула
+     */
+    private volatile ConnectionPool pool;
+    /**
+     * Соединение пула, помещённое в обёртку; null, если соединение получено
+     * не из пула
+     */
+    private ConnectionPool.Entry poolEntry;
+    private final AtomicBoolean closed = new AtomicBoolean();
+    /**
+     * Незакрытые запросы, созданные через соединение пула
+     */
+    private final Set<Statement> statements = Collections.newSetFromMap(new WeakHashMap<Statement, Boolean>());
+    /**
+     * События, анализ которых отложен до завершения транзакции
+     */
+    private final List<Event> deferredEvents = new ArrayList<Event>();
+
+    /**
+     * Максимальное количество отложенных событий; при его достижении
+     * накопленные события анализируются, не дожидаясь завершения транзакции
+     */
+    private final static int MAX_DEFERRED_EVENTS = 256;
 
     public ConnectionWrapper(Connection connection, DecisionModule decisionModule,
                              ContextProvider contextProvider) {
+        this(connection, decisionModule, contextProvider, new SensorSettings());
+    }
+
+    public ConnectionWrapper(Connection connection, DecisionModule decisionModule,
+                             ContextProvider contextProvider, SensorSettings sensorSettings) {
+        this(connection, decisionModule, contextProvider, sensorSettings, new SchemaCatalog());
+    }
+
+    public ConnectionWrapper(Connection connection, DecisionModule decisionModule,
+                             ContextProvider contextProvider, SensorSettings sensorSettings,
+                             SchemaCatalog schemaCatalog) {
         this.connection = connection;
         this.decisionModule = decisionModule;
         this.contextProvider = contextProvider;
+        this.sensorSettings = sensorSettings;
+        this.schemaCatalog = schemaCatalog;
+    }
+
+    SensorSettings getSensorSettings() {
+        return sensorSettings;
+    }
+
+    /**
+     * Получить каталог имён таблиц и полей базы данных. Соединения одного
+     * источника данных разделяют один каталог.
+     *
+     * @return каталог базы данных
+     */
+    public SchemaCatalog getSchemaCatalog() {
+        return schemaCatalog;
+    }
+
+    /**
+     * Отслеживать результат анализа запроса, выполненного через данное
+     * соединение. Если включено ограждение соединения и запрос будет признан
+     * аномальным, то дальнейшее чтение данных через соединение запрещается.
+     *
+     * @param analysisResult результат анализа запроса (возможно, ещё не
+     *                       завершённого)
+     */
+    void watch(AnalysisResult analysisResult) {
+        if (sensorSettings.isFenceOnAnomaly()) {
+            analysisResult.addListener(new AnalysisResult.Listener() {
+
+                public void onBlockAction(AnalysisResult analysisResult) {
+                    fenced = true;
+                }
+            });
+        }
+    }
+
+    /**
+     * Проверить, не запрещено ли чтение данных через соединение.
+     *
+     * @throws SQLException соединение ограждено после аномального запроса
+     */
+    void checkFence() throws SQLException {
+        if (fenced) {
+            throw new SQLException("Connection is fenced after anomaly query");
+        }
+    }
+
+    /**
+     * Получить идентификатор пользователя, от имени которого в данный момент
+     * выполняется запрос. Вызывается при каждом выполнении запроса, а не при
+     * его подготовке, поэтому подготовленные запросы можно повторно
+     * использовать для разных пользователей (например, в кэше запросов пула).
+     *
+     * @return идентификатор пользователя
+     */
+    UserId getCurrentUserId() {
+        return contextProvider != null ? contextProvider.getCurrentUserId() : null;
+    }
+
+    /**
+     * Получить режим работы системы для запросов, выполняемых через
+     * соединение: режим, заданный для источника данных (см.
+     * {@link SensorSettings#getMode()}), или режим модуля принятия решений.
+     *
+     * @return режим работы
+     */
+    IDSMode getMode() {
+        IDSMode mode = sensorSettings.getMode();
+        return mode != null ? mode : decisionModule.getMode();
+    }
+
+    /**
+     * Определить, наблюдается ли запрос. Результаты запросов, которые не
+     * наблюдаются, передаются приложению без обёрток, не анализируются и не
+     * записываются в журнал аудита. Проверка выполняется при каждом
+     * выполнении запроса (см. {@link StatementWrapper#beginExecution()}),
+     * поэтому изменения настроек сенсорной подсистемы действуют и для уже
+     * созданных запросов.
+     *
+     * @param sql    текст запроса; null - запрос ещё не известен
+     * @param userId идентификатор пользователя; null - пользователь не
+     *               проверяется
+     * @return true - запрос следует передавать модулю принятия решений
+     */
+    boolean isObserved(String sql, UserId userId) {
+        SensorSettings.Scope scope = sensorSettings.getScope();
+        IDSMode mode = scope.getMode() != null ? scope.getMode() : decisionModule.getMode();
+        if (mode == IDSMode.NO_OBSERVATION) {
+            return false;
+        }
+        if (userId != null && scope.isExcludedUser(userId)) {
+            return false;
+        }
+        return sql == null || scope.isObservedQuery(sql);
+    }
+
+    /**
+     * Отложить анализ события до завершения транзакции. Анализ
+     * откладывается, если это разрешено настройками сенсорной подсистемы
+     * ({@link SensorSettings#isDeferTransactionAnalysis()}) и соединение не
+     * находится в режиме автоматической фиксации. Обращения к соединению,
+     * необходимые для анализа (см. {@link DecisionModule#prepareAnalysis(Event)}),
+     * выполняются сразу: к моменту анализа приложение может изменить данные
+     * в той же транзакции.
+     *
+     * @param event событие безопасности с уже считанным результатом
+     *              выполнения запроса
+     * @return true - анализ отложен; false - событие следует анализировать
+     * сразу (в том числе, если подготовить отложенный анализ не удалось)
+     * @throws SQLException ошибка при определении режима фиксации
+     */
+    boolean defer(Event event) throws SQLException {
+        if (!sensorSettings.isDeferTransactionAnalysis() || physical().getAutoCommit()) {
+            return false;
+        }
+        if (!decisionModule.prepareAnalysis(event)) {
+            return false;
+        }
+        boolean full;
+        synchronized (deferredEvents) {
+            deferredEvents.add(event);
+            full = deferredEvents.size() >= MAX_DEFERRED_EVENTS;
+        }
+        if (full) {
+            analyzeDeferredEvents();
+        }
+        return true;
+    }
+
+    /**
+     * Проанализировать события, отложенные до завершения транзакции, одним
+     * пакетом (см. {@link DecisionModule#analyzeAll(List)}). Если один из
+     * запросов признан аномальным, то при включенном ограждении дальнейшее
+     * чтение данных через соединение запрещается.
+     */
+    private void analyzeDeferredEvents() {
+        List<Event> events;
+        synchronized (deferredEvents) {
+            if (deferredEvents.isEmpty()) {
+                return;
+            }
+            events = new ArrayList<Event>(deferredEvents);
+            deferredEvents.clear();
+        }
+        for (AnalysisResult analysisResult : decisionModule.analyzeAll(events)) {
+            watch(analysisResult);
+        }
+    }
+
+    /**
+     * Передать соединение под управление пула. Обёртка создаётся пулом для
+     * каждой выдачи соединения; при закрытии обёртки соединение
+     * возвращается в пул, а сама обёртка становится недействительной.
+     *
+     * @param pool  пул соединений
+     * @param entry соединение пула, помещённое в обёртку
+     */
+    void attach(ConnectionPool pool, ConnectionPool.Entry entry) {
+        this.pool = pool;
+        this.poolEntry = entry;
+    }
+
+    /**
+     * Получить соединение драйвера, проверив, что обёртка не закрыта.
+     *
+     * @throws SQLException обёртка закрыта
+     */
+    private Connection physical() throws SQLException {
+        if (closed.get()) {
+            throw new SQLException("Connection is closed");
+        }
+        return connection;
+    }
+
+    /**
+     * Запомнить запрос, созданный через соединение пула: при возврате
+     * соединения в пул незакрытые запросы закрываются.
+     */
+    private <T extends Statement> T track(T statement) {
+        if (pool != null) {
+            synchronized (statements) {
+                statements.add(statement);
+            }
+        }
+        return statement;
+    }
+
+    private void closeStatements() {
+        List<Statement> openStatements;
+        synchronized (statements) {
+            openStatements = new ArrayList<Statement>(statements);
+            statements.clear();
+        }
+        for (Statement statement : openStatements) {
+            try {
+                statement.close();
+            } catch (SQLException ex) {
+                // соединение, состояние которого не удастся восстановить,
+                // будет закрыто пулом
+            }
+        }
+    }
+
+    /**
+     * Проверить, исключён ли из наблюдения пользователь, создающий запрос.
+     * Запросы исключённых пользователей выполняются драйвером без обёрток.
+     * Подготовленные запросы оборачиваются всегда, так как могут повторно
+     * использоваться разными пользователями (например, в кэше запросов пула).
+     */
+    private boolean isExcludedUser() {
+        return sensorSettings.isExcludedUser(getCurrentUserId());
     }
 
     public Statement createStatement() throws SQLException {
-        return connection.createStatement();
+        Statement statement = track(physical().createStatement());
+        return isExcludedUser() ? statement : new StatementWrapper(statement, decisionModule, null, this);
     }
 
     public PreparedStatement prepareStatement(String sql) throws SQLException {
-        return new PreparedStatementWrapper(connection.prepareStatement(sql),
-                decisionModule, sql, contextProvider.getCurrentUserId());
+        PreparedStatement statement = track(physical().prepareStatement(sql));
+        return new PreparedStatementWrapper(statement, decisionModule, sql, null, this);
     }
 
     public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
-        return new PreparedStatementWrapper(connection.prepareStatement(sql, resultSetType, resultSetConcurrency),
-                decisionModule, sql, contextProvider.getCurrentUserId());
+        PreparedStatement statement = track(physical().prepareStatement(sql, resultSetType, resultSetConcurrency));
+        return new PreparedStatementWrapper(statement, decisionModule, sql, null, this);
     }
 
     public PreparedStatement prepareStatement(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
-        return new PreparedStatementWrapper(connection.prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability),
-                decisionModule, sql, contextProvider.getCurrentUserId());
+        PreparedStatement statement = track(physical().prepareStatement(sql, resultSetType, resultSetConcurrency, resultSetHoldability));
+        return new PreparedStatementWrapper(statement, decisionModule, sql, null, this);
     }
 
     public PreparedStatement prepareStatement(String sql, int autoGeneratedKeys) throws SQLException {
-        return new PreparedStatementWrapper(connection.prepareStatement(sql, autoGeneratedKeys),
-                decisionModule, sql, contextProvider.getCurrentUserId());
+        PreparedStatement statement = track(physical().prepareStatement(sql, autoGeneratedKeys));
+        return new PreparedStatementWrapper(statement, decisionModule, sql, null, this);
     }
 
     public PreparedStatement prepareStatement(String sql, int[] columnIndexes) throws SQLException {
-        return new PreparedStatementWrapper(connection.prepareStatement(sql, columnIndexes),
-                decisionModule, sql, contextProvider.getCurrentUserId());
+        PreparedStatement statement = track(physical().prepareStatement(sql, columnIndexes));
+        return new PreparedStatementWrapper(statement, decisionModule, sql, null, this);
     }
 
     public PreparedStatement prepareStatement(String sql, String[] columnNames) throws SQLException {
-        return new PreparedStatementWrapper(connection.prepareStatement(sql, columnNames),
-                decisionModule, sql, contextProvider.getCurrentUserId());
+        PreparedStatement statement = track(physical().prepareStatement(sql, columnNames));
+        return new PreparedStatementWrapper(statement, decisionModule, sql, null, this);
     }
 
     public CallableStatement prepareCall(String sql) throws SQLException {
-        return connection.prepareCall(sql);
+        CallableStatement statement = track(physical().prepareCall(sql));
+        return new CallableStatementWrapper(statement, decisionModule, sql, null, this);
     }
 
     public String nativeSQL(String sql) throws SQLException {
-        return connection.nativeSQL(sql);
+        return physical().nativeSQL(sql);
     }
 
     public void setAutoCommit(boolean autoCommit) throws SQLException {
-        connection.setAutoCommit(autoCommit);
+        try {
+            physical().setAutoCommit(autoCommit);
+        } finally {
+            if (autoCommit) {
+                // включение автоматической фиксации фиксирует транзакцию
+                analyzeDeferredEvents();
+            }
+        }
     }
 
     public boolean getAutoCommit() throws SQLException {
-        return connection.getAutoCommit();
+        return physical().getAutoCommit();
     }
 
+    /**
+     * Зафиксировать транзакцию. Запросы транзакции, анализ которых был
+     * отложен, анализируются одним пакетом.
+     */
     public void commit() throws SQLException {
-        connection.commit();
+        try {
+            physical().commit();
+        } finally {
+            analyzeDeferredEvents();
+        }
     }
 
+    /**
+     * Откатить транзакцию. Данные, выбранные запросами транзакции, уже
+     * переданы приложению, поэтому отложенный анализ всё равно выполняется.
+     */
     public void rollback() throws SQLException {
-        connection.rollback();
-    }
-
+        try {
+            physical().rollback();
+        } finally {
+            analyzeDeferredEvents();
+        }
+    }
+
+    /**
+     * Закрыть соединение. Соединение, полученное из пула, возвращается в пул
+     * вместе с восстановлением исходного состояния; незакрытые запросы,
+     * созданные через обёртку, закрываются. Отложенный анализ запросов
+     * незавершённой транзакции выполняется до закрытия. Повторные вызовы
+     * ничего не делают.
+     */
     public void close() throws SQLException {
-        connection.close();
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            analyzeDeferredEvents();
+        } finally {
+            ConnectionPool currentPool = pool;
+            if (currentPool == null) {
+                connection.close();
+            } else {
+                closeStatements();
+                currentPool.release(poolEntry, fenced);
+            }
+        }
     }
 
     public boolean isClosed() throws SQLException {
-        return connection.isClosed();
+        return closed.get() || connection.isClosed();
     }
 
     public DatabaseMetaData getMetaData() throws SQLException {
-        return connection.getMetaData();
+        return physical().getMetaData();
     }
 
     public void setReadOnly(boolean readOnly) throws SQLException {
-        connection.setReadOnly(readOnly);
+        physical().setReadOnly(readOnly);
     }
 
     public boolean isReadOnly() throws SQLException {
-        return connection.isReadOnly();
+        return physical().isReadOnly();
     }
 
     public void setCatalog(String catalog) throws SQLException {
-        connection.setCatalog(catalog);
+        physical().setCatalog(catalog);
     }
 
     public String getCatalog() throws SQLException {
-        return connection.getCatalog();
+        return physical().getCatalog();
     }
 
     public void setTransactionIsolation(int level) throws SQLException {
-        connection.setTransactionIsolation(level);
+        physical().setTransactionIsolation(level);
     }
 
     public int getTransactionIsolation() throws SQLException {
-        return connection.getTransactionIsolation();
+        return physical().getTransactionIsolation();
     }
 
     public SQLWarning getWarnings() throws SQLException {
-        return connection.getWarnings();
+        return physical().getWarnings();
     }
 
     public void clearWarnings() throws SQLException {
-        connection.clearWarnings();
+        physical().clearWarnings();
     }
 
     public Statement createStatement(int resultSetType, int resultSetConcurrency) throws SQLException {
-        return connection.createStatement(resultSetType, resultSetConcurrency);
+        Statement statement = track(physical().createStatement(resultSetType, resultSetConcurrency));
+        return isExcludedUser() ? statement : new StatementWrapper(statement, decisionModule, null, this);
     }
 
     public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency) throws SQLException {
-        return connection.prepareCall(sql, resultSetType, resultSetConcurrency);
+        CallableStatement statement = track(physical().prepareCall(sql, resultSetType, resultSetConcurrency));
+        return new CallableStatementWrapper(statement, decisionModule, sql, null, this);
     }
 
     public Map<String, Class<?>> getTypeMap() throws SQLException {
-        return connection.getTypeMap();
+        return physical().getTypeMap();
     }
 
     public void setTypeMap(Map<String, Class<?>> map) throws SQLException {
-        connection.setTypeMap(map);
+        physical().setTypeMap(map);
     }
 
     public void setHoldability(int holdability) throws SQLException {
-        connection.setHoldability(holdability);
+        physical().setHoldability(holdability);
     }
 
     public int getHoldability() throws SQLException {
-        return connection.getHoldability();
+        return physical().getHoldability();
     }
 
     public Savepoint setSavepoint() throws SQLException {
-        return connection.setSavepoint();
+        return physical().setSavepoint();
     }
 
     public Savepoint setSavepoint(String name) throws SQLException {
-        return connection.setSavepoint(name);
+        return physical().setSavepoint(name);
     }
 
     public void rollback(Savepoint savepoint) throws SQLException {
-        connection.rollback(savepoint);
+        physical().rollback(savepoint);
     }
 
     public void releaseSavepoint(Savepoint savepoint) throws SQLException {
-        connection.releaseSavepoint(savepoint);
+        physical().releaseSavepoint(savepoint);
     }
 
     public Statement createStatement(int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
-        return connection.createStatement(resultSetType, resultSetConcurrency, resultSetHoldability);
+        Statement statement = track(physical().createStatement(resultSetType, resultSetConcurrency, resultSetHoldability));
+        return isExcludedUser() ? statement : new StatementWrapper(statement, decisionModule, null, this);
     }
 
     public CallableStatement prepareCall(String sql, int resultSetType, int resultSetConcurrency, int resultSetHoldability) throws SQLException {
-        return connection.prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability);
+        CallableStatement statement = track(physical().prepareCall(sql, resultSetType, resultSetConcurrency, resultSetHoldability));
+        return new CallableStatementWrapper(statement, decisionModule, sql, null, this);
     }
 
     public Clob createClob() throws SQLException {
-        return connection.createClob();
+        return physical().createClob();
     }
 
     public Blob createBlob() throws SQLException {
-        return connection.createBlob();
+        return physical().createBlob();
     }
 
     public NClob createNClob() throws SQLException {
-        return connection.createNClob();
+        return physical().createNClob();
     }
 
     public SQLXML createSQLXML() throws SQLException {
-        return connection.createSQLXML();
+        return physical().createSQLXML();
     }
 
     public boolean isValid(int timeout) throws SQLException {
-        return connection.isValid(timeout);
+        return !closed.get() && connection.isValid(timeout);
     }
 
     public void setClientInfo(String name, String value) throws SQLClientInfoException {
+        checkClientInfoOpen();
         connection.setClientInfo(name, value);
     }
 
     public void setClientInfo(Properties properties) throws SQLClientInfoException {
+        checkClientInfoOpen();
         connection.setClientInfo(properties);
     }
 
+    private void checkClientInfoOpen() throws SQLClientInfoException {
+        if (closed.get()) {
+            throw new SQLClientInfoException("Connection is closed", null);
+        }
+    }
+
     public String getClientInfo(String name) throws SQLException {
-        return connection.getClientInfo(name);
+        return physical().getClientInfo(name);
     }
 
     public Properties getClientInfo() throws SQLException {
-        return connection.getClientInfo();
+        return physical().getClientInfo();
     }
 
     public Array createArrayOf(String typeName, Object[] elements) throws SQLException {
-        return connection.createArrayOf(typeName, elements);
+        return physical().createArrayOf(typeName, elements);
     }
 
     public Struct createStruct(String typeName, Object[] attributes) throws SQLException {
-        return connection.createStruct(typeName, attributes);
+        return physical().createStruct(typeName, attributes);
     }
 
     public <T> T unwrap(Class<T> iface) throws SQLException {
-        return connection.unwrap(iface);
+        return physical().unwrap(iface);
     }
 
     public boolean isWrapperFor(Class<?> iface) throws SQLException {
-        return connection.isWrapperFor(iface);
+        return physical().isWrapperFor(iface);
     }
 
     public void setSchema(String schema) throws SQLException {
@@ -17,12 +17,17 @@ package com.grand.ids.jdbc;
 
 import com.grand.ids.decisionmodule.DecisionModule;
 import com.grand.ids.model.Schema;
+import com.grand.ids.model.Table;
 
 import javax.sql.DataSource;
 import java.io.PrintWriter;
 import java.sql.Connection;
 import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
 import java.util.logging.Logger;
 
 /**
@@ -35,6 +40,14 @@ public class DataSourceWrapper implements DataSource, IDSDataSource {
     private DataSource dataSource;
     private DecisionModule decisionModule;
     private ContextProvider contextProvider;
+    /**
+     * Настройки обёрток JDBC-объектов, разделяемые всеми соединениями
+     */
+    private final SensorSettings sensorSettings = new SensorSettings();
+    /**
+     * Каталог имён таблиц и полей базы данных, разделяемый всеми соединениями
+     */
+    private final SchemaCatalog schemaCatalog = new SchemaCatalog();
 
     public DataSourceWrapper(DataSource dataSource, DecisionModule decisionModule,
                              ContextProvider contextProvider) {
@@ -52,12 +65,91 @@ public class DataSourceWrapper implements DataSource, IDSDataSource {
         this.contextProvider = contextProvider;
     }
 
+    public SensorSettings getSensorSettings() {
+        return sensorSettings;
+    }
+
+    public SchemaCatalog getSchemaCatalog() {
+        return schemaCatalog;
+    }
+
+    public boolean isFenceOnAnomaly() {
+        return sensorSettings.isFenceOnAnomaly();
+    }
+
+    public void setFenceOnAnomaly(boolean fenceOnAnomaly) {
+        sensorSettings.setFenceOnAnomaly(fenceOnAnomaly);
+    }
+
+    public boolean isAnalyzeConsumedRowsOnly() {
+        return sensorSettings.isAnalyzeConsumedRowsOnly();
+    }
+
+    public void setAnalyzeConsumedRowsOnly(boolean analyzeConsumedRowsOnly) {
+        sensorSettings.setAnalyzeConsumedRowsOnly(analyzeConsumedRowsOnly);
+    }
+
+    public int getStreamingFetchSize() {
+        return sensorSettings.getStreamingFetchSize();
+    }
+
+    public void setStreamingFetchSize(int streamingFetchSize) {
+        sensorSettings.setStreamingFetchSize(streamingFetchSize);
+    }
+
+    public int getStreamingSampleSize() {
+        return sensorSettings.getStreamingSampleSize();
+    }
+
+    public void setStreamingSampleSize(int streamingSampleSize) {
+        sensorSettings.setStreamingSampleSize(streamingSampleSize);
+    }
+
+    public boolean isDeferTransactionAnalysis() {
+        return sensorSettings.isDeferTransactionAnalysis();
+    }
+
+    public void setDeferTransactionAnalysis(boolean deferTransactionAnalysis) {
+        sensorSettings.setDeferTransactionAnalysis(deferTransactionAnalysis);
+    }
+
+    public IDSMode getMode() {
+        return sensorSettings.getMode();
+    }
+
+    /**
+     * Установить режим работы системы для запросов источника данных. Режим
+     * применяется к уже открытым соединениям без перезапуска приложения.
+     *
+     * @param mode режим работы; null - использовать режим модуля принятия
+     *             решений
+     */
+    public void setMode(IDSMode mode) {
+        sensorSettings.setMode(mode);
+    }
+
+    public Set<String> getObservedTables() {
+        return sensorSettings.getObservedTables();
+    }
+
+    public void setObservedTables(Collection<String> observedTables) {
+        sensorSettings.setObservedTables(observedTables);
+    }
+
+    public Set<String> getExcludedUsers() {
+        return sensorSettings.getExcludedUsers();
+    }
+
+    public void setExcludedUsers(Collection<String> excludedUsers) {
+        sensorSettings.setExcludedUsers(excludedUsers);
+    }
+
     public Connection getConnection() throws SQLException {
-        return new ConnectionWrapper(dataSource.getConnection(), decisionModule, contextProvider);
+        return new ConnectionWrapper(dataSource.getConnection(), decisionModule, contextProvider, sensorSettings, schemaCatalog);
     }
 
     public Connection getConnection(String username, String password) throws SQLException {
-        return new ConnectionWrapper(dataSource.getConnection(username, password), decisionModule, contextProvider);
+        return new ConnectionWrapper(dataSource.getConnection(username, password), decisionModule, contextProvider, sensorSettings, schemaCatalog);
     }
 
     public PrintWriter getLogWriter() throws SQLException {
@@ -84,20 +176,31 @@ public class DataSourceWrapper implements DataSource, IDSDataSource {
         return dataSource.isWrapperFor(iface);
     }
 
-    public void setMode(IDSMode mode) {
-        throw new UnsupportedOperationException("Not supported yet.");
-    }
-
-    public IDSMode getMode() {
-        throw new UnsupportedOperationException("Not supported yet.");
-    }
-
+    /**
+     * Наблюдать только за запросами к таблицам, описанным в схеме
+     * защищаемых объектов (см. {@link #setObservedTables(Collection)}).
+     *
+     * @param schema описание защищаемых объектов базы данных
+     */
     public void setSchema(Schema schema) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        List<String> tableNames = new ArrayList<String>();
+        for (Table table : schema.getTables()) {
+            tableNames.add(table.getName());
+        }
+        sensorSettings.setObservedTables(tableNames);
     }
 
+    /**
+     * Установить провайдер контекста приложения. Провайдер используется
+     * соединениями, полученными после его установки.
+     *
+     * @param contextProvider провайдер контекста приложения
+     */
     public void setContextProvider(ContextProvider contextProvider) {
-        throw new UnsupportedOperationException("Not supported yet.");
+        if (contextProvider == null) {
+            throw new NullPointerException("Context provider object should be not null.");
+        }
+        this.contextProvider = contextProvider;
     }
 
     public Logger getParentLogger() throws SQLFeatureNotSupportedException {
@@ -23,6 +23,9 @@ import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.sql.SQLFeatureNotSupportedException;
+import java.util.Collection;
+import java.util.Properties;
+import java.util.Set;
 import java.util.logging.Logger;
 
 /**
@@ -67,10 +70,198 @@ public class GenericIDSDataSource implements IDSDataSource, DataSource {
      * Провайдер контекста приложения
      */
     protected ContextProvider contextProvider;
+    /**
+     * Настройки обёрток JDBC-объектов, разделяемые всеми соединениями
+     */
+    private final SensorSettings sensorSettings = new SensorSettings();
+    /**
+     * Каталог имён таблиц и полей базы данных, разделяемый всеми соединениями
+     */
+    private final SchemaCatalog schemaCatalog = new SchemaCatalog();
+    /**
+     * Максимальное время установки соединения в секундах; 0 - время,
+     * принятое по умолчанию в системе. Передаётся драйверу в свойствах
+     * соединения (см. {@link #putLoginTimeout(Properties, String, int)})
+     */
+    private int loginTimeout;
+    /**
+     * Использовать ли пул соединений
+     */
+    private boolean pooled;
+    /**
+     * Количество свободных соединений, которое поддерживается в пуле
+     */
+    private int minIdle = 0;
+    /**
+     * Максимальное количество свободных соединений в пуле
+     */
+    private int maxIdle = 8;
+    /**
+     * Время простоя свободного соединения пула в миллисекундах, после
+     * которого оно закрывается (если свободных соединений больше minIdle);
+     * 0 - соединения не закрываются
+     */
+    private long idleTimeout = 600000;
+    /**
+     * Максимальное количество одновременно выданных соединений пула
+     */
+    private int maxActive = 8;
+    /**
+     * Максимальное время ожидания свободного соединения пула в миллисекундах;
+     * отрицательное значение - ожидать без ограничения
+     */
+    private long maxWait = 30000;
+    /**
+     * Проверять ли соединение пула перед выдачей
+     */
+    private boolean validateOnBorrow = true;
+    /**
+     * Время проверки соединения пула в секундах
+     */
+    private int validationTimeout = 5;
+    /**
+     * Пул соединений; создаётся при первом запросе соединения
+     */
+    private volatile ConnectionPool pool;
 
     public GenericIDSDataSource() {
     }
 
+    public SensorSettings getSensorSettings() {
+        return sensorSettings;
+    }
+
+    public SchemaCatalog getSchemaCatalog() {
+        return schemaCatalog;
+    }
+
+    public boolean isFenceOnAnomaly() {
+        return sensorSettings.isFenceOnAnomaly();
+    }
+
+    public void setFenceOnAnomaly(boolean fenceOnAnomaly) {
+        sensorSettings.setFenceOnAnomaly(fenceOnAnomaly);
+    }
+
+    public boolean isAnalyzeConsumedRowsOnly() {
+        return sensorSettings.isAnalyzeConsumedRowsOnly();
+    }
+
+    public void setAnalyzeConsumedRowsOnly(boolean analyzeConsumedRowsOnly) {
+        sensorSettings.setAnalyzeConsumedRowsOnly(analyzeConsumedRowsOnly);
+    }
+
+    public boolean isDeferTransactionAnalysis() {
+        return sensorSettings.isDeferTransactionAnalysis();
+    }
+
+    public void setDeferTransactionAnalysis(boolean deferTransactionAnalysis) {
+        sensorSettings.setDeferTransactionAnalysis(deferTransactionAnalysis);
+    }
+
+    public IDSMode getMode() {
+        return sensorSettings.getMode();
+    }
+
+    /**
+     * Установить режим работы системы для запросов источника данных. Режим
+     * применяется к уже открытым соединениям без перезапуска приложения.
+     *
+     * @param mode режим работы; null - использовать режим модуля принятия
+     *             решений
+     */
+    public void setMode(IDSMode mode) {
+        sensorSettings.setMode(mode);
+    }
+
+    public Set<String> getObservedTables() {
+        return sensorSettings.getObservedTables();
+    }
+
+    public void setObservedTables(Collection<String> observedTables) {
+        sensorSettings.setObservedTables(observedTables);
+    }
+
+    public Set<String> getExcludedUsers() {
+        return sensorSettings.getExcludedUsers();
+    }
+
+    public void setExcludedUsers(Collection<String> excludedUsers) {
+        sensorSettings.setExcludedUsers(excludedUsers);
+    }
+
+    public boolean isPooled() {
+        return pooled;
+    }
+
+    /**
+     * Включить или отключить пул соединений. Настройки пула должны быть
+     * установлены до первого запроса соединения.
+     *
+     * @param pooled true - соединения для установленных имени пользователя и
+     *               пароля выдаются из пула; false - каждый раз
+     *               устанавливается новое соединение
+     */
+    public void setPooled(boolean pooled) {
+        this.pooled = pooled;
+    }
+
+    public int getMinIdle() {
+        return minIdle;
+    }
+
+    public void setMinIdle(int minIdle) {
+        this.minIdle = minIdle;
+    }
+
+    public int getMaxIdle() {
+        return maxIdle;
+    }
+
+    public void setMaxIdle(int maxIdle) {
+        this.maxIdle = maxIdle;
+    }
+
+    public long getIdleTimeout() {
+        return idleTimeout;
+    }
+
+    public void setIdleTimeout(long idleTimeout) {
+        this.idleTimeout = idleTimeout;
+    }
+
+    public int getMaxActive() {
+        return maxActive;
+    }
+
+    public void setMaxActive(int maxActive) {
+        this.maxActive = maxActive;
+    }
+
+    public long getMaxWait() {
+        return maxWait;
+    }
+
+    public void setMaxWait(long maxWait) {
+        this.maxWait = maxWait;
+    }
+
+    public boolean isValidateOnBorrow() {
+        return validateOnBorrow;
+    }
+
+    public void setValidateOnBorrow(boolean validateOnBorrow) {
+        this.validateOnBorrow = validateOnBorrow;
+    }
+
+    public int getValidationTimeout() {
+        return validationTimeout;
+    }
+
+    public void setValidationTimeout(int validationTimeout) {
+        this.validationTimeout = validationTimeout;
+    }
+
     public void setDecisionModule(DecisionModule decisionModule) {
         this.decisionModule = decisionModule;
     }
@@ -130,12 +321,16 @@ public class GenericIDSDataSource implements IDSDataSource, DataSource {
      * @return соединение с базой данных
      */
     public Connection getConnection() throws SQLException {
+        if (pooled) {
+            return getPool().borrow();
+        }
         Connection connection = getConnectionFromDriverManager(url, username, password);
         return getWrappedConnection(connection);
     }
 
     /**
-     * Получение соединения с базой данных для указанных пользователя и пароля
+     * Получение соединения с базой данных для указанных пользователя и пароля.
+     * Такие соединения не выдаются из пула.
      *
      * @param username имя пользователя
      * @param password пароль
@@ -155,37 +350,126 @@ public class GenericIDSDataSource implements IDSDataSource, DataSource {
         this.logWriter = out;
     }
 
+    /**
+     * Задать максимальное количество секунд, которые могут быть потрачены на
+     * установку соединения с базой данных. Время ожидания передаётся драйверу
+     * в свойствах соединения и не влияет на другие источники данных JVM;
+     * для драйверов, кроме MySQL, MariaDB и PostgreSQL, оно не
+     * поддерживается и должно задаваться в URL.
+     *
+     * @param seconds время ожидания; 0 - время, принятое по умолчанию
+     * @throws SQLException
+     */
     public void setLoginTimeout(int seconds) throws SQLException {
-        throw new UnsupportedOperationException("Not supported yet.");
+        this.loginTimeout = seconds;
     }
 
     /**
      * Получить максимальное количество секунд, которые могут быть потрачены на
      * выполнение установки соединения с базой данных.
      *
-     * @return возвращается значение равное 0, что согласно спецификации
+     * @return время ожидания; значение равное 0 согласно спецификации
      * интерфейса DataSource означает, что используется принятое по умолчанию
      * в системе время ожидания.
      * @throws SQLException
      */
     public int getLoginTimeout() throws SQLException {
-        return 0;
+        return loginTimeout;
     }
 
     public <T> T unwrap(Class<T> iface) throws SQLException {
-        throw new UnsupportedOperationException("Not supported yet.");
+        if (iface.isInstance(this)) {
+            return iface.cast(this);
+        }
+        throw new SQLException("Data source is not a wrapper for " + iface.getName());
     }
 
     public boolean isWrapperFor(Class<?> iface) throws SQLException {
-        throw new UnsupportedOperationException("Not supported yet.");
+        return iface.isInstance(this);
+    }
+
+    /**
+     * Закрыть пул соединений. Свободные соединения закрываются сразу,
+     * выданные - при возврате в пул. После закрытия пул создаётся заново при
+     * следующем запросе соединения.
+     */
+    public void close() {
+        ConnectionPool currentPool;
+        synchronized (this) {
+            currentPool = pool;
+            pool = null;
+        }
+        if (currentPool != null) {
+            currentPool.close();
+        }
+    }
+
+    private ConnectionPool getPool() throws SQLException {
+        ConnectionPool currentPool = pool;
+        if (currentPool == null) {
+            synchronized (this) {
+                currentPool = pool;
+                if (currentPool == null) {
+                    currentPool = new ConnectionPool(new ConnectionPool.ConnectionFactory() {
+
+                        public Connection createConnection() throws SQLException {
+                            return getConnectionFromDriverManager(url, username, password);
+                        }
+
+                        public ConnectionWrapper wrapConnection(Connection connection) {
+                            return getWrappedConnection(connection);
+                        }
+                    }, minIdle, maxIdle, idleTimeout, maxActive, maxWait, validateOnBorrow, validationTimeout);
+                    try {
+                        currentPool.fill();
+                    } catch (SQLException ex) {
+                        currentPool.close();
+                        throw ex;
+                    }
+                    pool = currentPool;
+                }
+            }
+        }
+        return currentPool;
     }
 
     private Connection getConnectionFromDriverManager(String url, String userName, String password) throws SQLException {
-        return DriverManager.getConnection(url, userName, password);
+        Properties info = new Properties();
+        if (userName != null) {
+            info.setProperty("user", userName);
+        }
+        if (password != null) {
+            info.setProperty("password", password);
+        }
+        if (loginTimeout > 0) {
+            putLoginTimeout(info, url, loginTimeout);
+        }
+        return DriverManager.getConnection(url, info);
+    }
+
+    /**
+     * Передать драйверу время ожидания установки соединения. Время ожидания
+     * DriverManager.setLoginTimeout() действует на все соединения JVM,
+     * поэтому время задаётся свойством соединения; имя свойства и единицы
+     * измерения зависят от драйвера. Поддерживаются драйверы MySQL, MariaDB
+     * и PostgreSQL; для других драйверов время ожидания задаётся в URL
+     * соединения.
+     *
+     * @param info    свойства соединения
+     * @param url     URL базы данных
+     * @param seconds время ожидания в секундах
+     */
+    private static void putLoginTimeout(Properties info, String url, int seconds) {
+        if (url.startsWith("jdbc:mysql:") || url.startsWith("jdbc:mariadb:")) {
+            info.setProperty("connectTimeout", String.valueOf(seconds * 1000L));
+        } else if (url.startsWith("jdbc:postgresql:")) {
+            info.setProperty("loginTimeout", String.valueOf(seconds));
+            info.setProperty("connectTimeout", String.valueOf(seconds));
+        }
     }
 
-    private Connection getWrappedConnection(Connection connection) {
-        return new ConnectionWrapper(connection, decisionModule, contextProvider);
+    private ConnectionWrapper getWrappedConnection(Connection connection) {
+        return new ConnectionWrapper(connection, decisionModule, contextProvider, sensorSettings, schemaCatalog);
     }
 
     public Logger getParentLogger() throws SQLFeatureNotSupportedException {
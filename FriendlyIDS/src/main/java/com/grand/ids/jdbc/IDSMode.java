@@ -26,18 +26,78 @@ public enum IDSMode {
     /**
      * Результат выполнения запросов никак не обрабатывается.
      */
-    NO_OBSERVATION,
+    NO_OBSERVATION(false, false, false),
     /**
      * Система работает в режиме обучения.
      */
-    LEARNING,
+    LEARNING(false, false, false),
     /**
      * Система работате в "боевом" режиме (производится обнаружение аномалий),
      * при этом также производится и обучение.
      */
-    INTRUSION_DETECTING_WITH_LEARNING,
+    INTRUSION_DETECTING_WITH_LEARNING(false, false, true),
     /**
      * Система работате в "боевом" режиме, однако база знаний не обновляется.
      */
-    INTRUSION_DETECTING_WITHOUT_LEARNING
+    INTRUSION_DETECTING_WITHOUT_LEARNING(false, false, false),
+    /**
+     * Система работает в "боевом" режиме с обучением, однако анализ
+     * результата выполнения запроса производится асинхронно, вне потока,
+     * выполняющего запрос. Результат выполнения запроса возвращается
+     * приложению сразу, блокирование аномальных запросов невозможно.
+     * Результаты, признанные нормальными, добавляются в базу знаний.
+     */
+    ASYNC_DETECTION(true, false, true),
+    /**
+     * То же, что и {@link #ASYNC_DETECTION}, однако база знаний не
+     * обновляется.
+     */
+    ASYNC_DETECTION_WITHOUT_LEARNING(true, false, false),
+    /**
+     * Система работает в "боевом" режиме с обучением, анализ выполняется
+     * асинхронно, а строки результата выполнения запроса передаются
+     * приложению сразу. Если запрос признан аномальным до того, как
+     * приложение закончило чтение результата, то очередной вызов next()
+     * завершается исключением (оптимистичное блокирование). Результаты,
+     * признанные нормальными, добавляются в базу знаний.
+     */
+    OPTIMISTIC_BLOCKING(true, true, true),
+    /**
+     * То же, что и {@link #OPTIMISTIC_BLOCKING}, однако база знаний не
+     * обновляется.
+     */
+    OPTIMISTIC_BLOCKING_WITHOUT_LEARNING(true, true, false);
+
+    private final boolean asynchronous;
+    private final boolean optimisticBlocking;
+    private final boolean learningOnDetection;
+
+    IDSMode(boolean asynchronous, boolean optimisticBlocking, boolean learningOnDetection) {
+        this.asynchronous = asynchronous;
+        this.optimisticBlocking = optimisticBlocking;
+        this.learningOnDetection = learningOnDetection;
+    }
+
+    /**
+     * Выполняется ли анализ асинхронно, рабочими потоками конвейера.
+     */
+    public boolean isAsynchronous() {
+        return asynchronous;
+    }
+
+    /**
+     * Прерывается ли чтение результата запроса, признанного аномальным при
+     * асинхронном анализе.
+     */
+    public boolean isOptimisticBlocking() {
+        return optimisticBlocking;
+    }
+
+    /**
+     * Обновляется ли база знаний по результатам запросов, признанным при
+     * обнаружении аномалий нормальными.
+     */
+    public boolean isLearningOnDetection() {
+        return learningOnDetection;
+    }
 }
@@ -0,0 +1,122 @@
+/*
+ * Copyright 2009-2016 Andrey Grigorov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.grand.ids.jdbc;
+
+import com.grand.ids.decisionmodule.DecisionModule;
+
+import javax.sql.ConnectionEvent;
+import javax.sql.ConnectionEventListener;
+import javax.sql.PooledConnection;
+import javax.sql.StatementEvent;
+import javax.sql.StatementEventListener;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Обёртка над физическим соединением, управляемым пулом. Логические
+ * соединения, выдаваемые методом {@link #getConnection()}, помещаются в
+ * обёртку {@link ConnectionWrapper}. События соединения передаются
+ * слушателям пула от имени обёртки, поскольку пул сопоставляет события
+ * с выданным им объектом PooledConnection.
+ *
+ * @author Andrey Grigorov
+ */
+public class PooledConnectionWrapper implements PooledConnection {
+
+    private final PooledConnection pooledConnection;
+    private final DecisionModule decisionModule;
+    private final ContextProvider contextProvider;
+    private final SensorSettings sensorSettings;
+    private final SchemaCatalog schemaCatalog;
+    private final CopyOnWriteArrayList<ConnectionEventListener> connectionEventListeners =
+            new CopyOnWriteArrayList<ConnectionEventListener>();
+    private final CopyOnWriteArrayList<StatementEventListener> statementEventListeners =
+            new CopyOnWriteArrayList<StatementEventListener>();
+
+    public PooledConnectionWrapper(PooledConnection pooledConnection, DecisionModule decisionModule,
+                                   ContextProvider contextProvider, SensorSettings sensorSettings,
+                                   SchemaCatalog schemaCatalog) {
+        this.pooledConnection = pooledConnection;
+        this.decisionModule = decisionModule;
+        this.contextProvider = contextProvider;
+        this.sensorSettings = sensorSettings;
+        this.schemaCatalog = schemaCatalog;
+        pooledConnection.addConnectionEventListener(new ConnectionEventListener() {
+
+            public void connectionClosed(ConnectionEvent event) {
+                ConnectionEvent wrappedEvent = new ConnectionEvent(PooledConnectionWrapper.this, event.getSQLException());
+                for (ConnectionEventListener listener : connectionEventListeners) {
+                    listener.connectionClosed(wrappedEvent);
+                }
+            }
+
+            public void connectionErrorOccurred(ConnectionEvent event) {
+                ConnectionEvent wrappedEvent = new ConnectionEvent(PooledConnectionWrapper.this, event.getSQLException());
+                for (ConnectionEventListener listener : connectionEventListeners) {
+                    listener.connectionErrorOccurred(wrappedEvent);
+                }
+            }
+        });
+        pooledConnection.addStatementEventListener(new StatementEventListener() {
+
+            public void statementClosed(StatementEvent event) {
+                StatementEvent wrappedEvent = new StatementEvent(PooledConnectionWrapper.this,
+                        event.getStatement(), event.getSQLException());
+                for (StatementEventListener listener : statementEventListeners) {
+                    listener.statementClosed(wrappedEvent);
+                }
+            }
+
+            public void statementErrorOccurred(StatementEvent event) {
+                StatementEvent wrappedEvent = new StatementEvent(PooledConnectionWrapper.this,
+                        event.getStatement(), event.getSQLException());
+                for (StatementEventListener listener : statementEventListeners) {
+                    listener.statementErrorOccurred(wrappedEvent);
+                }
+            }
+        });
+    }
+
+    protected PooledConnection getPooledConnection() {
+        return pooledConnection;
+    }
+
+    public Connection getConnection() throws SQLException {
+        return new ConnectionWrapper(pooledConnection.getConnection(), decisionModule, contextProvider,
+                sensorSettings, schemaCatalog);
+    }
+
+    public void close() throws SQLException {
+        pooledConnection.close();
+    }
+
+    public void addConnectionEventListener(ConnectionEventListener listener) {
+        connectionEventListeners.addIfAbsent(listener);
+    }
+
+    public void removeConnectionEventListener(ConnectionEventListener listener) {
+        connectionEventListeners.remove(listener);
+    }
+
+    public void addStatementEventListener(StatementEventListener listener) {
+        statementEventListeners.addIfAbsent(listener);
+    }
+
+    public void removeStatementEventListener(StatementEventListener listener) {
+        statementEventListeners.remove(listener);
+    }
+}
@@ -16,10 +16,10 @@
 package com.grand.ids.jdbc;
 
 import com.grand.ids.UserId;
-import com.grand.ids.decisionmodule.AnalysisResult;
 import com.grand.ids.decisionmodule.DecisionModule;
 import com.grand.ids.decisionmodule.Event;
-import org.apache.log4j.Logger;
+import com.grand.ids.utils.sql.ParameterValues;
+import com.grand.ids.utils.sql.PreparedSql;
 
 import java.io.InputStream;
 import java.io.Reader;
@@ -27,189 +27,172 @@ import java.math.BigDecimal;
 import java.net.URL;
 import java.sql.*;
 import java.util.Calendar;
-import java.util.HashMap;
-import java.util.Map;
 
 /**
  * Обёртка для класса PreparedStatement.
+ * <p>
+ * Текст запроса разбирается один раз при создании обёртки (разобранные
+ * запросы кэшируются, см. {@link PreparedSql}), а значения параметров
+ * сохраняются в типизированном виде. Текст запроса с подставленными
+ * значениями формируется только тогда, когда он действительно нужен модулю
+ * анализа или журналу аудита.
+ * <p>
+ * Пользователь, от имени которого выполняется запрос, определяется при
+ * каждом выполнении, поэтому обёртка может храниться в кэше подготовленных
+ * запросов пула соединений и использоваться разными пользователями.
  *
  * @author Andrey Grigorov
  */
-public class PreparedStatementWrapper implements PreparedStatement {
+public class PreparedStatementWrapper extends StatementWrapper implements PreparedStatement {
 
-    private final static Logger LOG = Logger.getLogger(PreparedStatementWrapper.class);
     private PreparedStatement preparedStatement;
-    private DecisionModule decisionModule;
-    private String sqlQuery;
-    private UserId userId;
-    private Map<Integer, String> parametersValues = new HashMap<Integer, String>();
+    private final PreparedSql preparedSql;
+    private final ParameterValues parameterValues;
 
     public PreparedStatementWrapper(PreparedStatement preparedStatement,
                                     DecisionModule decisionModule, String sqlQuery,
                                     UserId userId) {
-        this.preparedStatement = preparedStatement;
-        this.decisionModule = decisionModule;
-        this.sqlQuery = sqlQuery;
-        this.userId = userId;
+        this(preparedStatement, decisionModule, sqlQuery, userId, null);
     }
 
-    private ResultSet postProcessResultSet(final ResultSet resultSet) throws SQLException {
-        Event event = new Event(getRealSqlQuery(), userId, resultSet);
-        AnalysisResult analysisResult = decisionModule.analyze(event);
-        if (analysisResult.needBlockAction()) {
-            throw new SQLException("Anomaly query");
-        } else {
-            return resultSet;
-        }
+    public PreparedStatementWrapper(PreparedStatement preparedStatement,
+                                    DecisionModule decisionModule, String sqlQuery,
+                                    UserId userId, ConnectionWrapper connectionWrapper) {
+        super(preparedStatement, decisionModule, userId, connectionWrapper);
+        this.preparedStatement = preparedStatement;
+        this.sqlQuery = sqlQuery;
+        this.preparedSql = PreparedSql.get(sqlQuery);
+        this.parameterValues = new ParameterValues(preparedSql.getParameterCount());
     }
 
-    private String getRealSqlQuery() {
-        String realSqlQuery = sqlQuery;
-        try {
-            int parameterCount = preparedStatement.getParameterMetaData().getParameterCount();
-            for (int i = 1; i <= parameterCount; i++) {
-                if (parametersValues.get(i) != null) {
-                    realSqlQuery = realSqlQuery.replaceFirst("\\?", parametersValues.get(i));
-                } else {
-                    System.out.println("Не удалось установить значение для параметра " + i + " в запросе\n" + sqlQuery);
-                    LOG.warn("Не удалось установить значение для параметра " + i + " в запросе " + sqlQuery);
-                }
-            }
-        } catch (Exception ex) {
-            LOG.error("Не удалось сформировать текст \"реального\" SQL-запроса.", ex);
+    @Override
+    protected Event createEvent(ResultSet resultSet) {
+        if (!preparedSql.getSql().equals(sqlQuery)) {
+            // через обёртку выполнен запрос, переданный в executeQuery(String)
+            return super.createEvent(resultSet);
         }
-        return realSqlQuery;
+        return new Event(preparedSql, parameterValues.copy(), getCurrentUserId(), resultSet, new java.util.Date());
     }
 
     public ResultSet executeQuery() throws SQLException {
+        checkFence();
+        closeCurrentResultSet();
+        sqlQuery = preparedSql.getSql();
+        beginExecution();
         ResultSet resultSet = preparedStatement.executeQuery();
         return postProcessResultSet(resultSet);
     }
 
-    public ResultSet executeQuery(String sql) throws SQLException {
-        sqlQuery = sql;
-        ResultSet resultSet = preparedStatement.executeQuery(sql);
-        return postProcessResultSet(resultSet);
-    }
-
     public int executeUpdate() throws SQLException {
+        closeCurrentResultSet();
         return preparedStatement.executeUpdate();
     }
 
     public void setNull(int parameterIndex, int sqlType) throws SQLException {
         preparedStatement.setNull(parameterIndex, sqlType);
-        parametersValues.put(parameterIndex, "null");
+        parameterValues.setNull(parameterIndex);
     }
 
     public void setBoolean(int parameterIndex, boolean x) throws SQLException {
         preparedStatement.setBoolean(parameterIndex, x);
-        parametersValues.put(parameterIndex, x ? "true" : "false");
+        parameterValues.setBoolean(parameterIndex, x);
     }
 
     public void setByte(int parameterIndex, byte x) throws SQLException {
         preparedStatement.setByte(parameterIndex, x);
-        parametersValues.put(parameterIndex, String.valueOf(x));
+        parameterValues.setLong(parameterIndex, x);
     }
 
     public void setShort(int parameterIndex, short x) throws SQLException {
         preparedStatement.setShort(parameterIndex, x);
-        parametersValues.put(parameterIndex, String.valueOf(x));
+        parameterValues.setLong(parameterIndex, x);
     }
 
     public void setInt(int parameterIndex, int x) throws SQLException {
         preparedStatement.setInt(parameterIndex, x);
-        parametersValues.put(parameterIndex, String.valueOf(x));
+        parameterValues.setLong(parameterIndex, x);
     }
 
     public void setLong(int parameterIndex, long x) throws SQLException {
         preparedStatement.setLong(parameterIndex, x);
-        parametersValues.put(parameterIndex, String.valueOf(x));
+        parameterValues.setLong(parameterIndex, x);
     }
 
     public void setFloat(int parameterIndex, float x) throws SQLException {
         preparedStatement.setFloat(parameterIndex, x);
-        parametersValues.put(parameterIndex, String.valueOf(x));
+        parameterValues.setFloat(parameterIndex, x);
     }
 
     public void setDouble(int parameterIndex, double x) throws SQLException {
         preparedStatement.setDouble(parameterIndex, x);
-        parametersValues.put(parameterIndex, String.valueOf(x));
+        parameterValues.setDouble(parameterIndex, x);
     }
 
     public void setBigDecimal(int parameterIndex, BigDecimal x) throws SQLException {
         preparedStatement.setBigDecimal(parameterIndex, x);
-        parametersValues.put(parameterIndex, x.toString());
+        parameterValues.setObject(parameterIndex, x);
     }
 
     public void setString(int parameterIndex, String x) throws SQLException {
         preparedStatement.setString(parameterIndex, x);
-        parametersValues.put(parameterIndex, "\"" + x + "\"");
+        parameterValues.setString(parameterIndex, x);
     }
 
     public void setBytes(int parameterIndex, byte[] x) throws SQLException {
         preparedStatement.setBytes(parameterIndex, x);
-        StringBuilder value = new StringBuilder("(");
-        for (int i = 0; i < x.length; i++) {
-            if (i > 0) {
-                value.append(",");
-            }
-            value.append(x[i]);
-        }
-        parametersValues.put(parameterIndex, value.toString());
+        parameterValues.setBytes(parameterIndex, x);
     }
 
     public void setDate(int parameterIndex, Date x) throws SQLException {
         preparedStatement.setDate(parameterIndex, x);
+        parameterValues.setObject(parameterIndex, x);
     }
 
     public void setTime(int parameterIndex, Time x) throws SQLException {
         preparedStatement.setTime(parameterIndex, x);
+        parameterValues.setObject(parameterIndex, x);
     }
 
     public void setTimestamp(int parameterIndex, Timestamp x) throws SQLException {
         preparedStatement.setTimestamp(parameterIndex, x);
+        parameterValues.setObject(parameterIndex, x);
     }
 
     public void setAsciiStream(int parameterIndex, InputStream x, int length) throws SQLException {
         preparedStatement.setAsciiStream(parameterIndex, x, length);
+        parameterValues.setStream(parameterIndex);
     }
 
     public void setUnicodeStream(int parameterIndex, InputStream x, int length) throws SQLException {
         preparedStatement.setUnicodeStream(parameterIndex, x, length);
+        parameterValues.setStream(parameterIndex);
     }
 
     public void setBinaryStream(int parameterIndex, InputStream x, int length) throws SQLException {
         preparedStatement.setBinaryStream(parameterIndex, x, length);
+        parameterValues.setStream(parameterIndex);
     }
 
     public void clearParameters() throws SQLException {
         preparedStatement.clearParameters();
-        parametersValues.clear();
+        parameterValues.clear();
     }
 
     public void setObject(int parameterIndex, Object x, int targetSqlType) throws SQLException {
-        if (x == null) {
-            parametersValues.put(parameterIndex, "null");
-        } else if (x instanceof String) {
-            parametersValues.put(parameterIndex, "\"" + x + "\"");
-        } else {
-            parametersValues.put(parameterIndex, String.valueOf(x));
-        }
+        parameterValues.setObject(parameterIndex, x);
         preparedStatement.setObject(parameterIndex, x, targetSqlType);
     }
 
     public void setObject(int parameterIndex, Object x) throws SQLException {
-        if (x == null) {
-            parametersValues.put(parameterIndex, "null");
-        } else if (x instanceof String) {
-            parametersValues.put(parameterIndex, "\"" + x + "\"");
-        } else {
-            parametersValues.put(parameterIndex, String.valueOf(x));
-        }
+        parameterValues.setObject(parameterIndex, x);
         preparedStatement.setObject(parameterIndex, x);
     }
 
     public boolean execute() throws SQLException {
+        checkFence();
+        closeCurrentResultSet();
+        sqlQuery = preparedSql.getSql();
+        beginExecution();
         return preparedStatement.execute();
     }
 
@@ -219,22 +202,27 @@ public class PreparedStatementWrapper implements PreparedStatement {
 
     public void setCharacterStream(int parameterIndex, Reader reader, int length) throws SQLException {
         preparedStatement.setCharacterStream(parameterIndex, reader, length);
+        parameterValues.setStream(parameterIndex);
     }
 
     public void setRef(int parameterIndex, Ref x) throws SQLException {
         preparedStatement.setRef(parameterIndex, x);
+        parameterValues.setObject(parameterIndex, x);
     }
 
     public void setBlob(int parameterIndex, Blob x) throws SQLException {
         preparedStatement.setBlob(parameterIndex, x);
+        parameterValues.setStream(parameterIndex);
     }
 
     public void setClob(int parameterIndex, Clob x) throws SQLException {
         preparedStatement.setClob(parameterIndex, x);
+        parameterValues.setStream(parameterIndex);
     }
 
     public void setArray(int parameterIndex, Array x) throws SQLException {
         preparedStatement.setArray(parameterIndex, x);
+        parameterValues.setObject(parameterIndex, x);
     }
 
     public ResultSetMetaData getMetaData() throws SQLException {
@@ -243,24 +231,27 @@ public class PreparedStatementWrapper implements PreparedStatement {
 
     public void setDate(int parameterIndex, Date x, Calendar cal) throws SQLException {
         preparedStatement.setDate(parameterIndex, x, cal);
+        parameterValues.setObject(parameterIndex, x);
     }
 
     public void setTime(int parameterIndex, Time x, Calendar cal) throws SQLException {
         preparedStatement.setTime(parameterIndex, x, cal);
+        parameterValues.setObject(parameterIndex, x);
     }
 
     public void setTimestamp(int parameterIndex, Timestamp x, Calendar cal) throws SQLException {
         preparedStatement.setTimestamp(parameterIndex, x, cal);
+        parameterValues.setObject(parameterIndex, x);
     }
 
     public void setNull(int parameterIndex, int sqlType, String typeName) throws SQLException {
         preparedStatement.setNull(parameterIndex, sqlType, typeName);
-        parametersValues.put(parameterIndex, "null");
+        parameterValues.setNull(parameterIndex);
     }
 
     public void setURL(int parameterIndex, URL x) throws SQLException {
         preparedStatement.setURL(parameterIndex, x);
-        parametersValues.put(parameterIndex, "\"" + x.toString() + "\"");
+        parameterValues.setString(parameterIndex, x == null ? null : x.toString());
     }
 
     public ParameterMetaData getParameterMetaData() throws SQLException {
@@ -269,257 +260,96 @@ public class PreparedStatementWrapper implements PreparedStatement {
 
     public void setRowId(int parameterIndex, RowId x) throws SQLException {
         preparedStatement.setRowId(parameterIndex, x);
+        parameterValues.setObject(parameterIndex, x);
     }
 
     public void setNString(int parameterIndex, String value) throws SQLException {
         preparedStatement.setNString(parameterIndex, value);
-        parametersValues.put(parameterIndex, "\"" + value + "\"");
+        parameterValues.setString(parameterIndex, value);
     }
 
     public void setNCharacterStream(int parameterIndex, Reader value, long length) throws SQLException {
         preparedStatement.setNCharacterStream(parameterIndex, value, length);
+        parameterValues.setStream(parameterIndex);
     }
 
     public void setNClob(int parameterIndex, NClob value) throws SQLException {
         preparedStatement.setNClob(parameterIndex, value);
+        parameterValues.setStream(parameterIndex);
     }
 
     public void setClob(int parameterIndex, Reader reader, long length) throws SQLException {
         preparedStatement.setClob(parameterIndex, reader, length);
+        parameterValues.setStream(parameterIndex);
     }
 
     public void setBlob(int parameterIndex, InputStream inputStream, long length) throws SQLException {
         preparedStatement.setBlob(parameterIndex, inputStream, length);
+        parameterValues.setStream(parameterIndex);
     }
 
     public void setNClob(int parameterIndex, Reader reader, long length) throws SQLException {
         preparedStatement.setNClob(parameterIndex, reader, length);
+        parameterValues.setStream(parameterIndex);
     }
 
     public void setSQLXML(int parameterIndex, SQLXML xmlObject) throws SQLException {
         preparedStatement.setSQLXML(parameterIndex, xmlObject);
+        parameterValues.setStream(parameterIndex);
     }
 
     public void setObject(int parameterIndex, Object x, int targetSqlType, int scaleOrLength) throws SQLException {
-        if (x == null) {
-            parametersValues.put(parameterIndex, "null");
-        } else if (x instanceof String) {
-            parametersValues.put(parameterIndex, "\"" + x + "\"");
-        } else {
-            parametersValues.put(parameterIndex, String.valueOf(x));
-        }
+        parameterValues.setObject(parameterIndex, x);
         preparedStatement.setObject(parameterIndex, x, targetSqlType, scaleOrLength);
     }
 
     public void setAsciiStream(int parameterIndex, InputStream x, long length) throws SQLException {
         preparedStatement.setAsciiStream(parameterIndex, x, length);
+        parameterValues.setStream(parameterIndex);
     }
 
     public void setBinaryStream(int parameterIndex, InputStream x, long length) throws SQLException {
         preparedStatement.setBinaryStream(parameterIndex, x, length);
+        parameterValues.setStream(parameterIndex);
     }
 
     public void setCharacterStream(int parameterIndex, Reader reader, long length) throws SQLException {
         preparedStatement.setCharacterStream(parameterIndex, reader, length);
+        parameterValues.setStream(parameterIndex);
     }
 
     public void setAsciiStream(int parameterIndex, InputStream x) throws SQLException {
         preparedStatement.setAsciiStream(parameterIndex, x);
+        parameterValues.setStream(parameterIndex);
     }
 
     public void setBinaryStream(int parameterIndex, InputStream x) throws SQLException {
         preparedStatement.setBinaryStream(parameterIndex, x);
+        parameterValues.setStream(parameterIndex);
     }
 
     public void setCharacterStream(int parameterIndex, Reader reader) throws SQLException {
         preparedStatement.setCharacterStream(parameterIndex, reader);
+        parameterValues.setStream(parameterIndex);
     }
 
     public void setNCharacterStream(int parameterIndex, Reader value) throws SQLException {
         preparedStatement.setNCharacterStream(parameterIndex, value);
+        parameterValues.setStream(parameterIndex);
     }
 
     public void setClob(int parameterIndex, Reader reader) throws SQLException {
         preparedStatement.setClob(parameterIndex, reader);
+        parameterValues.setStream(parameterIndex);
     }
 
     public void setBlob(int parameterIndex, InputStream inputStream) throws SQLException {
         preparedStatement.setBlob(parameterIndex, inputStream);
+        parameterValues.setStream(parameterIndex);
     }
 
     public void setNClob(int parameterIndex, Reader reader) throws SQLException {
         preparedStatement.setNClob(parameterIndex, reader);
-    }
-
-    public int executeUpdate(String sql) throws SQLException {
-        return preparedStatement.executeUpdate(sql);
-    }
-
-    public void close() throws SQLException {
-        preparedStatement.close();
-    }
-
-    public int getMaxFieldSize() throws SQLException {
-        return preparedStatement.getMaxFieldSize();
-    }
-
-    public void setMaxFieldSize(int max) throws SQLException {
-        preparedStatement.setMaxFieldSize(max);
-    }
-
-    public int getMaxRows() throws SQLException {
-        return preparedStatement.getMaxRows();
-    }
-
-    public void setMaxRows(int max) throws SQLException {
-        preparedStatement.setMaxRows(max);
-    }
-
-    public void setEscapeProcessing(boolean enable) throws SQLException {
-        preparedStatement.setEscapeProcessing(enable);
-    }
-
-    public int getQueryTimeout() throws SQLException {
-        return preparedStatement.getQueryTimeout();
-    }
-
-    public void setQueryTimeout(int seconds) throws SQLException {
-        preparedStatement.setQueryTimeout(seconds);
-    }
-
-    public void cancel() throws SQLException {
-        preparedStatement.cancel();
-    }
-
-    public SQLWarning getWarnings() throws SQLException {
-        return preparedStatement.getWarnings();
-    }
-
-    public void clearWarnings() throws SQLException {
-        preparedStatement.clearWarnings();
-    }
-
-    public void setCursorName(String name) throws SQLException {
-        preparedStatement.setCursorName(name);
-    }
-
-    public boolean execute(String sql) throws SQLException {
-        return preparedStatement.execute(sql);
-    }
-
-    public ResultSet getResultSet() throws SQLException {
-        return preparedStatement.getResultSet();
-    }
-
-    public int getUpdateCount() throws SQLException {
-        return preparedStatement.getUpdateCount();
-    }
-
-    public boolean getMoreResults() throws SQLException {
-        return preparedStatement.getMoreResults();
-    }
-
-    public void setFetchDirection(int direction) throws SQLException {
-        preparedStatement.setFetchDirection(direction);
-    }
-
-    public int getFetchDirection() throws SQLException {
-        return preparedStatement.getFetchDirection();
-    }
-
-    public void setFetchSize(int rows) throws SQLException {
-        preparedStatement.setFetchSize(rows);
-    }
-
-    public int getFetchSize() throws SQLException {
-        return preparedStatement.getFetchSize();
-    }
-
-    public int getResultSetConcurrency() throws SQLException {
-        return preparedStatement.getResultSetConcurrency();
-    }
-
-    public int getResultSetType() throws SQLException {
-        return preparedStatement.getResultSetType();
-    }
-
-    public void addBatch(String sql) throws SQLException {
-        preparedStatement.addBatch(sql);
-    }
-
-    public void clearBatch() throws SQLException {
-        preparedStatement.clearBatch();
-    }
-
-    public int[] executeBatch() throws SQLException {
-        return preparedStatement.executeBatch();
-    }
-
-    public Connection getConnection() throws SQLException {
-        return preparedStatement.getConnection();
-    }
-
-    public boolean getMoreResults(int current) throws SQLException {
-        return preparedStatement.getMoreResults(current);
-    }
-
-    public ResultSet getGeneratedKeys() throws SQLException {
-        return preparedStatement.getGeneratedKeys();
-    }
-
-    public int executeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
-        return preparedStatement.executeUpdate(sql, autoGeneratedKeys);
-    }
-
-    public int executeUpdate(String sql, int[] columnIndexes) throws SQLException {
-        return preparedStatement.executeUpdate(sql, columnIndexes);
-    }
-
-    public int executeUpdate(String sql, String[] columnNames) throws SQLException {
-        return preparedStatement.executeUpdate(sql, columnNames);
-    }
-
-    public boolean execute(String sql, int autoGeneratedKeys) throws SQLException {
-        return preparedStatement.execute(sql, autoGeneratedKeys);
-    }
-
-    public boolean execute(String sql, int[] columnIndexes) throws SQLException {
-        return preparedStatement.execute(sql, columnIndexes);
-    }
-
-    public boolean execute(String sql, String[] columnNames) throws SQLException {
-        return preparedStatement.execute(sql, columnNames);
-    }
-
-    public int getResultSetHoldability() throws SQLException {
-        return preparedStatement.getResultSetHoldability();
-    }
-
-    public boolean isClosed() throws SQLException {
-        return preparedStatement.isClosed();
-    }
-
-    public void setPoolable(boolean poolable) throws SQLException {
-        preparedStatement.setPoolable(poolable);
-    }
-
-    public boolean isPoolable() throws SQLException {
-        return preparedStatement.isPoolable();
-    }
-
-    public <T> T unwrap(Class<T> iface) throws SQLException {
-        return preparedStatement.unwrap(iface);
-    }
-
-    public boolean isWrapperFor(Class<?> iface) throws SQLException {
-        return preparedStatement.isWrapperFor(iface);
-    }
-
-    public void closeOnCompletion() throws SQLException {
-        preparedStatement.closeOnCompletion();
-    }
-
-    public boolean isCloseOnCompletion() throws SQLException {
-        return preparedStatement.isCloseOnCompletion();
+        parameterValues.setStream(parameterIndex);
     }
 }
@@ -0,0 +1,395 @@
+/*
+ * Copyright 2009-2016 Andrey Grigorov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.grand.ids.jdbc;
+
+import com.grand.ids.decisionmodule.AnalysisResult;
+import com.grand.ids.decisionmodule.DecisionModule;
+import com.grand.ids.decisionmodule.Event;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.BitSet;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Обёртка для результата выполнения запроса, передаваемая приложению.
+ * <p>
+ * Если приложение запросило потоковую выборку (см.
+ * {@link SensorSettings#isStreamingFetch(int)}), то обёртка читает курсор
+ * драйвера по мере того, как приложение вызывает next(), и хранит в памяти
+ * только текущую строку. Для анализа по мере чтения формируется равновероятная
+ * выборка строк ограниченного размера
+ * ({@link SensorSettings#getStreamingSampleSize()}), а решение об
+ * аномальности запроса принимается по этой выборке, когда курсор исчерпан
+ * или закрыт.
+ * <p>
+ * Такой режим позволяет работать с потоковой выборкой (курсоры с заданным
+ * fetchSize в MySQL и PostgreSQL), при которой драйвер не допускает возврата
+ * курсора в начало, а приложение начинает получать строки до окончания
+ * выборки. Курсор обёртки в этом режиме допускает только перемещение вперёд.
+ * Обратной стороной является то, что при обнаружении аномалии часть строк
+ * уже передана приложению: исключение выбрасывается из того вызова next()
+ * или close(), на котором завершился анализ.
+ * <p>
+ * Если анализ выполняется асинхронно (режим
+ * {@link IDSMode#OPTIMISTIC_BLOCKING}), то строки также передаются
+ * приложению без ожидания вердикта, а при каждом вызове next() проверяется,
+ * не был ли запрос к этому моменту признан аномальным. Чтение прерывается и
+ * в том случае, если соединение ограждено после другого аномального запроса.
+ * <p>
+ * Если включен анализ только прочитанных строк
+ * ({@link SensorSettings#isAnalyzeConsumedRowsOnly()}), то обёртка
+ * запоминает строки, на которые приложение устанавливало курсор, и анализ
+ * выполняется при закрытии курсора (или по достижении его конца) только для
+ * этих строк. Так постраничный просмотр больших выборок не приводит к
+ * построению графа по всем выбранным записям, а вердикт соответствует тому,
+ * что действительно было раскрыто приложению.
+ *
+ * @author Andrey Grigorov
+ */
+public class ResultSetWrapper extends CapturingResultSet {
+
+    private final ResultSet resultSet;
+    private final DecisionModule decisionModule;
+    /**
+     * Событие безопасности без результата выполнения запроса; результат
+     * подставляется при анализе
+     */
+    private final Event event;
+    private final ConnectionWrapper connectionWrapper;
+    /**
+     * Строки, на которые приложение устанавливало курсор; null - анализу
+     * подлежат все строки
+     */
+    private final BitSet consumedRows;
+    /**
+     * Выборка строк потокового результата, передаваемая модулю принятия
+     * решений; null - результат считан полностью
+     */
+    private final CapturingResultSet sample;
+    private final int sampleSize;
+    /**
+     * Количество строк, полученных от драйвера при потоковом чтении
+     */
+    private long streamedRowCount;
+    private AnalysisResult analysisResult;
+    private boolean exhausted;
+    private boolean analyzed;
+
+    /**
+     * Создать обёртку, читающую курсор драйвера постепенно.
+     *
+     * @param resultSet         курсор драйвера
+     * @param decisionModule    модуль принятия решений
+     * @param event             событие безопасности, описывающее выполненный
+     *                          запрос
+     * @param connectionWrapper соединение, через которое выполнен запрос; может
+     *                          быть равно null
+     * @throws SQLException
+     */
+    public ResultSetWrapper(ResultSet resultSet, DecisionModule decisionModule, Event event,
+                            ConnectionWrapper connectionWrapper) throws SQLException {
+        this(resultSet, resultSet.getStatement(), decisionModule, event, connectionWrapper);
+    }
+
+    /**
+     * Создать обёртку, читающую курсор драйвера постепенно.
+     *
+     * @param resultSet         курсор драйвера
+     * @param statement         запрос, через который приложение получило
+     *                          результат (см. {@link #getStatement()})
+     * @param decisionModule    модуль принятия решений
+     * @param event             событие безопасности, описывающее выполненный
+     *                          запрос
+     * @param connectionWrapper соединение, через которое выполнен запрос; может
+     *                          быть равно null
+     * @throws SQLException
+     */
+    public ResultSetWrapper(ResultSet resultSet, Statement statement, DecisionModule decisionModule, Event event,
+                            ConnectionWrapper connectionWrapper) throws SQLException {
+        super(resultSet.getMetaData(), statement, resultSet.getStatement());
+        this.resultSet = resultSet;
+        this.decisionModule = decisionModule;
+        this.event = event;
+        this.connectionWrapper = connectionWrapper;
+        // каждая полученная от драйвера строка прочитана приложением
+        this.consumedRows = null;
+        this.sample = createEmptyCopy();
+        this.sampleSize = connectionWrapper != null
+                ? connectionWrapper.getSensorSettings().getStreamingSampleSize()
+                : SensorSettings.DEFAULT_STREAMING_SAMPLE_SIZE;
+        readDriverState(resultSet);
+    }
+
+    /**
+     * Создать обёртку над уже считанным результатом, анализ которого
+     * откладывается до закрытия курсора или достижения его конца.
+     *
+     * @param resultSet         считанный результат выполнения запроса
+     * @param decisionModule    модуль принятия решений
+     * @param event             событие безопасности, описывающее выполненный
+     *                          запрос
+     * @param connectionWrapper соединение, через которое выполнен запрос; может
+     *                          быть равно null
+     */
+    public ResultSetWrapper(CapturingResultSet resultSet, DecisionModule decisionModule, Event event,
+                            ConnectionWrapper connectionWrapper) {
+        super(resultSet);
+        this.resultSet = null;
+        this.decisionModule = decisionModule;
+        this.event = event;
+        this.connectionWrapper = connectionWrapper;
+        this.consumedRows = createConsumedRows(connectionWrapper);
+        this.sample = null;
+        this.sampleSize = 0;
+        this.exhausted = true;
+    }
+
+    /**
+     * Создать обёртку над уже считанным результатом, анализ которого уже
+     * начат.
+     *
+     * @param resultSet         считанный результат выполнения запроса
+     * @param analysisResult    результат анализа (возможно, ещё не завершённого)
+     * @param connectionWrapper соединение, через которое выполнен запрос; может
+     *                          быть равно null
+     */
+    public ResultSetWrapper(CapturingResultSet resultSet, AnalysisResult analysisResult,
+                            ConnectionWrapper connectionWrapper) {
+        super(resultSet);
+        this.resultSet = null;
+        this.decisionModule = null;
+        this.event = null;
+        this.connectionWrapper = connectionWrapper;
+        this.consumedRows = null;
+        this.sample = null;
+        this.sampleSize = 0;
+        this.analysisResult = analysisResult;
+        this.exhausted = true;
+        this.analyzed = true;
+    }
+
+    private static BitSet createConsumedRows(ConnectionWrapper connectionWrapper) {
+        if (connectionWrapper != null && connectionWrapper.getSensorSettings().isAnalyzeConsumedRowsOnly()) {
+            return new BitSet();
+        }
+        return null;
+    }
+
+    /**
+     * Запомнить, что приложение установило курсор на текущую строку.
+     */
+    private boolean markConsumed(boolean onRow) throws SQLException {
+        if (onRow && consumedRows != null) {
+            consumedRows.set(getRow() - 1);
+        }
+        return onRow;
+    }
+
+    @Override
+    public boolean next() throws SQLException {
+        checkBlockAction();
+        return markConsumed(super.next());
+    }
+
+    @Override
+    public boolean previous() throws SQLException {
+        checkScrollable();
+        return markConsumed(super.previous());
+    }
+
+    /**
+     * Проверить, что курсор допускает перемещение назад и в произвольную
+     * строку: строки потокового результата не сохраняются.
+     *
+     * @throws SQLException курсор допускает только перемещение вперёд
+     */
+    private void checkScrollable() throws SQLException {
+        if (sample != null) {
+            throw new SQLException("Result set type is TYPE_FORWARD_ONLY");
+        }
+    }
+
+    /**
+     * Прервать чтение, если запрос признан аномальным или соединение
+     * ограждено.
+     *
+     * @throws SQLException чтение результата запрещено
+     */
+    private void checkBlockAction() throws SQLException {
+        if (analysisResult != null && analysisResult.needBlockAction()) {
+            close();
+            throw new SQLException("Anomaly query");
+        }
+        if (connectionWrapper != null) {
+            try {
+                connectionWrapper.checkFence();
+            } catch (SQLException ex) {
+                close();
+                throw ex;
+            }
+        }
+    }
+
+    @Override
+    protected void fetchNextRow() throws SQLException {
+        if (isClosed()) {
+            return;
+        }
+        if (!exhausted) {
+            // строка, уже переданная приложению, больше не нужна
+            discardRows();
+            if (resultSet.next()) {
+                appendRow(resultSet);
+                sampleRow();
+                return;
+            }
+            exhausted = true;
+            readDriverState(resultSet);
+            // курсор драйвера освобождается до анализа: при потоковой выборке
+            // драйвер не позволяет выполнять другие запросы через то же
+            // соединение, пока курсор открыт
+            resultSet.close();
+        }
+        analyze();
+    }
+
+    /**
+     * Добавить полученную от драйвера строку в выборку для анализа (алгоритм
+     * R): первые sampleSize строк сохраняются, а каждая следующая заменяет
+     * случайную строку выборки с вероятностью sampleSize / streamedRowCount.
+     */
+    private void sampleRow() {
+        streamedRowCount++;
+        int sampledRowCount = sample.getRowCount();
+        if (sampledRowCount < sampleSize) {
+            copyRow(0, sample, sampledRowCount);
+        } else {
+            long index = ThreadLocalRandom.current().nextLong(streamedRowCount);
+            if (index < sampleSize) {
+                copyRow(0, sample, (int) index);
+            }
+        }
+    }
+
+    /**
+     * Передать считанные строки модулю принятия решений. Анализ выполняется
+     * один раз, при повторных вызовах метод ничего не делает.
+     *
+     * @throws SQLException запрос признан аномальным
+     */
+    private void analyze() throws SQLException {
+        if (analyzed) {
+            return;
+        }
+        analyzed = true;
+        CapturingResultSet analyzedRows;
+        if (sample != null) {
+            sample.setSourceRowCount((int) Math.min(streamedRowCount, Integer.MAX_VALUE));
+            analyzedRows = sample;
+        } else {
+            analyzedRows = consumedRows == null ? duplicate() : select(consumedRows);
+        }
+        Event analyzedEvent = new Event(event, analyzedRows);
+        if (connectionWrapper != null && connectionWrapper.defer(analyzedEvent)) {
+            // запрос будет проанализирован при завершении транзакции
+            analysisResult = new AnalysisResult(false);
+            return;
+        }
+        analysisResult = decisionModule.analyze(analyzedEvent);
+        if (connectionWrapper != null) {
+            connectionWrapper.watch(analysisResult);
+        }
+        if (analysisResult.needBlockAction()) {
+            close();
+            throw new SQLException("Anomaly query");
+        }
+    }
+
+    @Override
+    public void close() throws SQLException {
+        if (isClosed()) {
+            return;
+        }
+        try {
+            if (resultSet != null) {
+                resultSet.close();
+            }
+        } finally {
+            super.close();
+        }
+        // приложение прекратило чтение досрочно - анализируются
+        // уже полученные строки
+        analyze();
+    }
+
+    @Override
+    public int getRow() throws SQLException {
+        int row = super.getRow();
+        if (sample == null || row == 0) {
+            return row;
+        }
+        return (int) Math.min(streamedRowCount, Integer.MAX_VALUE);
+    }
+
+    @Override
+    public boolean isFirst() throws SQLException {
+        boolean first = super.isFirst();
+        return sample == null ? first : first && streamedRowCount == 1;
+    }
+
+    @Override
+    public boolean isAfterLast() throws SQLException {
+        boolean afterLast = super.isAfterLast();
+        return sample == null ? afterLast : exhausted && streamedRowCount > 0;
+    }
+
+    @Override
+    public boolean isLast() throws SQLException {
+        checkScrollable();
+        return super.isLast();
+    }
+
+    @Override
+    public void beforeFirst() throws SQLException {
+        checkScrollable();
+        super.beforeFirst();
+    }
+
+    @Override
+    public void afterLast() throws SQLException {
+        checkScrollable();
+        super.afterLast();
+    }
+
+    @Override
+    public boolean absolute(int row) throws SQLException {
+        checkScrollable();
+        return markConsumed(super.absolute(row));
+    }
+
+    @Override
+    public boolean relative(int rows) throws SQLException {
+        checkScrollable();
+        return markConsumed(super.relative(rows));
+    }
+
+    @Override
+    public int getType() throws SQLException {
+        return sample != null ? TYPE_FORWARD_ONLY : super.getType();
+    }
+}
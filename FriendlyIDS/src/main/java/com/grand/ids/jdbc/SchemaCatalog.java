@@ -0,0 +1,225 @@
+/*
+ * Copyright 2009-2016 Andrey Grigorov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.grand.ids.jdbc;
+
+import org.apache.log4j.Logger;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Каталог имён таблиц и полей базы данных, доступной через один источник
+ * данных. Список таблиц считывается из метаданных базы данных при первом
+ * обращении, списки полей - при первом обращении к таблице. Поиск имён не
+ * зависит от регистра; имена хранятся в верхнем регистре в виде
+ * интернированных строк.
+ * <p>
+ * Каталог потокобезопасен: таблица имён заменяется целиком, поэтому чтение
+ * выполняется без блокировок. После изменения структуры базы данных каталог
+ * следует обновить методами {@link #refresh()} или {@link #invalidate(String)}.
+ *
+ * @author Andrey Grigorov
+ */
+public class SchemaCatalog {
+
+    private final static Logger LOG = Logger.getLogger(SchemaCatalog.class);
+
+    /**
+     * Каталоги соединений, полученных не через источники данных IDS; ключом
+     * служит URL базы данных и имя пользователя
+     */
+    private final static ConcurrentMap<String, SchemaCatalog> UNMANAGED_CATALOGS =
+            new ConcurrentHashMap<String, SchemaCatalog>();
+
+    /**
+     * Таблицы базы данных: имя в верхнем регистре - список полей (null, если
+     * поля ещё не считаны). Null, если список таблиц ещё не считан.
+     */
+    private volatile Map<String, TableEntry> tables;
+    private final Object loadLock = new Object();
+
+    /**
+     * Получить каталог базы данных, с которой установлено соединение.
+     * Соединения, полученные через источники данных IDS, используют каталог
+     * своего источника данных.
+     *
+     * @param connection соединение с базой данных
+     * @return каталог
+     * @throws SQLException ошибка при получении метаданных соединения
+     */
+    public static SchemaCatalog of(Connection connection) throws SQLException {
+        if (connection instanceof ConnectionWrapper) {
+            return ((ConnectionWrapper) connection).getSchemaCatalog();
+        }
+        DatabaseMetaData metaData = connection.getMetaData();
+        String key = metaData.getURL() + "\u0000" + metaData.getUserName();
+        SchemaCatalog catalog = UNMANAGED_CATALOGS.get(key);
+        if (catalog == null) {
+            SchemaCatalog newCatalog = new SchemaCatalog();
+            catalog = UNMANAGED_CATALOGS.putIfAbsent(key, newCatalog);
+            if (catalog == null) {
+                catalog = newCatalog;
+            }
+        }
+        return catalog;
+    }
+
+    /**
+     * Проверка существования в БД таблицы или представления с указанным именем.
+     *
+     * @param connection соединение, через которое считываются метаданные,
+     *                   если они ещё не загружены
+     * @param tableName  имя таблицы
+     * @return true - таблица существует; false - таблица не существует или
+     * список таблиц не удалось получить
+     */
+    public boolean containsTable(Connection connection, String tableName) {
+        if (tableName == null) {
+            return false;
+        }
+        Map<String, TableEntry> current = getTables(connection);
+        return current != null && current.containsKey(tableName.toUpperCase());
+    }
+
+    /**
+     * Проверка существования в таблице поля с указанным именем.
+     *
+     * @param connection соединение, через которое считываются метаданные,
+     *                   если они ещё не загружены
+     * @param tableName  имя таблицы
+     * @param columnName имя поля
+     * @return true - поле существует; false - поле или таблица не существуют
+     * либо метаданные не удалось получить
+     */
+    public boolean containsColumn(Connection connection, String tableName, String columnName) {
+        if (tableName == null || columnName == null) {
+            return false;
+        }
+        Map<String, TableEntry> current = getTables(connection);
+        TableEntry entry = current != null ? current.get(tableName.toUpperCase()) : null;
+        if (entry == null) {
+            return false;
+        }
+        Set<String> columns = entry.getColumns(connection);
+        return columns != null && columns.contains(columnName.toUpperCase());
+    }
+
+    /**
+     * Удалить из каталога все сведения; они будут заново считаны при
+     * следующем обращении.
+     */
+    public void refresh() {
+        synchronized (loadLock) {
+            tables = null;
+        }
+    }
+
+    /**
+     * Удалить из каталога список полей таблицы; он будет заново считан при
+     * следующем обращении к таблице.
+     *
+     * @param tableName имя таблицы
+     */
+    public void invalidate(String tableName) {
+        Map<String, TableEntry> current = tables;
+        if (current != null && tableName != null) {
+            TableEntry entry = current.get(tableName.toUpperCase());
+            if (entry != null) {
+                entry.columns = null;
+            }
+        }
+    }
+
+    private Map<String, TableEntry> getTables(Connection connection) {
+        Map<String, TableEntry> current = tables;
+        if (current != null) {
+            return current;
+        }
+        synchronized (loadLock) {
+            if (tables == null) {
+                try {
+                    Map<String, TableEntry> loaded = new HashMap<String, TableEntry>();
+                    ResultSet resultSet = connection.getMetaData().getTables(null, null, "", new String[]{"TABLE", "VIEW"});
+                    try {
+                        while (resultSet.next()) {
+                            String tableName = resultSet.getString("TABLE_NAME");
+                            loaded.put(intern(tableName), new TableEntry(tableName));
+                        }
+                    } finally {
+                        resultSet.close();
+                    }
+                    tables = Collections.unmodifiableMap(loaded);
+                } catch (SQLException ex) {
+                    // неудачная попытка не запоминается
+                    LOG.debug("Не удалось получить список таблиц базы данных", ex);
+                }
+            }
+            return tables;
+        }
+    }
+
+    private static String intern(String name) {
+        return name.toUpperCase().intern();
+    }
+
+    /**
+     * Сведения о таблице базы данных.
+     */
+    private final static class TableEntry {
+
+        final String name;
+        volatile Set<String> columns;
+
+        TableEntry(String name) {
+            this.name = name;
+        }
+
+        Set<String> getColumns(Connection connection) {
+            Set<String> current = columns;
+            if (current != null) {
+                return current;
+            }
+            synchronized (this) {
+                if (columns == null) {
+                    try {
+                        Set<String> loaded = new HashSet<String>();
+                        ResultSet resultSet = connection.getMetaData().getColumns(null, null, name, null);
+                        try {
+                            while (resultSet.next()) {
+                                loaded.add(intern(resultSet.getString("COLUMN_NAME")));
+                            }
+                        } finally {
+                            resultSet.close();
+                        }
+                        columns = Collections.unmodifiableSet(loaded);
+                    } catch (SQLException ex) {
+                        LOG.debug("Не удалось получить список полей таблицы " + name, ex);
+                    }
+                }
+                return columns;
+            }
+        }
+    }
+}
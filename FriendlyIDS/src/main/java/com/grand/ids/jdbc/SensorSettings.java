@@ -0,0 +1,364 @@
+/*
+ * Copyright 2009-2016 Andrey Grigorov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.grand.ids.jdbc;
+
+import com.grand.ids.UserId;
+import com.grand.ids.utils.sql.SqlAliases;
+import com.grand.ids.utils.sql.SqlTemplateCache;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Настройки сенсорной подсистемы - обёрток JDBC-объектов, передающих
+ * результаты выполнения запросов модулю принятия решений. Один объект
+ * настроек разделяется источником данных и всеми полученными из него
+ * соединениями, поэтому изменения вступают в силу для уже открытых
+ * соединений.
+ *
+ * @author Andrey Grigorov
+ */
+public class SensorSettings {
+
+    /**
+     * Область наблюдения: режим работы, наблюдаемые таблицы и пользователи,
+     * исключённые из наблюдения. Объект не изменяется, поэтому настройки
+     * области, считанные из одного объекта, всегда согласованы между собой
+     * (см. {@link #getScope()}).
+     */
+    public final static class Scope {
+
+        private final IDSMode mode;
+        private final Set<String> observedTables;
+        private final Set<String> excludedUsers;
+
+        private Scope(IDSMode mode, Set<String> observedTables, Set<String> excludedUsers) {
+            this.mode = mode;
+            this.observedTables = observedTables;
+            this.excludedUsers = excludedUsers;
+        }
+
+        /**
+         * @return режим работы; null - режим модуля принятия решений
+         */
+        public IDSMode getMode() {
+            return mode;
+        }
+
+        /**
+         * @return наблюдаемые таблицы (имена в верхнем регистре); пустое
+         * множество - наблюдаются все таблицы
+         */
+        public Set<String> getObservedTables() {
+            return observedTables;
+        }
+
+        /**
+         * @return пользователи, запросы которых не наблюдаются
+         */
+        public Set<String> getExcludedUsers() {
+            return excludedUsers;
+        }
+
+        /**
+         * Получить область с другим режимом работы (см.
+         * {@link SensorSettings#setMode(IDSMode)}).
+         */
+        public Scope withMode(IDSMode mode) {
+            return new Scope(mode, observedTables, excludedUsers);
+        }
+
+        /**
+         * Получить область с другими наблюдаемыми таблицами (см.
+         * {@link SensorSettings#setObservedTables(Collection)}).
+         */
+        public Scope withObservedTables(Collection<String> observedTables) {
+            return new Scope(mode, toUpperCaseSet(observedTables), excludedUsers);
+        }
+
+        /**
+         * Получить область с другими пользователями, исключёнными из
+         * наблюдения (см. {@link SensorSettings#setExcludedUsers(Collection)}).
+         */
+        public Scope withExcludedUsers(Collection<String> excludedUsers) {
+            Set<String> users = new HashSet<String>();
+            if (excludedUsers != null) {
+                users.addAll(excludedUsers);
+            }
+            return new Scope(mode, observedTables, Collections.unmodifiableSet(users));
+        }
+
+        /**
+         * Проверить, исключён ли пользователь из наблюдения.
+         *
+         * @param userId идентификатор пользователя
+         * @return true - запросы пользователя не наблюдаются
+         */
+        public boolean isExcludedUser(UserId userId) {
+            return !excludedUsers.isEmpty() && userId != null && excludedUsers.contains(userId.getUserId());
+        }
+
+        /**
+         * Проверить, обращается ли запрос к наблюдаемым таблицам.
+         *
+         * @param sql текст запроса
+         * @return true - запрос наблюдается
+         */
+        public boolean isObservedQuery(String sql) {
+            if (observedTables.isEmpty()) {
+                return true;
+            }
+            List<SqlAliases.TableReference> references = SqlTemplateCache.getSharedCache().get(sql).getAliases().getTables();
+            if (references.isEmpty()) {
+                return true;
+            }
+            for (SqlAliases.TableReference reference : references) {
+                if (observedTables.contains(reference.getName().toUpperCase())) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    public final static int DEFAULT_STREAMING_FETCH_SIZE = 1000;
+    public final static int DEFAULT_STREAMING_SAMPLE_SIZE = 10000;
+
+    /**
+     * Запрещать ли чтение данных через соединение после того, как один из
+     * выполненных через него запросов был признан аномальным
+     */
+    private volatile boolean fenceOnAnomaly;
+    /**
+     * Анализировать ли только те строки результата, которые приложение
+     * действительно прочитало до закрытия курсора
+     */
+    private volatile boolean analyzeConsumedRowsOnly;
+    /**
+     * Откладывать ли анализ запросов, выполненных внутри транзакции, до её
+     * завершения (см. {@link ConnectionWrapper#commit()})
+     */
+    private volatile boolean deferTransactionAnalysis;
+    /**
+     * Наименьший размер порции выборки (см. {@link java.sql.Statement#setFetchSize(int)}),
+     * при котором результат запроса читается потоково
+     */
+    private volatile int streamingFetchSize = DEFAULT_STREAMING_FETCH_SIZE;
+    /**
+     * Наибольшее количество строк потоковой выборки, сохраняемых для анализа
+     */
+    private volatile int streamingSampleSize = DEFAULT_STREAMING_SAMPLE_SIZE;
+    /**
+     * Область наблюдения: режим работы системы для запросов источника данных,
+     * наблюдаемые таблицы и пользователи, запросы которых не наблюдаются
+     * (служебные учётные записи, пакетные задания)
+     */
+    private final AtomicReference<Scope> scope = new AtomicReference<Scope>(
+            new Scope(null, Collections.<String>emptySet(), Collections.<String>emptySet()));
+
+    public boolean isFenceOnAnomaly() {
+        return fenceOnAnomaly;
+    }
+
+    public void setFenceOnAnomaly(boolean fenceOnAnomaly) {
+        this.fenceOnAnomaly = fenceOnAnomaly;
+    }
+
+    public boolean isAnalyzeConsumedRowsOnly() {
+        return analyzeConsumedRowsOnly;
+    }
+
+    public void setAnalyzeConsumedRowsOnly(boolean analyzeConsumedRowsOnly) {
+        this.analyzeConsumedRowsOnly = analyzeConsumedRowsOnly;
+    }
+
+    public boolean isDeferTransactionAnalysis() {
+        return deferTransactionAnalysis;
+    }
+
+    public void setDeferTransactionAnalysis(boolean deferTransactionAnalysis) {
+        this.deferTransactionAnalysis = deferTransactionAnalysis;
+    }
+
+    public int getStreamingFetchSize() {
+        return streamingFetchSize;
+    }
+
+    /**
+     * Установить наименьший размер порции выборки, при котором результат
+     * запроса читается потоково: строки передаются приложению по мере их
+     * получения от драйвера, а в памяти хранится только текущая строка и
+     * ограниченная выборка строк для анализа. Меньшие значения (например,
+     * размер порции, задаваемый ORM по умолчанию) не влияют на чтение
+     * результата. Значение {@link Integer#MIN_VALUE} (потоковая выборка
+     * MySQL) всегда включает потоковое чтение.
+     *
+     * @param streamingFetchSize размер порции выборки; 0 - результат
+     *                           читается потоково только при выборке MySQL
+     */
+    public void setStreamingFetchSize(int streamingFetchSize) {
+        this.streamingFetchSize = streamingFetchSize;
+    }
+
+    public int getStreamingSampleSize() {
+        return streamingSampleSize;
+    }
+
+    /**
+     * Установить наибольшее количество строк потоковой выборки, сохраняемых
+     * для анализа. Строки выбираются равновероятно по мере чтения курсора.
+     *
+     * @param streamingSampleSize количество строк
+     */
+    public void setStreamingSampleSize(int streamingSampleSize) {
+        if (streamingSampleSize < 1) {
+            throw new IllegalArgumentException("Sample size must be positive: " + streamingSampleSize);
+        }
+        this.streamingSampleSize = streamingSampleSize;
+    }
+
+    /**
+     * Проверить, включает ли размер порции выборки потоковое чтение
+     * результата (см. {@link #setStreamingFetchSize(int)}).
+     *
+     * @param fetchSize размер порции выборки, заданный приложением
+     * @return true - результат читается потоково
+     */
+    public boolean isStreamingFetch(int fetchSize) {
+        if (fetchSize == Integer.MIN_VALUE) {
+            return true;
+        }
+        int threshold = streamingFetchSize;
+        return threshold > 0 && fetchSize >= threshold;
+    }
+
+    /**
+     * Получить текущую область наблюдения. Настройки, которые должны быть
+     * согласованы между собой, следует считывать из одного объекта области.
+     *
+     * @return область наблюдения
+     */
+    public Scope getScope() {
+        return scope.get();
+    }
+
+    /**
+     * Заменить область наблюдения, если она не изменилась с момента
+     * получения (см. {@link #getScope()}). Все настройки области
+     * применяются одновременно.
+     *
+     * @param expected ожидаемая текущая область
+     * @param updated  новая область
+     * @return true - область заменена
+     */
+    public boolean compareAndSetScope(Scope expected, Scope updated) {
+        if (updated == null) {
+            throw new NullPointerException("Scope should be not null.");
+        }
+        return scope.compareAndSet(expected, updated);
+    }
+
+    public IDSMode getMode() {
+        return scope.get().getMode();
+    }
+
+    /**
+     * Установить режим работы системы для запросов источника данных. В
+     * режиме {@link IDSMode#NO_OBSERVATION} результаты запросов передаются
+     * приложению без анализа и запросы не записываются в журнал аудита.
+     * Режим проверяется при каждом выполнении запроса.
+     *
+     * @param mode режим работы; null - использовать режим модуля принятия
+     *             решений
+     */
+    public void setMode(IDSMode mode) {
+        Scope current;
+        do {
+            current = scope.get();
+        } while (!scope.compareAndSet(current, current.withMode(mode)));
+    }
+
+    public Set<String> getObservedTables() {
+        return scope.get().getObservedTables();
+    }
+
+    /**
+     * Установить таблицы, запросы к которым наблюдаются. Запрос наблюдается,
+     * если среди таблиц, упомянутых в его списках FROM и JOIN, есть хотя бы
+     * одна наблюдаемая, а также если таблицы запроса определить не удалось.
+     *
+     * @param observedTables имена таблиц; null или пустой набор - наблюдаются
+     *                       все таблицы
+     */
+    public void setObservedTables(Collection<String> observedTables) {
+        Scope current;
+        do {
+            current = scope.get();
+        } while (!scope.compareAndSet(current, current.withObservedTables(observedTables)));
+    }
+
+    public Set<String> getExcludedUsers() {
+        return scope.get().getExcludedUsers();
+    }
+
+    /**
+     * Установить пользователей, запросы которых не наблюдаются.
+     *
+     * @param excludedUsers идентификаторы пользователей (см.
+     *                      {@link UserId#getUserId()}); null - наблюдаются
+     *                      все пользователи
+     */
+    public void setExcludedUsers(Collection<String> excludedUsers) {
+        Scope current;
+        do {
+            current = scope.get();
+        } while (!scope.compareAndSet(current, current.withExcludedUsers(excludedUsers)));
+    }
+
+    /**
+     * Проверить, исключён ли пользователь из наблюдения.
+     *
+     * @param userId идентификатор пользователя
+     * @return true - запросы пользователя не наблюдаются
+     */
+    public boolean isExcludedUser(UserId userId) {
+        return scope.get().isExcludedUser(userId);
+    }
+
+    /**
+     * Проверить, обращается ли запрос к наблюдаемым таблицам.
+     *
+     * @param sql текст запроса
+     * @return true - запрос наблюдается
+     */
+    public boolean isObservedQuery(String sql) {
+        return scope.get().isObservedQuery(sql);
+    }
+
+    private static Set<String> toUpperCaseSet(Collection<String> names) {
+        Set<String> set = new HashSet<String>();
+        if (names != null) {
+            for (String name : names) {
+                set.add(name.toUpperCase());
+            }
+        }
+        return Collections.unmodifiableSet(set);
+    }
+}
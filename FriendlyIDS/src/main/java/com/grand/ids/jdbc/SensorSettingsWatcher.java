@@ -0,0 +1,207 @@
+/*
+ * Copyright 2009-2016 Andrey Grigorov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.grand.ids.jdbc;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Наблюдатель за файлом настроек наблюдения источника данных. Файл
+ * периодически проверяется и при изменении заново считывается в
+ * {@link SensorSettings}, поэтому режим работы и состав наблюдаемых таблиц и
+ * пользователей можно менять без перезапуска приложения. Файл содержит
+ * свойства:
+ * <ul>
+ * <li>{@code mode} - режим работы ({@link IDSMode}); пустое значение -
+ * режим модуля принятия решений;</li>
+ * <li>{@code observedTables} - наблюдаемые таблицы через запятую; пустое
+ * значение - все таблицы;</li>
+ * <li>{@code excludedUsers} - пользователи, запросы которых не наблюдаются,
+ * через запятую.</li>
+ * </ul>
+ * Отсутствующее свойство не изменяет настройку (например, наблюдаемые
+ * таблицы, заданные {@link DataSourceWrapper#setSchema}). Настройки из файла
+ * применяются одновременно (см. {@link SensorSettings#getScope()}). Если
+ * файл не удалось прочитать или режим указан неверно, действующие настройки
+ * не изменяются.
+ *
+ * @author Andrey Grigorov
+ */
+public class SensorSettingsWatcher {
+
+    private final static Logger LOG = Logger.getLogger(SensorSettingsWatcher.class);
+
+    public final static String MODE_PROPERTY = "mode";
+    public final static String OBSERVED_TABLES_PROPERTY = "observedTables";
+    public final static String EXCLUDED_USERS_PROPERTY = "excludedUsers";
+
+    private final File file;
+    private final SensorSettings sensorSettings;
+    private final long checkIntervalMillis;
+    private ScheduledExecutorService scheduler;
+    /**
+     * Время изменения и размер файла при последнем считывании
+     */
+    private long lastModified = -1;
+    private long lastLength = -1;
+
+    /**
+     * Создать наблюдателя.
+     *
+     * @param file                файл настроек
+     * @param sensorSettings      настройки источника данных (см.
+     *                            {@link DataSourceWrapper#getSensorSettings()})
+     * @param checkIntervalMillis период проверки файла в миллисекундах
+     */
+    public SensorSettingsWatcher(File file, SensorSettings sensorSettings, long checkIntervalMillis) {
+        if (file == null) {
+            throw new NullPointerException("Settings file should be not null.");
+        }
+        if (sensorSettings == null) {
+            throw new NullPointerException("Sensor settings object should be not null.");
+        }
+        if (checkIntervalMillis <= 0) {
+            throw new IllegalArgumentException("Check interval should be positive.");
+        }
+        this.file = file;
+        this.sensorSettings = sensorSettings;
+        this.checkIntervalMillis = checkIntervalMillis;
+    }
+
+    /**
+     * Считать файл настроек и начать наблюдение за ним.
+     */
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        checkForUpdate();
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ids-settings-watcher");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+
+            public void run() {
+                checkForUpdate();
+            }
+        }, checkIntervalMillis, checkIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Прекратить наблюдение за файлом. Считанные настройки сохраняются.
+     */
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Считать файл настроек, если он изменился с момента последнего
+     * считывания.
+     */
+    synchronized void checkForUpdate() {
+        long modified = file.lastModified();
+        long length = file.length();
+        if (modified == 0 || (modified == lastModified && length == lastLength)) {
+            // файл отсутствует или не изменился
+            return;
+        }
+        if (reload()) {
+            lastModified = modified;
+            lastLength = length;
+        }
+    }
+
+    /**
+     * Считать файл настроек.
+     *
+     * @return true - настройки применены
+     */
+    public synchronized boolean reload() {
+        Properties properties = new Properties();
+        try {
+            InputStream in = new FileInputStream(file);
+            try {
+                properties.load(in);
+            } finally {
+                in.close();
+            }
+        } catch (IOException ex) {
+            LOG.warn("Не удалось прочитать файл настроек наблюдения " + file, ex);
+            return false;
+        }
+        IDSMode mode = null;
+        String modeName = properties.getProperty(MODE_PROPERTY, "").trim();
+        if (modeName.length() > 0) {
+            try {
+                mode = IDSMode.valueOf(modeName);
+            } catch (IllegalArgumentException ex) {
+                LOG.warn("Неизвестный режим работы " + modeName + " в файле настроек наблюдения " + file);
+                return false;
+            }
+        }
+        String observedTables = properties.getProperty(OBSERVED_TABLES_PROPERTY);
+        String excludedUsers = properties.getProperty(EXCLUDED_USERS_PROPERTY);
+        SensorSettings.Scope current;
+        SensorSettings.Scope updated;
+        do {
+            current = sensorSettings.getScope();
+            updated = current;
+            if (properties.containsKey(MODE_PROPERTY)) {
+                updated = updated.withMode(mode);
+            }
+            if (observedTables != null) {
+                updated = updated.withObservedTables(split(observedTables));
+            }
+            if (excludedUsers != null) {
+                updated = updated.withExcludedUsers(split(excludedUsers));
+            }
+        } while (!sensorSettings.compareAndSetScope(current, updated));
+        LOG.info("Применены настройки наблюдения из файла " + file);
+        return true;
+    }
+
+    private static List<String> split(String value) {
+        List<String> items = new ArrayList<String>();
+        if (value != null) {
+            for (String item : value.split(",")) {
+                item = item.trim();
+                if (item.length() > 0) {
+                    items.add(item);
+                }
+            }
+        }
+        return items;
+    }
+}
@@ -0,0 +1,487 @@
+/*
+ * Copyright 2009-2016 Andrey Grigorov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.grand.ids.jdbc;
+
+import com.grand.ids.UserId;
+import com.grand.ids.decisionmodule.AnalysisResult;
+import com.grand.ids.decisionmodule.DecisionModule;
+import com.grand.ids.decisionmodule.Event;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLWarning;
+import java.sql.Statement;
+import java.sql.Types;
+
+/**
+ * Обёртка для класса Statement. Результаты выполнения запросов, в том числе
+ * полученные через execute() и getMoreResults(), передаются модулю принятия
+ * решений.
+ *
+ * @author Andrey Grigorov
+ */
+public class StatementWrapper implements Statement {
+
+    private Statement statement;
+    private DecisionModule decisionModule;
+    protected UserId userId;
+    private ConnectionWrapper connectionWrapper;
+    /**
+     * Текст последнего выполненного запроса
+     */
+    protected String sqlQuery;
+    /**
+     * Последний результат выполнения запроса, переданный приложению
+     */
+    private ResultSet currentResultSet;
+    /**
+     * Был ли текущий результат уже получен приложением
+     */
+    private boolean currentResultSetRequested;
+    /**
+     * Размер порции выборки, заданный приложением
+     */
+    private int fetchSize;
+    /**
+     * Наблюдается ли последний выполненный запрос
+     */
+    private boolean observed = true;
+
+    public StatementWrapper(Statement statement, DecisionModule decisionModule,
+                            UserId userId, ConnectionWrapper connectionWrapper) {
+        this.statement = statement;
+        this.decisionModule = decisionModule;
+        this.userId = userId;
+        this.connectionWrapper = connectionWrapper;
+    }
+
+    /**
+     * Создать событие безопасности для последнего выполненного запроса.
+     *
+     * @param resultSet результат выполнения запроса; может быть равен null,
+     *                  если результат будет передан позже
+     * @return событие безопасности
+     */
+    protected Event createEvent(ResultSet resultSet) {
+        return new Event(sqlQuery, getCurrentUserId(), resultSet);
+    }
+
+    /**
+     * Получить идентификатор пользователя, выполняющего запрос. Пользователь
+     * определяется при выполнении, а не при создании запроса; идентификатор,
+     * переданный в конструктор, используется, если обёртка создана без
+     * соединения или провайдер контекста не определил пользователя.
+     *
+     * @return идентификатор пользователя
+     */
+    protected UserId getCurrentUserId() {
+        if (connectionWrapper != null) {
+            UserId currentUserId = connectionWrapper.getCurrentUserId();
+            if (currentUserId != null) {
+                return currentUserId;
+            }
+        }
+        return userId;
+    }
+
+    /**
+     * Начать выполнение запроса {@link #sqlQuery}: определить, наблюдается
+     * ли запрос (см. {@link ConnectionWrapper#isObserved(String, UserId)}), и
+     * сообщить модулю принятия решений о начале выполнения наблюдаемого
+     * запроса, чтобы знания, необходимые для анализа результата,
+     * загружались одновременно с выполнением запроса в базе данных.
+     */
+    protected void beginExecution() {
+        UserId currentUserId = getCurrentUserId();
+        observed = connectionWrapper == null || connectionWrapper.isObserved(sqlQuery, currentUserId);
+        if (observed) {
+            decisionModule.prefetch(sqlQuery, currentUserId,
+                    connectionWrapper != null ? connectionWrapper.getSensorSettings().getMode() : null);
+        }
+    }
+
+    /**
+     * Создать событие безопасности с режимом работы, заданным для источника
+     * данных.
+     */
+    private Event createModeEvent(ResultSet resultSet) {
+        Event event = createEvent(resultSet);
+        if (connectionWrapper != null) {
+            event.setMode(connectionWrapper.getSensorSettings().getMode());
+        }
+        return event;
+    }
+
+    protected ResultSet postProcessResultSet(final ResultSet resultSet) throws SQLException {
+        if (!observed) {
+            // запрос не наблюдается; результат передаётся приложению как есть
+            return resultSet;
+        }
+        currentResultSetRequested = true;
+        if (isDriverCursorRequired(resultSet)) {
+            currentResultSet = wrapDriverCursor(resultSet);
+            return currentResultSet;
+        }
+        if (isStreamingFetch()) {
+            // строки анализируются по мере их чтения приложением
+            currentResultSet = new ResultSetWrapper(resultSet, this, decisionModule, createModeEvent(null), connectionWrapper);
+            return currentResultSet;
+        }
+        // курсор драйвера считывается один раз; считанные данные используются
+        // и модулями анализа, и приложением
+        CapturingResultSet capturedResultSet;
+        try {
+            capturedResultSet = new CapturingResultSet(resultSet, this);
+        } finally {
+            resultSet.close();
+        }
+        if (connectionWrapper != null && connectionWrapper.getSensorSettings().isAnalyzeConsumedRowsOnly()) {
+            // анализируются только строки, прочитанные приложением до
+            // закрытия курсора
+            currentResultSet = new ResultSetWrapper(capturedResultSet, decisionModule, createModeEvent(null), connectionWrapper);
+            return currentResultSet;
+        }
+        Event event = createModeEvent(capturedResultSet.duplicate());
+        if (connectionWrapper != null && connectionWrapper.defer(event)) {
+            // запрос будет проанализирован при завершении транзакции
+            currentResultSet = new ResultSetWrapper(capturedResultSet, new AnalysisResult(false), connectionWrapper);
+            return currentResultSet;
+        }
+        AnalysisResult analysisResult = decisionModule.analyze(event);
+        if (connectionWrapper != null) {
+            connectionWrapper.watch(analysisResult);
+        }
+        if (analysisResult.needBlockAction()) {
+            throw new SQLException("Anomaly query");
+        } else {
+            // при асинхронном анализе строки передаются приложению сразу,
+            // а чтение прерывается, если запрос будет признан аномальным
+            currentResultSet = new ResultSetWrapper(capturedResultSet, analysisResult, connectionWrapper);
+            return currentResultSet;
+        }
+    }
+
+    /**
+     * Проверить, должен ли приложению передаваться сам курсор драйвера, а не
+     * считанная в память копия результата: копия не допускает изменения строк,
+     * не отражает изменений в базе данных и требует считывания содержимого
+     * всех больших объектов.
+     */
+    private static boolean isDriverCursorRequired(ResultSet resultSet) throws SQLException {
+        if (resultSet.getConcurrency() == ResultSet.CONCUR_UPDATABLE
+                || resultSet.getType() == ResultSet.TYPE_SCROLL_SENSITIVE) {
+            return true;
+        }
+        ResultSetMetaData metaData = resultSet.getMetaData();
+        for (int i = 1, count = metaData.getColumnCount(); i <= count; i++) {
+            switch (metaData.getColumnType(i)) {
+                case Types.BLOB:
+                case Types.CLOB:
+                case Types.NCLOB:
+                case Types.LONGVARBINARY:
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Передать приложению курсор драйвера (см. {@link DriverResultSetWrapper}).
+     * Курсор, допускающий возврат в начало, анализируется до передачи
+     * приложению; однонаправленный курсор, а также курсор, у которого
+     * анализируются только прочитанные строки, - по мере чтения.
+     */
+    private ResultSet wrapDriverCursor(ResultSet resultSet) throws SQLException {
+        if (resultSet.getType() == ResultSet.TYPE_FORWARD_ONLY
+                || connectionWrapper != null && connectionWrapper.getSensorSettings().isAnalyzeConsumedRowsOnly()) {
+            return new DriverResultSetWrapper(resultSet, this, decisionModule, createModeEvent(null), connectionWrapper);
+        }
+        Event event = createModeEvent(new CapturingResultSet(resultSet, this, true));
+        resultSet.beforeFirst();
+        if (connectionWrapper != null && connectionWrapper.defer(event)) {
+            // запрос будет проанализирован при завершении транзакции
+            return new DriverResultSetWrapper(resultSet, this, new AnalysisResult(false), connectionWrapper);
+        }
+        AnalysisResult analysisResult = decisionModule.analyze(event);
+        if (connectionWrapper != null) {
+            connectionWrapper.watch(analysisResult);
+        }
+        if (analysisResult.needBlockAction()) {
+            resultSet.close();
+            throw new SQLException("Anomaly query");
+        }
+        return new DriverResultSetWrapper(resultSet, this, analysisResult, connectionWrapper);
+    }
+
+    protected void checkFence() throws SQLException {
+        if (connectionWrapper != null) {
+            connectionWrapper.checkFence();
+        }
+    }
+
+    /**
+     * Закрыть результат предыдущего выполнения запроса. По спецификации JDBC
+     * это происходит при повторном выполнении и при закрытии запроса; закрытие
+     * обёртки приводит к анализу прочитанных приложением строк.
+     */
+    protected void closeCurrentResultSet() throws SQLException {
+        currentResultSetRequested = false;
+        if (currentResultSet != null) {
+            ResultSet resultSet = currentResultSet;
+            currentResultSet = null;
+            resultSet.close();
+        }
+    }
+
+    public ResultSet executeQuery(String sql) throws SQLException {
+        checkFence();
+        closeCurrentResultSet();
+        sqlQuery = sql;
+        beginExecution();
+        ResultSet resultSet = statement.executeQuery(sql);
+        return postProcessResultSet(resultSet);
+    }
+
+    public int executeUpdate(String sql) throws SQLException {
+        closeCurrentResultSet();
+        return statement.executeUpdate(sql);
+    }
+
+    public void close() throws SQLException {
+        try {
+            closeCurrentResultSet();
+        } finally {
+            statement.close();
+        }
+    }
+
+    public int getMaxFieldSize() throws SQLException {
+        return statement.getMaxFieldSize();
+    }
+
+    public void setMaxFieldSize(int max) throws SQLException {
+        statement.setMaxFieldSize(max);
+    }
+
+    public int getMaxRows() throws SQLException {
+        return statement.getMaxRows();
+    }
+
+    public void setMaxRows(int max) throws SQLException {
+        statement.setMaxRows(max);
+    }
+
+    public void setEscapeProcessing(boolean enable) throws SQLException {
+        statement.setEscapeProcessing(enable);
+    }
+
+    public int getQueryTimeout() throws SQLException {
+        return statement.getQueryTimeout();
+    }
+
+    public void setQueryTimeout(int seconds) throws SQLException {
+        statement.setQueryTimeout(seconds);
+    }
+
+    public void cancel() throws SQLException {
+        statement.cancel();
+    }
+
+    public SQLWarning getWarnings() throws SQLException {
+        return statement.getWarnings();
+    }
+
+    public void clearWarnings() throws SQLException {
+        statement.clearWarnings();
+    }
+
+    public void setCursorName(String name) throws SQLException {
+        statement.setCursorName(name);
+    }
+
+    public boolean execute(String sql) throws SQLException {
+        checkFence();
+        closeCurrentResultSet();
+        sqlQuery = sql;
+        beginExecution();
+        return statement.execute(sql);
+    }
+
+    public ResultSet getResultSet() throws SQLException {
+        if (currentResultSetRequested) {
+            return currentResultSet;
+        }
+        ResultSet resultSet = statement.getResultSet();
+        if (resultSet == null) {
+            return null;
+        }
+        return postProcessResultSet(resultSet);
+    }
+
+    public int getUpdateCount() throws SQLException {
+        return statement.getUpdateCount();
+    }
+
+    public boolean getMoreResults() throws SQLException {
+        closeCurrentResultSet();
+        return statement.getMoreResults();
+    }
+
+    public void setFetchDirection(int direction) throws SQLException {
+        statement.setFetchDirection(direction);
+    }
+
+    public int getFetchDirection() throws SQLException {
+        return statement.getFetchDirection();
+    }
+
+    public void setFetchSize(int rows) throws SQLException {
+        statement.setFetchSize(rows);
+        fetchSize = rows;
+    }
+
+    /**
+     * Проверить, запросило ли приложение постепенную (потоковую) выборку
+     * строк (см. {@link SensorSettings#isStreamingFetch(int)}).
+     */
+    private boolean isStreamingFetch() {
+        if (connectionWrapper == null) {
+            return fetchSize == Integer.MIN_VALUE || fetchSize >= SensorSettings.DEFAULT_STREAMING_FETCH_SIZE;
+        }
+        return fetchSize != 0 && connectionWrapper.getSensorSettings().isStreamingFetch(fetchSize);
+    }
+
+    public int getFetchSize() throws SQLException {
+        return statement.getFetchSize();
+    }
+
+    public int getResultSetConcurrency() throws SQLException {
+        return statement.getResultSetConcurrency();
+    }
+
+    public int getResultSetType() throws SQLException {
+        return statement.getResultSetType();
+    }
+
+    public void addBatch(String sql) throws SQLException {
+        statement.addBatch(sql);
+    }
+
+    public void clearBatch() throws SQLException {
+        statement.clearBatch();
+    }
+
+    public int[] executeBatch() throws SQLException {
+        closeCurrentResultSet();
+        return statement.executeBatch();
+    }
+
+    public Connection getConnection() throws SQLException {
+        if (connectionWrapper != null) {
+            return connectionWrapper;
+        }
+        return statement.getConnection();
+    }
+
+    public boolean getMoreResults(int current) throws SQLException {
+        if (current == KEEP_CURRENT_RESULT) {
+            // текущий результат остаётся открытым и будет проанализирован
+            // при его закрытии приложением
+            currentResultSet = null;
+            currentResultSetRequested = false;
+        } else {
+            closeCurrentResultSet();
+        }
+        return statement.getMoreResults(current);
+    }
+
+    public ResultSet getGeneratedKeys() throws SQLException {
+        return statement.getGeneratedKeys();
+    }
+
+    public int executeUpdate(String sql, int autoGeneratedKeys) throws SQLException {
+        closeCurrentResultSet();
+        return statement.executeUpdate(sql, autoGeneratedKeys);
+    }
+
+    public int executeUpdate(String sql, int[] columnIndexes) throws SQLException {
+        closeCurrentResultSet();
+        return statement.executeUpdate(sql, columnIndexes);
+    }
+
+    public int executeUpdate(String sql, String[] columnNames) throws SQLException {
+        closeCurrentResultSet();
+        return statement.executeUpdate(sql, columnNames);
+    }
+
+    public boolean execute(String sql, int autoGeneratedKeys) throws SQLException {
+        checkFence();
+        closeCurrentResultSet();
+        sqlQuery = sql;
+        beginExecution();
+        return statement.execute(sql, autoGeneratedKeys);
+    }
+
+    public boolean execute(String sql, int[] columnIndexes) throws SQLException {
+        checkFence();
+        closeCurrentResultSet();
+        sqlQuery = sql;
+        beginExecution();
+        return statement.execute(sql, columnIndexes);
+    }
+
+    public boolean execute(String sql, String[] columnNames) throws SQLException {
+        checkFence();
+        closeCurrentResultSet();
+        sqlQuery = sql;
+        beginExecution();
+        return statement.execute(sql, columnNames);
+    }
+
+    public int getResultSetHoldability() throws SQLException {
+        return statement.getResultSetHoldability();
+    }
+
+    public boolean isClosed() throws SQLException {
+        return statement.isClosed();
+    }
+
+    public void setPoolable(boolean poolable) throws SQLException {
+        statement.setPoolable(poolable);
+    }
+
+    public boolean isPoolable() throws SQLException {
+        return statement.isPoolable();
+    }
+
+    public <T> T unwrap(Class<T> iface) throws SQLException {
+        return statement.unwrap(iface);
+    }
+
+    public boolean isWrapperFor(Class<?> iface) throws SQLException {
+        return statement.isWrapperFor(iface);
+    }
+
+    public void closeOnCompletion() throws SQLException {
+        statement.closeOnCompletion();
+    }
+
+    public boolean isCloseOnCompletion() throws SQLException {
+        return statement.isCloseOnCompletion();
+    }
+}
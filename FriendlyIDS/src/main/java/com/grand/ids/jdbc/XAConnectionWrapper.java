@@ -0,0 +1,45 @@
+/*
+ * Copyright 2009-2016 Andrey Grigorov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.grand.ids.jdbc;
+
+import com.grand.ids.decisionmodule.DecisionModule;
+
+import javax.sql.XAConnection;
+import javax.transaction.xa.XAResource;
+import java.sql.SQLException;
+
+/**
+ * Обёртка над физическим соединением, участвующим в распределённых
+ * транзакциях. Управление транзакциями передаётся исходному соединению без
+ * изменений.
+ *
+ * @author Andrey Grigorov
+ */
+public class XAConnectionWrapper extends PooledConnectionWrapper implements XAConnection {
+
+    private final XAConnection xaConnection;
+
+    public XAConnectionWrapper(XAConnection xaConnection, DecisionModule decisionModule,
+                               ContextProvider contextProvider, SensorSettings sensorSettings,
+                               SchemaCatalog schemaCatalog) {
+        super(xaConnection, decisionModule, contextProvider, sensorSettings, schemaCatalog);
+        this.xaConnection = xaConnection;
+    }
+
+    public XAResource getXAResource() throws SQLException {
+        return xaConnection.getXAResource();
+    }
+}
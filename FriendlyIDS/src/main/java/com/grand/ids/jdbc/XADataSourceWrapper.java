@@ -0,0 +1,170 @@
+/*
+ * Copyright 2009-2016 Andrey Grigorov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.grand.ids.jdbc;
+
+import com.grand.ids.decisionmodule.DecisionModule;
+
+import javax.sql.XAConnection;
+import javax.sql.XADataSource;
+import java.io.PrintWriter;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.Collection;
+import java.util.Set;
+import java.util.logging.Logger;
+
+/**
+ * Обёртка над источником соединений для распределённых транзакций. Как и
+ * {@link ConnectionPoolDataSourceWrapper}, размещается под пулом соединений
+ * менеджера транзакций и не мешает повторному использованию соединений и
+ * подготовленных запросов.
+ *
+ * @author Andrey Grigorov
+ */
+public class XADataSourceWrapper implements XADataSource, IDSDataSource {
+
+    private XADataSource dataSource;
+    private DecisionModule decisionModule;
+    private ContextProvider contextProvider;
+    /**
+     * Настройки обёрток JDBC-объектов, разделяемые всеми соединениями
+     */
+    private final SensorSettings sensorSettings = new SensorSettings();
+    /**
+     * Каталог имён таблиц и полей базы данных, разделяемый всеми соединениями
+     */
+    private final SchemaCatalog schemaCatalog = new SchemaCatalog();
+
+    public XADataSourceWrapper(XADataSource dataSource, DecisionModule decisionModule,
+                               ContextProvider contextProvider) {
+        if (dataSource == null) {
+            throw new NullPointerException("Data source object should be not null.");
+        }
+        if (decisionModule == null) {
+            throw new NullPointerException("Decision module object should be not null.");
+        }
+        if (contextProvider == null) {
+            throw new NullPointerException("Context provider object should be not null.");
+        }
+        this.dataSource = dataSource;
+        this.decisionModule = decisionModule;
+        this.contextProvider = contextProvider;
+    }
+
+    public SensorSettings getSensorSettings() {
+        return sensorSettings;
+    }
+
+    public SchemaCatalog getSchemaCatalog() {
+        return schemaCatalog;
+    }
+
+    public boolean isFenceOnAnomaly() {
+        return sensorSettings.isFenceOnAnomaly();
+    }
+
+    public void setFenceOnAnomaly(boolean fenceOnAnomaly) {
+        sensorSettings.setFenceOnAnomaly(fenceOnAnomaly);
+    }
+
+    public boolean isAnalyzeConsumedRowsOnly() {
+        return sensorSettings.isAnalyzeConsumedRowsOnly();
+    }
+
+    public void setAnalyzeConsumedRowsOnly(boolean analyzeConsumedRowsOnly) {
+        sensorSettings.setAnalyzeConsumedRowsOnly(analyzeConsumedRowsOnly);
+    }
+
+    public boolean isDeferTransactionAnalysis() {
+        return sensorSettings.isDeferTransactionAnalysis();
+    }
+
+    public void setDeferTransactionAnalysis(boolean deferTransactionAnalysis) {
+        sensorSettings.setDeferTransactionAnalysis(deferTransactionAnalysis);
+    }
+
+    public IDSMode getMode() {
+        return sensorSettings.getMode();
+    }
+
+    /**
+     * Установить режим работы системы для запросов источника данных. Режим
+     * применяется к уже открытым соединениям без перезапуска приложения.
+     *
+     * @param mode режим работы; null - использовать режим модуля принятия
+     *             решений
+     */
+    public void setMode(IDSMode mode) {
+        sensorSettings.setMode(mode);
+    }
+
+    public Set<String> getObservedTables() {
+        return sensorSettings.getObservedTables();
+    }
+
+    public void setObservedTables(Collection<String> observedTables) {
+        sensorSettings.setObservedTables(observedTables);
+    }
+
+    public Set<String> getExcludedUsers() {
+        return sensorSettings.getExcludedUsers();
+    }
+
+    public void setExcludedUsers(Collection<String> excludedUsers) {
+        sensorSettings.setExcludedUsers(excludedUsers);
+    }
+
+    public XAConnection getXAConnection() throws SQLException {
+        return new XAConnectionWrapper(dataSource.getXAConnection(), decisionModule, contextProvider, sensorSettings, schemaCatalog);
+    }
+
+    public XAConnection getXAConnection(String user, String password) throws SQLException {
+        return new XAConnectionWrapper(dataSource.getXAConnection(user, password), decisionModule, contextProvider, sensorSettings, schemaCatalog);
+    }
+
+    public PrintWriter getLogWriter() throws SQLException {
+        return dataSource.getLogWriter();
+    }
+
+    public void setLogWriter(PrintWriter out) throws SQLException {
+        dataSource.setLogWriter(out);
+    }
+
+    public void setLoginTimeout(int seconds) throws SQLException {
+        dataSource.setLoginTimeout(seconds);
+    }
+
+    public int getLoginTimeout() throws SQLException {
+        return dataSource.getLoginTimeout();
+    }
+
+    /**
+     * Установить провайдер контекста приложения. Провайдер используется
+     * соединениями, полученными после его установки.
+     *
+     * @param contextProvider провайдер контекста приложения
+     */
+    public void setContextProvider(ContextProvider contextProvider) {
+        if (contextProvider == null) {
+            throw new NullPointerException("Context provider object should be not null.");
+        }
+        this.contextProvider = contextProvider;
+    }
+
+    public Logger getParentLogger() throws SQLFeatureNotSupportedException {
+        return dataSource.getParentLogger();
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * Copyright 2009-2016 Andrey Grigorov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.grand.ids.jdbc.knowledgemodule;
+
+import com.grand.ids.UserId;
+import com.grand.ids.jdbc.CapturingResultSet;
+import com.grand.ids.model.Table;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Общие данные анализа результата одного запроса. Контекст создаётся один
+ * раз для события безопасности и передаётся сначала в
+ * {@link KnowledgeModule#getRelationGraphs(AnalysisContext)}, а затем, если
+ * результат признан нормальным, в
+ * {@link KnowledgeModule#updateKnowledge(AnalysisContext)}. Распознанные
+ * таблицы, значения первичного ключа, повторно выбранные полные записи и
+ * считанные из базы знаний сведения сохраняются в контексте, поэтому
+ * обучение не повторяет обращения к базе данных, уже выполненные при
+ * обнаружении аномалий.
+ * <p>
+ * Сведения о записях таблиц могут сохраняться из разных потоков (см.
+ * {@link GenericKnowledgeModule#setTableExecutor}); контекст не следует
+ * использовать для анализа другого результата.
+ * <p>
+ * Если анализ продолжается в другом потоке, обращения к соединению, через
+ * которое выполнен запрос, выполняются заранее в потоке приложения (см.
+ * {@link KnowledgeModule#prepareAnalysis(AnalysisContext)}): после передачи
+ * события соединение может использоваться приложением, быть закрыто или
+ * возвращено в пул.
+ *
+ * @author Andrey Grigorov
+ */
+public class AnalysisContext {
+
+    private final ResultSet resultSet;
+    private final UserId userId;
+    private final String sqlQuery;
+    private volatile CapturingResultSet capturedResultSet;
+    private volatile QueryPlan plan;
+    /**
+     * Анализ продолжается в другом потоке; соединение приложения недоступно
+     */
+    private volatile boolean detached;
+    /**
+     * Значения первичного ключа всех записей результата по таблицам
+     */
+    private final ConcurrentMap<Table, RecordKeys> objectIds = new ConcurrentHashMap<Table, RecordKeys>();
+    /**
+     * Полные записи, повторно выбранные для таблиц, поля которых
+     * присутствуют в результате не полностью
+     */
+    private final ConcurrentMap<Table, CapturingResultSet> completeResultSets =
+            new ConcurrentHashMap<Table, CapturingResultSet>();
+    /**
+     * Сведения из базы знаний по таблицам и именам, заданным модулем знаний
+     */
+    private final ConcurrentMap<Table, ConcurrentMap<String, Object>> knowledge =
+            new ConcurrentHashMap<Table, ConcurrentMap<String, Object>>();
+
+    /**
+     * Создать контекст анализа.
+     *
+     * @param resultSet результат выполнения запроса
+     * @param userId    идентификатор пользователя
+     * @param sqlQuery  текст выполненного SQL-запроса (для запросов с
+     *                  параметрами - без подстановки значений параметров)
+     */
+    public AnalysisContext(ResultSet resultSet, UserId userId, String sqlQuery) {
+        this.resultSet = resultSet;
+        this.userId = userId;
+        this.sqlQuery = sqlQuery;
+    }
+
+    public ResultSet getResultSet() {
+        return resultSet;
+    }
+
+    public UserId getUserId() {
+        return userId;
+    }
+
+    public String getSqlQuery() {
+        return sqlQuery;
+    }
+
+    /**
+     * Получить результат выполнения запроса, считанный в память. Результат
+     * считывается при первом обращении.
+     *
+     * @return считанный в память результат
+     * @throws SQLException ошибка при чтении результата
+     */
+    public CapturingResultSet getCapturedResultSet() throws SQLException {
+        CapturingResultSet captured = capturedResultSet;
+        if (captured == null) {
+            synchronized (this) {
+                captured = capturedResultSet;
+                if (captured == null) {
+                    captured = CapturingResultSet.capture(resultSet);
+                    capturedResultSet = captured;
+                }
+            }
+        }
+        return captured;
+    }
+
+    /**
+     * Получить соединение, через которое выполнен запрос.
+     *
+     * @return соединение или null, если анализ передан другому потоку (см.
+     * {@link #detach()}) или соединение определить невозможно
+     * @throws SQLException ошибка при чтении результата
+     */
+    public Connection getConnection() throws SQLException {
+        if (detached) {
+            return null;
+        }
+        Statement statement = getCapturedResultSet().getSourceStatement();
+        return statement != null ? statement.getConnection() : null;
+    }
+
+    /**
+     * Запретить дальнейшие обращения к соединению, через которое выполнен
+     * запрос; вызывается после подготовки анализа к передаче в другой поток.
+     */
+    public void detach() {
+        detached = true;
+    }
+
+    public boolean isDetached() {
+        return detached;
+    }
+
+    QueryPlan getPlan() {
+        return plan;
+    }
+
+    void setPlan(QueryPlan plan) {
+        this.plan = plan;
+    }
+
+    RecordKeys getObjectIds(Table table) {
+        return objectIds.get(table);
+    }
+
+    void putObjectIds(Table table, RecordKeys ids) {
+        objectIds.put(table, ids);
+    }
+
+    CapturingResultSet getCompleteResultSet(Table table) {
+        return completeResultSets.get(table);
+    }
+
+    void putCompleteResultSet(Table table, CapturingResultSet completeResultSet) {
+        completeResultSets.put(table, completeResultSet);
+    }
+
+    /**
+     * Получить сохранённые сведения из базы знаний.
+     *
+     * @param table описание таблицы
+     * @param name  имя сведений, заданное модулем знаний
+     * @return сведения или null, если они не сохранялись
+     */
+    public Object getKnowledge(Table table, String name) {
+        ConcurrentMap<String, Object> tableKnowledge = knowledge.get(table);
+        return tableKnowledge != null ? tableKnowledge.get(name) : null;
+    }
+
+    /**
+     * Сохранить сведения из базы знаний для повторного использования.
+     *
+     * @param table описание таблицы
+     * @param name  имя сведений, заданное модулем знаний
+     * @param value сведения
+     */
+    public void putKnowledge(Table table, String name, Object value) {
+        ConcurrentMap<String, Object> tableKnowledge = knowledge.get(table);
+        if (tableKnowledge == null) {
+            ConcurrentMap<String, Object> newKnowledge = new ConcurrentHashMap<String, Object>();
+            tableKnowledge = knowledge.putIfAbsent(table, newKnowledge);
+            if (tableKnowledge == null) {
+                tableKnowledge = newKnowledge;
+            }
+        }
+        tableKnowledge.put(name, value);
+    }
+}
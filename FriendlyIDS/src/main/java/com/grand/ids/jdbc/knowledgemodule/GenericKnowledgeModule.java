@@ -16,19 +16,34 @@
 package com.grand.ids.jdbc.knowledgemodule;
 
 import com.grand.ids.UserId;
+import com.grand.ids.jdbc.CapturingResultSet;
+import com.grand.ids.jdbc.SchemaCatalog;
 import com.grand.ids.model.Column;
 import com.grand.ids.model.Graph;
 import com.grand.ids.model.Schema;
 import com.grand.ids.model.Table;
+import com.grand.ids.utils.sql.LruMap;
+import com.grand.ids.utils.sql.SqlAliases;
+import com.grand.ids.utils.sql.SqlTemplate;
+import com.grand.ids.utils.sql.SqlTemplateCache;
 import org.apache.log4j.Logger;
 
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
 import java.util.*;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 /**
  * Абстрактный модуль знаний, использующий в качестве базового класса для других
@@ -45,8 +60,62 @@ public abstract class GenericKnowledgeModule implements KnowledgeModule {
      */
     protected Schema schema;
     protected LinkPredictionMode linkPredictionMode;
-    private Map<String, Set<String>> tableNamesSets = new HashMap<String, Set<String>>();
-    private Map<String, Set<String>> columnNamesSets = new HashMap<String, Set<String>>();
+    /**
+     * Защищаемые таблицы по именам в верхнем регистре (см. {@link #getProtectedTable(String)})
+     */
+    private volatile TableIndex tableIndex;
+    /**
+     * Максимальное количество записей, по которым строится граф; 0 - без
+     * ограничения
+     */
+    private volatile int maxRowsPerGraph = 0;
+    private volatile RowSamplingMode rowSamplingMode = RowSamplingMode.RESERVOIR;
+    /**
+     * Исполнитель для одновременной обработки таблиц (см.
+     * {@link #invokeForTables(List)}); null - последовательная обработка
+     */
+    private volatile Executor tableExecutor;
+    private volatile long tableTimeoutMillis = 0;
+
+    /**
+     * Максимальное количество планов, хранимых для одного шаблона запроса
+     * (разные планы соответствуют разной структуре результата, например, при
+     * выборке "SELECT *" до и после изменения таблицы)
+     */
+    private final static int MAX_PLANS_PER_TEMPLATE = 16;
+
+    /**
+     * Трудоёмкость повторной выборки одной записи (см.
+     * {@link #getCompleteResultSet(Table, RecordKeys, Connection)}) относительно
+     * сравнения пары записей при построении графа
+     */
+    private final static long REFETCH_ROW_COST = 20;
+
+    /**
+     * Максимальное количество параметров одного запроса повторной выборки
+     * по умолчанию
+     */
+    private final static int DEFAULT_REFETCH_CHUNK_SIZE = 512;
+
+    /**
+     * Максимальное количество таблиц, для которых хранятся тексты запросов
+     * повторной выборки
+     */
+    private final static int MAX_REFETCH_QUERY_TABLES = 256;
+
+    private final static RecordKeys EMPTY_KEYS = new RecordKeys(new long[0], new BitSet(), 0);
+
+    private volatile int refetchChunkSize = DEFAULT_REFETCH_CHUNK_SIZE;
+    /**
+     * Тексты запросов повторной выборки по таблицам и количеству
+     * выбираемых записей
+     */
+    private final ConcurrentMap<Table, ConcurrentMap<Integer, String>> refetchQueries =
+            new ConcurrentHashMap<Table, ConcurrentMap<Integer, String>>();
+    /**
+     * Кодировщики значений первичного ключа по таблицам
+     */
+    private final ConcurrentMap<Table, KeyCodec> keyCodecs = new ConcurrentHashMap<Table, KeyCodec>();
 
     /**
      * Определение таблиц, в которой хранятся объекты, выбираемые запросом.
@@ -55,123 +124,219 @@ public abstract class GenericKnowledgeModule implements KnowledgeModule {
      * @return список таблиц, объекты из которых были выбраны запросом.
      */
     protected List<Table> recognizeTables(final ResultSet resultSet, final String sqlQuery) {
-        List<Table> res = new ArrayList<Table>();
+        try {
+            return new ArrayList<Table>(getQueryPlan(CapturingResultSet.capture(resultSet), sqlQuery).getTables());
+        } catch (SQLException ex) {
+            return new ArrayList<Table>();
+        }
+    }
+
+    /**
+     * Получить план распознавания результата выполнения запроса. Планы
+     * хранятся в шаблоне запроса (см. {@link SqlTemplateCache}) отдельно для
+     * каждой структуры результата, поэтому для повторяющихся запросов
+     * распознавание сводится к поиску в хэш-таблице. При превышении
+     * количества структур для шаблона вытесняется план, дольше всех не
+     * использовавшийся.
+     *
+     * @param resultSet результат выполнения запроса
+     * @param sqlQuery  текст запроса
+     * @return план распознавания
+     */
+    @SuppressWarnings("unchecked")
+    protected QueryPlan getQueryPlan(final CapturingResultSet resultSet, final String sqlQuery) {
+        SqlTemplate template = SqlTemplateCache.getSharedCache().get(sqlQuery);
+        Object attribute = template.getAttribute(this);
+        Map<String, QueryPlan> plans;
+        if (attribute instanceof Map) {
+            plans = (Map<String, QueryPlan>) attribute;
+        } else {
+            plans = Collections.synchronizedMap(new LruMap<String, QueryPlan>(MAX_PLANS_PER_TEMPLATE));
+            template.setAttribute(this, plans);
+        }
+        String shape = resultSet.getShape();
+        QueryPlan plan = plans.get(shape);
+        if (plan == null) {
+            plan = createQueryPlan(resultSet, sqlQuery, template.getAliases());
+            if (plan != null) {
+                plans.put(shape, plan);
+            } else {
+                // распознавание не удалось из-за ошибки; план не запоминается
+                plan = new QueryPlan(new ArrayList<Table>(), new HashMap<Table, int[]>(), new HashSet<Table>());
+            }
+        }
+        return plan;
+    }
+
+    /**
+     * Получить план распознавания результата выполнения запроса, сохранённый
+     * в контексте анализа; при первом обращении план определяется и
+     * сохраняется в контексте.
+     *
+     * @param context контекст анализа результата запроса
+     * @return план распознавания
+     * @throws SQLException ошибка при чтении результата
+     */
+    protected QueryPlan getQueryPlan(final AnalysisContext context) throws SQLException {
+        QueryPlan plan = context.getPlan();
+        if (plan == null) {
+            plan = getQueryPlan(context.getCapturedResultSet(), context.getSqlQuery());
+            context.setPlan(plan);
+        }
+        return plan;
+    }
+
+    /**
+     * Распознать таблицы, объекты из которых выбраны запросом.
+     *
+     * @param resultSet результат выполнения запроса
+     * @param sqlQuery  текст запроса
+     * @param aliases   алиасы таблиц и полей запроса
+     * @return план распознавания или null, если при распознавании произошла
+     * ошибка
+     */
+    private QueryPlan createQueryPlan(final CapturingResultSet resultSet, final String sqlQuery,
+                                      final SqlAliases aliases) {
         try {
             ResultSetMetaData resultSetMetadata = resultSet.getMetaData();
+            Connection connection = resultSet.getSourceStatement().getConnection();
+            SchemaCatalog catalog = SchemaCatalog.of(connection);
             int colCount = resultSetMetadata.getColumnCount();
             String[] columnTableNames = new String[colCount];
             String[] columnNames = new String[colCount];
             List<String> tableNames = new ArrayList<String>();
             for (int i = 1; i <= colCount; i++) {
                 String tableName = resultSetMetadata.getTableName(i);
+                String columnName = resultSetMetadata.getColumnName(i);
+                SqlAliases.ColumnReference columnReference = aliases.getColumn(columnName);
+                if (tableName == null || tableName.length() == 0) {
+                    // драйвер не сообщает имя таблицы; определим её по тексту запроса
+                    tableName = guessTableName(aliases, columnReference);
+                }
                 // проверим, существует ли в БД таблица с таким именем;
                 // если нет, то значит текущее значение tableName - алиас;
-                if (!isTableExists(tableName, resultSet.getStatement().getConnection())) {
+                if (!catalog.containsTable(connection, tableName)) {
                     // попробуем распознать таблицу по алиасу
-                    Matcher matcher = Pattern.compile("(\\w+)(\\s)+" + tableName + "(,|\\s)").matcher(sqlQuery);
-                    if (matcher.find()) {
-                        String tempTableName = matcher.group(1);
-                        if (isTableExists(tempTableName, resultSet.getStatement().getConnection())) {
-                            tableName = tempTableName;
-                        }
+                    SqlAliases.TableReference tableReference = aliases.getTable(tableName);
+                    if (tableReference != null && catalog.containsTable(connection, tableReference.getName())) {
+                        tableName = tableReference.getName();
                     }
                 }
                 columnTableNames[i - 1] = tableName;
                 if (!tableNames.contains(tableName)) {
                     tableNames.add(tableName);
                 }
-                String columnName = resultSetMetadata.getColumnName(i);
                 // проверим, настоящее ли имя поля храниться в columnName или алиас
-                if (!isColumnExists(columnName, tableName, resultSet.getStatement().getConnection())) {
+                if (columnReference != null && !catalog.containsColumn(connection, tableName, columnName)) {
                     // это алиас, попробуем распознать имя поля по алиасу
-                    Matcher matcher = Pattern.compile("(\\w+)(\\s)+AS(\\s)+" + columnName + "(,|\\s)").matcher(sqlQuery);
-                    if (matcher.find()) {
-                        String tempColumnName = matcher.group(1);
-                        if (isColumnExists(tempColumnName, tableName, resultSet.getStatement().getConnection())) {
-                            columnName = tempColumnName;
-                        }
+                    if (catalog.containsColumn(connection, tableName, columnReference.getName())) {
+                        columnName = columnReference.getName();
                     }
                 }
                 columnNames[i - 1] = columnName;
             }
+            List<Table> tables = new ArrayList<Table>();
+            Map<Table, int[]> keyIndexes = new HashMap<Table, int[]>();
+            Set<Table> completeTables = new HashSet<Table>();
             for (String tableName : tableNames) {
-                for (Table table : schema.getTables()) {
-                    if (table.getName().equalsIgnoreCase(tableName)) {
-                        boolean ok = true;
-                        for (String primaryKeyName : table.getPrimaryKeys()) {
-                            boolean found = false;
-                            for (int i = 1; i <= colCount; i++) {
-                                if (columnTableNames[i - 1].equalsIgnoreCase(tableName)
-                                        && columnNames[i - 1].equalsIgnoreCase(primaryKeyName)) {
-                                    found = true;
-                                    break;
-                                }
-                            }
-                            if (!found) {
-                                ok = false;
-                                break;
-                            }
-                        }
-                        if (ok) {
-                            res.add(table);
+                Table table = getProtectedTable(tableName);
+                if (table != null && !keyIndexes.containsKey(table)) {
+                    List<String> primaryKeys = table.getPrimaryKeys();
+                    int[] indexes = new int[primaryKeys.size()];
+                    boolean ok = true;
+                    for (int k = 0; k < indexes.length && ok; k++) {
+                        indexes[k] = findColumn(columnTableNames, columnNames, tableName, primaryKeys.get(k));
+                        ok = indexes[k] > 0;
+                    }
+                    if (ok) {
+                        tables.add(table);
+                        keyIndexes.put(table, indexes);
+                        if (resultSetIsComplete(resultSet, table)) {
+                            completeTables.add(table);
                         }
                     }
                 }
             }
+            return new QueryPlan(tables, keyIndexes, completeTables);
         } catch (Exception ex) {
+            LOG.debug("Не удалось распознать таблицы для запроса " + sqlQuery, ex);
+            return null;
         }
-        return res;
     }
 
     /**
-     * Проверка существования в БД таблицы с указанным именем.
+     * Определить таблицу поля, для которого драйвер не сообщает имя таблицы:
+     * по имени или алиасу таблицы, указанному перед именем поля в списке
+     * выборки, либо по единственной таблице в списке FROM.
      *
-     * @param tableName  имя таблицы
-     * @param connection соединение с базой данных
-     * @return true - таблица существует; false - таблица не существует
+     * @return имя таблицы или пустая строка, если таблицу определить не удалось
      */
-    private boolean isTableExists(String tableName, Connection connection) {
-        try {
-            String setId = connection.getMetaData().getURL() + connection.getMetaData().getUserName();
-            if (tableNamesSets.get(setId) == null) {
-                Set<String> tableNames = new TreeSet<String>();
-                ResultSet resultSet = connection.getMetaData().getTables(null, null, "", new String[]{"TABLE", "VIEW"});
-                while (resultSet.next()) {
-                    tableNames.add(resultSet.getString("TABLE_NAME").toUpperCase());
-                }
-                resultSet.close();
-                tableNamesSets.put(setId, tableNames);
+    private static String guessTableName(SqlAliases aliases, SqlAliases.ColumnReference columnReference) {
+        if (columnReference != null && columnReference.getQualifier() != null) {
+            SqlAliases.TableReference tableReference = aliases.getTable(columnReference.getQualifier());
+            return tableReference != null ? tableReference.getName() : "";
+        }
+        List<SqlAliases.TableReference> tables = aliases.getTables();
+        return tables.size() == 1 ? tables.get(0).getName() : "";
+    }
+
+    /**
+     * Найти поле с указанными именами таблицы и поля среди распознанных полей
+     * результата выполнения запроса.
+     *
+     * @return номер поля (начиная с 1) или 0, если поле не найдено
+     */
+    private static int findColumn(String[] columnTableNames, String[] columnNames,
+                                  String tableName, String columnName) {
+        for (int i = 0; i < columnNames.length; i++) {
+            if (columnTableNames[i].equalsIgnoreCase(tableName)
+                    && columnNames[i].equalsIgnoreCase(columnName)) {
+                return i + 1;
             }
-            return tableNamesSets.get(setId).contains(tableName.toUpperCase());
-        } catch (Exception ex) {
         }
-        return false;
+        return 0;
     }
 
     /**
-     * Проверка существования в таблице поля с указанным именем.
+     * Найти описание защищаемой таблицы по имени без учёта регистра.
+     * Индекс имён строится при первом обращении и перестраивается, если
+     * модулю назначено другое описание защищаемых объектов.
      *
-     * @param columnName имя поля
-     * @param tableName  имя таблицы
-     * @param connection соединение с базой данных
-     * @return true - поле существует; false - поле не существует
+     * @param tableName имя таблицы
+     * @return описание таблицы или null, если таблица не защищается
      */
-    private boolean isColumnExists(String columnName, String tableName, Connection connection) {
-        try {
-            String setId = connection.getMetaData().getURL() + connection.getMetaData().getUserName() + tableName;
-            if (columnNamesSets.get(setId) == null) {
-                Set<String> columnNames = new TreeSet<String>();
-                ResultSet resultSet = connection.getMetaData().getPrimaryKeys(null, null, tableName);
-                while (resultSet.next()) {
-                    columnNames.add(resultSet.getString("COLUMN_NAME").toUpperCase());
+    protected Table getProtectedTable(String tableName) {
+        if (tableName == null || schema == null) {
+            return null;
+        }
+        TableIndex index = tableIndex;
+        if (index == null || index.schema != schema || index.size != schema.getTables().size()) {
+            index = new TableIndex(schema);
+            tableIndex = index;
+        }
+        return index.tables.get(tableName.toUpperCase());
+    }
+
+    /**
+     * Индекс защищаемых таблиц по именам в верхнем регистре.
+     */
+    private final static class TableIndex {
+
+        final Schema schema;
+        final int size;
+        final Map<String, Table> tables = new HashMap<String, Table>();
+
+        TableIndex(Schema schema) {
+            this.schema = schema;
+            List<Table> schemaTables = schema.getTables();
+            this.size = schemaTables.size();
+            for (Table table : schemaTables) {
+                String key = table.getName().toUpperCase();
+                if (!tables.containsKey(key)) {
+                    tables.put(key, table);
                 }
-                resultSet.close();
-                columnNamesSets.put(setId, columnNames);
             }
-            return columnNamesSets.get(setId).contains(columnName.toUpperCase());
-        } catch (Exception ex) {
         }
-        return false;
     }
 
     /**
@@ -179,24 +344,106 @@ public abstract class GenericKnowledgeModule implements KnowledgeModule {
      *
      * @param resultSet результирующее множество
      * @param table     описание таблицы
-     * @return список идентификаторов объектов
+     * @return идентификаторы объектов в порядке записей
      */
-    protected List<List<Object>> getObjectIds(final ResultSet resultSet, final Table table) {
-        List<List<Object>> ids = new ArrayList<List<Object>>();
+    protected RecordKeys getObjectIds(final CapturingResultSet resultSet, final Table table) {
         try {
-            while (resultSet.next()) {
-                List<Object> key = new ArrayList<Object>();
-                for (String columnName : table.getPrimaryKeys()) {
-                    key.add(resultSet.getObject(columnName));
-                }
-                ids.add(key);
-            }
-            resultSet.beforeFirst();
+            return getObjectIds(resultSet, table, getColumnIndexes(resultSet, table, table.getPrimaryKeys()));
+        } catch (Exception ex) {
+        }
+        return EMPTY_KEYS;
+    }
+
+    /**
+     * Получение списка идентификаторов объектов, попавших в результирующее
+     * множество, по заранее определённым номерам полей первичного ключа
+     * (см. {@link QueryPlan#getKeyIndexes(Table)}).
+     *
+     * @param resultSet  результирующее множество
+     * @param table      описание таблицы
+     * @param keyColumns номера полей первичного ключа (начиная с 1)
+     * @return идентификаторы объектов в порядке записей
+     */
+    protected RecordKeys getObjectIds(final CapturingResultSet resultSet, final Table table, final int[] keyColumns) {
+        try {
+            return getKeyCodec(table).read(resultSet, keyColumns);
         } catch (Exception ex) {
         }
+        return EMPTY_KEYS;
+    }
+
+    /**
+     * Получение идентификаторов всех объектов таблицы, попавших в результат
+     * запроса, с сохранением в контексте анализа.
+     *
+     * @param context контекст анализа результата запроса
+     * @param plan    план распознавания результата
+     * @param table   описание таблицы из плана
+     * @return идентификаторы объектов в порядке записей
+     * @throws SQLException ошибка при чтении результата
+     */
+    protected RecordKeys getObjectIds(final AnalysisContext context, final QueryPlan plan,
+                                      final Table table) throws SQLException {
+        RecordKeys ids = context.getObjectIds(table);
+        if (ids == null) {
+            ids = getObjectIds(context.getCapturedResultSet(), table, plan.getKeyIndexes(table));
+            context.putObjectIds(table, ids);
+        }
         return ids;
     }
 
+    /**
+     * Получить кодировщик значений первичного ключа таблицы.
+     *
+     * @param table описание таблицы
+     * @return кодировщик
+     */
+    protected KeyCodec getKeyCodec(final Table table) {
+        KeyCodec codec = keyCodecs.get(table);
+        if (codec == null) {
+            if (keyCodecs.size() >= MAX_REFETCH_QUERY_TABLES) {
+                keyCodecs.clear();
+            }
+            codec = KeyCodec.forTable(table);
+            keyCodecs.put(table, codec);
+        }
+        return codec;
+    }
+
+    /**
+     * Определение номеров полей таблицы в результирующем множестве.
+     *
+     * @param resultSet   результирующее множество
+     * @param table       описание таблицы
+     * @param columnNames имена полей таблицы
+     * @return номера полей (начиная с 1) в порядке, заданном в columnNames
+     * @throws SQLException хотя бы одно из полей отсутствует в результирующем множестве
+     */
+    protected int[] getColumnIndexes(final CapturingResultSet resultSet, final Table table,
+                                     final List<String> columnNames) throws SQLException {
+        int[] indexes = new int[columnNames.size()];
+        for (int i = 0; i < indexes.length; i++) {
+            indexes[i] = resultSet.findColumn(table.getName(), columnNames.get(i));
+        }
+        return indexes;
+    }
+
+    /**
+     * Определение номеров всех полей таблицы в результирующем множестве.
+     *
+     * @param resultSet результирующее множество
+     * @param table     описание таблицы
+     * @return номера полей (начиная с 1) в порядке, заданном в описании таблицы
+     * @throws SQLException хотя бы одно из полей отсутствует в результирующем множестве
+     */
+    protected int[] getColumnIndexes(final CapturingResultSet resultSet, final Table table) throws SQLException {
+        List<String> columnNames = new ArrayList<String>();
+        for (Column column : table.getColumns()) {
+            columnNames.add(column.getName());
+        }
+        return getColumnIndexes(resultSet, table, columnNames);
+    }
+
     /**
      * Определяем, достаточно ли данных в выборке, чтобы выполнить операцию
      * обновления служебных таблиц.
@@ -222,8 +469,33 @@ public abstract class GenericKnowledgeModule implements KnowledgeModule {
         return true;
     }
 
+    public int getRefetchChunkSize() {
+        return refetchChunkSize;
+    }
+
+    /**
+     * Задать максимальное количество параметров одного запроса повторной
+     * выборки (см. {@link #getCompleteResultSet(Table, RecordKeys, Connection)}).
+     * Значение должно быть меньше ограничения драйвера базы данных на
+     * количество параметров запроса.
+     *
+     * @param refetchChunkSize максимальное количество параметров
+     */
+    public void setRefetchChunkSize(int refetchChunkSize) {
+        if (refetchChunkSize <= 0) {
+            throw new IllegalArgumentException("Refetch chunk size should be positive.");
+        }
+        this.refetchChunkSize = refetchChunkSize;
+    }
+
     /**
-     * Получение полных данных для рассматриваемой таблицы.
+     * Получение полных данных для рассматриваемой таблицы. Записи
+     * выбираются частями, в каждой части не больше
+     * {@link #getRefetchChunkSize()} параметров. Количество записей в части
+     * округляется вверх до степени двойки (недостающие параметры повторяют
+     * последний идентификатор), поэтому для таблицы используется лишь
+     * несколько разных текстов запроса, и кэш подготовленных запросов
+     * драйвера или пула соединений используется повторно.
      *
      * @param table      описание защищаемой таблицы
      * @param ids        список идентификаторов объектов, которые необходимо извлечь;
@@ -231,9 +503,131 @@ public abstract class GenericKnowledgeModule implements KnowledgeModule {
      *                   в описании защищаемой таблицы
      * @param connection соединение с базой данных, для которой производится
      *                   мониторинг запросов
+     * @return считанный в память результат выборки полных данных
+     */
+    protected CapturingResultSet getCompleteResultSet(Table table, RecordKeys ids, Connection connection) throws Exception {
+        // записи с неопределённым значением ключа выбрать невозможно
+        RecordKeys keys = ids.distinct();
+        int keySize = table.getPrimaryKeys().size();
+        int maxChunkSize = Math.max(1, refetchChunkSize / keySize);
+        CapturingResultSet completeResultSet = null;
+        int from = 0;
+        do {
+            int count = Math.min(maxChunkSize, keys.size() - from);
+            int chunkSize = count == 0 ? 0 : Math.min(roundUpToPowerOfTwo(count), maxChunkSize);
+            String query = getRefetchQuery(table, chunkSize);
+            LOG.debug("Выполнение запроса за полными данными: " + query);
+            PreparedStatement preparedStatement = connection.prepareStatement(query);
+            try {
+                int parameterIndex = 1;
+                for (int i = 0; i < chunkSize; i++) {
+                    int index = from + Math.min(i, count - 1);
+                    for (int k = 0; k < keySize; k++) {
+                        preparedStatement.setObject(parameterIndex++, keys.getValue(index, k));
+                    }
+                }
+                ResultSet resultSet = preparedStatement.executeQuery();
+                try {
+                    if (completeResultSet == null) {
+                        completeResultSet = new CapturingResultSet(resultSet);
+                    } else {
+                        completeResultSet.appendRows(resultSet);
+                    }
+                } finally {
+                    resultSet.close();
+                }
+            } finally {
+                preparedStatement.close();
+            }
+            from += maxChunkSize;
+        } while (from < keys.size());
+        return completeResultSet;
+    }
+
+    /**
+     * Получение полных данных для рассматриваемой таблицы по всем записям
+     * результата запроса. Повторная выборка выполняется один раз для
+     * контекста анализа.
+     *
+     * @param context    контекст анализа результата запроса
+     * @param plan       план распознавания результата
+     * @param table      описание таблицы из плана
+     * @param connection соединение с базой данных, для которой производится
+     *                   мониторинг запросов; null - используются только
+     *                   записи, сохранённые в контексте
+     * @return результат запроса, если он содержит все поля таблицы, иначе
+     * считанный в память результат выборки полных данных; null, если полные
+     * записи не были выбраны заранее, а соединение недоступно
+     */
+    protected CapturingResultSet getCompleteResultSet(final AnalysisContext context, final QueryPlan plan,
+                                                      final Table table, final Connection connection) throws Exception {
+        if (plan.isComplete(table)) {
+            return context.getCapturedResultSet();
+        }
+        CapturingResultSet completeResultSet = context.getCompleteResultSet(table);
+        if (completeResultSet == null && connection != null) {
+            completeResultSet = getCompleteResultSet(table, getObjectIds(context, plan, table), connection);
+            context.putCompleteResultSet(table, completeResultSet);
+        }
+        return completeResultSet;
+    }
+
+    /**
+     * Выбрать из полных записей таблицы записи с указанными значениями
+     * первичного ключа.
+     *
+     * @param completeResultSet полные записи таблицы
+     * @param table             описание таблицы
+     * @param ids               значения первичного ключа выбираемых записей
+     * @return курсор, которому доступны только выбранные записи
      */
-    protected ResultSet getCompleteResultSet(Table table, List<List<Object>> ids, Connection connection) throws Exception {
-        // FIXME: сейчас НЕ работает с составными первичными ключами
+    private CapturingResultSet selectRecords(final CapturingResultSet completeResultSet, final Table table,
+                                             final RecordKeys ids) {
+        Set<RecordKey> selectedIds = new HashSet<RecordKey>();
+        for (int i = 0; i < ids.size(); i++) {
+            selectedIds.add(ids.get(i));
+        }
+        RecordKeys completeIds = getObjectIds(completeResultSet, table);
+        BitSet rows = new BitSet(completeIds.size());
+        for (int row = 0; row < completeIds.size(); row++) {
+            if (selectedIds.contains(completeIds.get(row))) {
+                rows.set(row);
+            }
+        }
+        return completeResultSet.select(rows);
+    }
+
+    /**
+     * Получить текст запроса повторной выборки записей таблицы. Для
+     * составного первичного ключа условие записывается как дизъюнкция
+     * равенств, поддерживаемая всеми базами данных.
+     *
+     * @param table     описание защищаемой таблицы
+     * @param chunkSize количество выбираемых записей; 0 - запрос с пустым
+     *                  результатом
+     * @return текст запроса
+     */
+    private String getRefetchQuery(Table table, int chunkSize) {
+        ConcurrentMap<Integer, String> queries = refetchQueries.get(table);
+        if (queries == null) {
+            if (refetchQueries.size() >= MAX_REFETCH_QUERY_TABLES) {
+                refetchQueries.clear();
+            }
+            ConcurrentMap<Integer, String> newQueries = new ConcurrentHashMap<Integer, String>();
+            queries = refetchQueries.putIfAbsent(table, newQueries);
+            if (queries == null) {
+                queries = newQueries;
+            }
+        }
+        String query = queries.get(chunkSize);
+        if (query == null) {
+            query = createRefetchQuery(table, chunkSize);
+            queries.put(chunkSize, query);
+        }
+        return query;
+    }
+
+    private static String createRefetchQuery(Table table, int chunkSize) {
         StringBuilder query = new StringBuilder();
         query.append("select ");
         for (int i = 0; i < table.getColumns().size(); i++) {
@@ -245,59 +639,415 @@ public abstract class GenericKnowledgeModule implements KnowledgeModule {
         query.append(" from ");
         query.append(table.getName());
         query.append(" where ");
-        query.append(table.getPrimaryKeys().get(0));
-        query.append(" in (");
-        for (int i = 0; i < ids.size(); i++) {
-            if (i != 0) {
-                query.append(",");
+        appendKeyCondition(query, table.getPrimaryKeys(), chunkSize);
+        return query.toString();
+    }
+
+    /**
+     * Добавить к тексту запроса условие выбора записей по значениям
+     * первичного ключа. Для составного первичного ключа условие
+     * записывается как дизъюнкция равенств.
+     *
+     * @param query       текст запроса
+     * @param primaryKeys имена полей первичного ключа
+     * @param chunkSize   количество выбираемых записей; 0 - условие, которому
+     *                    не удовлетворяет ни одна запись
+     */
+    protected static void appendKeyCondition(StringBuilder query, List<String> primaryKeys, int chunkSize) {
+        if (chunkSize == 0) {
+            query.append("1 = 0");
+        } else if (primaryKeys.size() == 1) {
+            query.append(primaryKeys.get(0));
+            query.append(" in (");
+            for (int i = 0; i < chunkSize; i++) {
+                if (i != 0) {
+                    query.append(", ");
+                }
+                query.append("?");
+            }
+            query.append(")");
+        } else {
+            for (int i = 0; i < chunkSize; i++) {
+                if (i != 0) {
+                    query.append(" or ");
+                }
+                query.append("(");
+                for (int k = 0; k < primaryKeys.size(); k++) {
+                    if (k != 0) {
+                        query.append(" and ");
+                    }
+                    query.append(primaryKeys.get(k));
+                    query.append(" = ?");
+                }
+                query.append(")");
             }
-            query.append("?");
         }
-        query.append(")");
-        LOG.debug("Выполнение запроса за полными данными: " + query.toString());
-        PreparedStatement preparedStatement = connection.prepareStatement(query.toString());
-        for (int i = 0; i < ids.size(); i++) {
-            preparedStatement.setObject(i + 1, ids.get(i).get(0));
+    }
+
+    /**
+     * Округлить положительное число вверх до степени двойки.
+     */
+    protected static int roundUpToPowerOfTwo(int value) {
+        int highestBit = Integer.highestOneBit(value);
+        return highestBit == value ? value : highestBit << 1;
+    }
+
+    /**
+     * Распознаются таблицы результата и для каждой таблицы выполняются
+     * обращения к соединению приложения (см.
+     * {@link #prepareTable(AnalysisContext, QueryPlan, Table, Connection)}).
+     */
+    @Override
+    public void prepareAnalysis(final AnalysisContext context) throws Exception {
+        if (context.isDetached()) {
+            return;
+        }
+        try {
+            QueryPlan plan = getQueryPlan(context);
+            Connection connection = context.getConnection();
+            for (Table table : plan.getTables()) {
+                prepareTable(context, plan, table, connection);
+            }
+        } finally {
+            context.detach();
+        }
+    }
+
+    /**
+     * Выполнить обращения к соединению приложения, необходимые для анализа
+     * записей таблицы в другом потоке, и сохранить их результаты в
+     * контексте. По умолчанию повторно выбираются полные записи, если
+     * результат запроса содержит не все поля таблицы.
+     *
+     * @param context    контекст анализа результата запроса
+     * @param plan       план распознавания результата
+     * @param table      описание таблицы из плана
+     * @param connection соединение, через которое выполнен запрос; null -
+     *                   соединение определить невозможно
+     * @throws Exception ошибка при обращении к базе данных
+     */
+    protected void prepareTable(final AnalysisContext context, final QueryPlan plan, final Table table,
+                                final Connection connection) throws Exception {
+        if (connection != null && !getObjectIds(context, plan, table).isEmpty()) {
+            getCompleteResultSet(context, plan, table, connection);
+        }
+    }
+
+    /**
+     * Заблаговременно загрузить знания о пользователе для таблиц, которые
+     * были распознаны в результатах предыдущих выполнений запроса с тем же
+     * шаблоном (см. {@link #getQueryPlan(CapturingResultSet, String)}). Для
+     * ещё не выполнявшихся запросов ничего не загружается.
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public void prefetchKnowledge(final UserId userId, final String sqlQuery) throws Exception {
+        Object attribute = SqlTemplateCache.getSharedCache().get(sqlQuery).getAttribute(this);
+        if (!(attribute instanceof Map)) {
+            return;
+        }
+        Map<String, QueryPlan> plans = (Map<String, QueryPlan>) attribute;
+        Set<Table> tables = new LinkedHashSet<Table>();
+        synchronized (plans) {
+            for (QueryPlan plan : plans.values()) {
+                tables.addAll(plan.getTables());
+            }
+        }
+        for (Table table : tables) {
+            prefetchTable(table, userId);
+        }
+    }
+
+    /**
+     * Загрузить знания о пользователе, относящиеся к таблице. По умолчанию
+     * ничего не делает; модули, хранящие знания в отдельном хранилище,
+     * переопределяют метод, чтобы последующий анализ обращался к памяти.
+     *
+     * @param table  описание таблицы
+     * @param userId идентификатор пользователя
+     * @throws Exception
+     */
+    protected void prefetchTable(Table table, UserId userId) throws Exception {
+    }
+
+    /**
+     * Оценка складывается для каждой распознанной таблицы из количества пар
+     * записей, сравниваемых при построении графа, стоимости повторной
+     * выборки записей, если результат запроса содержит не все поля, и
+     * стоимости обращения к знаниям (см.
+     * {@link #estimateKnowledgeCost(Table, UserId, long)}).
+     */
+    @Override
+    public long estimateAnalysisCost(final ResultSet sourceResultSet, final UserId userId, final String sqlQuery) throws Exception {
+        final CapturingResultSet resultSet = CapturingResultSet.capture(sourceResultSet);
+        QueryPlan plan = getQueryPlan(resultSet, sqlQuery);
+        long rowCount = resultSet.getRowCount();
+        if (maxRowsPerGraph > 0 && rowCount > maxRowsPerGraph) {
+            rowCount = maxRowsPerGraph;
+        }
+        long cost = 0;
+        for (Table table : plan.getTables()) {
+            cost += rowCount * (rowCount + 1) / 2;
+            if (!plan.isComplete(table)) {
+                cost += rowCount * REFETCH_ROW_COST;
+            }
+            cost += estimateKnowledgeCost(table, userId, rowCount);
+        }
+        return cost;
+    }
+
+    /**
+     * Оценить трудоёмкость получения знаний о записях таблицы при
+     * построении графа в тех же условных единицах, что и
+     * {@link #estimateAnalysisCost(ResultSet, UserId, String)}. По умолчанию
+     * знания считаются доступными без заметных затрат.
+     *
+     * @param table    описание таблицы
+     * @param userId   идентификатор пользователя
+     * @param rowCount количество записей таблицы в результате запроса
+     * @return оценка трудоёмкости
+     */
+    protected long estimateKnowledgeCost(Table table, UserId userId, long rowCount) {
+        return 0;
+    }
+
+    public int getMaxRowsPerGraph() {
+        return maxRowsPerGraph;
+    }
+
+    /**
+     * Ограничить количество записей, по которым строится граф. Если
+     * результат запроса содержит больше записей, граф строится по выборке
+     * (см. {@link #setRowSamplingMode(RowSamplingMode)}), а доля выбранных
+     * записей сообщается через {@link Graph#getSamplingRatio()}.
+     *
+     * @param maxRowsPerGraph максимальное количество записей; 0 - без
+     *                        ограничения
+     */
+    public void setMaxRowsPerGraph(int maxRowsPerGraph) {
+        if (maxRowsPerGraph < 0) {
+            throw new IllegalArgumentException("Max rows per graph should not be negative.");
+        }
+        this.maxRowsPerGraph = maxRowsPerGraph;
+    }
+
+    public RowSamplingMode getRowSamplingMode() {
+        return rowSamplingMode;
+    }
+
+    public void setRowSamplingMode(RowSamplingMode rowSamplingMode) {
+        if (rowSamplingMode == null) {
+            throw new IllegalArgumentException("Row sampling mode should not be null.");
         }
-        return preparedStatement.executeQuery();
+        this.rowSamplingMode = rowSamplingMode;
     }
 
     @Override
-    public List<Graph> getRelationGraphs(final ResultSet resultSet, final UserId userId, final String sqlQuery) throws Exception {
+    public List<Graph> getRelationGraphs(final ResultSet sourceResultSet, final UserId userId, final String sqlQuery) throws Exception {
+        return getRelationGraphs(new AnalysisContext(sourceResultSet, userId, sqlQuery));
+    }
+
+    @Override
+    public UpdateResult updateKnowledge(final ResultSet sourceResultSet, final UserId userId, final String sqlQuery) throws Exception {
+        return updateKnowledge(new AnalysisContext(sourceResultSet, userId, sqlQuery));
+    }
+
+    /**
+     * Значения первичного ключа и полные записи сохраняются в контексте,
+     * если граф строится по всем записям результата; при построении графа по
+     * выборке записей (см. {@link #setMaxRowsPerGraph(int)}) они относятся
+     * только к выбранным записям и для обучения непригодны. Если анализ
+     * подготовлен к выполнению в другом потоке (см.
+     * {@link #prepareAnalysis(AnalysisContext)}), полные записи берутся
+     * только из контекста.
+     */
+    @Override
+    public List<Graph> getRelationGraphs(final AnalysisContext context) throws Exception {
+        final UserId userId = context.getUserId();
+        CapturingResultSet resultSet = context.getCapturedResultSet();
         // определить в каких таблица БД хранятся объекты, выбранные в результате выполнения запроса
-        List<Table> tables = recognizeTables(resultSet, sqlQuery);
-        if (tables.isEmpty()) {
+        QueryPlan plan = getQueryPlan(context);
+        if (plan.getTables().isEmpty()) {
             // невозможно однозначно определить таблицу
             return null;
         }
+        final int sourceRowCount = resultSet.getSourceRowCount();
+        int maxRows = maxRowsPerGraph;
+        final boolean sampled = maxRows > 0 && resultSet.getRowCount() > maxRows;
+        // результат потокового чтения уже является выборкой строк запроса
+        final boolean partial = sampled || sourceRowCount > resultSet.getRowCount();
+        if (sampled) {
+            // граф строится по выборке записей; повторная выборка полей
+            // также выполняется только для выбранных записей
+            resultSet = resultSet.select(sampleRows(resultSet, plan, maxRows));
+        }
         List<Graph> graphs = new ArrayList<Graph>();
-        for (Table table : tables) {
+        List<Callable<Graph>> tasks = new ArrayList<Callable<Graph>>();
+        for (final Table table : plan.getTables()) {
             // определили какие объекты выбрали в данной выборке
-            List<List<Object>> ids = getObjectIds(resultSet, table);
+            RecordKeys ids = sampled
+                    ? getObjectIds(resultSet, table, plan.getKeyIndexes(table))
+                    : getObjectIds(context, plan, table);
             if (ids.isEmpty()) {
                 // результат выборки - пустое множество; аномалий не обнаружено
+                graphs.addAll(invokeForTables(tasks));
                 graphs.add(new Graph(0));
                 return graphs;
             }
 
-            final ResultSet completeResultSet;
-            if (!resultSetIsComplete(resultSet, table)) {
-                // данных в анализируемой выборке недостаточно, придётся делать ещё один запрос
-                Connection connection = resultSet.getStatement().getConnection();
-                if (connection != null) {
+            final CapturingResultSet completeResultSet;
+            if (!plan.isComplete(table)) {
+                // данных в анализируемой выборке недостаточно, придётся делать
+                // ещё один запрос или взять записи, выбранные при подготовке анализа
+                Connection connection = context.getConnection();
+                CapturingResultSet preparedResultSet = context.getCompleteResultSet(table);
+                if (!sampled) {
+                    completeResultSet = getCompleteResultSet(context, plan, table, connection);
+                } else if (preparedResultSet != null) {
+                    completeResultSet = selectRecords(preparedResultSet, table, ids);
+                } else if (connection != null) {
                     completeResultSet = getCompleteResultSet(table, ids, connection);
                 } else {
+                    completeResultSet = null;
+                }
+                if (completeResultSet == null) {
                     // невозможно восстановить соединение с базой данных, из которой выбирались данные
                     return null;
                 }
             } else {
                 completeResultSet = resultSet;
             }
-            graphs.add(getGraph(table, completeResultSet, userId));
+            tasks.add(new Callable<Graph>() {
+
+                public Graph call() throws Exception {
+                    Graph graph = getGraph(table, completeResultSet, userId, context);
+                    if (partial) {
+                        graph.setSourceNodeNumber(sourceRowCount);
+                    }
+                    return graph;
+                }
+            });
         }
+        graphs.addAll(invokeForTables(tasks));
         return graphs;
     }
 
+    public Executor getTableExecutor() {
+        return tableExecutor;
+    }
+
+    /**
+     * Задать исполнитель, в котором обрабатываются таблицы, распознанные в
+     * результате запроса (построение графов и обновление знаний). Подходит
+     * любой исполнитель, например, пул потоков или, при запуске на
+     * платформе, поддерживающей виртуальные потоки, исполнитель,
+     * создающий виртуальный поток на каждую задачу. Исполнитель не
+     * принадлежит модулю и не останавливается им.
+     *
+     * @param tableExecutor исполнитель; null - таблицы обрабатываются
+     *                      последовательно в вызывающем потоке
+     */
+    public void setTableExecutor(Executor tableExecutor) {
+        this.tableExecutor = tableExecutor;
+    }
+
+    public long getTableTimeoutMillis() {
+        return tableTimeoutMillis;
+    }
+
+    /**
+     * Задать общий срок обработки всех таблиц одного запроса при обработке
+     * в исполнителе (см. {@link #setTableExecutor(Executor)}).
+     *
+     * @param tableTimeoutMillis срок в миллисекундах; 0 - без ограничения
+     */
+    public void setTableTimeoutMillis(long tableTimeoutMillis) {
+        if (tableTimeoutMillis < 0) {
+            throw new IllegalArgumentException("Table timeout should not be negative.");
+        }
+        this.tableTimeoutMillis = tableTimeoutMillis;
+    }
+
+    /**
+     * Выполнить обработку таблиц, распознанных в результате запроса. Если
+     * задан исполнитель (см. {@link #setTableExecutor(Executor)}) и таблиц
+     * несколько, таблицы обрабатываются одновременно; метод возвращает
+     * управление только после завершения всех задач, а при ошибке одной из
+     * задач или истечении срока остальные задачи прерываются. Задачи не
+     * должны обращаться к соединению приложения: через него выполняются
+     * только действия в вызывающем потоке.
+     *
+     * @param tasks задачи обработки таблиц
+     * @return результаты задач в том же порядке
+     * @throws TimeoutException истёк срок обработки таблиц
+     * @throws Exception        ошибка при выполнении задачи
+     */
+    protected <T> List<T> invokeForTables(final List<? extends Callable<T>> tasks) throws Exception {
+        List<T> results = new ArrayList<T>(tasks.size());
+        Executor executor = tableExecutor;
+        if (executor == null || tasks.size() < 2) {
+            for (Callable<T> task : tasks) {
+                results.add(task.call());
+            }
+            return results;
+        }
+        long timeoutMillis = tableTimeoutMillis;
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+        List<FutureTask<T>> futures = new ArrayList<FutureTask<T>>(tasks.size());
+        try {
+            for (Callable<T> task : tasks) {
+                FutureTask<T> future = new FutureTask<T>(task);
+                futures.add(future);
+                try {
+                    executor.execute(future);
+                } catch (RejectedExecutionException ex) {
+                    // исполнитель перегружен или остановлен
+                    future.run();
+                }
+            }
+            for (FutureTask<T> future : futures) {
+                if (timeoutMillis > 0) {
+                    results.add(future.get(deadline - System.nanoTime(), TimeUnit.NANOSECONDS));
+                } else {
+                    results.add(future.get());
+                }
+            }
+            return results;
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof Exception) {
+                throw (Exception) cause;
+            }
+            if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw ex;
+        } finally {
+            for (FutureTask<T> future : futures) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    /**
+     * Выбрать записи, по которым строится граф. При стратифицированной
+     * выборке записи упорядочиваются по первичному ключу первой
+     * распознанной таблицы.
+     *
+     * @param resultSet  результат выполнения запроса
+     * @param plan       план распознавания результата
+     * @param sampleSize количество выбираемых записей
+     * @return номера выбранных записей
+     */
+    private BitSet sampleRows(final CapturingResultSet resultSet, final QueryPlan plan, final int sampleSize) {
+        Random random = ThreadLocalRandom.current();
+        if (rowSamplingMode == RowSamplingMode.STRATIFIED) {
+            int[] keyColumns = plan.getKeyIndexes(plan.getTables().get(0));
+            return RowSampler.stratified(resultSet, keyColumns, sampleSize, random);
+        }
+        return RowSampler.reservoir(resultSet.getRowCount(), sampleSize, random);
+    }
+
     /**
      * Получить граф, описывающий взаимосвязи между записями, представленными в
      * результате выборки.
@@ -308,5 +1058,23 @@ public abstract class GenericKnowledgeModule implements KnowledgeModule {
      * @return граф, описывающий взаимосвязи между записями, представленными
      * в результате выборки.
      */
-    protected abstract Graph getGraph(Table table, ResultSet resultSet, UserId userId) throws Exception;
+    protected abstract Graph getGraph(Table table, CapturingResultSet resultSet, UserId userId) throws Exception;
+
+    /**
+     * Получить граф, описывающий взаимосвязи между записями, представленными в
+     * результате выборки, сохранив считанные из базы знаний сведения в
+     * контексте анализа (см. {@link AnalysisContext#putKnowledge}). По
+     * умолчанию сведения не сохраняются.
+     *
+     * @param table     описание таблицы
+     * @param resultSet результат выборки
+     * @param userId    идентификатор текущего пользователя
+     * @param context   контекст анализа результата запроса
+     * @return граф, описывающий взаимосвязи между записями, представленными
+     * в результате выборки.
+     */
+    protected Graph getGraph(Table table, CapturingResultSet resultSet, UserId userId,
+                             AnalysisContext context) throws Exception {
+        return getGraph(table, resultSet, userId);
+    }
 }
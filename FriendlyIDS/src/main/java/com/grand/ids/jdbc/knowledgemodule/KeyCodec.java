@@ -0,0 +1,368 @@
+/*
+ * Copyright 2009-2016 Andrey Grigorov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.grand.ids.jdbc.knowledgemodule;
+
+import com.grand.ids.jdbc.CapturingResultSet;
+import com.grand.ids.model.Column;
+import com.grand.ids.model.Table;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.Charset;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Кодировщик значений первичного ключа таблицы. Способ хранения ключей
+ * выбирается по описанию таблицы: одиночный ключ целочисленного типа
+ * хранится как long, остальные ключи - в компактном двоичном представлении,
+ * каждое значение которого снабжено признаком типа. Числовые значения
+ * приводятся к единому представлению, поэтому ключи, считанные разными
+ * драйверами (Integer, Long, BigDecimal), совпадают.
+ *
+ * @author Andrey Grigorov
+ */
+public final class KeyCodec {
+
+    final static byte NULL = 0;
+    final static byte LONG = 1;
+    final static byte DECIMAL = 2;
+    final static byte STRING = 3;
+    final static byte TIMESTAMP = 4;
+    final static byte DATE = 5;
+    final static byte TIME = 6;
+    final static byte BINARY = 7;
+    final static byte BOOLEAN = 8;
+
+    private final static Charset UTF_8 = Charset.forName("UTF-8");
+    private final static BigInteger MIN_LONG = BigInteger.valueOf(Long.MIN_VALUE);
+    private final static BigInteger MAX_LONG = BigInteger.valueOf(Long.MAX_VALUE);
+
+    private final int keySize;
+    private final boolean numeric;
+
+    private KeyCodec(int keySize, boolean numeric) {
+        this.keySize = keySize;
+        this.numeric = numeric;
+    }
+
+    /**
+     * Создать кодировщик первичного ключа таблицы.
+     *
+     * @param table описание таблицы
+     * @return кодировщик
+     */
+    public static KeyCodec forTable(Table table) {
+        List<String> primaryKeys = table.getPrimaryKeys();
+        boolean numeric = false;
+        if (primaryKeys.size() == 1) {
+            for (Column column : table.getColumns()) {
+                if (column.getName().equalsIgnoreCase(primaryKeys.get(0))) {
+                    numeric = isIntegral(column.getType());
+                    break;
+                }
+            }
+        }
+        return new KeyCodec(primaryKeys.size(), numeric);
+    }
+
+    /**
+     * Количество полей ключа.
+     */
+    public int getKeySize() {
+        return keySize;
+    }
+
+    /**
+     * Хранятся ли ключи как числа типа long.
+     */
+    public boolean isNumeric() {
+        return numeric;
+    }
+
+    /**
+     * Считать значения ключа всех записей результата.
+     *
+     * @param resultSet  результат выполнения запроса
+     * @param keyColumns номера полей ключа (начиная с 1) в порядке,
+     *                   определённом в описании таблицы
+     * @return значения ключа в порядке записей
+     * @throws SQLException
+     */
+    public RecordKeys read(CapturingResultSet resultSet, int[] keyColumns) throws SQLException {
+        int rowCount = resultSet.getRowCount();
+        if (numeric && keyColumns.length == 1) {
+            long[] numbers = new long[rowCount];
+            BitSet nulls = new BitSet();
+            boolean integral = true;
+            for (int row = 0; row < rowCount && integral; row++) {
+                Object value = resultSet.getValue(row, keyColumns[0]);
+                if (value == null) {
+                    nulls.set(row);
+                } else if (value instanceof Number && isIntegral((Number) value)) {
+                    numbers[row] = ((Number) value).longValue();
+                } else {
+                    integral = false;
+                }
+            }
+            if (integral) {
+                return new RecordKeys(numbers, nulls, rowCount);
+            }
+            // драйвер вернул значения другого типа; ключи хранятся в двоичном виде
+        }
+        Encoder encoder = new Encoder(rowCount * keyColumns.length * 9);
+        int[] offsets = new int[rowCount + 1];
+        for (int row = 0; row < rowCount; row++) {
+            offsets[row] = encoder.length;
+            for (int keyColumn : keyColumns) {
+                encoder.write(resultSet.getValue(row, keyColumn));
+            }
+        }
+        offsets[rowCount] = encoder.length;
+        return new RecordKeys(encoder.buffer, offsets, rowCount);
+    }
+
+    /**
+     * Закодировать значение ключа.
+     *
+     * @param values значения полей ключа в порядке, определённом в описании
+     *               таблицы
+     * @return ключ
+     */
+    public RecordKey key(List<Object> values) {
+        if (values.size() == 1) {
+            Object value = values.get(0);
+            if (value instanceof Number && isIntegral((Number) value)) {
+                return new RecordKey(((Number) value).longValue());
+            }
+        }
+        Encoder encoder = new Encoder(values.size() * 9);
+        for (Object value : values) {
+            encoder.write(value);
+        }
+        return RecordKey.of(Arrays.copyOf(encoder.buffer, encoder.length));
+    }
+
+    private static boolean isIntegral(int sqlType) {
+        return sqlType == Types.TINYINT || sqlType == Types.SMALLINT
+                || sqlType == Types.INTEGER || sqlType == Types.BIGINT;
+    }
+
+    /**
+     * Представимо ли число значением типа long без потери точности.
+     */
+    static boolean isIntegral(Number value) {
+        if (value instanceof Long || value instanceof Integer
+                || value instanceof Short || value instanceof Byte) {
+            return true;
+        }
+        if (value instanceof BigInteger) {
+            return ((BigInteger) value).bitLength() < 64;
+        }
+        if (value instanceof BigDecimal) {
+            BigDecimal decimal = (BigDecimal) value;
+            if (decimal.signum() == 0) {
+                return true;
+            }
+            decimal = decimal.stripTrailingZeros();
+            if (decimal.scale() > 0) {
+                return false;
+            }
+            BigInteger integer = decimal.toBigIntegerExact();
+            return integer.compareTo(MIN_LONG) >= 0 && integer.compareTo(MAX_LONG) <= 0;
+        }
+        if (value instanceof Double || value instanceof Float) {
+            double number = value.doubleValue();
+            return number == Math.rint(number) && number >= Long.MIN_VALUE && number < Long.MAX_VALUE;
+        }
+        return false;
+    }
+
+    static int hash(long value) {
+        long h = value * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    static int hash(byte[] data, int from, int to) {
+        int h = 0x811C9DC5;
+        for (int i = from; i < to; i++) {
+            h = (h ^ (data[i] & 0xFF)) * 0x01000193;
+        }
+        return h ^ (h >>> 16);
+    }
+
+    /**
+     * Раскодировать значения полей ключа.
+     *
+     * @param data  двоичное представление ключей
+     * @param from  начало ключа в массиве
+     * @param to    конец ключа в массиве
+     * @param part  номер поля ключа (начиная с 0); -1 - все поля
+     * @param values список, в который добавляются значения
+     */
+    static void decode(byte[] data, int from, int to, int part, List<Object> values) {
+        int position = from;
+        for (int index = 0; position < to; index++) {
+            byte type = data[position++];
+            Object value;
+            int length = 0;
+            switch (type) {
+                case NULL:
+                    value = null;
+                    break;
+                case LONG:
+                    value = readLong(data, position);
+                    length = 8;
+                    break;
+                case TIMESTAMP:
+                    Timestamp timestamp = new Timestamp(readLong(data, position));
+                    timestamp.setNanos(readInt(data, position + 8));
+                    value = timestamp;
+                    length = 12;
+                    break;
+                case DATE:
+                    value = new java.sql.Date(readLong(data, position));
+                    length = 8;
+                    break;
+                case TIME:
+                    value = new Time(readLong(data, position));
+                    length = 8;
+                    break;
+                case BOOLEAN:
+                    value = data[position] != 0;
+                    length = 1;
+                    break;
+                default:
+                    length = readInt(data, position);
+                    position += 4;
+                    if (type == DECIMAL) {
+                        value = new BigDecimal(new String(data, position, length, UTF_8));
+                    } else if (type == BINARY) {
+                        value = Arrays.copyOfRange(data, position, position + length);
+                    } else {
+                        value = new String(data, position, length, UTF_8);
+                    }
+            }
+            position += length;
+            if (part < 0 || part == index) {
+                values.add(value);
+                if (part == index) {
+                    return;
+                }
+            }
+        }
+    }
+
+    private static long readLong(byte[] data, int position) {
+        long value = 0;
+        for (int i = 0; i < 8; i++) {
+            value = (value << 8) | (data[position + i] & 0xFF);
+        }
+        return value;
+    }
+
+    private static int readInt(byte[] data, int position) {
+        int value = 0;
+        for (int i = 0; i < 4; i++) {
+            value = (value << 8) | (data[position + i] & 0xFF);
+        }
+        return value;
+    }
+
+    /**
+     * Буфер двоичного представления ключей.
+     */
+    final static class Encoder {
+
+        byte[] buffer;
+        int length;
+
+        Encoder(int capacity) {
+            buffer = new byte[Math.max(16, capacity)];
+        }
+
+        void write(Object value) {
+            if (value == null) {
+                writeByte(NULL);
+            } else if (value instanceof Number) {
+                Number number = (Number) value;
+                if (isIntegral(number)) {
+                    writeByte(LONG);
+                    writeLong(number.longValue());
+                } else {
+                    writeByte(DECIMAL);
+                    writeBytes(new BigDecimal(number.toString()).stripTrailingZeros().toPlainString().getBytes(UTF_8));
+                }
+            } else if (value instanceof Timestamp) {
+                writeByte(TIMESTAMP);
+                writeLong(((Timestamp) value).getTime());
+                writeInt(((Timestamp) value).getNanos());
+            } else if (value instanceof java.sql.Date) {
+                writeByte(DATE);
+                writeLong(((java.sql.Date) value).getTime());
+            } else if (value instanceof Time) {
+                writeByte(TIME);
+                writeLong(((Time) value).getTime());
+            } else if (value instanceof Boolean) {
+                writeByte(BOOLEAN);
+                writeByte((byte) ((Boolean) value ? 1 : 0));
+            } else if (value instanceof byte[]) {
+                writeByte(BINARY);
+                writeBytes((byte[]) value);
+            } else {
+                writeByte(STRING);
+                writeBytes(value.toString().getBytes(UTF_8));
+            }
+        }
+
+        private void ensureCapacity(int extra) {
+            if (length + extra > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+            }
+        }
+
+        private void writeByte(byte value) {
+            ensureCapacity(1);
+            buffer[length++] = value;
+        }
+
+        private void writeLong(long value) {
+            ensureCapacity(8);
+            for (int i = 7; i >= 0; i--) {
+                buffer[length++] = (byte) (value >>> (i * 8));
+            }
+        }
+
+        private void writeInt(int value) {
+            ensureCapacity(4);
+            for (int i = 3; i >= 0; i--) {
+                buffer[length++] = (byte) (value >>> (i * 8));
+            }
+        }
+
+        private void writeBytes(byte[] value) {
+            writeInt(value.length);
+            ensureCapacity(value.length);
+            System.arraycopy(value, 0, buffer, length, value.length);
+            length += value.length;
+        }
+    }
+}
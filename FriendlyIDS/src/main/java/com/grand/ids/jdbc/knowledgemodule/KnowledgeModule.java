@@ -57,12 +57,23 @@ public interface KnowledgeModule {
      * @param resultSet результат выборки, на котором необходимо произвести
      *                  обучение
      * @param userId    идентификатор пользователя
-     * @param sqlQuery  выполненный SQL-запрос
+     * @param sqlQuery  выполненный SQL-запрос (для запросов с параметрами -
+     *                  без подстановки значений параметров)
      * @return результат выполнения обновления базы знаний
      * @throws Exception
      */
     UpdateResult updateKnowledge(final ResultSet resultSet, final UserId userId, final String sqlQuery) throws Exception;
 
+    /**
+     * Обновить базу знаний, повторно используя данные, полученные при
+     * анализе того же результата (см. {@link #getRelationGraphs(AnalysisContext)}).
+     *
+     * @param context контекст анализа результата выполнения запроса
+     * @return результат выполнения обновления базы знаний
+     * @throws Exception
+     */
+    UpdateResult updateKnowledge(final AnalysisContext context) throws Exception;
+
     /**
      * Получить графы, описывающие взаимоотношения записей в представленном
      * результате выполнения запроса на выборку данных.
@@ -70,10 +81,65 @@ public interface KnowledgeModule {
      * @param resultSet результат выборки, для которого необходимо построить
      *                  графы
      * @param userId    идентификатор пользователя
-     * @param sqlQuery  текст выполненного SQL-запроса
+     * @param sqlQuery  текст выполненного SQL-запроса (для запросов с
+     *                  параметрами - без подстановки значений параметров)
      * @return графы, описывающие взаимоотношения между записями, попавшими в
      * результат выполнения запроса
      * @throws Exception
      */
     List<Graph> getRelationGraphs(final ResultSet resultSet, final UserId userId, final String sqlQuery) throws Exception;
+
+    /**
+     * Получить графы, описывающие взаимоотношения записей в результате
+     * выполнения запроса, сохранив в контексте данные, которые понадобятся
+     * для последующего обновления базы знаний.
+     *
+     * @param context контекст анализа результата выполнения запроса
+     * @return графы, описывающие взаимоотношения между записями, попавшими в
+     * результат выполнения запроса, или null, если таблицы не распознаны
+     * или полные записи недоступны (см. {@link #prepareAnalysis(AnalysisContext)})
+     * @throws Exception
+     */
+    List<Graph> getRelationGraphs(final AnalysisContext context) throws Exception;
+
+    /**
+     * Подготовить анализ результата выполнения запроса к продолжению в
+     * другом потоке. В вызывающем потоке выполняются все обращения к
+     * соединению, через которое выполнен запрос (распознавание таблиц,
+     * повторная выборка полных записей), их результаты сохраняются в
+     * контексте, после чего контекст закрывается для обращений к соединению
+     * (см. {@link AnalysisContext#detach()}).
+     *
+     * @param context контекст анализа результата выполнения запроса
+     * @throws Exception ошибка при обращении к базе данных
+     */
+    void prepareAnalysis(final AnalysisContext context) throws Exception;
+
+    /**
+     * Заблаговременно загрузить знания о пользователе, которые потребуются
+     * для анализа результата выполнения запроса. Вызывается асинхронно, пока
+     * запрос выполняется в базе данных; модуль, не поддерживающий
+     * предварительную загрузку, ничего не делает.
+     *
+     * @param userId   идентификатор пользователя
+     * @param sqlQuery текст выполняемого SQL-запроса (для запросов с
+     *                 параметрами - без подстановки значений параметров)
+     * @throws Exception
+     */
+    void prefetchKnowledge(final UserId userId, final String sqlQuery) throws Exception;
+
+    /**
+     * Оценить трудоёмкость анализа результата выполнения запроса (см.
+     * {@link #getRelationGraphs(ResultSet, UserId, String)}) в условных
+     * единицах. Оценка используется для того, чтобы долгий анализ не
+     * выполнялся в потоке приложения.
+     *
+     * @param resultSet результат выборки
+     * @param userId    идентификатор пользователя
+     * @param sqlQuery  текст выполненного SQL-запроса (для запросов с
+     *                  параметрами - без подстановки значений параметров)
+     * @return оценка трудоёмкости; 0 - анализ не требует заметного времени
+     * @throws Exception
+     */
+    long estimateAnalysisCost(final ResultSet resultSet, final UserId userId, final String sqlQuery) throws Exception;
 }
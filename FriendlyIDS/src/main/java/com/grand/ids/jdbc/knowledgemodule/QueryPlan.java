@@ -0,0 +1,78 @@
+/*
+ * Copyright 2009-2016 Andrey Grigorov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.grand.ids.jdbc.knowledgemodule;
+
+import com.grand.ids.model.Table;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * План распознавания результата выполнения запроса: таблицы, объекты которых
+ * выбраны запросом, номера полей первичного ключа каждой таблицы и признак
+ * того, что в результате присутствуют все поля таблицы. План зависит только
+ * от шаблона запроса и структуры результата, поэтому вычисляется один раз и
+ * повторно используется для всех запросов с тем же шаблоном.
+ *
+ * @author Andrey Grigorov
+ */
+public class QueryPlan {
+
+    private final List<Table> tables;
+    private final Map<Table, int[]> keyIndexes;
+    private final Set<Table> completeTables;
+
+    QueryPlan(List<Table> tables, Map<Table, int[]> keyIndexes, Set<Table> completeTables) {
+        this.tables = Collections.unmodifiableList(tables);
+        this.keyIndexes = keyIndexes;
+        this.completeTables = completeTables;
+    }
+
+    /**
+     * Получить список таблиц, объекты из которых выбраны запросом.
+     *
+     * @return неизменяемый список таблиц
+     */
+    public List<Table> getTables() {
+        return tables;
+    }
+
+    /**
+     * Получить номера полей первичного ключа таблицы в результате выполнения
+     * запроса.
+     *
+     * @param table описание таблицы из списка {@link #getTables()}
+     * @return номера полей (начиная с 1) в порядке, заданном в описании
+     * первичного ключа
+     */
+    public int[] getKeyIndexes(Table table) {
+        return keyIndexes.get(table);
+    }
+
+    /**
+     * Проверить, присутствуют ли в результате выполнения запроса все поля
+     * таблицы.
+     *
+     * @param table описание таблицы из списка {@link #getTables()}
+     * @return true - данных достаточно для обновления служебных таблиц;
+     * false - требуется запрос за полными данными
+     */
+    public boolean isComplete(Table table) {
+        return completeTables.contains(table);
+    }
+}
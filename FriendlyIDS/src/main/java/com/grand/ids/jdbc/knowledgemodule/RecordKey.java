@@ -0,0 +1,123 @@
+/*
+ * Copyright 2009-2016 Andrey Grigorov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.grand.ids.jdbc.knowledgemodule;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Значение первичного ключа записи (см. {@link KeyCodec}). Ключ, состоящий
+ * из одного целого числа, хранится как long; остальные ключи - в двоичном
+ * представлении. Хэш-код вычисляется при создании ключа.
+ *
+ * @author Andrey Grigorov
+ */
+public final class RecordKey {
+
+    private final long number;
+    /**
+     * Двоичное представление ключа; null - ключ является целым числом
+     */
+    private final byte[] bytes;
+    private final int hash;
+
+    RecordKey(long number) {
+        this.number = number;
+        this.bytes = null;
+        this.hash = KeyCodec.hash(number);
+    }
+
+    private RecordKey(byte[] bytes) {
+        this.number = 0;
+        this.bytes = bytes;
+        this.hash = KeyCodec.hash(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Создать ключ по двоичному представлению. Ключ из одного целого числа
+     * всегда хранится как long, поэтому равные ключи имеют одинаковое
+     * представление.
+     */
+    static RecordKey of(byte[] bytes) {
+        if (bytes.length == 9 && bytes[0] == KeyCodec.LONG) {
+            long value = 0;
+            for (int i = 1; i < 9; i++) {
+                value = (value << 8) | (bytes[i] & 0xFF);
+            }
+            return new RecordKey(value);
+        }
+        return new RecordKey(bytes);
+    }
+
+    /**
+     * Получить значение поля ключа.
+     *
+     * @param part номер поля ключа (начиная с 0)
+     * @return значение поля
+     */
+    public Object getValue(int part) {
+        if (bytes == null) {
+            return number;
+        }
+        List<Object> values = new ArrayList<Object>(1);
+        KeyCodec.decode(bytes, 0, bytes.length, part, values);
+        return values.isEmpty() ? null : values.get(0);
+    }
+
+    /**
+     * Получить значения всех полей ключа.
+     *
+     * @return значения полей в порядке, определённом в описании таблицы
+     */
+    public List<Object> getValues() {
+        if (bytes == null) {
+            return Collections.<Object>singletonList(number);
+        }
+        List<Object> values = new ArrayList<Object>();
+        KeyCodec.decode(bytes, 0, bytes.length, -1, values);
+        return values;
+    }
+
+    @Override
+    public boolean equals(Object object) {
+        if (this == object) {
+            return true;
+        }
+        if (!(object instanceof RecordKey)) {
+            return false;
+        }
+        RecordKey key = (RecordKey) object;
+        if (hash != key.hash) {
+            return false;
+        }
+        if (bytes == null || key.bytes == null) {
+            return bytes == key.bytes && number == key.number;
+        }
+        return Arrays.equals(bytes, key.bytes);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return bytes == null ? String.valueOf(number) : getValues().toString();
+    }
+}
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2009-2016 Andrey Grigorov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.grand.ids.jdbc.knowledgemodule;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Значения первичного ключа записей результата выполнения запроса (см.
+ * {@link KeyCodec#read}). Целочисленные ключи хранятся в массиве long,
+ * остальные - в общем массиве двоичных представлений с заранее вычисленными
+ * хэш-кодами, поэтому для ключей не создаются отдельные объекты.
+ *
+ * @author Andrey Grigorov
+ */
+public final class RecordKeys {
+
+    private final int size;
+    /**
+     * Целочисленные ключи; null - ключи хранятся в двоичном виде
+     */
+    private final long[] numbers;
+    /**
+     * Номера записей с неопределённым целочисленным ключом
+     */
+    private final BitSet nulls;
+    private final byte[] data;
+    /**
+     * Начала двоичных представлений ключей в {@link #data}; последний
+     * элемент - конец представления последнего ключа
+     */
+    private final int[] offsets;
+    private final int[] hashes;
+
+    RecordKeys(long[] numbers, BitSet nulls, int size) {
+        this.size = size;
+        this.numbers = numbers;
+        this.nulls = nulls;
+        this.data = null;
+        this.offsets = null;
+        this.hashes = null;
+    }
+
+    RecordKeys(byte[] data, int[] offsets, int size) {
+        this.size = size;
+        this.numbers = null;
+        this.nulls = null;
+        this.data = data;
+        this.offsets = offsets;
+        this.hashes = new int[size];
+        for (int i = 0; i < size; i++) {
+            hashes[i] = KeyCodec.hash(data, offsets[i], offsets[i + 1]);
+        }
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Получить ключ записи.
+     *
+     * @param index номер записи (начиная с 0)
+     * @return ключ
+     */
+    public RecordKey get(int index) {
+        checkIndex(index);
+        if (numbers != null) {
+            return nulls.get(index)
+                    ? RecordKey.of(new byte[]{KeyCodec.NULL})
+                    : new RecordKey(numbers[index]);
+        }
+        return RecordKey.of(Arrays.copyOfRange(data, offsets[index], offsets[index + 1]));
+    }
+
+    /**
+     * Получить значение поля ключа записи.
+     *
+     * @param index номер записи (начиная с 0)
+     * @param part  номер поля ключа (начиная с 0)
+     * @return значение поля
+     */
+    public Object getValue(int index, int part) {
+        checkIndex(index);
+        if (numbers != null) {
+            return nulls.get(index) ? null : numbers[index];
+        }
+        List<Object> values = new ArrayList<Object>(1);
+        KeyCodec.decode(data, offsets[index], offsets[index + 1], part, values);
+        return values.isEmpty() ? null : values.get(0);
+    }
+
+    /**
+     * Получить значения всех полей ключа записи.
+     *
+     * @param index номер записи (начиная с 0)
+     * @return значения полей в порядке, определённом в описании таблицы
+     */
+    public List<Object> getValues(int index) {
+        checkIndex(index);
+        List<Object> values = new ArrayList<Object>();
+        if (numbers != null) {
+            values.add(nulls.get(index) ? null : numbers[index]);
+        } else {
+            KeyCodec.decode(data, offsets[index], offsets[index + 1], -1, values);
+        }
+        return values;
+    }
+
+    /**
+     * Содержит ли ключ записи неопределённые значения.
+     *
+     * @param index номер записи (начиная с 0)
+     */
+    public boolean containsNull(int index) {
+        checkIndex(index);
+        if (numbers != null) {
+            return nulls.get(index);
+        }
+        for (int position = offsets[index], end = offsets[index + 1]; position < end; ) {
+            byte type = data[position++];
+            switch (type) {
+                case KeyCodec.NULL:
+                    return true;
+                case KeyCodec.LONG:
+                case KeyCodec.DATE:
+                case KeyCodec.TIME:
+                    position += 8;
+                    break;
+                case KeyCodec.TIMESTAMP:
+                    position += 12;
+                    break;
+                case KeyCodec.BOOLEAN:
+                    position += 1;
+                    break;
+                default:
+                    position += 4 + ((data[position] & 0xFF) << 24 | (data[position + 1] & 0xFF) << 16
+                            | (data[position + 2] & 0xFF) << 8 | (data[position + 3] & 0xFF));
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Получить различные ключи без неопределённых значений в порядке их
+     * первого появления. Повторы отбрасываются с помощью хэш-таблицы с
+     * открытой адресацией над номерами записей.
+     *
+     * @return различные ключи
+     */
+    public RecordKeys distinct() {
+        int capacity = Integer.highestOneBit(Math.max(4, size * 2 - 1)) << 1;
+        int[] table = new int[capacity];
+        Arrays.fill(table, -1);
+        int mask = capacity - 1;
+        int[] selected = new int[size];
+        int count = 0;
+        for (int i = 0; i < size; i++) {
+            if (containsNull(i)) {
+                continue;
+            }
+            int slot = (numbers != null ? KeyCodec.hash(numbers[i]) : hashes[i]) & mask;
+            boolean duplicate = false;
+            while (table[slot] >= 0) {
+                if (sameKey(table[slot], i)) {
+                    duplicate = true;
+                    break;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (!duplicate) {
+                table[slot] = i;
+                selected[count++] = i;
+            }
+        }
+        if (count == size) {
+            return this;
+        }
+        return select(selected, count);
+    }
+
+    private boolean sameKey(int i, int j) {
+        if (numbers != null) {
+            return numbers[i] == numbers[j];
+        }
+        if (hashes[i] != hashes[j]) {
+            return false;
+        }
+        int length = offsets[i + 1] - offsets[i];
+        if (length != offsets[j + 1] - offsets[j]) {
+            return false;
+        }
+        for (int k = 0; k < length; k++) {
+            if (data[offsets[i] + k] != data[offsets[j] + k]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private RecordKeys select(int[] selected, int count) {
+        if (numbers != null) {
+            long[] selectedNumbers = new long[count];
+            BitSet selectedNulls = new BitSet();
+            for (int i = 0; i < count; i++) {
+                selectedNumbers[i] = numbers[selected[i]];
+                if (nulls.get(selected[i])) {
+                    selectedNulls.set(i);
+                }
+            }
+            return new RecordKeys(selectedNumbers, selectedNulls, count);
+        }
+        int length = 0;
+        for (int i = 0; i < count; i++) {
+            length += offsets[selected[i] + 1] - offsets[selected[i]];
+        }
+        byte[] selectedData = new byte[length];
+        int[] selectedOffsets = new int[count + 1];
+        int position = 0;
+        for (int i = 0; i < count; i++) {
+            int from = offsets[selected[i]];
+            int keyLength = offsets[selected[i] + 1] - from;
+            System.arraycopy(data, from, selectedData, position, keyLength);
+            selectedOffsets[i] = position;
+            position += keyLength;
+        }
+        selectedOffsets[count] = position;
+        return new RecordKeys(selectedData, selectedOffsets, count);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Key index: " + index + ", size: " + size);
+        }
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright 2009-2016 Andrey Grigorov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.grand.ids.jdbc.knowledgemodule;
+
+import com.grand.ids.jdbc.CapturingResultSet;
+
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.Random;
+
+/**
+ * Выбор записей результата запроса для построения графа (см.
+ * {@link RowSamplingMode}).
+ *
+ * @author Andrey Grigorov
+ */
+final class RowSampler {
+
+    private RowSampler() {
+    }
+
+    /**
+     * Выбрать записи равновероятно (алгоритм R).
+     *
+     * @param rowCount   количество записей
+     * @param sampleSize количество выбираемых записей
+     * @param random     генератор случайных чисел
+     * @return номера выбранных записей (начиная с 0)
+     */
+    static BitSet reservoir(int rowCount, int sampleSize, Random random) {
+        int[] reservoir = new int[sampleSize];
+        for (int row = 0; row < rowCount; row++) {
+            if (row < sampleSize) {
+                reservoir[row] = row;
+            } else {
+                int index = random.nextInt(row + 1);
+                if (index < sampleSize) {
+                    reservoir[index] = row;
+                }
+            }
+        }
+        BitSet selectedRows = new BitSet(rowCount);
+        for (int row : reservoir) {
+            selectedRows.set(row);
+        }
+        return selectedRows;
+    }
+
+    /**
+     * Выбрать по одной записи из каждого из sampleSize равных диапазонов
+     * значений первичного ключа. Если значения ключа несравнимы, записи
+     * выбираются равновероятно.
+     *
+     * @param resultSet  результат запроса
+     * @param keyColumns номера полей первичного ключа (начиная с 1)
+     * @param sampleSize количество выбираемых записей
+     * @param random     генератор случайных чисел
+     * @return номера выбранных записей (начиная с 0)
+     */
+    static BitSet stratified(CapturingResultSet resultSet, int[] keyColumns, int sampleSize, Random random) {
+        int rowCount = resultSet.getRowCount();
+        final Object[][] keys = new Object[rowCount][];
+        Integer[] order = new Integer[rowCount];
+        try {
+            for (int row = 0; row < rowCount; row++) {
+                keys[row] = new Object[keyColumns.length];
+                for (int i = 0; i < keyColumns.length; i++) {
+                    keys[row][i] = resultSet.getValue(row, keyColumns[i]);
+                }
+                order[row] = row;
+            }
+            Arrays.sort(order, new Comparator<Integer>() {
+
+                public int compare(Integer row1, Integer row2) {
+                    return compareKeys(keys[row1], keys[row2]);
+                }
+            });
+        } catch (SQLException ex) {
+            return reservoir(rowCount, sampleSize, random);
+        } catch (ClassCastException ex) {
+            return reservoir(rowCount, sampleSize, random);
+        }
+        BitSet selectedRows = new BitSet(rowCount);
+        double step = (double) rowCount / sampleSize;
+        for (int stratum = 0; stratum < sampleSize; stratum++) {
+            int start = (int) (stratum * step);
+            int end = Math.max(start + 1, (int) ((stratum + 1) * step));
+            selectedRows.set(order[start + random.nextInt(end - start)]);
+        }
+        return selectedRows;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compareKeys(Object[] key1, Object[] key2) {
+        for (int i = 0; i < key1.length; i++) {
+            Object value1 = key1[i];
+            Object value2 = key2[i];
+            if (value1 == null || value2 == null) {
+                if (value1 != value2) {
+                    return value1 == null ? -1 : 1;
+                }
+                continue;
+            }
+            int result = ((Comparable<Object>) value1).compareTo(value2);
+            if (result != 0) {
+                return result;
+            }
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,38 @@
+/*
+ * Copyright 2009-2016 Andrey Grigorov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.grand.ids.jdbc.knowledgemodule;
+
+/**
+ * Способ выбора записей для построения графа, если результат запроса
+ * содержит больше записей, чем допускается для одного графа.
+ *
+ * @author Andrey Grigorov
+ */
+public enum RowSamplingMode {
+
+    /**
+     * Равновероятный выбор записей
+     * (<a href="http://en.wikipedia.org/wiki/Reservoir_sampling">резервуарная выборка</a>).
+     */
+    RESERVOIR,
+
+    /**
+     * Записи упорядочиваются по значению первичного ключа и разбиваются на
+     * равные диапазоны, из каждого диапазона выбирается одна запись. Выборка
+     * равномерно покрывает весь диапазон ключей.
+     */
+    STRATIFIED
+}
@@ -16,13 +16,15 @@
 package com.grand.ids.jdbc.knowledgemodule.id;
 
 import com.grand.ids.UserId;
+import com.grand.ids.jdbc.CapturingResultSet;
+import com.grand.ids.jdbc.knowledgemodule.AnalysisContext;
 import com.grand.ids.jdbc.knowledgemodule.GenericKnowledgeModule;
 import com.grand.ids.jdbc.knowledgemodule.LinkPredictionMode;
+import com.grand.ids.jdbc.knowledgemodule.QueryPlan;
+import com.grand.ids.jdbc.knowledgemodule.RecordKeys;
 import com.grand.ids.model.Graph;
 import com.grand.ids.model.Schema;
 import com.grand.ids.model.Table;
-import java.sql.Connection;
-import java.sql.ResultSet;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -81,19 +83,18 @@ public class IdKnowledgeModule extends GenericKnowledgeModule {
         return sessionFactory.openSession();
     }
 
-    protected Graph getGraph(final Table table, ResultSet resultSet, final UserId userId) throws Exception {
-        final List<List<Object>> ids = getObjectIds(resultSet, table);
+    protected Graph getGraph(final Table table, CapturingResultSet resultSet, final UserId userId) throws Exception {
+        final RecordKeys ids = getObjectIds(resultSet, table);
         final Graph graph = new Graph(ids.size());
         doInTransaction(new Action() {
 
             public void doAction(Session session) {
                 Set<String> idSet = new HashSet<String>();
                 Map<String, Integer> nodesNum = new HashMap<String, Integer>();
-                int num = 0;
-                for (List<Object> id : ids) {
-                    String stringId = getStringIdPresentation(id);
+                for (int num = 0; num < ids.size(); num++) {
+                    String stringId = getStringIdPresentation(ids, num);
                     idSet.add(stringId);
-                    nodesNum.put(stringId, num++);
+                    nodesNum.put(stringId, num);
                 }
                 Criteria criteria = session.createCriteria(RecordInfo.class);
                 criteria.add(Restrictions.in("recordId", idSet));
@@ -162,26 +163,13 @@ public class IdKnowledgeModule extends GenericKnowledgeModule {
         return 0.0;
     }
 
-    public UpdateResult updateKnowledge(ResultSet resultSet, UserId userId, String sqlQuery) throws Exception {
-        Connection queryConnection = resultSet.getStatement().getConnection();
-        if (queryConnection == null) {
-            // невозможно определить то соединение с базой данных, по которому
-            // производилась выборка данных
-            return new UpdateResult() {
-
-                public boolean isUseful() {
-                    return false;
-                }
-
-                public Map<String, String> getProperties() {
-                    Map<String, String> properties = new HashMap<String, String>();
-                    properties.put("description", "NO_CONNECTION");
-                    return Collections.unmodifiableMap(properties);
-                }
-            };
-        }
-        List<Table> tables = recognizeTables(resultSet, sqlQuery);
-        if (tables.isEmpty()) {
+    @Override
+    public UpdateResult updateKnowledge(AnalysisContext context) throws Exception {
+        UserId userId = context.getUserId();
+        // обучение использует только значения первичного ключа из результата
+        // запроса, соединение приложения не требуется
+        QueryPlan plan = getQueryPlan(context);
+        if (plan.getTables().isEmpty()) {
             return new UpdateResult() {
 
                 public boolean isUseful() {
@@ -195,11 +183,11 @@ public class IdKnowledgeModule extends GenericKnowledgeModule {
                 }
             };
         }
-        for (Table table : tables) {
+        for (Table table : plan.getTables()) {
             // обновляем общую таблицу
             updateHittingTableInfo(table.getName(), userId);
             // определили какие объекты выбрали в данной выборке
-            List<List<Object>> ids = getObjectIds(resultSet, table);
+            RecordKeys ids = getObjectIds(context, plan, table);
             if (ids.isEmpty()) {
                 // результат выборки - пустое множество
                 return new UpdateResult() {
@@ -253,13 +241,13 @@ public class IdKnowledgeModule extends GenericKnowledgeModule {
         });
     }
 
-    private void updateRecordInfos(final String tableName, final List<List<Object>> ids, final UserId userId) {
+    private void updateRecordInfos(final String tableName, final RecordKeys ids, final UserId userId) {
         doInTransaction(new Action() {
 
             public void doAction(Session session) {
                 Set<String> idSet = new HashSet<String>();
-                for (List<Object> id : ids) {
-                    idSet.add(getStringIdPresentation(id));
+                for (int i = 0; i < ids.size(); i++) {
+                    idSet.add(getStringIdPresentation(ids, i));
                 }
                 Criteria criteria = session.createCriteria(RecordInfo.class);
                 criteria.add(Restrictions.in("recordId", idSet));
@@ -288,9 +276,9 @@ public class IdKnowledgeModule extends GenericKnowledgeModule {
         });
     }
 
-    private String getStringIdPresentation(List<Object> id) {
+    private String getStringIdPresentation(RecordKeys ids, int index) {
         StringBuilder res = new StringBuilder();
-        for (Object part : id) {
+        for (Object part : ids.getValues(index)) {
             if (res.length() > 0) {
                 res.append("$");
             }
@@ -0,0 +1,224 @@
+/*
+ * Copyright 2009-2016 Andrey Grigorov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.grand.ids.jdbc.knowledgemodule.minmax;
+
+import com.grand.ids.jdbc.knowledgemodule.RecordKey;
+
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Снимки границ "дружественных" значений (таблицы _min и _max) для пар
+ * "таблица - пользователь". Снимок содержит все границы пользователя для
+ * таблицы, поэтому отсутствие в нём записи означает, что границ для записи
+ * нет. Снимки загружаются заранее (см.
+ * {@link MinMaxKnowledgeModule#prefetchTable}), обновляются при изменении
+ * границ модулем знаний и устаревают через заданное время, так как базу
+ * знаний могут изменять и другие экземпляры модуля.
+ *
+ * @author Andrey Grigorov
+ */
+class BoundCache {
+
+    /**
+     * Снимок границ одной пары "таблица - пользователь".
+     */
+    final static class Snapshot {
+
+        private final long createTime;
+        private final ConcurrentMap<RecordKey, Map<String, Object>> bottomBounds;
+        private final ConcurrentMap<RecordKey, Map<String, Object>> topBounds;
+
+        Snapshot(Map<RecordKey, Map<String, Object>> bottomBounds, Map<RecordKey, Map<String, Object>> topBounds) {
+            this.createTime = System.currentTimeMillis();
+            this.bottomBounds = new ConcurrentHashMap<RecordKey, Map<String, Object>>(bottomBounds);
+            this.topBounds = new ConcurrentHashMap<RecordKey, Map<String, Object>>(topBounds);
+        }
+
+        private ConcurrentMap<RecordKey, Map<String, Object>> getBounds(String postfix) {
+            return "_min".equals(postfix) ? bottomBounds : topBounds;
+        }
+    }
+
+    /**
+     * Состояние пары "таблица - пользователь": номер версии границ и снимок
+     * (null, если снимок не загружен). Запись не изменяется, а заменяется
+     * целиком, поэтому версия и снимок всегда согласованы.
+     */
+    private final static class Slot {
+
+        private final long version;
+        private final Snapshot snapshot;
+
+        private Slot(long version, Snapshot snapshot) {
+            this.version = version;
+            this.snapshot = snapshot;
+        }
+    }
+
+    private final long timeToLiveMillis;
+    private final int maxSnapshots;
+    private final ConcurrentMap<String, Slot> slots = new ConcurrentHashMap<String, Slot>();
+    /**
+     * Источник номеров версий; номера не повторяются, поэтому снимок,
+     * загруженный до вытеснения или изменения записи, не будет сохранён
+     */
+    private final AtomicLong versionSequence = new AtomicLong();
+
+    BoundCache(long timeToLiveMillis, int maxSnapshots) {
+        this.timeToLiveMillis = timeToLiveMillis;
+        this.maxSnapshots = maxSnapshots;
+    }
+
+    /**
+     * Получить действующий снимок границ.
+     *
+     * @return снимок или null, если снимок не загружен или устарел
+     */
+    Snapshot getSnapshot(String tableName, String userId) {
+        String key = key(tableName, userId);
+        Slot slot = slots.get(key);
+        if (slot == null || slot.snapshot == null) {
+            return null;
+        }
+        if (isExpired(slot.snapshot)) {
+            slots.replace(key, slot, new Slot(slot.version, null));
+            return null;
+        }
+        return slot.snapshot;
+    }
+
+    /**
+     * Найти границу записи в снимке.
+     *
+     * @param snapshot снимок границ
+     * @param postfix  "_min" - нижняя граница, "_max" - верхняя граница
+     * @param id       значение первичного ключа записи
+     * @return граница или null, если для записи границ нет
+     */
+    static Map<String, Object> getBound(Snapshot snapshot, String postfix, RecordKey id) {
+        return snapshot.getBounds(postfix).get(id);
+    }
+
+    /**
+     * Получить номер версии границ пары "таблица - пользователь"; вызывается
+     * перед загрузкой снимка.
+     */
+    long getVersion(String tableName, String userId) {
+        String key = key(tableName, userId);
+        Slot slot = slots.get(key);
+        if (slot == null) {
+            if (slots.size() >= maxSnapshots) {
+                evict();
+            }
+            Slot newSlot = new Slot(versionSequence.incrementAndGet(), null);
+            slot = slots.putIfAbsent(key, newSlot);
+            if (slot == null) {
+                slot = newSlot;
+            }
+        }
+        return slot.version;
+    }
+
+    /**
+     * Сохранить загруженный снимок, если за время загрузки границы не менялись
+     * и запись пары не была вытеснена.
+     */
+    void putSnapshot(String tableName, String userId, long version, Snapshot snapshot) {
+        String key = key(tableName, userId);
+        Slot slot = slots.get(key);
+        if (slot != null && slot.version == version) {
+            slots.replace(key, slot, new Slot(version, snapshot));
+        }
+    }
+
+    /**
+     * Отразить в снимке изменение границы записи.
+     *
+     * @param postfix "_min" - нижняя граница, "_max" - верхняя граница
+     * @param id      значение первичного ключа записи
+     * @param bound   новое значение границы
+     */
+    void updateBound(String tableName, String userId, String postfix, RecordKey id, Map<String, Object> bound) {
+        Slot slot = newVersion(key(tableName, userId), false);
+        if (slot != null && slot.snapshot != null) {
+            slot.snapshot.getBounds(postfix).put(id, bound);
+        }
+    }
+
+    /**
+     * Удалить снимок границ пары "таблица - пользователь", если границы
+     * изменились без вычисления их новых значений.
+     */
+    void invalidate(String tableName, String userId) {
+        newVersion(key(tableName, userId), true);
+    }
+
+    void clear() {
+        slots.clear();
+    }
+
+    /**
+     * Заменить запись пары записью с новым номером версии. Если записи нет,
+     * незавершённых загрузок снимка для пары тоже нет (см.
+     * {@link #putSnapshot}), и версию менять не нужно.
+     *
+     * @param dropSnapshot удалить снимок
+     * @return новая запись или null, если записи нет
+     */
+    private Slot newVersion(String key, boolean dropSnapshot) {
+        while (true) {
+            Slot slot = slots.get(key);
+            if (slot == null) {
+                return null;
+            }
+            Slot newSlot = new Slot(versionSequence.incrementAndGet(), dropSnapshot ? null : slot.snapshot);
+            if (slots.replace(key, slot, newSlot)) {
+                return newSlot;
+            }
+        }
+    }
+
+    /**
+     * Освободить место для новой записи: сначала удаляются записи без
+     * действующего снимка, затем, если их недостаточно, произвольные записи.
+     */
+    private void evict() {
+        Iterator<Map.Entry<String, Slot>> iterator = slots.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Slot slot = iterator.next().getValue();
+            if (slot.snapshot == null || isExpired(slot.snapshot)) {
+                iterator.remove();
+            }
+        }
+        iterator = slots.entrySet().iterator();
+        while (slots.size() >= maxSnapshots && iterator.hasNext()) {
+            iterator.next();
+            iterator.remove();
+        }
+    }
+
+    private boolean isExpired(Snapshot snapshot) {
+        return System.currentTimeMillis() - snapshot.createTime > timeToLiveMillis;
+    }
+
+    private static String key(String tableName, String userId) {
+        return tableName.toUpperCase() + '\u0000' + userId;
+    }
+}
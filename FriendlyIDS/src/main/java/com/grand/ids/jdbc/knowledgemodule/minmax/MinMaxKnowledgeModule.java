@@ -16,8 +16,14 @@
 package com.grand.ids.jdbc.knowledgemodule.minmax;
 
 import com.grand.ids.UserId;
+import com.grand.ids.jdbc.CapturingResultSet;
+import com.grand.ids.jdbc.knowledgemodule.AnalysisContext;
 import com.grand.ids.jdbc.knowledgemodule.GenericKnowledgeModule;
+import com.grand.ids.jdbc.knowledgemodule.KeyCodec;
 import com.grand.ids.jdbc.knowledgemodule.LinkPredictionMode;
+import com.grand.ids.jdbc.knowledgemodule.QueryPlan;
+import com.grand.ids.jdbc.knowledgemodule.RecordKey;
+import com.grand.ids.jdbc.knowledgemodule.RecordKeys;
 import com.grand.ids.model.Column;
 import com.grand.ids.model.Graph;
 import com.grand.ids.model.Schema;
@@ -33,13 +39,18 @@ import java.net.URL;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
 import javax.sql.DataSource;
 
 import org.apache.log4j.Logger;
@@ -54,15 +65,85 @@ public class MinMaxKnowledgeModule extends GenericKnowledgeModule {
     private final static String MIN_MAX_SCHEMA_XSL = "/" + MinMaxKnowledgeModule.class.getPackage().getName().replace(".", "/")
             + "/xslt/MySQLMinMaxSchema.xsl";
     private final static Logger LOG = Logger.getLogger(MinMaxKnowledgeModule.class);
-    private Connection connection;
-    private List<Map<String, Object>> allRecords = null;
-    private List<Map<String, Object>> allRecordsTopBounds = null;
-    private List<Map<String, Object>> allRecordsBottomBounds = null;
+    /**
+     * Время жизни снимка границ в миллисекундах
+     */
+    private final static long BOUND_SNAPSHOT_TTL_MILLIS = 60000;
+    /**
+     * Максимальное количество снимков границ
+     */
+    private final static int MAX_BOUND_SNAPSHOTS = 256;
+    /**
+     * Максимальное количество свободных соединений с базой знаний,
+     * сохраняемых для повторного использования
+     */
+    private final static int MAX_IDLE_KNOWLEDGE_CONNECTIONS = 4;
+    /**
+     * Максимальное количество записей в снимке; границы пользователей,
+     * работавших с большим количеством записей, заранее не загружаются
+     */
+    private final static int MAX_BOUND_SNAPSHOT_ROWS = 10000;
+    /**
+     * Трудоёмкость одного запроса границ к базе знаний (см.
+     * {@link GenericKnowledgeModule#estimateAnalysisCost})
+     */
+    private final static long BOUND_QUERY_COST = 200;
+    /**
+     * Трудоёмкость получения границы одной записи в ответе на запрос
+     */
+    private final static long BOUND_ROW_COST = 2;
+    /**
+     * Максимальное количество операторов в одном пакете обновления базы знаний
+     */
+    private final static int UPSERT_BATCH_SIZE = 1000;
+    /**
+     * Имя сведений контекста анализа, содержащих все записи таблицы (при
+     * предсказании связей)
+     */
+    private final static String ALL_RECORDS = "allRecords";
+    private final static String LINK_PREDICTION_RECORDS = "linkPredictionRecords";
+    /**
+     * Снимки границ, загруженные заранее (см. {@link #prefetchTable(Table, UserId)})
+     */
+    private final BoundCache boundCache = new BoundCache(BOUND_SNAPSHOT_TTL_MILLIS, MAX_BOUND_SNAPSHOTS);
+    /**
+     * Способ обновления служебных таблиц; определяется по СУБД базы знаний
+     */
+    private volatile UpsertDialect upsertDialect;
 
     /**
-     * Хранилище данных, в котором производится хранение базы знаний.
+     * Хранилище данных, в котором производится хранение базы знаний. Задачи,
+     * выполняемые параллельно для таблиц запроса (см.
+     * {@link #invokeForTables(List)}), используют собственные соединения.
      */
     private DataSource knowledgeDataSource;
+    /**
+     * Свободные соединения с базой знаний (см.
+     * {@link #getKnowledgeConnection()}). Соединение возвращается сюда после
+     * обработки таблицы, поэтому при последовательной обработке таблиц и
+     * следующих запросах новое соединение не открывается.
+     */
+    private final BlockingQueue<Connection> idleConnections =
+            new ArrayBlockingQueue<Connection>(MAX_IDLE_KNOWLEDGE_CONNECTIONS);
+
+    /**
+     * Все записи таблицы и их границы, используемые при предсказании связей
+     * (см. {@link LinkPredictionMode}). Считываются один раз для каждого
+     * анализируемого запроса и хранятся в контексте анализа.
+     */
+    private static class LinkPredictionRecords {
+
+        private final List<Map<String, Object>> records;
+        private final List<Map<String, Object>> topBounds;
+        private final List<Map<String, Object>> bottomBounds;
+
+        LinkPredictionRecords(List<Map<String, Object>> records, List<Map<String, Object>> topBounds,
+                              List<Map<String, Object>> bottomBounds) {
+            this.records = records;
+            this.topBounds = topBounds;
+            this.bottomBounds = bottomBounds;
+        }
+    }
 
     private static class RecordInfo {
 
@@ -86,7 +167,14 @@ public class MinMaxKnowledgeModule extends GenericKnowledgeModule {
     public MinMaxKnowledgeModule(DataSource knowledgeDataSource, Schema schema, boolean alwaysCreateNewTables,
                                  LinkPredictionMode linkPredictionMode) throws Exception {
         this.knowledgeDataSource = knowledgeDataSource;
-        this.connection = this.knowledgeDataSource.getConnection();
+        Connection connection = getKnowledgeConnection();
+        boolean completed = false;
+        try {
+            this.upsertDialect = UpsertDialect.forDatabase(connection.getMetaData());
+            completed = true;
+        } finally {
+            releaseKnowledgeConnection(connection, completed);
+        }
         this.linkPredictionMode = linkPredictionMode;
         this.setSchema(schema, alwaysCreateNewTables);
     }
@@ -162,30 +250,19 @@ public class MinMaxKnowledgeModule extends GenericKnowledgeModule {
         return script.toString();
     }
 
+    /**
+     * Значения первичного ключа, полные записи и границы, считанные при
+     * построении графа, берутся из контекста анализа.
+     */
     @Override
-    public UpdateResult updateKnowledge(final ResultSet resultSet, final UserId userId, final String sqlQuery) throws Exception {
-        allRecords = null;
-        allRecordsTopBounds = null;
-        allRecordsBottomBounds = null;
-        Connection queryConnection = resultSet.getStatement().getConnection();
-        if (queryConnection == null) {
-            // невозможно определить то соединение с базой данных, по которому
-            // производилась выборка данных
-            return new UpdateResult() {
-
-                public boolean isUseful() {
-                    return false;
-                }
-
-                public Map<String, String> getProperties() {
-                    Map<String, String> properties = new HashMap<String, String>();
-                    properties.put("description", "NO_CONNECTION");
-                    return Collections.unmodifiableMap(properties);
-                }
-            };
-        }
-        List<Table> tables = recognizeTables(resultSet, sqlQuery);
-        if (tables.isEmpty()) {
+    public UpdateResult updateKnowledge(final AnalysisContext context) throws Exception {
+        final UserId userId = context.getUserId();
+        final CapturingResultSet resultSet = context.getCapturedResultSet();
+        // соединение недоступно, если анализ выполняется не в потоке
+        // приложения; тогда полные записи берутся из контекста
+        Connection queryConnection = context.getConnection();
+        QueryPlan plan = getQueryPlan(context);
+        if (plan.getTables().isEmpty()) {
             return new UpdateResult() {
 
                 public boolean isUseful() {
@@ -199,12 +276,21 @@ public class MinMaxKnowledgeModule extends GenericKnowledgeModule {
                 }
             };
         }
-        for (Table table : tables) {
-            // обновляем общую таблицу
-            updateGeneralTable(table.getName(), userId);
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (final Table table : plan.getTables()) {
             // определили какие объекты выбрали в данной выборке
-            List<List<Object>> ids = getObjectIds(resultSet, table);
+            RecordKeys ids = getObjectIds(context, plan, table);
             if (ids.isEmpty()) {
+                invokeForTables(tasks);
+                // обновляем общую таблицу
+                Connection connection = getKnowledgeConnection();
+                boolean completed = false;
+                try {
+                    updateGeneralTable(connection, table.getName(), userId);
+                    completed = true;
+                } finally {
+                    releaseKnowledgeConnection(connection, completed);
+                }
                 // результат выборки - пустое множество
                 return new UpdateResult() {
 
@@ -219,22 +305,55 @@ public class MinMaxKnowledgeModule extends GenericKnowledgeModule {
                     }
                 };
             }
-            final ResultSet completeResultSet;
-            if (!resultSetIsComplete(resultSet, table)) {
-                // данных в анализируемой выборке недостаточно, придётся делать ещё один запрос
-                completeResultSet = getCompleteResultSet(table, ids, queryConnection);
-            } else {
-                completeResultSet = resultSet;
+            // если данных в анализируемой выборке недостаточно, полные записи
+            // выбираются ещё одним запросом (или берутся из контекста анализа)
+            final CapturingResultSet completeResultSet = getCompleteResultSet(context, plan, table, queryConnection);
+            if (completeResultSet == null) {
+                // невозможно определить то соединение с базой данных, по которому
+                // производилась выборка данных
+                return new UpdateResult() {
+
+                    public boolean isUseful() {
+                        return false;
+                    }
+
+                    public Map<String, String> getProperties() {
+                        Map<String, String> properties = new HashMap<String, String>();
+                        properties.put("description", "NO_CONNECTION");
+                        return Collections.unmodifiableMap(properties);
+                    }
+                };
             }
             // находим верхнюю и нижнюю границы значений
-            Map<String, Object> bottomBound = getBottomBoundOfResultSet(completeResultSet, table);
-            Map<String, Object> topBound = getTopBoundOfResultSet(completeResultSet, table);
-            // обновляем границы
-            updateBottomBound(ids, table, userId, bottomBound);
-            updateTopBound(ids, table, userId, topBound);
-            // обновляем таблицу-счётчик
-            updateCountTable(ids, table, userId);
+            final Map<String, Object> bottomBound = new HashMap<String, Object>();
+            final Map<String, Object> topBound = new HashMap<String, Object>();
+            getBoundsOfResultSet(completeResultSet, table, bottomBound, topBound);
+            // каждая запись учитывается в базе знаний один раз
+            final RecordKeys distinctIds = ids.distinct();
+            tasks.add(new Callable<Void>() {
+
+                public Void call() throws Exception {
+                    // задачи выполняются параллельно, поэтому каждая
+                    // использует собственное соединение с базой знаний
+                    Connection connection = getKnowledgeConnection();
+                    boolean completed = false;
+                    try {
+                        // обновляем общую таблицу
+                        updateGeneralTable(connection, table.getName(), userId);
+                        // обновляем границы
+                        updateBottomBound(connection, distinctIds, table, userId, bottomBound, context);
+                        updateTopBound(connection, distinctIds, table, userId, topBound, context);
+                        // обновляем таблицу-счётчик
+                        updateCountTable(connection, distinctIds, table, userId);
+                        completed = true;
+                    } finally {
+                        releaseKnowledgeConnection(connection, completed);
+                    }
+                    return null;
+                }
+            });
         }
+        invokeForTables(tasks);
 
         return new UpdateResult() {
 
@@ -258,24 +377,92 @@ public class MinMaxKnowledgeModule extends GenericKnowledgeModule {
      * @return значение модульности
      */
     @Override
-    protected Graph getGraph(final Table table, final ResultSet resultSet, final UserId userId) throws Exception {
-        List<Map<String, Object>> records = new ArrayList<Map<String, Object>>();
-        List<Map<String, Object>> bottomBounds = new ArrayList<Map<String, Object>>();
-        List<Map<String, Object>> topBounds = new ArrayList<Map<String, Object>>();
+    protected Graph getGraph(final Table table, final CapturingResultSet resultSet, final UserId userId) throws Exception {
+        return getGraph(table, resultSet, userId, null);
+    }
 
-        // FIXME: сделать быстрое получение границ записи
-        while (resultSet.next()) {
-            Map<String, Object> record = new HashMap<String, Object>();
-            for (Column column : table.getColumns()) {
-                record.put(column.getName(), resultSet.getObject(column.getName()));
+    /**
+     * Границы записей, считанные из базы знаний, сохраняются в контексте
+     * анализа и используются при обновлении границ (см.
+     * {@link #updateKnowledge(AnalysisContext)}). Границы, найденные в
+     * снимке (см. {@link BoundCache}), не сохраняются, так как снимок может
+     * не отражать изменения, сделанные другими экземплярами модуля.
+     * <p>
+     * Графы таблиц запроса строятся параллельно, поэтому каждый из них
+     * использует собственное соединение с базой знаний.
+     */
+    @Override
+    protected Graph getGraph(final Table table, final CapturingResultSet resultSet, final UserId userId,
+                             final AnalysisContext context) throws Exception {
+        Connection connection = getKnowledgeConnection();
+        boolean completed = false;
+        try {
+            Graph graph = getGraph(connection, table, resultSet, userId, context);
+            completed = true;
+            return graph;
+        } finally {
+            releaseKnowledgeConnection(connection, completed);
+        }
+    }
+
+    /**
+     * Получить соединение с базой знаний: свободное соединение, сохранённое
+     * после предыдущего обращения, или новое соединение хранилища данных.
+     *
+     * @return соединение с базой знаний
+     * @throws SQLException
+     */
+    private Connection getKnowledgeConnection() throws SQLException {
+        Connection connection;
+        while ((connection = idleConnections.poll()) != null) {
+            if (!connection.isClosed()) {
+                return connection;
             }
-            List<Object> id = new ArrayList<Object>();
-            for (String key : table.getPrimaryKeys()) {
-                id.add(resultSet.getObject(key));
+        }
+        return knowledgeDataSource.getConnection();
+    }
+
+    /**
+     * Вернуть соединение, полученное методом {@link #getKnowledgeConnection()}.
+     * Соединение закрывается, если свободных соединений уже достаточно или
+     * работа с ним завершилась ошибкой (состояние соединения после ошибки
+     * или прерывания задачи неизвестно).
+     *
+     * @param connection соединение с базой знаний
+     * @param completed  true - работа с соединением завершилась успешно
+     * @throws SQLException
+     */
+    private void releaseKnowledgeConnection(Connection connection, boolean completed) throws SQLException {
+        if (!completed || Thread.currentThread().isInterrupted() || !idleConnections.offer(connection)) {
+            connection.close();
+        }
+    }
+
+    private Graph getGraph(Connection connection, Table table, CapturingResultSet resultSet, UserId userId,
+                           AnalysisContext context) throws Exception {
+        int rowCount = resultSet.getRowCount();
+        List<Map<String, Object>> records = new ArrayList<Map<String, Object>>(rowCount);
+        List<Column> columns = table.getColumns();
+        int[] columnIndexes = getColumnIndexes(resultSet, table);
+        RecordKeys ids = getObjectIds(resultSet, table, getColumnIndexes(resultSet, table, table.getPrimaryKeys()));
+        BoundCache.Snapshot snapshot = boundCache.getSnapshot(table.getName(), userId.getUserId());
+        // границы всех записей, в порядке записей результата
+        List<Map<String, Object>> bottomBounds = getBounds(connection, table, ids, userId, "_min", snapshot);
+        List<Map<String, Object>> topBounds = getBounds(connection, table, ids, userId, "_max", snapshot);
+        Map<RecordKey, Map<String, Object>> knownBottomBounds = null;
+        Map<RecordKey, Map<String, Object>> knownTopBounds = null;
+        if (context != null && snapshot == null) {
+            knownBottomBounds = new HashMap<RecordKey, Map<String, Object>>();
+            knownTopBounds = new HashMap<RecordKey, Map<String, Object>>();
+        }
+
+        for (int row = 0; row < rowCount; row++) {
+            Map<String, Object> record = new HashMap<String, Object>();
+            for (int i = 0; i < columnIndexes.length; i++) {
+                record.put(columns.get(i).getName(), resultSet.getValue(row, columnIndexes[i]));
             }
             records.add(record);
-            Map<String, Object> bottomBound = getBottomBound(table, id, userId);
-//            if (bottomBound == null) {
+//            if (bottomBounds.get(row) == null) {
 //                // В служебных таблицах нет записи о граничных значениях, так
 //                // как запись попала в результат выборки в первый раз. В
 //                // качестве граничных значений возьмём значения атрибутов данной
@@ -284,58 +471,180 @@ public class MinMaxKnowledgeModule extends GenericKnowledgeModule {
 //                // граничные значения для записи, которая попадает в
 //                // результирующее множество впервые. Наверное, возможны и
 //                // другие варианты...
-//                bottomBound = new HashMap<String, Object>();
+//                Map<String, Object> bottomBound = new HashMap<String, Object>();
 //                for (Column column : table.getNonkeyColumns()) {
 //                    bottomBound.put(column.getName(), record.get(column.getName()));
 //                }
+//                bottomBounds.set(row, bottomBound);
 //            }
-            bottomBounds.add(bottomBound);
-            Map<String, Object> topBound = getTopBound(table, id, userId);
-//            if (topBound == null) {
-//                topBound = new HashMap<String, Object>();
+//            if (topBounds.get(row) == null) {
+//                Map<String, Object> topBound = new HashMap<String, Object>();
 //                for (Column column : table.getNonkeyColumns()) {
 //                    topBound.put(column.getName(), record.get(column.getName()));
 //                }
+//                topBounds.set(row, topBound);
 //            }
-            topBounds.add(topBound);
+            if (knownBottomBounds != null) {
+                RecordKey id = ids.get(row);
+                knownBottomBounds.put(id, bottomBounds.get(row));
+                knownTopBounds.put(id, topBounds.get(row));
+            }
+        }
+        if (knownBottomBounds != null) {
+            context.putKnowledge(table, "_min", knownBottomBounds);
+            context.putKnowledge(table, "_max", knownTopBounds);
         }
-        resultSet.beforeFirst();
 
-        Graph graph = createGraph(table, userId, records, bottomBounds, topBounds, resultSet.getStatement().getConnection());
+        Connection queryConnection = context != null
+                ? context.getConnection()
+                : resultSet.getSourceStatement().getConnection();
+        Graph graph = createGraph(connection, table, userId, records, bottomBounds, topBounds, context, queryConnection);
         return graph;
     }
 
     /**
-     * Получение нижней границы "дружественных" значений атрибутов для указанной
-     * записи
+     * При предсказании связей (см. {@link LinkPredictionMode}) все записи
+     * таблицы выбираются через соединение приложения заранее и сохраняются
+     * в контексте анализа.
+     */
+    @Override
+    protected void prepareTable(final AnalysisContext context, final QueryPlan plan, final Table table,
+                                final Connection connection) throws Exception {
+        super.prepareTable(context, plan, table, connection);
+        if (linkPredictionMode != LinkPredictionMode.NONE && connection != null) {
+            context.putKnowledge(table, ALL_RECORDS, getAllRecords(table, context.getUserId(), connection));
+        }
+    }
+
+    /**
+     * Получение границ "дружественных" значений атрибутов для всех записей
+     * результата выборки.
      *
-     * @param table  имя таблицы
-     * @param id     значение идентификатора объекта
-     * @param userId идентификатор текущего пользователя
-     * @return нижняя граница "дружественных" значений атрибутов для указанной
-     * записи
+     * @param connection соединение с базой знаний
+     * @param table      описание таблицы
+     * @param ids        значения первичного ключа записей результата
+     * @param userId     идентификатор текущего пользователя
+     * @param postfix    "_min" - нижние границы, "_max" - верхние границы
+     * @param snapshot   снимок границ пользователя; null - границы считываются
+     *                   из базы знаний
+     * @return границы в порядке записей результата; null - для записи границ
+     * нет
      * @throws Exception
      */
-    private Map<String, Object> getBottomBound(Table table, List<Object> id, UserId userId) throws Exception {
-        return getBound(table, id, userId, "_min");
+    private List<Map<String, Object>> getBounds(Connection connection, Table table, RecordKeys ids, UserId userId, String postfix,
+                                                BoundCache.Snapshot snapshot) throws Exception {
+        List<Map<String, Object>> bounds = new ArrayList<Map<String, Object>>(ids.size());
+        if (snapshot != null) {
+            // снимок содержит все границы пользователя для таблицы
+            for (int row = 0; row < ids.size(); row++) {
+                bounds.add(BoundCache.getBound(snapshot, postfix, ids.get(row)));
+            }
+        } else {
+            Map<RecordKey, Map<String, Object>> found = queryBounds(connection, table, ids.distinct(), userId, postfix);
+            for (int row = 0; row < ids.size(); row++) {
+                bounds.add(found.get(ids.get(row)));
+            }
+        }
+        return bounds;
+    }
+
+    /**
+     * Считать границы записей из таблицы _min или _max. Записи выбираются
+     * частями, по одному запросу на часть; количество значений ключа в части
+     * округляется вверх до степени двойки (недостающие параметры повторяют
+     * последнее значение), чтобы использовалось лишь несколько разных
+     * текстов запроса.
+     *
+     * @param connection соединение с базой знаний
+     * @param table      описание таблицы
+     * @param keys       различные значения первичного ключа без неопределённых
+     *                   значений (см. {@link RecordKeys#distinct()})
+     * @param userId     идентификатор текущего пользователя
+     * @param postfix    "_min" - нижние границы, "_max" - верхние границы
+     * @return найденные границы по значениям первичного ключа
+     * @throws Exception
+     */
+    private Map<RecordKey, Map<String, Object>> queryBounds(Connection connection, Table table, RecordKeys keys, UserId userId,
+                                                           String postfix) throws Exception {
+        Map<RecordKey, Map<String, Object>> bounds = new HashMap<RecordKey, Map<String, Object>>();
+        KeyCodec codec = getKeyCodec(table);
+        List<String> primaryKeys = table.getPrimaryKeys();
+        int keySize = primaryKeys.size();
+        int maxChunkSize = getMaxBoundChunkSize(table);
+        for (int from = 0; from < keys.size(); from += maxChunkSize) {
+            int count = Math.min(maxChunkSize, keys.size() - from);
+            int chunkSize = Math.min(roundUpToPowerOfTwo(count), maxChunkSize);
+            StringBuilder query = new StringBuilder();
+            query.append("select * from ");
+            query.append(table.getName());
+            query.append(postfix);
+            query.append(" where ids_user_id = ? and (");
+            appendKeyCondition(query, primaryKeys, chunkSize);
+            query.append(")");
+            PreparedStatement preparedStatement = connection.prepareStatement(query.toString());
+            try {
+                preparedStatement.setObject(1, userId.getUserId());
+                int parameterIndex = 2;
+                for (int i = 0; i < chunkSize; i++) {
+                    int index = from + Math.min(i, count - 1);
+                    for (int k = 0; k < keySize; k++) {
+                        preparedStatement.setObject(parameterIndex++, keys.getValue(index, k));
+                    }
+                }
+                ResultSet resultSet = preparedStatement.executeQuery();
+                try {
+                    while (resultSet.next()) {
+                        Map<String, Object> bound = new HashMap<String, Object>();
+                        for (Column column : table.getColumns()) {
+                            bound.put(column.getName(), resultSet.getObject(column.getName()));
+                        }
+                        List<Object> id = new ArrayList<Object>(keySize);
+                        for (String key : primaryKeys) {
+                            id.add(bound.get(key));
+                        }
+                        bounds.put(codec.key(id), bound);
+                    }
+                } finally {
+                    resultSet.close();
+                }
+            } finally {
+                preparedStatement.close();
+            }
+        }
+        return bounds;
+    }
+
+    /**
+     * Максимальное количество значений ключа в одном запросе границ; вместе
+     * с идентификатором пользователя количество параметров запроса не
+     * превышает {@link #getRefetchChunkSize()}.
+     */
+    private int getMaxBoundChunkSize(Table table) {
+        return Math.max(1, (getRefetchChunkSize() - 1) / table.getPrimaryKeys().size());
     }
 
     /**
      * Получение верхней границы "дружественных" значений атрибутов для
      * указанной записи
      *
-     * @param table  имя таблицы
-     * @param id     значение идентификатора объекта
-     * @param userId идентификатор текущего пользователя
+     * @param connection соединение с базой знаний
+     * @param table      имя таблицы
+     * @param id         значение идентификатора объекта
+     * @param userId     идентификатор текущего пользователя
      * @return верхняя граница "дружественных" значений атрибутов для указанной
      * записи
      * @throws Exception
      */
-    private Map<String, Object> getTopBound(Table table, List<Object> id, UserId userId) throws Exception {
-        return getBound(table, id, userId, "_max");
+    private Map<String, Object> getTopBound(Connection connection, Table table, RecordKey id, UserId userId) throws Exception {
+        return getBound(connection, table, id, userId, "_max");
     }
 
-    private Map<String, Object> getBound(Table table, List<Object> id, UserId userId, String postfix) throws Exception {
+    private Map<String, Object> getBound(Connection connection, Table table, RecordKey id, UserId userId, String postfix) throws Exception {
+        BoundCache.Snapshot snapshot = boundCache.getSnapshot(table.getName(), userId.getUserId());
+        if (snapshot != null) {
+            // снимок содержит все границы пользователя для таблицы
+            return BoundCache.getBound(snapshot, postfix, id);
+        }
         StringBuilder query = new StringBuilder();
         query.append("select * from ");
         query.append(table.getName());
@@ -352,7 +661,7 @@ public class MinMaxKnowledgeModule extends GenericKnowledgeModule {
 
         PreparedStatement preparedStatement = connection.prepareStatement(query.toString());
         for (int i = 0; i < table.getPrimaryKeys().size(); i++) {
-            preparedStatement.setObject(i + 1, id.get(i));
+            preparedStatement.setObject(i + 1, id.getValue(i));
         }
         preparedStatement.setObject(table.getPrimaryKeys().size() + 1, userId.getUserId());
         ResultSet resultSet = preparedStatement.executeQuery();
@@ -375,6 +684,90 @@ public class MinMaxKnowledgeModule extends GenericKnowledgeModule {
         return bound;
     }
 
+    /**
+     * Границы записей считываются из таблиц _min и _max частями (см.
+     * {@link #queryBounds}), если они не были загружены заранее.
+     */
+    @Override
+    protected long estimateKnowledgeCost(Table table, UserId userId, long rowCount) {
+        if (userId != null && boundCache.getSnapshot(table.getName(), userId.getUserId()) != null) {
+            return 0;
+        }
+        int maxChunkSize = getMaxBoundChunkSize(table);
+        long queryCount = (rowCount + maxChunkSize - 1) / maxChunkSize;
+        return 2 * (queryCount * BOUND_QUERY_COST + rowCount * BOUND_ROW_COST);
+    }
+
+    /**
+     * Загрузить в память все границы "дружественных" значений пользователя
+     * для таблицы. Загрузка выполняется через отдельное соединение с базой
+     * знаний (см. {@link #getKnowledgeConnection()}), так как вызывается
+     * параллельно с анализом.
+     */
+    @Override
+    protected void prefetchTable(Table table, UserId userId) throws Exception {
+        if (boundCache.getSnapshot(table.getName(), userId.getUserId()) != null) {
+            return;
+        }
+        long version = boundCache.getVersion(table.getName(), userId.getUserId());
+        Connection prefetchConnection = getKnowledgeConnection();
+        boolean completed = false;
+        Map<RecordKey, Map<String, Object>> bottomBounds;
+        Map<RecordKey, Map<String, Object>> topBounds;
+        try {
+            bottomBounds = loadBounds(prefetchConnection, table, userId, "_min");
+            topBounds = bottomBounds != null ? loadBounds(prefetchConnection, table, userId, "_max") : null;
+            completed = true;
+        } finally {
+            releaseKnowledgeConnection(prefetchConnection, completed);
+        }
+        if (bottomBounds != null && topBounds != null) {
+            boundCache.putSnapshot(table.getName(), userId.getUserId(), version,
+                    new BoundCache.Snapshot(bottomBounds, topBounds));
+        }
+    }
+
+    /**
+     * Считать все границы пользователя из таблицы _min или _max.
+     *
+     * @return границы по значениям первичного ключа (см.
+     * {@link KeyCodec#key(List)}) или null, если границ слишком много
+     * для хранения в памяти
+     */
+    private Map<RecordKey, Map<String, Object>> loadBounds(Connection connection, Table table, UserId userId, String postfix) throws Exception {
+        PreparedStatement preparedStatement = connection.prepareStatement("select * from " + table.getName() + postfix
+                + " where ids_user_id = ?");
+        try {
+            preparedStatement.setMaxRows(MAX_BOUND_SNAPSHOT_ROWS + 1);
+            preparedStatement.setObject(1, userId.getUserId());
+            ResultSet resultSet = preparedStatement.executeQuery();
+            try {
+                Map<RecordKey, Map<String, Object>> bounds = new HashMap<RecordKey, Map<String, Object>>();
+                List<String> primaryKeys = table.getPrimaryKeys();
+                KeyCodec codec = getKeyCodec(table);
+                while (resultSet.next()) {
+                    if (bounds.size() == MAX_BOUND_SNAPSHOT_ROWS) {
+                        return null;
+                    }
+                    Map<String, Object> bound = new HashMap<String, Object>();
+                    for (Column column : table.getColumns()) {
+                        bound.put(column.getName(), resultSet.getObject(column.getName()));
+                    }
+                    List<Object> id = new ArrayList<Object>(primaryKeys.size());
+                    for (String key : primaryKeys) {
+                        id.add(bound.get(key));
+                    }
+                    bounds.put(codec.key(id), bound);
+                }
+                return bounds;
+            } finally {
+                resultSet.close();
+            }
+        } finally {
+            preparedStatement.close();
+        }
+    }
+
     private boolean between(Object value, Object bottom, Object top) {
         if (value == null) {
             return true;
@@ -412,44 +805,20 @@ public class MinMaxKnowledgeModule extends GenericKnowledgeModule {
         return true;
     }
 
-    private Graph createGraph(Table table, UserId userId,
+    private Graph createGraph(Connection connection, Table table, UserId userId,
                               List<Map<String, Object>> records,
                               List<Map<String, Object>> bottomBounds,
                               List<Map<String, Object>> topBounds,
-                              Connection connection) throws Exception {
-        if ((linkPredictionMode != LinkPredictionMode.NONE)
-                && ((allRecords == null)
-                || (allRecordsBottomBounds == null)
-                || (allRecordsTopBounds == null))) {
-            // получаем все записи
-            allRecords = getAllRecords(table, userId, connection);
-            // получаем min-max границы для всех записей
-            List<List<Object>> ids = new ArrayList<List<Object>>();
-            for (Map<String, Object> record : allRecords) {
-                List<Object> id = new ArrayList<Object>();
-                for (String key : table.getPrimaryKeys()) {
-                    id.add(record.get(key));
-                }
-                ids.add(id);
-            }
-            allRecordsTopBounds = getTopBounds(table, ids, userId);
-            allRecordsBottomBounds = getTopBounds(table, ids, userId);
-//            for (int i = 0; i < allRecords.size(); i++) {
-//                if (allRecordsTopBounds.get(i) == null) {
-//                    Map<String, Object> recordTopBound = new HashMap<String, Object>();
-//                    for (Column column : table.getNonkeyColumns()) {
-//                        recordTopBound.put(column.getName(), allRecords.get(i).get(column.getName()));
-//                    }
-//                    allRecordsTopBounds.set(i, recordTopBound);
-//                }
-//                if (allRecordsBottomBounds.get(i) == null) {
-//                    Map<String, Object> recordBottomBound = new HashMap<String, Object>();
-//                    for (Column column : table.getNonkeyColumns()) {
-//                        recordBottomBound.put(column.getName(), allRecords.get(i).get(column.getName()));
-//                    }
-//                    allRecordsBottomBounds.set(i, recordBottomBound);
-//                }
-//            }
+                              AnalysisContext context, Connection queryConnection) throws Exception {
+        List<Map<String, Object>> allRecords = null;
+        List<Map<String, Object>> allRecordsTopBounds = null;
+        List<Map<String, Object>> allRecordsBottomBounds = null;
+        if (linkPredictionMode != LinkPredictionMode.NONE) {
+            LinkPredictionRecords linkPredictionRecords = getLinkPredictionRecords(connection, table, userId,
+                    context, queryConnection);
+            allRecords = linkPredictionRecords.records;
+            allRecordsTopBounds = linkPredictionRecords.topBounds;
+            allRecordsBottomBounds = linkPredictionRecords.bottomBounds;
         }
 
         Graph graph = new Graph(records.size());
@@ -532,6 +901,80 @@ public class MinMaxKnowledgeModule extends GenericKnowledgeModule {
         return 0.0;
     }
 
+    /**
+     * Получить все записи таблицы и их min-max границы. Записи считываются
+     * один раз для анализируемого запроса и сохраняются в контексте анализа;
+     * без контекста они считываются при каждом вызове.
+     *
+     * @param connection      соединение с базой знаний
+     * @param table           описание таблицы
+     * @param userId          идентификатор текущего пользователя
+     * @param context         контекст анализа; может быть равен null
+     * @param queryConnection соединение, через которое выполнялся
+     *                        анализируемый запрос
+     */
+    private LinkPredictionRecords getLinkPredictionRecords(Connection connection, Table table, UserId userId,
+                                                           AnalysisContext context,
+                                                           Connection queryConnection) throws Exception {
+        Object prepared = context != null ? context.getKnowledge(table, LINK_PREDICTION_RECORDS) : null;
+        if (prepared != null) {
+            return (LinkPredictionRecords) prepared;
+        }
+        // получаем все записи
+        List<Map<String, Object>> allRecords = getAllRecords(table, userId, context, queryConnection);
+        // получаем min-max границы для всех записей
+        KeyCodec codec = getKeyCodec(table);
+        List<RecordKey> ids = new ArrayList<RecordKey>(allRecords.size());
+        for (Map<String, Object> record : allRecords) {
+            List<Object> id = new ArrayList<Object>();
+            for (String key : table.getPrimaryKeys()) {
+                id.add(record.get(key));
+            }
+            ids.add(codec.key(id));
+        }
+        List<Map<String, Object>> allRecordsTopBounds = getTopBounds(connection, table, ids, userId);
+        List<Map<String, Object>> allRecordsBottomBounds = getTopBounds(connection, table, ids, userId);
+//        for (int i = 0; i < allRecords.size(); i++) {
+//            if (allRecordsTopBounds.get(i) == null) {
+//                Map<String, Object> recordTopBound = new HashMap<String, Object>();
+//                for (Column column : table.getNonkeyColumns()) {
+//                    recordTopBound.put(column.getName(), allRecords.get(i).get(column.getName()));
+//                }
+//                allRecordsTopBounds.set(i, recordTopBound);
+//            }
+//            if (allRecordsBottomBounds.get(i) == null) {
+//                Map<String, Object> recordBottomBound = new HashMap<String, Object>();
+//                for (Column column : table.getNonkeyColumns()) {
+//                    recordBottomBound.put(column.getName(), allRecords.get(i).get(column.getName()));
+//                }
+//                allRecordsBottomBounds.set(i, recordBottomBound);
+//            }
+//        }
+        LinkPredictionRecords linkPredictionRecords = new LinkPredictionRecords(allRecords, allRecordsTopBounds,
+                allRecordsBottomBounds);
+        if (context != null) {
+            context.putKnowledge(table, LINK_PREDICTION_RECORDS, linkPredictionRecords);
+        }
+        return linkPredictionRecords;
+    }
+
+    /**
+     * Получить все записи таблицы: сохранённые в контексте анализа (см.
+     * {@link #prepareTable}) или выбранные через соединение приложения.
+     */
+    @SuppressWarnings("unchecked")
+    private List<Map<String, Object>> getAllRecords(Table table, UserId userId, AnalysisContext context,
+                                                    Connection connection) throws Exception {
+        Object preparedRecords = context != null ? context.getKnowledge(table, ALL_RECORDS) : null;
+        if (preparedRecords != null) {
+            return (List<Map<String, Object>>) preparedRecords;
+        }
+        if (connection == null) {
+            throw new SQLException("Connection of the analyzed query is not available");
+        }
+        return getAllRecords(table, userId, connection);
+    }
+
     private List<Map<String, Object>> getAllRecords(Table table, UserId userId, Connection connection) throws Exception {
         StringBuilder query = new StringBuilder();
         query.append("select ");
@@ -560,23 +1003,23 @@ public class MinMaxKnowledgeModule extends GenericKnowledgeModule {
         return records;
     }
 
-    private List<Map<String, Object>> getTopBounds(Table table, List<List<Object>> ids, UserId userId) throws Exception {
+    private List<Map<String, Object>> getTopBounds(Connection connection, Table table, List<RecordKey> ids, UserId userId) throws Exception {
         List<Map<String, Object>> topBounds = new ArrayList<Map<String, Object>>();
-        for (List<Object> id : ids) {
-            topBounds.add(getTopBound(table, id, userId));
+        for (RecordKey id : ids) {
+            topBounds.add(getTopBound(connection, table, id, userId));
         }
         return topBounds;
     }
 
-    private List<Map<String, Object>> getBottomBounds(Table table, List<List<Object>> ids, UserId userId) throws Exception {
+    private List<Map<String, Object>> getBottomBounds(Connection connection, Table table, List<RecordKey> ids, UserId userId) throws Exception {
         List<Map<String, Object>> bottomBounds = new ArrayList<Map<String, Object>>();
-        for (List<Object> id : ids) {
-            bottomBounds.add(getTopBound(table, id, userId));
+        for (RecordKey id : ids) {
+            bottomBounds.add(getTopBound(connection, table, id, userId));
         }
         return bottomBounds;
     }
 
-    private long getTableCurrentTime(String tableName) throws Exception {
+    private long getTableCurrentTime(Connection connection, String tableName) throws Exception {
         long tableTime = 0;
         PreparedStatement preparedStatement = connection.prepareStatement("select * from general_table where table_name = ?");
         preparedStatement.setString(1, tableName);
@@ -593,23 +1036,24 @@ public class MinMaxKnowledgeModule extends GenericKnowledgeModule {
      * Получить информацию о текущем состоянии записей, попавших в результат
      * выборки
      *
-     * @param table   описание таблицы, к которой выполнялся запрос
-     * @param userId  идентификатор текущего пользователя
-     * @param records выбранные записи
+     * @param connection соединение с базой знаний
+     * @param table      описание таблицы, к которой выполнялся запрос
+     * @param userId     идентификатор текущего пользователя
+     * @param records    выбранные записи
      * @return список информации о текущем состоянии записей (порядок
      * соответствует порядку, определённому в records)
      */
-    private List<RecordInfo> getRecordInfos(Table table, UserId userId, List<Map<String, Object>> records) throws Exception {
+    private List<RecordInfo> getRecordInfos(Connection connection, Table table, UserId userId, List<Map<String, Object>> records) throws Exception {
         if (table.getPrimaryKeys().size() == 1) {
             // у таблицы всего один первичный ключ
-            return getRecordInfosFromTableWithSinglePrimaryKey(table, userId, records);
+            return getRecordInfosFromTableWithSinglePrimaryKey(connection, table, userId, records);
         } else {
             // у таблицы составной первичный ключ
             throw new UnsupportedOperationException("Пока не работает");
         }
     }
 
-    private List<RecordInfo> getRecordInfosFromTableWithSinglePrimaryKey(Table table, UserId userId, List<Map<String, Object>> records) throws Exception {
+    private List<RecordInfo> getRecordInfosFromTableWithSinglePrimaryKey(Connection connection, Table table, UserId userId, List<Map<String, Object>> records) throws Exception {
         String keyColumnName = table.getPrimaryKeys().get(0);
         StringBuilder query = new StringBuilder();
         query.append("select * from ").append(table.getName()).append("_cnt where ").append(keyColumnName).append(" in (");
@@ -648,47 +1092,56 @@ public class MinMaxKnowledgeModule extends GenericKnowledgeModule {
         return res;
     }
 
-    private Map<String, Object> getBoundOfResultSet(final ResultSet resultSet, final Table table, int sign) throws Exception {
-        Map<String, Object> res = new HashMap<String, Object>();
-        while (resultSet.next()) {
-            for (Column column : table.getColumns()) {
-                Object curValue = res.get(column.getName());
-                Object value = resultSet.getObject(column.getName());
-                if (curValue == null) {
-                    res.put(column.getName(), value);
-                } else if (value != null) {
-                    if (sign * ((Comparable) value).compareTo(curValue) < 0) {
-                        res.put(column.getName(), value);
-                    }
+    /**
+     * Определение нижней и верхней границ для защищаемых полей таблицы за
+     * один проход по результату выборки
+     *
+     * @param resultSet   результат выборки
+     * @param table       описание таблицы
+     * @param bottomBound нижние границы значений полей (заполняется методом)
+     * @param topBound    верхние границы значений полей (заполняется методом)
+     */
+    private void getBoundsOfResultSet(final CapturingResultSet resultSet, final Table table,
+                                      final Map<String, Object> bottomBound, final Map<String, Object> topBound) throws Exception {
+        List<Column> columns = table.getColumns();
+        int[] columnIndexes = getColumnIndexes(resultSet, table);
+        for (int row = 0, rowCount = resultSet.getRowCount(); row < rowCount; row++) {
+            for (int i = 0; i < columnIndexes.length; i++) {
+                String columnName = columns.get(i).getName();
+                Object value = resultSet.getValue(row, columnIndexes[i]);
+                Object curBottom = bottomBound.get(columnName);
+                if (curBottom == null) {
+                    bottomBound.put(columnName, value);
+                } else if (value != null && compareValues(value, curBottom) < 0) {
+                    bottomBound.put(columnName, value);
+                }
+                Object curTop = topBound.get(columnName);
+                if (curTop == null) {
+                    topBound.put(columnName, value);
+                } else if (value != null && compareValues(value, curTop) > 0) {
+                    topBound.put(columnName, value);
                 }
             }
         }
-        resultSet.beforeFirst();
-        return res;
     }
 
     /**
-     * Определение нижней границы для защищаемых неключевых полей таблицы
-     *
-     * @param resultSet результат выборки
-     * @return нижние границы значений полей
+     * Сравнить значения защищаемого поля; значения одного поля имеют один и
+     * тот же тип, допускающий сравнение.
      */
-    private Map<String, Object> getBottomBoundOfResultSet(final ResultSet resultSet, final Table table) throws Exception {
-        return getBoundOfResultSet(resultSet, table, 1);
+    @SuppressWarnings("unchecked")
+    private static int compareValues(Object value, Object other) {
+        return ((Comparable<Object>) value).compareTo(other);
     }
 
-    /**
-     * Определение верхней границы для защищаемых неключевых полей таблицы
-     *
-     * @param resultSet результат выборки
-     * @return нижние границы значений полей
-     */
-    private Map<String, Object> getTopBoundOfResultSet(final ResultSet resultSet, final Table table) throws Exception {
-        return getBoundOfResultSet(resultSet, table, -1);
-    }
-
-    private void updateBound(final List<List<Object>> ids, final Table table, final UserId userId, final Map<String, Object> bound, String postfix, int sign) throws Exception {
-        // FIXME: сделать обновление быстрее
+    @SuppressWarnings("unchecked")
+    private void updateBound(final Connection connection, final RecordKeys ids, final Table table, final UserId userId, final Map<String, Object> bound,
+                             String postfix, int sign, AnalysisContext context) throws Exception {
+        UpsertDialect dialect = upsertDialect;
+        if (dialect != UpsertDialect.NONE) {
+            upsertBound(connection, ids, table, userId, bound, postfix, sign, dialect);
+            return;
+        }
         StringBuilder query = new StringBuilder();
         query.append("select * from ");
         query.append(table.getName());
@@ -742,106 +1195,246 @@ public class MinMaxKnowledgeModule extends GenericKnowledgeModule {
         PreparedStatement preparedStatement = connection.prepareStatement(query.toString());
         PreparedStatement updatePreparedStatement = connection.prepareStatement(updateQuery.toString());
         PreparedStatement insertPreparedStatement = connection.prepareStatement(insertQuery.toString());
-        for (List<Object> id : ids) {
-            preparedStatement.setObject(1, userId.getUserId());
-            for (int i = 0; i < table.getPrimaryKeys().size(); i++) {
-                preparedStatement.setObject(i + 2, id.get(i));
-            }
-            ResultSet resultSet = preparedStatement.executeQuery();
-            if (resultSet.next()) {
-                // в таблице _min/_max уже существует запись об этом объекте, нужно её обновить
-                Map<String, Object> newBound = new HashMap<String, Object>();
-                for (Column column : nonkeyColumns) {
-                    Object curValue = resultSet.getObject(column.getName());
-                    Object value = bound.get(column.getName());
-                    if (curValue == null) {
-                        newBound.put(column.getName(), value);
-                    } else {
-                        if (value == null) {
-                            newBound.put(column.getName(), curValue);
-                        } else {
-                            if (sign * ((Comparable) value).compareTo(curValue) < 0) {
-                                newBound.put(column.getName(), value);
-                            } else {
-                                newBound.put(column.getName(), curValue);
-                            }
-                        }
+        // границы, считанные из базы знаний при построении графа
+        Map<RecordKey, Map<String, Object>> knownBounds = context != null
+                ? (Map<RecordKey, Map<String, Object>>) context.getKnowledge(table, postfix) : null;
+        // новые границы записей, которые попадут в снимок после записи в базу знаний
+        Map<RecordKey, Map<String, Object>> changedBounds = new LinkedHashMap<RecordKey, Map<String, Object>>();
+        int keySize = table.getPrimaryKeys().size();
+        for (int index = 0; index < ids.size(); index++) {
+            RecordKey id = ids.get(index);
+            Map<String, Object> currentBound;
+            if (knownBounds != null && knownBounds.containsKey(id)) {
+                currentBound = knownBounds.get(id);
+            } else {
+                preparedStatement.setObject(1, userId.getUserId());
+                for (int i = 0; i < keySize; i++) {
+                    preparedStatement.setObject(i + 2, ids.getValue(index, i));
+                }
+                ResultSet resultSet = preparedStatement.executeQuery();
+                currentBound = null;
+                if (resultSet.next()) {
+                    currentBound = new HashMap<String, Object>();
+                    for (Column column : nonkeyColumns) {
+                        currentBound.put(column.getName(), resultSet.getObject(column.getName()));
                     }
                 }
+                resultSet.close();
+            }
+            if (currentBound != null) {
+                // в таблице _min/_max уже существует запись об этом объекте, нужно её обновить
+                Map<String, Object> newBound = mergeBound(nonkeyColumns, currentBound, bound, sign);
                 // обновляем запись в таблице _min/_max
                 for (int i = 0; i < nonkeyColumns.size(); i++) {
                     updatePreparedStatement.setObject(i + 1, newBound.get(nonkeyColumns.get(i).getName()));
                 }
                 updatePreparedStatement.setObject(nonkeyColumns.size() + 1, userId.getUserId());
-                for (int i = 0; i < table.getPrimaryKeys().size(); i++) {
-                    updatePreparedStatement.setObject(i + nonkeyColumns.size() + 2, id.get(i));
+                for (int i = 0; i < keySize; i++) {
+                    updatePreparedStatement.setObject(i + nonkeyColumns.size() + 2, ids.getValue(index, i));
                 }
-                updatePreparedStatement.execute();
+                updatePreparedStatement.addBatch();
+                changedBounds.put(id, toBoundRecord(table, ids, index, newBound));
             } else {
                 // в таблице _min/_max ещё нет записи об этом объекте
                 insertPreparedStatement.setObject(1, userId.getUserId());
-                for (int i = 0; i < table.getPrimaryKeys().size(); i++) {
-                    insertPreparedStatement.setObject(i + 2, id.get(i));
+                for (int i = 0; i < keySize; i++) {
+                    insertPreparedStatement.setObject(i + 2, ids.getValue(index, i));
                 }
                 for (int i = 0; i < nonkeyColumns.size(); i++) {
-                    insertPreparedStatement.setObject(i + id.size() + 2, bound.get(nonkeyColumns.get(i).getName()));
+                    insertPreparedStatement.setObject(i + keySize + 2, bound.get(nonkeyColumns.get(i).getName()));
                 }
-                insertPreparedStatement.execute();
+                insertPreparedStatement.addBatch();
+                changedBounds.put(id, toBoundRecord(table, ids, index, bound));
             }
-            resultSet.close();
         }
+        updatePreparedStatement.executeBatch();
+        insertPreparedStatement.executeBatch();
         preparedStatement.close();
         updatePreparedStatement.close();
         insertPreparedStatement.close();
+        for (Map.Entry<RecordKey, Map<String, Object>> entry : changedBounds.entrySet()) {
+            boundCache.updateBound(table.getName(), userId.getUserId(), postfix, entry.getKey(), entry.getValue());
+        }
+    }
+
+    /**
+     * Обновить границы записей операторами "insert или update" (см.
+     * {@link UpsertDialect}), выполняемыми пакетами. Новые значения границ
+     * вычисляет база знаний; в снимке границ (если он загружен) они
+     * вычисляются так же по границам снимка, иначе версия границ
+     * увеличивается, чтобы загружаемый одновременно снимок не был сохранён.
+     */
+    private void upsertBound(final Connection connection, final RecordKeys ids, final Table table, final UserId userId, final Map<String, Object> bound,
+                             String postfix, int sign, UpsertDialect dialect) throws Exception {
+        List<Column> nonkeyColumns = table.getNonkeyColumns();
+        int keySize = table.getPrimaryKeys().size();
+        PreparedStatement preparedStatement = connection.prepareStatement(dialect.getBoundUpsert(table, postfix));
+        try {
+            for (int index = 0; index < ids.size(); index++) {
+                preparedStatement.setObject(1, userId.getUserId());
+                for (int i = 0; i < keySize; i++) {
+                    preparedStatement.setObject(i + 2, ids.getValue(index, i));
+                }
+                for (int i = 0; i < nonkeyColumns.size(); i++) {
+                    preparedStatement.setObject(i + keySize + 2, bound.get(nonkeyColumns.get(i).getName()));
+                }
+                preparedStatement.addBatch();
+                if ((index + 1) % UPSERT_BATCH_SIZE == 0) {
+                    preparedStatement.executeBatch();
+                }
+            }
+            if (ids.size() % UPSERT_BATCH_SIZE != 0) {
+                preparedStatement.executeBatch();
+            }
+        } finally {
+            preparedStatement.close();
+        }
+        BoundCache.Snapshot snapshot = boundCache.getSnapshot(table.getName(), userId.getUserId());
+        if (snapshot == null) {
+            boundCache.invalidate(table.getName(), userId.getUserId());
+            return;
+        }
+        for (int index = 0; index < ids.size(); index++) {
+            RecordKey id = ids.get(index);
+            Map<String, Object> currentBound = BoundCache.getBound(snapshot, postfix, id);
+            Map<String, Object> newBound = currentBound != null ? mergeBound(nonkeyColumns, currentBound, bound, sign) : bound;
+            boundCache.updateBound(table.getName(), userId.getUserId(), postfix, id, toBoundRecord(table, ids, index, newBound));
+        }
+    }
+
+    /**
+     * Объединить текущую границу записи с границей результата запроса.
+     *
+     * @param nonkeyColumns поля таблицы, не входящие в первичный ключ
+     * @param currentBound  текущая граница записи
+     * @param bound         граница результата запроса
+     * @param sign          1 - нижняя граница, -1 - верхняя граница
+     * @return новая граница записи
+     */
+    private static Map<String, Object> mergeBound(List<Column> nonkeyColumns, Map<String, Object> currentBound,
+                                                  Map<String, Object> bound, int sign) {
+        Map<String, Object> newBound = new HashMap<String, Object>();
+        for (Column column : nonkeyColumns) {
+            Object curValue = currentBound.get(column.getName());
+            Object value = bound.get(column.getName());
+            if (curValue == null) {
+                newBound.put(column.getName(), value);
+            } else {
+                if (value == null) {
+                    newBound.put(column.getName(), curValue);
+                } else {
+                    if (sign * ((Comparable) value).compareTo(curValue) < 0) {
+                        newBound.put(column.getName(), value);
+                    } else {
+                        newBound.put(column.getName(), curValue);
+                    }
+                }
+            }
+        }
+        return newBound;
+    }
+
+    /**
+     * Сформировать запись таблицы _min/_max в том виде, в котором её
+     * возвращает {@link #getBound(Connection, Table, RecordKey, UserId, String)}.
+     */
+    private Map<String, Object> toBoundRecord(Table table, RecordKeys ids, int index, Map<String, Object> bound) {
+        Map<String, Object> record = new HashMap<String, Object>();
+        for (Column column : table.getNonkeyColumns()) {
+            record.put(column.getName(), bound.get(column.getName()));
+        }
+        for (int i = 0; i < table.getPrimaryKeys().size(); i++) {
+            record.put(table.getPrimaryKeys().get(i), ids.getValue(index, i));
+        }
+        return record;
     }
 
     /**
      * Обновление данных о нижних границах для множества объектов, попавших в
      * результат выполнения запроса
      *
-     * @param ids    список идентификаторов объектов
-     * @param table  описание таблицы
-     * @param userId идентификатор текущего пользователя
-     * @param bound  нижняя граница для множества записей попавших в результат
-     *               выполнения запроса
+     * @param connection соединение с базой знаний
+     * @param ids        список идентификаторов объектов
+     * @param table      описание таблицы
+     * @param userId     идентификатор текущего пользователя
+     * @param bound      нижняя граница для множества записей попавших в результат
+     *                   выполнения запроса
+     * @param context    контекст анализа с границами, считанными при построении
+     *                   графа; null - границы считываются из базы знаний
      * @throws Exception
      */
-    private void updateBottomBound(final List<List<Object>> ids, final Table table, final UserId userId, final Map<String, Object> bound) throws Exception {
-        updateBound(ids, table, userId, bound, "_min", 1);
+    private void updateBottomBound(final Connection connection, final RecordKeys ids, final Table table, final UserId userId, final Map<String, Object> bound,
+                                   final AnalysisContext context) throws Exception {
+        updateBound(connection, ids, table, userId, bound, "_min", 1, context);
     }
 
     /**
      * Обновление данных о верхних границах для множества объектов, попавших в
      * результат выполнения запроса
      *
-     * @param ids    список идентификаторов объектов
-     * @param table  описание таблицы
-     * @param userId идентификатор текущего пользователя
-     * @param bound  верхняя граница для множества записей попавших в результат
-     *               выполнения запроса
+     * @param connection соединение с базой знаний
+     * @param ids        список идентификаторов объектов
+     * @param table      описание таблицы
+     * @param userId     идентификатор текущего пользователя
+     * @param bound      верхняя граница для множества записей попавших в результат
+     *                   выполнения запроса
+     * @param context    контекст анализа с границами, считанными при построении
+     *                   графа; null - границы считываются из базы знаний
      * @throws Exception
      */
-    private void updateTopBound(final List<List<Object>> ids, final Table table, final UserId userId, final Map<String, Object> bound) throws Exception {
-        updateBound(ids, table, userId, bound, "_max", -1);
+    private void updateTopBound(final Connection connection, final RecordKeys ids, final Table table, final UserId userId, final Map<String, Object> bound,
+                                final AnalysisContext context) throws Exception {
+        updateBound(connection, ids, table, userId, bound, "_max", -1, context);
     }
 
     /**
      * Обновление данных в таблице-счётчике. Для каждой записи, значения первичного
      * ключа которой представлены в ids, значение счётчика увеличивается на единицу.
      *
-     * @param ids   список идентификаторов объектов
-     * @param table описание таблицы
+     * @param connection соединение с базой знаний
+     * @param ids        список идентификаторов объектов
+     * @param table      описание таблицы
      * @throws Exception
      */
-    private void updateCountTable(final List<List<Object>> ids, final Table table, final UserId userId) throws Exception {
-        if (table.getPrimaryKeys().size() == 1) {
-            updateCountTableWithSinglePrimaryKey(ids, table, userId);
+    private void updateCountTable(final Connection connection, final RecordKeys ids, final Table table, final UserId userId) throws Exception {
+        UpsertDialect dialect = upsertDialect;
+        if (dialect != UpsertDialect.NONE) {
+            upsertCountTable(connection, ids, table, userId, dialect);
+        } else if (table.getPrimaryKeys().size() == 1) {
+            updateCountTableWithSinglePrimaryKey(connection, ids, table, userId);
         } else {
-            updateCountTableWithCompositePrimaryKey(ids, table, userId);
+            updateCountTableWithCompositePrimaryKey(connection, ids, table, userId);
+        }
+    }
+
+    /**
+     * Увеличить счётчики обращений к записям операторами "insert или
+     * update" (см. {@link UpsertDialect}), выполняемыми пакетами.
+     */
+    private void upsertCountTable(final Connection connection, final RecordKeys ids, final Table table, final UserId userId,
+                                  UpsertDialect dialect) throws Exception {
+        int keySize = table.getPrimaryKeys().size();
+        PreparedStatement preparedStatement = connection.prepareStatement(dialect.getCounterUpsert(table));
+        try {
+            for (int index = 0; index < ids.size(); index++) {
+                preparedStatement.setObject(1, userId.getUserId());
+                for (int i = 0; i < keySize; i++) {
+                    preparedStatement.setObject(i + 2, ids.getValue(index, i));
+                }
+                preparedStatement.addBatch();
+                if ((index + 1) % UPSERT_BATCH_SIZE == 0) {
+                    preparedStatement.executeBatch();
+                }
+            }
+            if (ids.size() % UPSERT_BATCH_SIZE != 0) {
+                preparedStatement.executeBatch();
+            }
+        } finally {
+            preparedStatement.close();
         }
     }
 
-    private void updateCountTableWithSinglePrimaryKey(final List<List<Object>> ids, final Table table, final UserId userId) throws Exception {
+    private void updateCountTableWithSinglePrimaryKey(final Connection connection, final RecordKeys ids, final Table table, final UserId userId) throws Exception {
         String keyColumnName = table.getPrimaryKeys().get(0);
         StringBuilder updateQuery = new StringBuilder();
         updateQuery.append("update ");
@@ -858,7 +1451,7 @@ public class MinMaxKnowledgeModule extends GenericKnowledgeModule {
         updateQuery.append(") and ids_user_id = ?");
         PreparedStatement updatePreparedStatement = connection.prepareStatement(updateQuery.toString());
         for (int i = 0; i < ids.size(); i++) {
-            updatePreparedStatement.setObject(i + 1, ids.get(i).get(0));
+            updatePreparedStatement.setObject(i + 1, ids.getValue(i, 0));
         }
         updatePreparedStatement.setObject(ids.size() + 1, userId.getUserId());
 
@@ -886,13 +1479,14 @@ public class MinMaxKnowledgeModule extends GenericKnowledgeModule {
             selectQuery.append(") and ids_user_id = ?");
             PreparedStatement selectPreparedStatement = connection.prepareStatement(selectQuery.toString());
             for (int i = 0; i < ids.size(); i++) {
-                selectPreparedStatement.setObject(i + 1, ids.get(i).get(0));
+                selectPreparedStatement.setObject(i + 1, ids.getValue(i, 0));
             }
             selectPreparedStatement.setObject(ids.size() + 1, userId.getUserId());
             ResultSet resultSet = selectPreparedStatement.executeQuery();
-            Set<Object> idSet = new HashSet<Object>();
+            KeyCodec codec = getKeyCodec(table);
+            Set<RecordKey> idSet = new HashSet<RecordKey>();
             while (resultSet.next()) {
-                idSet.add(resultSet.getObject(keyColumnName));
+                idSet.add(codec.key(Collections.singletonList(resultSet.getObject(keyColumnName))));
             }
             resultSet.close();
             selectPreparedStatement.close();
@@ -905,25 +1499,26 @@ public class MinMaxKnowledgeModule extends GenericKnowledgeModule {
             insertQuery.append(", hits, start_time) values (?, ?, ?, ?)");
 
             PreparedStatement insertPreparedStatement = connection.prepareStatement(insertQuery.toString());
-            for (List<Object> id : ids) {
-                if (!idSet.contains(id.get(0))) {
+            for (int index = 0; index < ids.size(); index++) {
+                if (!idSet.contains(ids.get(index))) {
                     // указываем имя текущего пользователя
                     insertPreparedStatement.setObject(1, userId.getUserId());
                     // таблице _cnt ещё нет соответствующей записи; создадим её
-                    insertPreparedStatement.setObject(2, id.get(0));
+                    insertPreparedStatement.setObject(2, ids.getValue(index, 0));
                     // устанавливаем начальное значение cnt
                     insertPreparedStatement.setObject(3, 1);
                     // устанавливаем начальное значение для start_time
                     insertPreparedStatement.setObject(4, 0);
-                    insertPreparedStatement.execute();
+                    insertPreparedStatement.addBatch();
                 }
             }
+            insertPreparedStatement.executeBatch();
             insertPreparedStatement.close();
         }
         updatePreparedStatement.close();
     }
 
-    private void updateCountTableWithCompositePrimaryKey(final List<List<Object>> ids, final Table table, final UserId userId) throws Exception {
+    private void updateCountTableWithCompositePrimaryKey(final Connection connection, final RecordKeys ids, final Table table, final UserId userId) throws Exception {
         StringBuilder updateQuery = new StringBuilder();
         updateQuery.append("update ");
         updateQuery.append(table.getName());
@@ -959,23 +1554,24 @@ public class MinMaxKnowledgeModule extends GenericKnowledgeModule {
 
         PreparedStatement updatePreparedStatement = connection.prepareStatement(updateQuery.toString());
         PreparedStatement insertPreparedStatement = connection.prepareStatement(insertQuery.toString());
-        for (List<Object> id : ids) {
-            for (int i = 0; i < id.size(); i++) {
-                updatePreparedStatement.setObject(i + 1, id.get(i));
+        int keySize = table.getPrimaryKeys().size();
+        for (int index = 0; index < ids.size(); index++) {
+            for (int i = 0; i < keySize; i++) {
+                updatePreparedStatement.setObject(i + 1, ids.getValue(index, i));
             }
-            updatePreparedStatement.setObject(id.size() + 1, userId.getUserId());
+            updatePreparedStatement.setObject(keySize + 1, userId.getUserId());
             int updatedRowCount = updatePreparedStatement.executeUpdate();
             if (updatedRowCount == 0) {
                 // в таблице _cnt не существует записи, соответствующей данному
                 // значению первичного ключа; добавим запись в таблицу
                 insertPreparedStatement.setObject(1, userId.getUserId());
-                for (int i = 0; i < id.size(); i++) {
-                    insertPreparedStatement.setObject(i + 2, id.get(i));
+                for (int i = 0; i < keySize; i++) {
+                    insertPreparedStatement.setObject(i + 2, ids.getValue(index, i));
                 }
                 // устанавливаем начальное значение cnt
-                insertPreparedStatement.setObject(id.size() + 3, 1);
+                insertPreparedStatement.setObject(keySize + 2, 1);
                 // устанавливаем начальное значение для start_time
-                insertPreparedStatement.setObject(id.size() + 4, 0);
+                insertPreparedStatement.setObject(keySize + 3, 0);
                 insertPreparedStatement.execute();
             }
         }
@@ -989,11 +1585,12 @@ public class MinMaxKnowledgeModule extends GenericKnowledgeModule {
      * значение счётчика обращений пользователя, идентификатор которого
      * указывается в параметре <code>userId</code>, увеличивается на 1.
      *
-     * @param tableName имя таблицы
-     * @param userId    идентификатор пользователя, выполняющего запрос
+     * @param connection соединение с базой знаний
+     * @param tableName  имя таблицы
+     * @param userId     идентификатор пользователя, выполняющего запрос
      * @throws Exception
      */
-    private void updateGeneralTable(String tableName, UserId userId) throws Exception {
+    private void updateGeneralTable(Connection connection, String tableName, UserId userId) throws Exception {
         PreparedStatement preparedStatement = connection.prepareStatement("select * from general_table where table_name = ? and ids_user_id = ?");
         preparedStatement.setString(1, tableName);
         preparedStatement.setString(2, userId.getUserId());
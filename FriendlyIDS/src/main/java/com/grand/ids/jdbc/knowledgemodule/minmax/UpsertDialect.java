@@ -0,0 +1,225 @@
+/*
+ * Copyright 2009-2016 Andrey Grigorov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.grand.ids.jdbc.knowledgemodule.minmax;
+
+import com.grand.ids.model.Column;
+import com.grand.ids.model.Table;
+
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.util.List;
+
+/**
+ * Способ обновления служебных таблиц базы знаний одним оператором на запись
+ * ("insert или update"), выполняемым пакетом. Новые границы вычисляются
+ * базой данных, поэтому предварительное чтение текущих границ не требуется.
+ * Параметры операторов: идентификатор пользователя, значения первичного
+ * ключа и (для таблиц _min и _max) значения остальных полей в порядке
+ * {@link Table#getNonkeyColumns()}.
+ *
+ * @author Andrey Grigorov
+ */
+public enum UpsertDialect {
+
+    /**
+     * INSERT ... ON DUPLICATE KEY UPDATE (MySQL, MariaDB, а также H2 в
+     * режиме совместимости с MySQL).
+     */
+    MYSQL,
+
+    /**
+     * INSERT ... ON CONFLICT DO UPDATE (PostgreSQL 9.5 и выше).
+     */
+    POSTGRESQL,
+
+    /**
+     * База данных не поддерживает обновление одним оператором; текущие
+     * границы считываются, а изменения записываются пакетами операторов
+     * UPDATE и INSERT.
+     */
+    NONE;
+
+    /**
+     * Определить способ обновления базы данных.
+     *
+     * @param metaData метаданные соединения с базой данных
+     * @return способ обновления
+     * @throws SQLException
+     */
+    public static UpsertDialect forDatabase(DatabaseMetaData metaData) throws SQLException {
+        return forProductName(metaData.getDatabaseProductName(), metaData.getURL());
+    }
+
+    /**
+     * Определить способ обновления по имени СУБД. H2 поддерживает
+     * INSERT ... ON DUPLICATE KEY UPDATE только в режиме совместимости с
+     * MySQL, поэтому для неё учитывается также режим, указанный в URL
+     * соединения.
+     *
+     * @param productName имя СУБД (см.
+     *                    {@link DatabaseMetaData#getDatabaseProductName()})
+     * @param url         URL соединения (см. {@link DatabaseMetaData#getURL()});
+     *                    может быть равен null
+     * @return способ обновления
+     */
+    public static UpsertDialect forProductName(String productName, String url) {
+        if (productName == null) {
+            return NONE;
+        }
+        String name = productName.toLowerCase();
+        if (name.contains("mysql") || name.contains("mariadb")) {
+            return MYSQL;
+        }
+        if (name.equals("h2")) {
+            return url != null && url.toUpperCase().replace(" ", "").contains(";MODE=MYSQL") ? MYSQL : NONE;
+        }
+        if (name.contains("postgresql")) {
+            return POSTGRESQL;
+        }
+        return NONE;
+    }
+
+    /**
+     * Получить текст оператора обновления границы записи.
+     *
+     * @param table   описание таблицы
+     * @param postfix "_min" - нижняя граница, "_max" - верхняя граница
+     * @return текст оператора
+     */
+    String getBoundUpsert(Table table, String postfix) {
+        String tableName = table.getName() + postfix;
+        String function = "_min".equals(postfix) ? "least" : "greatest";
+        List<Column> nonkeyColumns = table.getNonkeyColumns();
+        StringBuilder query = new StringBuilder();
+        appendInsert(query, tableName, table.getPrimaryKeys(), nonkeyColumns, null);
+        if (this == MYSQL) {
+            query.append(" on duplicate key update ");
+            if (nonkeyColumns.isEmpty()) {
+                query.append("ids_user_id = ids_user_id");
+            }
+            for (int i = 0; i < nonkeyColumns.size(); i++) {
+                String name = nonkeyColumns.get(i).getName();
+                if (i != 0) {
+                    query.append(", ");
+                }
+                appendMerge(query, name, function, name, "values(" + name + ")");
+            }
+        } else {
+            appendConflict(query, table.getPrimaryKeys());
+            if (nonkeyColumns.isEmpty()) {
+                query.append("nothing");
+            } else {
+                query.append("update set ");
+            }
+            for (int i = 0; i < nonkeyColumns.size(); i++) {
+                String name = nonkeyColumns.get(i).getName();
+                if (i != 0) {
+                    query.append(", ");
+                }
+                appendMerge(query, name, function, tableName + "." + name, "excluded." + name);
+            }
+        }
+        return query.toString();
+    }
+
+    /**
+     * Получить текст оператора увеличения счётчика обращений к записи.
+     *
+     * @param table описание таблицы
+     * @return текст оператора
+     */
+    String getCounterUpsert(Table table) {
+        String tableName = table.getName() + "_cnt";
+        StringBuilder query = new StringBuilder();
+        appendInsert(query, tableName, table.getPrimaryKeys(), null, "hits, start_time");
+        if (this == MYSQL) {
+            query.append(" on duplicate key update hits = hits + 1");
+        } else {
+            appendConflict(query, table.getPrimaryKeys());
+            query.append("update set hits = ");
+            query.append(tableName);
+            query.append(".hits + 1");
+        }
+        return query.toString();
+    }
+
+    /**
+     * Добавить к тексту оператора вставку записи. Значения полей
+     * initialColumns - начальные значения счётчика (1 и 0).
+     */
+    private static void appendInsert(StringBuilder query, String tableName, List<String> primaryKeys,
+                                     List<Column> nonkeyColumns, String initialColumns) {
+        query.append("insert into ");
+        query.append(tableName);
+        query.append(" (ids_user_id");
+        int parameterCount = 1 + primaryKeys.size();
+        for (String primaryKey : primaryKeys) {
+            query.append(", ");
+            query.append(primaryKey);
+        }
+        if (nonkeyColumns != null) {
+            for (Column column : nonkeyColumns) {
+                query.append(", ");
+                query.append(column.getName());
+            }
+            parameterCount += nonkeyColumns.size();
+        }
+        if (initialColumns != null) {
+            query.append(", ");
+            query.append(initialColumns);
+        }
+        query.append(") values (");
+        for (int i = 0; i < parameterCount; i++) {
+            if (i != 0) {
+                query.append(", ");
+            }
+            query.append("?");
+        }
+        if (initialColumns != null) {
+            query.append(", 1, 0");
+        }
+        query.append(")");
+    }
+
+    private static void appendConflict(StringBuilder query, List<String> primaryKeys) {
+        query.append(" on conflict (ids_user_id");
+        for (String primaryKey : primaryKeys) {
+            query.append(", ");
+            query.append(primaryKey);
+        }
+        query.append(") do ");
+    }
+
+    /**
+     * Добавить присваивание новой границы: неопределённое значение одной из
+     * границ не учитывается (как при обновлении границ без
+     * {@link UpsertDialect}).
+     */
+    private static void appendMerge(StringBuilder query, String name, String function, String current, String value) {
+        query.append(name);
+        query.append(" = coalesce(");
+        query.append(function);
+        query.append("(");
+        query.append(current);
+        query.append(", ");
+        query.append(value);
+        query.append("), ");
+        query.append(current);
+        query.append(", ");
+        query.append(value);
+        query.append(")");
+    }
+}
@@ -41,9 +41,15 @@ public class Graph {
     private Node[] nodes;
     private List<Link>[] nodeLinks;
     private double totalWeight;
+    /**
+     * Количество записей в результате запроса, из которых выбраны вершины
+     * графа; больше количества вершин, если граф построен по выборке записей
+     */
+    private int sourceNodeNumber;
 
     public Graph(int nodeNumber) {
         this.nodeNumber = nodeNumber;
+        this.sourceNodeNumber = nodeNumber;
         totalWeight = 0;
         nodes = new Node[nodeNumber];
         nodeLinks = new ArrayList[nodeNumber];
@@ -69,6 +75,32 @@ public class Graph {
         return nodeNumber;
     }
 
+    public int getSourceNodeNumber() {
+        return sourceNodeNumber;
+    }
+
+    /**
+     * Указать количество записей, из которых были выбраны вершины графа.
+     *
+     * @param sourceNodeNumber количество записей в результате запроса
+     */
+    public void setSourceNodeNumber(int sourceNodeNumber) {
+        this.sourceNodeNumber = sourceNodeNumber;
+    }
+
+    /**
+     * Получить долю записей результата запроса, представленных вершинами
+     * графа.
+     *
+     * @return доля от 0 до 1; 1 - граф построен по всем записям
+     */
+    public double getSamplingRatio() {
+        if (sourceNodeNumber <= nodeNumber) {
+            return 1.0;
+        }
+        return (double) nodeNumber / sourceNodeNumber;
+    }
+
     public double selfloopsWeight(int node) {
         for (int i = 0, size = nodeLinks[node].size(); i < size; i++) {
             if (nodeLinks[node].get(i).node == node) {
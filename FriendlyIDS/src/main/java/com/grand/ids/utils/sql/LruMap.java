@@ -0,0 +1,43 @@
+/*
+ * Copyright 2009-2016 Andrey Grigorov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.grand.ids.utils.sql;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Отображение ограниченного размера с вытеснением давно не использовавшихся
+ * записей. Не является потокобезопасным; для совместного использования
+ * несколькими потоками оборачивается {@link java.util.Collections#synchronizedMap(Map)}.
+ *
+ * @author Andrey Grigorov
+ */
+public class LruMap<K, V> extends LinkedHashMap<K, V> {
+
+    private final static long serialVersionUID = 1L;
+
+    private final int capacity;
+
+    public LruMap(int capacity) {
+        super(16, 0.75f, true);
+        this.capacity = capacity;
+    }
+
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<K, V> eldest) {
+        return size() > capacity;
+    }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2009-2016 Andrey Grigorov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.grand.ids.utils.sql;
+
+import java.util.Arrays;
+
+/**
+ * Значения параметров SQL-запроса. Значения примитивных типов хранятся в
+ * массивах примитивных типов без упаковки в объекты; текстовое
+ * представление значений строится только при формировании текста запроса
+ * (см. {@link PreparedSql#render(ParameterValues)}).
+ *
+ * @author Andrey Grigorov
+ */
+public class ParameterValues {
+
+    private final static byte UNSET = 0;
+    private final static byte NULL = 1;
+    private final static byte BOOLEAN = 2;
+    private final static byte LONG = 3;
+    private final static byte FLOAT = 4;
+    private final static byte DOUBLE = 5;
+    private final static byte STRING = 6;
+    private final static byte BYTES = 7;
+    private final static byte OBJECT = 8;
+    private final static byte STREAM = 9;
+    /**
+     * Условный литерал, которым в тексте запроса отображается значение,
+     * переданное потоком или большим объектом
+     */
+    private final static String STREAM_LITERAL = "'<stream>'";
+    private final static char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private byte[] kinds;
+    private long[] longs;
+    private double[] doubles;
+    private Object[] objects;
+    /**
+     * Наибольший номер параметра, значение которого было установлено
+     */
+    private int size;
+
+    /**
+     * Создать набор значений параметров.
+     *
+     * @param capacity ожидаемое количество параметров
+     */
+    public ParameterValues(int capacity) {
+        capacity = Math.max(capacity, 1);
+        kinds = new byte[capacity];
+        longs = new long[capacity];
+        doubles = new double[capacity];
+        objects = new Object[capacity];
+    }
+
+    private ParameterValues(ParameterValues values) {
+        size = values.size;
+        kinds = Arrays.copyOf(values.kinds, Math.max(size, 1));
+        longs = Arrays.copyOf(values.longs, Math.max(size, 1));
+        doubles = Arrays.copyOf(values.doubles, Math.max(size, 1));
+        objects = Arrays.copyOf(values.objects, Math.max(size, 1));
+    }
+
+    /**
+     * Получить копию значений, не зависящую от дальнейших изменений.
+     *
+     * @return копия значений параметров
+     */
+    public ParameterValues copy() {
+        return new ParameterValues(this);
+    }
+
+    /**
+     * Удалить значения всех параметров.
+     */
+    public void clear() {
+        Arrays.fill(kinds, 0, size, UNSET);
+        Arrays.fill(objects, 0, size, null);
+        size = 0;
+    }
+
+    private int slot(int parameterIndex, byte kind) {
+        if (parameterIndex < 1) {
+            throw new IllegalArgumentException("Invalid parameter index: " + parameterIndex);
+        }
+        if (parameterIndex > kinds.length) {
+            int capacity = Math.max(parameterIndex, kinds.length * 2);
+            kinds = Arrays.copyOf(kinds, capacity);
+            longs = Arrays.copyOf(longs, capacity);
+            doubles = Arrays.copyOf(doubles, capacity);
+            objects = Arrays.copyOf(objects, capacity);
+        }
+        size = Math.max(size, parameterIndex);
+        int slot = parameterIndex - 1;
+        kinds[slot] = kind;
+        objects[slot] = null;
+        return slot;
+    }
+
+    public void setNull(int parameterIndex) {
+        slot(parameterIndex, NULL);
+    }
+
+    public void setBoolean(int parameterIndex, boolean value) {
+        longs[slot(parameterIndex, BOOLEAN)] = value ? 1 : 0;
+    }
+
+    public void setLong(int parameterIndex, long value) {
+        longs[slot(parameterIndex, LONG)] = value;
+    }
+
+    public void setFloat(int parameterIndex, float value) {
+        doubles[slot(parameterIndex, FLOAT)] = value;
+    }
+
+    public void setDouble(int parameterIndex, double value) {
+        doubles[slot(parameterIndex, DOUBLE)] = value;
+    }
+
+    public void setString(int parameterIndex, String value) {
+        if (value == null) {
+            setNull(parameterIndex);
+        } else {
+            objects[slot(parameterIndex, STRING)] = value;
+        }
+    }
+
+    public void setBytes(int parameterIndex, byte[] value) {
+        if (value == null) {
+            setNull(parameterIndex);
+        } else {
+            objects[slot(parameterIndex, BYTES)] = value.clone();
+        }
+    }
+
+    public void setObject(int parameterIndex, Object value) {
+        if (value == null) {
+            setNull(parameterIndex);
+        } else if (value instanceof String) {
+            setString(parameterIndex, (String) value);
+        } else if (value instanceof byte[]) {
+            setBytes(parameterIndex, (byte[]) value);
+        } else if (value instanceof Boolean) {
+            setBoolean(parameterIndex, (Boolean) value);
+        } else if (value instanceof Long || value instanceof Integer
+                || value instanceof Short || value instanceof Byte) {
+            setLong(parameterIndex, ((Number) value).longValue());
+        } else if (value instanceof Float) {
+            setFloat(parameterIndex, (Float) value);
+        } else if (value instanceof Double) {
+            setDouble(parameterIndex, (Double) value);
+        } else {
+            objects[slot(parameterIndex, OBJECT)] = value;
+        }
+    }
+
+    /**
+     * Отметить, что значение параметра передано потоком или большим объектом
+     * (setBinaryStream(), setCharacterStream(), setBlob() и т.п.). Само
+     * значение не считывается, а прежнее значение параметра больше не
+     * отображается в тексте запроса.
+     *
+     * @param parameterIndex номер параметра, начиная с 1
+     */
+    public void setStream(int parameterIndex) {
+        slot(parameterIndex, STREAM);
+    }
+
+    /**
+     * Добавить значение параметра в виде SQL-литерала.
+     *
+     * @param text           формируемый текст запроса
+     * @param parameterIndex номер параметра, начиная с 1
+     */
+    void appendLiteral(StringBuilder text, int parameterIndex) {
+        int slot = parameterIndex - 1;
+        byte kind = parameterIndex <= size ? kinds[slot] : UNSET;
+        switch (kind) {
+            case NULL:
+                text.append("null");
+                break;
+            case BOOLEAN:
+                text.append(longs[slot] != 0);
+                break;
+            case LONG:
+                text.append(longs[slot]);
+                break;
+            case FLOAT:
+                text.append((float) doubles[slot]);
+                break;
+            case DOUBLE:
+                text.append(doubles[slot]);
+                break;
+            case STRING:
+                appendQuoted(text, (String) objects[slot]);
+                break;
+            case BYTES:
+                text.append("X'");
+                for (byte b : (byte[]) objects[slot]) {
+                    text.append(HEX_DIGITS[(b >> 4) & 0x0F]).append(HEX_DIGITS[b & 0x0F]);
+                }
+                text.append('\'');
+                break;
+            case OBJECT:
+                if (objects[slot] instanceof Number) {
+                    text.append(objects[slot]);
+                } else {
+                    appendQuoted(text, String.valueOf(objects[slot]));
+                }
+                break;
+            case STREAM:
+                text.append(STREAM_LITERAL);
+                break;
+            default:
+                text.append('?');
+        }
+    }
+
+    private static void appendQuoted(StringBuilder text, String value) {
+        text.append('\'');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '\'') {
+                text.append('\'');
+            }
+            text.append(c);
+        }
+        text.append('\'');
+    }
+}
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2009-2016 Andrey Grigorov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.grand.ids.utils.sql;
+
+import java.util.Map;
+
+/**
+ * Текст SQL-запроса с параметрами, однократно разобранный на части: для
+ * каждого знака параметра "?" запоминается его позиция. Знаки вопроса
+ * внутри строковых литералов (в том числе с экранированием обратной косой
+ * чертой и в долларовых кавычках PostgreSQL), идентификаторов в кавычках и
+ * комментариев параметрами не считаются. Разобранные запросы хранятся в ограниченном
+ * кэше, поэтому повторная подготовка того же запроса разбора не требует.
+ *
+ * @author Andrey Grigorov
+ */
+public final class PreparedSql {
+
+    private final static int CACHE_CAPACITY = 1024;
+    private final static Map<String, PreparedSql> CACHE = new LruMap<String, PreparedSql>(CACHE_CAPACITY);
+    private final String sql;
+    private final int[] placeholderOffsets;
+
+    private PreparedSql(String sql) {
+        this.sql = sql;
+        this.placeholderOffsets = findPlaceholders(sql);
+    }
+
+    /**
+     * Получить разобранный текст SQL-запроса.
+     *
+     * @param sql текст SQL-запроса
+     * @return разобранный запрос
+     */
+    public static PreparedSql get(String sql) {
+        PreparedSql preparedSql;
+        synchronized (CACHE) {
+            preparedSql = CACHE.get(sql);
+        }
+        if (preparedSql == null) {
+            // разбор выполняется вне блокировки
+            preparedSql = new PreparedSql(sql);
+            synchronized (CACHE) {
+                CACHE.put(sql, preparedSql);
+            }
+        }
+        return preparedSql;
+    }
+
+    public String getSql() {
+        return sql;
+    }
+
+    public int getParameterCount() {
+        return placeholderOffsets.length;
+    }
+
+    /**
+     * Построить текст запроса, в котором знаки параметров заменены их
+     * значениями. Параметры, значения которых не установлены, остаются в
+     * тексте в виде знака "?".
+     *
+     * @param values значения параметров
+     * @return текст запроса
+     */
+    public String render(ParameterValues values) {
+        if (placeholderOffsets.length == 0) {
+            return sql;
+        }
+        StringBuilder text = new StringBuilder(sql.length() + 16 * placeholderOffsets.length);
+        int position = 0;
+        for (int i = 0; i < placeholderOffsets.length; i++) {
+            text.append(sql, position, placeholderOffsets[i]);
+            values.appendLiteral(text, i + 1);
+            position = placeholderOffsets[i] + 1;
+        }
+        text.append(sql, position, sql.length());
+        return text.toString();
+    }
+
+    private static int[] findPlaceholders(String sql) {
+        int length = sql.length();
+        int[] offsets = new int[8];
+        int count = 0;
+        int i = 0;
+        while (i < length) {
+            char c = sql.charAt(i);
+            if (c == '\'' || c == '"' || c == '`') {
+                i = skipQuoted(sql, i, c);
+            } else if (c == '$' && (i == 0 || !isIdentifierPart(sql.charAt(i - 1)))
+                    && dollarQuoteEnd(sql, i) > 0) {
+                i = skipDollarQuoted(sql, i);
+            } else if (c == '-' && i + 1 < length && sql.charAt(i + 1) == '-') {
+                int end = sql.indexOf('\n', i + 2);
+                i = end < 0 ? length : end + 1;
+            } else if (c == '/' && i + 1 < length && sql.charAt(i + 1) == '*') {
+                int end = sql.indexOf("*/", i + 2);
+                i = end < 0 ? length : end + 2;
+            } else {
+                if (c == '?') {
+                    if (count == offsets.length) {
+                        int[] grown = new int[count * 2];
+                        System.arraycopy(offsets, 0, grown, 0, count);
+                        offsets = grown;
+                    }
+                    offsets[count++] = i;
+                }
+                i++;
+            }
+        }
+        int[] result = new int[count];
+        System.arraycopy(offsets, 0, result, 0, count);
+        return result;
+    }
+
+    /**
+     * Пропустить текст в кавычках; кавычка внутри текста удваивается, а в
+     * строковых литералах также может быть экранирована обратной косой
+     * чертой (MySQL, строки E'...' PostgreSQL).
+     *
+     * @return позиция, следующая за закрывающей кавычкой
+     */
+    private static int skipQuoted(String sql, int i, char quote) {
+        i++;
+        while (i < sql.length()) {
+            if (sql.charAt(i) == '\\' && quote != '`') {
+                i += 2;
+                continue;
+            }
+            if (sql.charAt(i) == quote) {
+                if (i + 1 < sql.length() && sql.charAt(i + 1) == quote) {
+                    i += 2;
+                    continue;
+                }
+                return i + 1;
+            }
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Определить, является ли текст, начинающийся со знака "$", открывающей
+     * долларовой кавычкой PostgreSQL ($$ или $метка$).
+     *
+     * @return позиция, следующая за открывающей кавычкой, или -1
+     */
+    private static int dollarQuoteEnd(String sql, int i) {
+        int j = i + 1;
+        if (j < sql.length() && Character.isDigit(sql.charAt(j))) {
+            // позиционный параметр $1
+            return -1;
+        }
+        while (j < sql.length() && (Character.isLetterOrDigit(sql.charAt(j)) || sql.charAt(j) == '_')) {
+            j++;
+        }
+        return j < sql.length() && sql.charAt(j) == '$' ? j + 1 : -1;
+    }
+
+    /**
+     * Пропустить текст в долларовых кавычках; текст заканчивается той же
+     * кавычкой, которой он начинается.
+     *
+     * @return позиция, следующая за закрывающей кавычкой
+     */
+    private static int skipDollarQuoted(String sql, int i) {
+        int start = dollarQuoteEnd(sql, i);
+        String quote = sql.substring(i, start);
+        int end = sql.indexOf(quote, start);
+        return end < 0 ? sql.length() : end + quote.length();
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+    }
+}
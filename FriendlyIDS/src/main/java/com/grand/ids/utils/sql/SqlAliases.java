@@ -0,0 +1,512 @@
+/*
+ * Copyright 2009-2016 Andrey Grigorov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.grand.ids.utils.sql;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Алиасы таблиц и полей SELECT-запроса. Разбор выполняется за один проход по
+ * тексту запроса и поддерживает подмножество SQL, достаточное для
+ * распознавания таблиц: списки FROM и JOIN ... ON/USING, алиасы таблиц и
+ * полей (с ключевым словом AS и без него), имена вида "схема.таблица",
+ * идентификаторы в кавычках ("...", `...`, [...]) и подзапросы. Выражения в
+ * списке выборки и условия соединения пропускаются.
+ * <p>
+ * Имена без кавычек приводятся к верхнему регистру, поиск по алиасам не
+ * зависит от регистра. Если один алиас объявлен в нескольких подзапросах,
+ * используется объявление с наименьшей вложенностью. Разобранные алиасы
+ * хранятся в шаблоне запроса (см. {@link SqlTemplate#getAliases()}).
+ *
+ * @author Andrey Grigorov
+ */
+public final class SqlAliases {
+
+    /**
+     * Ключевые слова, завершающие список FROM или список выборки
+     */
+    private final static Set<String> CLAUSE_END_KEYWORDS = new HashSet<String>(Arrays.asList(
+            "WHERE", "GROUP", "ORDER", "HAVING", "UNION", "INTERSECT", "EXCEPT", "MINUS", "LIMIT",
+            "OFFSET", "FETCH", "FOR", "WINDOW", "INTO", "CONNECT", "START", "RETURNING", "VALUES", "SET"));
+
+    /**
+     * Ключевые слова, предшествующие JOIN
+     */
+    private final static Set<String> JOIN_MODIFIERS = new HashSet<String>(Arrays.asList(
+            "INNER", "LEFT", "RIGHT", "FULL", "OUTER", "CROSS", "NATURAL", "STRAIGHT_JOIN"));
+
+    /**
+     * Слова, которые могут следовать за именем таблицы, но не являются алиасом
+     */
+    private final static Set<String> NON_ALIAS_WORDS = new HashSet<String>(Arrays.asList(
+            "WITH", "USE", "FORCE", "IGNORE", "TABLESAMPLE", "PARTITION", "ON", "USING", "JOIN"));
+
+    private final static SqlAliases EMPTY = new SqlAliases();
+
+    private final List<TableReference> tables = new ArrayList<TableReference>();
+    private final Map<String, Declaration<TableReference>> tablesByAlias = new HashMap<String, Declaration<TableReference>>();
+    private final Map<String, Declaration<ColumnReference>> columnsByAlias = new HashMap<String, Declaration<ColumnReference>>();
+
+    private SqlAliases() {
+    }
+
+    /**
+     * Разобрать текст запроса.
+     *
+     * @param sql текст или шаблон (см. {@link SqlNormalizer}) SQL-запроса
+     * @return алиасы запроса; для запросов, не являющихся выборкой,
+     * возвращается пустой набор
+     */
+    public static SqlAliases parse(String sql) {
+        if (sql == null) {
+            return EMPTY;
+        }
+        SqlAliases aliases = new SqlAliases();
+        aliases.process(tokenize(sql));
+        return aliases;
+    }
+
+    /**
+     * Получить список таблиц базы данных, упомянутых в списках FROM и JOIN.
+     * Подзапросы в список не входят.
+     *
+     * @return неизменяемый список таблиц в порядке их упоминания
+     */
+    public List<TableReference> getTables() {
+        return Collections.unmodifiableList(tables);
+    }
+
+    /**
+     * Найти таблицу по алиасу или имени.
+     *
+     * @param nameOrAlias алиас или имя таблицы
+     * @return таблица или null, если таблица не найдена либо алиас
+     * принадлежит подзапросу
+     */
+    public TableReference getTable(String nameOrAlias) {
+        if (nameOrAlias == null) {
+            return null;
+        }
+        String key = nameOrAlias.toUpperCase();
+        Declaration<TableReference> declaration = tablesByAlias.get(key);
+        if (declaration != null) {
+            return declaration.value;
+        }
+        for (TableReference table : tables) {
+            if (table.getName().equalsIgnoreCase(key)) {
+                return table;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Найти поле, которому в списке выборки назначен указанный алиас.
+     *
+     * @param alias алиас поля
+     * @return поле или null, если алиас не объявлен или назначен выражению
+     */
+    public ColumnReference getColumn(String alias) {
+        if (alias == null) {
+            return null;
+        }
+        Declaration<ColumnReference> declaration = columnsByAlias.get(alias.toUpperCase());
+        return declaration != null ? declaration.value : null;
+    }
+
+    /**
+     * Ссылка на таблицу в списке FROM или JOIN.
+     */
+    public final static class TableReference {
+
+        private final String schema;
+        private final String name;
+        private final String alias;
+
+        TableReference(String schema, String name, String alias) {
+            this.schema = schema;
+            this.name = name;
+            this.alias = alias;
+        }
+
+        /**
+         * @return имя схемы или null, если имя таблицы указано без схемы
+         */
+        public String getSchema() {
+            return schema;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return алиас таблицы или null, если алиас не задан
+         */
+        public String getAlias() {
+            return alias;
+        }
+
+        @Override
+        public String toString() {
+            return (schema != null ? schema + "." : "") + name + (alias != null ? " " + alias : "");
+        }
+    }
+
+    /**
+     * Поле в списке выборки, которому назначен алиас.
+     */
+    public final static class ColumnReference {
+
+        private final String qualifier;
+        private final String name;
+        private final String alias;
+
+        ColumnReference(String qualifier, String name, String alias) {
+            this.qualifier = qualifier;
+            this.name = name;
+            this.alias = alias;
+        }
+
+        /**
+         * @return имя или алиас таблицы, указанные перед именем поля, или
+         * null, если имя поля указано без них
+         */
+        public String getQualifier() {
+            return qualifier;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public String getAlias() {
+            return alias;
+        }
+
+        @Override
+        public String toString() {
+            return (qualifier != null ? qualifier + "." : "") + name + " AS " + alias;
+        }
+    }
+
+    /**
+     * Объявление алиаса вместе с уровнем вложенности подзапроса.
+     */
+    private final static class Declaration<T> {
+
+        final T value;
+        final int depth;
+
+        Declaration(T value, int depth) {
+            this.value = value;
+            this.depth = depth;
+        }
+    }
+
+    /**
+     * Лексема запроса.
+     */
+    private final static class Token {
+
+        final static Token SUBQUERY = new Token("(...)", false, false);
+
+        final String text;
+        /**
+         * Имя без кавычек (может оказаться ключевым словом)
+         */
+        final boolean word;
+        /**
+         * Имя без кавычек или в кавычках
+         */
+        final boolean identifier;
+
+        Token(String text, boolean word, boolean identifier) {
+            this.text = text;
+            this.word = word;
+            this.identifier = identifier;
+        }
+
+        boolean is(String symbol) {
+            return !identifier && text.equals(symbol);
+        }
+    }
+
+    private final static int CLAUSE_OTHER = 0;
+    private final static int CLAUSE_SELECT = 1;
+    private final static int CLAUSE_FROM = 2;
+
+    /**
+     * Состояние разбора на одном уровне скобок.
+     */
+    private final static class Scope {
+
+        int clause = CLAUSE_OTHER;
+        /**
+         * Разбирается условие соединения (после ON или USING)
+         */
+        boolean condition;
+        final List<Token> item = new ArrayList<Token>();
+    }
+
+    private void process(List<Token> tokens) {
+        List<Scope> scopes = new ArrayList<Scope>();
+        Scope scope = new Scope();
+        scopes.add(scope);
+        for (Token token : tokens) {
+            int depth = scopes.size() - 1;
+            if (token.is("(")) {
+                Scope parent = scope;
+                scope = new Scope();
+                if (parent.clause == CLAUSE_FROM && !parent.condition && parent.item.isEmpty()) {
+                    // подзапрос или соединение таблиц в скобках
+                    scope.clause = CLAUSE_FROM;
+                }
+                scopes.add(scope);
+            } else if (token.is(")")) {
+                if (depth == 0) {
+                    continue;
+                }
+                finishItem(scope, depth);
+                scopes.remove(depth);
+                scope = scopes.get(depth - 1);
+                if (!scope.condition) {
+                    scope.item.add(Token.SUBQUERY);
+                }
+            } else if (token.is(",")) {
+                finishItem(scope, depth);
+                scope.condition = false;
+            } else if (token.word && token.text.equals("SELECT")) {
+                finishItem(scope, depth);
+                scope.clause = CLAUSE_SELECT;
+                scope.condition = false;
+            } else if (token.word && token.text.equals("FROM")) {
+                finishItem(scope, depth);
+                scope.clause = CLAUSE_FROM;
+                scope.condition = false;
+            } else if (token.word && scope.clause == CLAUSE_FROM
+                    && (token.text.equals("JOIN") || JOIN_MODIFIERS.contains(token.text))) {
+                finishItem(scope, depth);
+                scope.condition = false;
+            } else if (token.word && scope.clause == CLAUSE_FROM
+                    && (token.text.equals("ON") || token.text.equals("USING"))) {
+                finishItem(scope, depth);
+                scope.condition = true;
+            } else if (token.word && CLAUSE_END_KEYWORDS.contains(token.text)) {
+                finishItem(scope, depth);
+                scope.clause = CLAUSE_OTHER;
+                scope.condition = false;
+            } else if (!scope.condition && scope.clause != CLAUSE_OTHER) {
+                scope.item.add(token);
+            }
+        }
+        finishItem(scope, scopes.size() - 1);
+    }
+
+    private void finishItem(Scope scope, int depth) {
+        if (scope.item.isEmpty()) {
+            return;
+        }
+        if (scope.clause == CLAUSE_SELECT) {
+            processSelectItem(scope.item, depth);
+        } else if (scope.clause == CLAUSE_FROM && !scope.condition) {
+            processTableItem(scope.item, depth);
+        }
+        scope.item.clear();
+    }
+
+    /**
+     * Разбор элемента списка FROM: "[схема.]таблица [[AS] алиас]" или
+     * "(подзапрос) [AS] алиас".
+     */
+    private void processTableItem(List<Token> item, int depth) {
+        int size = item.size();
+        int i = 0;
+        if (item.get(0) == Token.SUBQUERY) {
+            i++;
+            String alias = readAlias(item, i);
+            if (alias != null) {
+                declareTable(alias, null, depth);
+            }
+            return;
+        }
+        List<String> parts = new ArrayList<String>(3);
+        while (i < size && item.get(i).identifier) {
+            parts.add(item.get(i).text);
+            i++;
+            if (i < size && item.get(i).is(".")) {
+                i++;
+            } else {
+                break;
+            }
+        }
+        if (parts.isEmpty() || (i < size && item.get(i) == Token.SUBQUERY)) {
+            // табличная функция или конструкция, не поддерживаемая разбором
+            return;
+        }
+        String name = parts.get(parts.size() - 1);
+        String schema = parts.size() > 1 ? parts.get(parts.size() - 2) : null;
+        String alias = readAlias(item, i);
+        TableReference table = new TableReference(schema, name, alias);
+        tables.add(table);
+        declareTable(name, table, depth);
+        if (alias != null) {
+            declareTable(alias, table, depth);
+        }
+    }
+
+    /**
+     * Разбор элемента списка выборки. Алиасы запоминаются только для
+     * элементов вида "[таблица.]поле [AS] алиас"; выражения пропускаются.
+     */
+    private void processSelectItem(List<Token> item, int depth) {
+        int size = item.size();
+        int i = 0;
+        if (item.get(0).word && (item.get(0).text.equals("DISTINCT") || item.get(0).text.equals("ALL"))) {
+            i++;
+        }
+        List<String> parts = new ArrayList<String>(3);
+        while (i < size && item.get(i).identifier) {
+            parts.add(item.get(i).text);
+            i++;
+            if (i < size && item.get(i).is(".")) {
+                i++;
+            } else {
+                break;
+            }
+        }
+        if (parts.isEmpty()) {
+            return;
+        }
+        // после имени поля допускается только "[AS] алиас"
+        int rest = size - i;
+        boolean as = rest == 2 && item.get(i).word && item.get(i).text.equals("AS");
+        if (!(rest == 1 || as)) {
+            return;
+        }
+        String alias = readAlias(item, i);
+        if (alias == null) {
+            return;
+        }
+        String name = parts.get(parts.size() - 1);
+        String qualifier = parts.size() > 1 ? parts.get(parts.size() - 2) : null;
+        declare(columnsByAlias, alias, new ColumnReference(qualifier, name, alias), depth);
+    }
+
+    /**
+     * Прочитать алиас "[AS] алиас", начинающийся с позиции i.
+     *
+     * @return алиас или null, если алиас не задан
+     */
+    private static String readAlias(List<Token> item, int i) {
+        if (i < item.size() && item.get(i).word && item.get(i).text.equals("AS")) {
+            i++;
+        }
+        if (i < item.size()) {
+            Token token = item.get(i);
+            if (token.identifier && !(token.word && NON_ALIAS_WORDS.contains(token.text))) {
+                return token.text;
+            }
+        }
+        return null;
+    }
+
+    private void declareTable(String alias, TableReference table, int depth) {
+        declare(tablesByAlias, alias, table, depth);
+    }
+
+    private static <T> void declare(Map<String, Declaration<T>> declarations, String alias, T value, int depth) {
+        String key = alias.toUpperCase();
+        Declaration<T> existing = declarations.get(key);
+        if (existing == null || depth < existing.depth) {
+            declarations.put(key, new Declaration<T>(value, depth));
+        }
+    }
+
+    private static List<Token> tokenize(String sql) {
+        List<Token> tokens = new ArrayList<Token>();
+        int length = sql.length();
+        int i = 0;
+        while (i < length) {
+            char c = sql.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i++;
+            } else if (c == '"' || c == '`' || c == '[') {
+                char quote = c == '[' ? ']' : c;
+                StringBuilder text = new StringBuilder();
+                i++;
+                while (i < length) {
+                    char q = sql.charAt(i);
+                    if (q == quote) {
+                        if (quote != ']' && i + 1 < length && sql.charAt(i + 1) == quote) {
+                            text.append(q);
+                            i += 2;
+                            continue;
+                        }
+                        i++;
+                        break;
+                    }
+                    text.append(q);
+                    i++;
+                }
+                tokens.add(new Token(text.toString(), false, true));
+            } else if (c == '\'') {
+                i++;
+                while (i < length) {
+                    if (sql.charAt(i) == '\'') {
+                        if (i + 1 < length && sql.charAt(i + 1) == '\'') {
+                            i += 2;
+                            continue;
+                        }
+                        i++;
+                        break;
+                    }
+                    i++;
+                }
+                tokens.add(new Token("?", false, false));
+            } else if (isIdentifierStart(c)) {
+                int start = i;
+                while (i < length && isIdentifierPart(sql.charAt(i))) {
+                    i++;
+                }
+                tokens.add(new Token(sql.substring(start, i).toUpperCase(), true, true));
+            } else if (Character.isDigit(c)) {
+                while (i < length && (Character.isLetterOrDigit(sql.charAt(i)) || sql.charAt(i) == '.')) {
+                    i++;
+                }
+                tokens.add(new Token("?", false, false));
+            } else {
+                tokens.add(new Token(String.valueOf(c), false, false));
+                i++;
+            }
+        }
+        return tokens;
+    }
+
+    private static boolean isIdentifierStart(char c) {
+        return Character.isLetter(c) || c == '_';
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '#';
+    }
+}
@@ -0,0 +1,145 @@
+/*
+ * Copyright 2009-2016 Andrey Grigorov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.grand.ids.utils.sql;
+
+/**
+ * Приведение текста SQL-запроса к шаблону: строковые и числовые литералы
+ * заменяются знаком "?", комментарии удаляются, последовательности
+ * пробельных символов заменяются одним пробелом, слова вне кавычек
+ * приводятся к верхнему регистру. Запросы, отличающиеся только значениями
+ * литералов, получают одинаковый шаблон.
+ *
+ * @author Andrey Grigorov
+ */
+public final class SqlNormalizer {
+
+    private SqlNormalizer() {
+    }
+
+    /**
+     * Получить шаблон SQL-запроса.
+     *
+     * @param sql текст SQL-запроса
+     * @return шаблон запроса
+     */
+    public static String normalize(String sql) {
+        int length = sql.length();
+        StringBuilder template = new StringBuilder(length);
+        int i = 0;
+        while (i < length) {
+            char c = sql.charAt(i);
+            if (Character.isWhitespace(c)) {
+                i = skipWhitespace(sql, i);
+                appendSpace(template);
+            } else if (c == '-' && i + 1 < length && sql.charAt(i + 1) == '-') {
+                // однострочный комментарий
+                while (i < length && sql.charAt(i) != '\n') {
+                    i++;
+                }
+                appendSpace(template);
+            } else if (c == '/' && i + 1 < length && sql.charAt(i + 1) == '*') {
+                // многострочный комментарий
+                int end = sql.indexOf("*/", i + 2);
+                i = end < 0 ? length : end + 2;
+                appendSpace(template);
+            } else if (c == '\'') {
+                // строковый литерал; кавычка внутри литерала удваивается
+                i = skipQuoted(sql, i, '\'');
+                template.append('?');
+            } else if (c == '"' || c == '`') {
+                // идентификатор в кавычках сохраняется без изменений
+                int end = skipQuoted(sql, i, c);
+                template.append(sql, i, end);
+                i = end;
+            } else if (Character.isDigit(c) || (c == '.' && i + 1 < length && Character.isDigit(sql.charAt(i + 1)))) {
+                if (template.length() > 0 && isIdentifierPart(template.charAt(template.length() - 1))) {
+                    // цифры в составе идентификатора
+                    template.append(c);
+                    i++;
+                } else {
+                    i = skipNumber(sql, i);
+                    template.append('?');
+                }
+            } else {
+                template.append(Character.toUpperCase(c));
+                i++;
+            }
+        }
+        int end = template.length();
+        while (end > 0 && template.charAt(end - 1) == ' ') {
+            end--;
+        }
+        template.setLength(end);
+        return template.toString();
+    }
+
+    private static void appendSpace(StringBuilder template) {
+        if (template.length() > 0 && template.charAt(template.length() - 1) != ' ') {
+            template.append(' ');
+        }
+    }
+
+    private static boolean isIdentifierPart(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '#';
+    }
+
+    private static int skipWhitespace(String sql, int i) {
+        while (i < sql.length() && Character.isWhitespace(sql.charAt(i))) {
+            i++;
+        }
+        return i;
+    }
+
+    /**
+     * Пропустить текст в кавычках.
+     *
+     * @return позиция, следующая за закрывающей кавычкой
+     */
+    private static int skipQuoted(String sql, int i, char quote) {
+        i++;
+        while (i < sql.length()) {
+            if (sql.charAt(i) == quote) {
+                if (i + 1 < sql.length() && sql.charAt(i + 1) == quote) {
+                    i += 2;
+                    continue;
+                }
+                return i + 1;
+            }
+            i++;
+        }
+        return i;
+    }
+
+    private static int skipNumber(String sql, int i) {
+        int length = sql.length();
+        while (i < length && (Character.isDigit(sql.charAt(i)) || sql.charAt(i) == '.')) {
+            i++;
+        }
+        if (i < length && (sql.charAt(i) == 'e' || sql.charAt(i) == 'E')) {
+            int j = i + 1;
+            if (j < length && (sql.charAt(j) == '+' || sql.charAt(j) == '-')) {
+                j++;
+            }
+            if (j < length && Character.isDigit(sql.charAt(j))) {
+                i = j;
+                while (i < length && Character.isDigit(sql.charAt(i))) {
+                    i++;
+                }
+            }
+        }
+        return i;
+    }
+}
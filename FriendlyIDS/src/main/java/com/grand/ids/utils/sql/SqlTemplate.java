@@ -0,0 +1,76 @@
+/*
+ * Copyright 2009-2016 Andrey Grigorov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.grand.ids.utils.sql;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Шаблон SQL-запроса (см. {@link SqlNormalizer}). К шаблону привязываются
+ * сведения, которые не зависят от значений литералов и поэтому могут
+ * вычисляться один раз для всех запросов с одинаковым шаблоном. Ключами
+ * сведений служат объекты, которые их вычисляют, поэтому разные модули
+ * не мешают друг другу.
+ *
+ * @author Andrey Grigorov
+ */
+public class SqlTemplate {
+
+    private final String fingerprint;
+    private final ConcurrentMap<Object, Object> attributes = new ConcurrentHashMap<Object, Object>();
+    private volatile SqlAliases aliases;
+
+    SqlTemplate(String fingerprint) {
+        this.fingerprint = fingerprint;
+    }
+
+    /**
+     * Получить нормализованный текст запроса.
+     *
+     * @return шаблон запроса
+     */
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * Получить алиасы таблиц и полей запроса. Разбор выполняется при первом
+     * обращении, результат хранится вместе с шаблоном.
+     *
+     * @return алиасы запроса
+     */
+    public SqlAliases getAliases() {
+        SqlAliases result = aliases;
+        if (result == null) {
+            // повторный разбор при одновременном обращении безвреден
+            result = SqlAliases.parse(fingerprint);
+            aliases = result;
+        }
+        return result;
+    }
+
+    public Object getAttribute(Object key) {
+        return attributes.get(key);
+    }
+
+    public void setAttribute(Object key, Object value) {
+        attributes.put(key, value);
+    }
+
+    public void removeAttribute(Object key) {
+        attributes.remove(key);
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright 2009-2016 Andrey Grigorov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.grand.ids.utils.sql;
+
+import java.util.Map;
+
+/**
+ * Ограниченный по размеру кэш шаблонов SQL-запросов. Для каждого текста
+ * запроса нормализация выполняется один раз; запросы, отличающиеся только
+ * значениями литералов, получают один и тот же объект шаблона. При
+ * переполнении вытесняются давно не использовавшиеся записи.
+ *
+ * @author Andrey Grigorov
+ */
+public class SqlTemplateCache {
+
+    public final static int DEFAULT_CAPACITY = 1024;
+    private final static SqlTemplateCache SHARED_CACHE = new SqlTemplateCache(DEFAULT_CAPACITY);
+
+    private final Map<String, SqlTemplate> templatesBySql;
+    private final Map<String, SqlTemplate> templatesByFingerprint;
+
+    /**
+     * Создать кэш.
+     *
+     * @param capacity максимальное количество хранимых текстов запросов и
+     *                 максимальное количество хранимых шаблонов
+     */
+    public SqlTemplateCache(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("Cache capacity should be positive.");
+        }
+        templatesBySql = new LruMap<String, SqlTemplate>(capacity);
+        templatesByFingerprint = new LruMap<String, SqlTemplate>(capacity);
+    }
+
+    /**
+     * Получить кэш, общий для всех модулей системы.
+     *
+     * @return общий кэш шаблонов
+     */
+    public static SqlTemplateCache getSharedCache() {
+        return SHARED_CACHE;
+    }
+
+    /**
+     * Получить шаблон SQL-запроса.
+     *
+     * @param sql текст SQL-запроса
+     * @return шаблон запроса
+     */
+    public SqlTemplate get(String sql) {
+        SqlTemplate template;
+        synchronized (this) {
+            template = templatesBySql.get(sql);
+        }
+        if (template != null) {
+            return template;
+        }
+        // нормализация выполняется вне блокировки
+        String fingerprint = SqlNormalizer.normalize(sql);
+        synchronized (this) {
+            template = templatesByFingerprint.get(fingerprint);
+            if (template == null) {
+                template = new SqlTemplate(fingerprint);
+                templatesByFingerprint.put(fingerprint, template);
+            }
+            templatesBySql.put(sql, template);
+        }
+        return template;
+    }
+
+    /**
+     * Удалить все шаблоны вместе с привязанными к ним сведениями.
+     */
+    public synchronized void clear() {
+        templatesBySql.clear();
+        templatesByFingerprint.clear();
+    }
+}
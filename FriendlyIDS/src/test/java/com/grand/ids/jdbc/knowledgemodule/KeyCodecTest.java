@@ -0,0 +1,229 @@
+/*
+ * Copyright 2009-2016 Andrey Grigorov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.grand.ids.jdbc.knowledgemodule;
+
+import com.grand.ids.jdbc.CapturingResultSet;
+import com.grand.ids.model.Column;
+import com.grand.ids.model.Table;
+import org.junit.Test;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Кодирование значений первичного ключа: равенство ключей, заданных
+ * значениями разных типов, и восстановление значений из двоичного
+ * представления.
+ *
+ * @author Andrey Grigorov
+ */
+public class KeyCodecTest {
+
+    @Test
+    public void integralValuesOfDifferentTypesGiveEqualKeys() {
+        KeyCodec codec = KeyCodec.forTable(table(Types.BIGINT));
+        RecordKey key = codec.key(Collections.<Object>singletonList(42L));
+        for (Object value : new Object[]{42, (short) 42, new BigDecimal("42.00"), 42.0d}) {
+            RecordKey other = codec.key(Collections.singletonList(value));
+            assertEquals(key, other);
+            assertEquals(key.hashCode(), other.hashCode());
+        }
+        assertEquals(Collections.<Object>singletonList(42L), key.getValues());
+    }
+
+    @Test
+    public void fractionalValuesAreNotTruncated() {
+        KeyCodec codec = KeyCodec.forTable(table(Types.DECIMAL));
+        RecordKey key = codec.key(Collections.<Object>singletonList(new BigDecimal("1.50")));
+        assertEquals(key, codec.key(Collections.<Object>singletonList(new BigDecimal("1.5"))));
+        assertFalse(key.equals(codec.key(Collections.<Object>singletonList(1L))));
+        assertEquals(new BigDecimal("1.5"), key.getValue(0));
+    }
+
+    @Test
+    public void compositeKeyRoundTrip() {
+        KeyCodec codec = KeyCodec.forTable(table(Types.INTEGER, Types.VARCHAR));
+        Timestamp timestamp = new Timestamp(1234567890123L);
+        timestamp.setNanos(123456789);
+        List<Object> values = Arrays.<Object>asList(7L, "ключ", timestamp, new java.sql.Date(86400000L),
+                Boolean.TRUE, null, new BigDecimal("-0.25"));
+        RecordKey key = codec.key(values);
+        assertEquals(values, key.getValues());
+        assertEquals("ключ", key.getValue(1));
+        assertNull(key.getValue(5));
+
+        byte[] bytes = {1, 2, (byte) 0xFF};
+        RecordKey binaryKey = codec.key(Arrays.<Object>asList(1, bytes));
+        assertArrayEquals(bytes, (byte[]) binaryKey.getValue(1));
+        assertEquals(binaryKey, codec.key(Arrays.<Object>asList(1L, bytes.clone())));
+    }
+
+    @Test
+    public void readNumericKeys() throws Exception {
+        KeyCodec codec = KeyCodec.forTable(table(Types.BIGINT));
+        assertTrue(codec.isNumeric());
+        RecordKeys keys = codec.read(resultSet(new int[]{Types.BIGINT}, row(3L), row((Object) null), row(3L), row(4L)),
+                new int[]{1});
+        assertEquals(4, keys.size());
+        assertEquals(codec.key(Collections.<Object>singletonList(3)), keys.get(0));
+        assertTrue(keys.containsNull(1));
+        assertEquals(Collections.<Object>singletonList(4L), keys.getValues(3));
+
+        RecordKeys distinct = keys.distinct();
+        assertEquals(2, distinct.size());
+        assertEquals(3L, distinct.getValue(0, 0));
+        assertEquals(4L, distinct.getValue(1, 0));
+    }
+
+    @Test
+    public void readCompositeKeys() throws Exception {
+        KeyCodec codec = KeyCodec.forTable(table(Types.INTEGER, Types.VARCHAR));
+        assertFalse(codec.isNumeric());
+        RecordKeys keys = codec.read(resultSet(new int[]{Types.INTEGER, Types.VARCHAR},
+                row(1L, "a"), row(1L, "b"), row(1L, "a"), row(2L, null)), new int[]{1, 2});
+        assertEquals(4, keys.size());
+        assertEquals(codec.key(Arrays.<Object>asList(1, "b")), keys.get(1));
+        assertEquals(keys.get(0), keys.get(2));
+        assertEquals(Arrays.<Object>asList(1L, "a"), keys.getValues(0));
+        assertEquals("b", keys.getValue(1, 1));
+        assertTrue(keys.containsNull(3));
+
+        RecordKeys distinct = keys.distinct();
+        assertEquals(2, distinct.size());
+        assertEquals(keys.get(0), distinct.get(0));
+        assertEquals(keys.get(1), distinct.get(1));
+    }
+
+    /**
+     * Описание таблицы с первичным ключом из полей заданных типов.
+     */
+    private static Table table(int... keyTypes) {
+        Table table = new Table();
+        table.setName("t");
+        List<Column> columns = new ArrayList<Column>();
+        List<String> primaryKeys = new ArrayList<String>();
+        for (int i = 0; i < keyTypes.length; i++) {
+            Column column = new Column();
+            column.setName("k" + i);
+            column.setType(keyTypes[i]);
+            columns.add(column);
+            primaryKeys.add(column.getName());
+        }
+        table.setColumns(columns);
+        table.setPrimaryKeys(primaryKeys);
+        return table;
+    }
+
+    private static Object[] row(Object... values) {
+        return values;
+    }
+
+    /**
+     * Считанный результат запроса с заданными строками; курсор драйвера
+     * имитируется динамическим прокси.
+     */
+    private static CapturingResultSet resultSet(final int[] types, final Object[]... rows) throws Exception {
+        final ResultSetMetaData metaData = (ResultSetMetaData) Proxy.newProxyInstance(
+                KeyCodecTest.class.getClassLoader(), new Class<?>[]{ResultSetMetaData.class}, new InvocationHandler() {
+
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String name = method.getName();
+                        if (name.equals("getColumnCount")) {
+                            return types.length;
+                        }
+                        if (name.equals("getColumnType")) {
+                            return types[(Integer) args[0] - 1];
+                        }
+                        if (name.equals("getColumnName") || name.equals("getColumnLabel")) {
+                            return "k" + ((Integer) args[0] - 1);
+                        }
+                        if (name.equals("getTableName")) {
+                            return "t";
+                        }
+                        return defaultValue(method);
+                    }
+                });
+        ResultSet resultSet = (ResultSet) Proxy.newProxyInstance(
+                KeyCodecTest.class.getClassLoader(), new Class<?>[]{ResultSet.class}, new InvocationHandler() {
+
+                    private int row = -1;
+                    private Object last;
+
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String name = method.getName();
+                        if (name.equals("getMetaData")) {
+                            return metaData;
+                        }
+                        if (name.equals("next")) {
+                            return ++row < rows.length;
+                        }
+                        if (name.equals("wasNull")) {
+                            return last == null;
+                        }
+                        if (name.startsWith("get") && args != null && args.length == 1 && args[0] instanceof Integer) {
+                            last = rows[row][(Integer) args[0] - 1];
+                            if (last == null) {
+                                return defaultValue(method);
+                            }
+                            if (method.getReturnType() == long.class) {
+                                return ((Number) last).longValue();
+                            }
+                            if (method.getReturnType() == int.class) {
+                                return ((Number) last).intValue();
+                            }
+                            if (method.getReturnType() == double.class) {
+                                return ((Number) last).doubleValue();
+                            }
+                            if (method.getReturnType() == String.class) {
+                                return last.toString();
+                            }
+                            return last;
+                        }
+                        return defaultValue(method);
+                    }
+                });
+        return new CapturingResultSet(resultSet, null);
+    }
+
+    private static Object defaultValue(Method method) {
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        if (type == double.class) {
+            return 0d;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,104 @@
+/*
+ * Copyright 2009-2016 Andrey Grigorov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.grand.ids.jdbc.knowledgemodule.minmax;
+
+import com.grand.ids.model.Column;
+import com.grand.ids.model.Table;
+import org.junit.Test;
+
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Тексты операторов обновления служебных таблиц базы знаний.
+ *
+ * @author Andrey Grigorov
+ */
+public class UpsertDialectTest {
+
+    @Test
+    public void detectsDialectByProductName() {
+        assertEquals(UpsertDialect.MYSQL, UpsertDialect.forProductName("MySQL", null));
+        assertEquals(UpsertDialect.MYSQL, UpsertDialect.forProductName("MariaDB", null));
+        assertEquals(UpsertDialect.POSTGRESQL, UpsertDialect.forProductName("PostgreSQL", null));
+        assertEquals(UpsertDialect.MYSQL, UpsertDialect.forProductName("H2", "jdbc:h2:mem:test; MODE=MySQL"));
+        assertEquals(UpsertDialect.NONE, UpsertDialect.forProductName("H2", "jdbc:h2:mem:test"));
+        assertEquals(UpsertDialect.NONE, UpsertDialect.forProductName("Oracle", null));
+        assertEquals(UpsertDialect.NONE, UpsertDialect.forProductName(null, null));
+    }
+
+    @Test
+    public void mysqlBoundUpsert() {
+        assertEquals("insert into orders_min (ids_user_id, id, total, created) values (?, ?, ?, ?)"
+                        + " on duplicate key update"
+                        + " total = coalesce(least(total, values(total)), total, values(total)),"
+                        + " created = coalesce(least(created, values(created)), created, values(created))",
+                UpsertDialect.MYSQL.getBoundUpsert(orders(), "_min"));
+    }
+
+    @Test
+    public void postgresqlBoundUpsert() {
+        assertEquals("insert into orders_max (ids_user_id, id, total, created) values (?, ?, ?, ?)"
+                        + " on conflict (ids_user_id, id) do update set"
+                        + " total = coalesce(greatest(orders_max.total, excluded.total), orders_max.total, excluded.total),"
+                        + " created = coalesce(greatest(orders_max.created, excluded.created), orders_max.created, excluded.created)",
+                UpsertDialect.POSTGRESQL.getBoundUpsert(orders(), "_max"));
+    }
+
+    @Test
+    public void boundUpsertWithoutNonkeyColumns() {
+        Table table = table("links", Arrays.asList("a", "b"), column("a", Types.INTEGER), column("b", Types.INTEGER));
+        assertEquals("insert into links_min (ids_user_id, a, b) values (?, ?, ?)"
+                        + " on duplicate key update ids_user_id = ids_user_id",
+                UpsertDialect.MYSQL.getBoundUpsert(table, "_min"));
+        assertEquals("insert into links_min (ids_user_id, a, b) values (?, ?, ?)"
+                        + " on conflict (ids_user_id, a, b) do nothing",
+                UpsertDialect.POSTGRESQL.getBoundUpsert(table, "_min"));
+    }
+
+    @Test
+    public void counterUpsert() {
+        assertEquals("insert into orders_cnt (ids_user_id, id, hits, start_time) values (?, ?, 1, 0)"
+                        + " on duplicate key update hits = hits + 1",
+                UpsertDialect.MYSQL.getCounterUpsert(orders()));
+        assertEquals("insert into orders_cnt (ids_user_id, id, hits, start_time) values (?, ?, 1, 0)"
+                        + " on conflict (ids_user_id, id) do update set hits = orders_cnt.hits + 1",
+                UpsertDialect.POSTGRESQL.getCounterUpsert(orders()));
+    }
+
+    private static Table orders() {
+        return table("orders", Arrays.asList("id"),
+                column("id", Types.BIGINT), column("total", Types.DECIMAL), column("created", Types.TIMESTAMP));
+    }
+
+    private static Table table(String name, List<String> primaryKeys, Column... columns) {
+        Table table = new Table();
+        table.setName(name);
+        table.setPrimaryKeys(primaryKeys);
+        table.setColumns(Arrays.asList(columns));
+        return table;
+    }
+
+    private static Column column(String name, int type) {
+        Column column = new Column();
+        column.setName(name);
+        column.setType(type);
+        return column;
+    }
+}
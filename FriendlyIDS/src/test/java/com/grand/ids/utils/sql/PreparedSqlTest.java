@@ -0,0 +1,89 @@
+/*
+ * Copyright 2009-2016 Andrey Grigorov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.grand.ids.utils.sql;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Поиск знаков параметров в тексте подготовленного запроса: знаки внутри
+ * литералов, идентификаторов в кавычках и комментариев параметрами не
+ * являются.
+ *
+ * @author Andrey Grigorov
+ */
+public class PreparedSqlTest {
+
+    @Test
+    public void plainPlaceholders() {
+        assertRendered("select * from t where a = 1 and b = 2", "select * from t where a = ? and b = ?");
+    }
+
+    @Test
+    public void quotedTextIsSkipped() {
+        assertRendered("select '?', \"?\", `?` from t where a = 1",
+                "select '?', \"?\", `?` from t where a = ?");
+        assertRendered("select 'it''s ?' from t where a = 1", "select 'it''s ?' from t where a = ?");
+    }
+
+    @Test
+    public void escapedQuotesAreSkipped() {
+        assertRendered("select 'a\\'?' from t where a = 1 and b = 2",
+                "select 'a\\'?' from t where a = ? and b = ?");
+        assertRendered("select E'\\\\' from t where a = 1", "select E'\\\\' from t where a = ?");
+        // в идентификаторах MySQL обратная косая черта не экранирует кавычку
+        assertRendered("select `a\\` from t where a = 1", "select `a\\` from t where a = ?");
+    }
+
+    @Test
+    public void commentsAreSkipped() {
+        assertRendered("select a -- где b = ?\nfrom t where a = 1 /* и c = ? */ and b = 2",
+                "select a -- где b = ?\nfrom t where a = ? /* и c = ? */ and b = ?");
+        assertRendered("select a from t where a = 1 -- ?", "select a from t where a = ? -- ?");
+    }
+
+    @Test
+    public void dollarQuotedTextIsSkipped() {
+        assertRendered("select $$ ? $$, $tag$ '? $$ $tag$ from t where a = 1",
+                "select $$ ? $$, $tag$ '? $$ $tag$ from t where a = ?");
+        // позиционные параметры и идентификаторы со знаком "$" кавычками не являются
+        assertRendered("select a$b, $1 from t where a = 1 and b$ = 2",
+                "select a$b, $1 from t where a = ? and b$ = ?");
+    }
+
+    @Test
+    public void unsetAndStreamParameters() {
+        PreparedSql sql = PreparedSql.get("insert into t values (?, ?, ?)");
+        ParameterValues values = new ParameterValues(sql.getParameterCount());
+        values.setString(1, "o'k");
+        values.setStream(2);
+        assertEquals("insert into t values ('o''k', '<stream>', ?)", sql.render(values));
+    }
+
+    /**
+     * Проверить, что параметры найдены ровно в тех местах, где в ожидаемом
+     * тексте подставлены их значения (1, 2, ...).
+     */
+    private static void assertRendered(String expected, String query) {
+        PreparedSql sql = PreparedSql.get(query);
+        ParameterValues values = new ParameterValues(sql.getParameterCount());
+        for (int i = 1; i <= sql.getParameterCount(); i++) {
+            values.setLong(i, i);
+        }
+        assertEquals(expected, sql.render(values));
+    }
+}
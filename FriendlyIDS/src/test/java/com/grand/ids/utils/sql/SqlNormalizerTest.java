@@ -0,0 +1,46 @@
+/*
+ * Copyright 2009-2016 Andrey Grigorov
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.grand.ids.utils.sql;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Построение шаблонов SQL-запросов.
+ *
+ * @author Andrey Grigorov
+ */
+public class SqlNormalizerTest {
+
+    @Test
+    public void literalsAreReplaced() {
+        assertEquals("SELECT * FROM T WHERE A = ? AND B = ? AND C IN (?, ?)",
+                SqlNormalizer.normalize("select * from t where a = 'x''y' and b = 1.5e3 and c in (1, .5)"));
+    }
+
+    @Test
+    public void queriesDifferingInLiteralsShareTemplate() {
+        assertEquals(SqlNormalizer.normalize("select name from users where id = 1"),
+                SqlNormalizer.normalize("SELECT  name\n FROM users -- комментарий\n WHERE id = 42"));
+    }
+
+    @Test
+    public void identifiersAreKept() {
+        assertEquals("SELECT \"Col1\", `x` FROM T2 WHERE T2.A1 = ?",
+                SqlNormalizer.normalize("select \"Col1\", `x` from t2 /* c */ where t2.a1 = 3"));
+    }
+}